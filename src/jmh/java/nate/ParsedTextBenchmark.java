@@ -0,0 +1,94 @@
+package nate;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.stanford.nlp.trees.GrammaticalRelation;
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TypedDependency;
+
+import nate.probschemas.SyntheticCorpus;
+import nate.util.TreeOperator;
+
+/**
+ * Reading the preprocessed Gigaword files: stories with GigaDocReader, single dependency
+ * lines, and parse trees from their string form.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParsedTextBenchmark {
+  static final int NUM_STORIES = 200;
+  static final int NUM_TREES = 100;
+
+  File storyFile;
+  List<String> deps;
+  List<String> parses;
+  Map<String,GrammaticalRelation> gramRels = new HashMap<String,GrammaticalRelation>();
+  int next = 0;
+
+  @Setup
+  public void setup() throws IOException {
+    storyFile = File.createTempFile("bench-giga", ".txt");
+    FileWriter writer = new FileWriter(storyFile);
+    writer.write(SyntheticCorpus.gigaDocFile(NUM_STORIES, 1));
+    writer.close();
+
+    deps = SyntheticCorpus.depStrings(10000, 1);
+    parses = SyntheticCorpus.parseStrings(NUM_TREES, 1);
+  }
+
+  @TearDown
+  public void tearDown() {
+    storyFile.delete();
+  }
+
+  /**
+   * Read every story in the file. The score is per story.
+   */
+  @Benchmark
+  @OperationsPerInvocation(NUM_STORIES)
+  public int nextStory() {
+    GigaDocReader reader = new GigaDocReader(storyFile.getPath());
+    int stories = 0;
+    while( reader.nextStory() ) stories++;
+    reader.close();
+    return stories;
+  }
+
+  @Benchmark
+  public TypedDependency stringToDepNoXML() {
+    if( ++next == deps.size() ) next = 0;
+    return GigaDocReader.stringToDepNoXML(deps.get(next), gramRels);
+  }
+
+  /**
+   * Build trees for a batch of parses. The score is per tree.
+   */
+  @Benchmark
+  @OperationsPerInvocation(NUM_TREES)
+  public List<Tree> stringsToTrees() {
+    return TreeOperator.stringsToTrees(parses);
+  }
+}
@@ -0,0 +1,68 @@
+package nate.probschemas;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nate.util.Pair;
+
+/**
+ * Reading entities back from the text cache that Learner.load() uses, one line at a time
+ * and as a whole file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EntityLoadingBenchmark {
+  static final int NUM_DOCS = 1000;
+
+  List<String> lines;
+  File cacheFile;
+  int next = 0;
+
+  @Setup
+  public void setup() throws IOException {
+    List<List<TextEntity>> docs = SyntheticCorpus.entities(NUM_DOCS, 1);
+    lines = new ArrayList<String>();
+    for( List<TextEntity> doc : docs )
+      for( TextEntity entity : doc )
+        lines.add(entity.toFullString());
+
+    cacheFile = File.createTempFile("bench-cache", ".txt");
+    DataSimplifier.writeToResolvedCache(cacheFile.getPath(), SyntheticCorpus.docNames(NUM_DOCS), docs);
+  }
+
+  @TearDown
+  public void tearDown() {
+    cacheFile.delete();
+  }
+
+  @Benchmark
+  public TextEntity fromFullString() {
+    if( ++next == lines.size() ) next = 0;
+    return TextEntity.fromFullString(lines.get(next));
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public Pair<List<String>,List<List<TextEntity>>> loadCache() {
+    return DataSimplifier.getResolvedCachedEntityList(cacheFile.getPath());
+  }
+}
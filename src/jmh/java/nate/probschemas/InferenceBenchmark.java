@@ -0,0 +1,56 @@
+package nate.probschemas;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Inference.labelEntities() on one document at a time, with a model sampled briefly on a
+ * synthetic training set.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InferenceBenchmark {
+  @Param({ "10", "40" })
+  int numTopics;
+
+  Inference inference;
+  List<List<TextEntity>> testDocs;
+  int next = 0;
+
+  @Setup
+  public void setup() {
+    GibbsSamplerEntities sampler = new GibbsSamplerEntities(numTopics, 0, 2, 0);
+    sampler.setRandomSeed(1);
+    sampler.includeVerbs = true;
+    sampler.verbSmoothing = 0.1;
+    sampler.initializeModelFromData(SyntheticCorpus.docNames(500), SyntheticCorpus.entities(500, 1));
+    sampler.runSampler(30);
+    inference = new Inference(sampler, 3, 0.95);
+    testDocs = SyntheticCorpus.entities(200, 2);
+  }
+
+  @Benchmark
+  public List<TextEntity> labelEntities() {
+    if( ++next == testDocs.size() ) next = 0;
+    List<TextEntity> doc = testDocs.get(next);
+    for( TextEntity entity : doc ) entity.clearLabels();
+    inference.labelEntities(doc, false);
+    return doc;
+  }
+}
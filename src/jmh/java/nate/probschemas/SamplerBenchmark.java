@@ -0,0 +1,113 @@
+package nate.probschemas;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.stanford.nlp.math.ArrayMath;
+
+/**
+ * The inner loop of GibbsSamplerEntities.runSampler() at several topic counts, plus the
+ * likelihood computation that the stopping criterion runs every 15 iterations.
+ * Each call works on the next entity in the corpus, cycling through all of them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SamplerBenchmark {
+  @Param({ "10", "20", "40" })
+  int numTopics;
+
+  @Param({ "1000" })
+  int numDocs;
+
+  GibbsSamplerEntities sampler;
+  Random random = new Random(1);
+  int[] entityDocs, entityIndices;
+  int next = 0;
+
+  @Setup
+  public void setup() {
+    List<List<TextEntity>> docs = SyntheticCorpus.entities(numDocs, 1);
+    sampler = new GibbsSamplerEntities(numTopics, 0, 2, 0);
+    sampler.setRandomSeed(1);
+    sampler.includeVerbs = true;
+    sampler.verbSmoothing = 0.1;
+    sampler.initializeModelFromData(SyntheticCorpus.docNames(numDocs), docs);
+
+    int total = 0;
+    for( List<TextEntity> doc : docs ) total += doc.size();
+    entityDocs = new int[total];
+    entityIndices = new int[total];
+    int ii = 0;
+    for( int doc = 0; doc < docs.size(); doc++ ) {
+      for( int entity = 0; entity < docs.get(doc).size(); entity++ ) {
+        entityDocs[ii] = doc;
+        entityIndices[ii++] = entity;
+      }
+    }
+  }
+
+  private int nextEntity() {
+    if( ++next == entityDocs.length ) next = 0;
+    return next;
+  }
+
+  /**
+   * The distribution is computed without removing the entity first, which costs the same
+   * as the real sampling step.
+   */
+  @Benchmark
+  public double[] getTopicDistribution() {
+    int ii = nextEntity();
+    return sampler.getTopicDistribution(entityDocs[ii], entityIndices[ii]);
+  }
+
+  /**
+   * Remove an entity's counts and add them back under the same topic.
+   */
+  @Benchmark
+  public int unlabelRelabel() {
+    int ii = nextEntity();
+    int doc = entityDocs[ii], entity = entityIndices[ii];
+    int z = sampler.getZs()[doc][entity];
+    sampler.unlabel(doc, entity);
+    sampler.relabel(doc, entity, z);
+    return z;
+  }
+
+  /**
+   * One full Gibbs step, as done by runSampler() for every entity.
+   */
+  @Benchmark
+  public int sampleEntity() {
+    int ii = nextEntity();
+    int doc = entityDocs[ii], entity = entityIndices[ii];
+    sampler.unlabel(doc, entity);
+    double[] probs = sampler.getTopicDistribution(doc, entity);
+    int z = ArrayMath.sampleFromDistribution(probs, random);
+    sampler.relabel(doc, entity, z);
+    return z;
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public double computeDataLikelihood() {
+    return sampler.computeDataLikelihood();
+  }
+}
@@ -0,0 +1,167 @@
+package nate.probschemas;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import nate.NERSpan;
+
+/**
+ * Generates fake corpora for the benchmarks, so they run without the MUC data, Gigaword,
+ * WordNet or the IDF files. Vocabulary sizes and entity/mention counts roughly follow the
+ * MUC training set after DataSimplifier's filtering. The same seed gives the same corpus.
+ */
+public class SyntheticCorpus {
+  static final String[] VERBS = { "kidnap", "bomb", "attack", "release", "arrest", "kill", "explode", "say", "find", "hold",
+    "claim", "injure", "destroy", "report", "accuse", "murder", "detonate", "shoot", "capture", "free" };
+  static final String[] RELS = { "nsubj", "dobj", "prep_in", "prep_of", "nsubjpass", "prep_by", "poss", "agent" };
+  static final NERSpan.TYPE[] NERS = NERSpan.TYPE.values();
+  static final int NUM_WORDS = 2000;
+
+  /**
+   * @return Documents of entities, each with 1-4 mentions, drawn from a skewed vocabulary.
+   */
+  public static List<List<TextEntity>> entities(int numDocs, long seed) {
+    Random random = new Random(seed);
+    List<List<TextEntity>> docs = new ArrayList<List<TextEntity>>(numDocs);
+    for( int doc = 0; doc < numDocs; doc++ ) {
+      int numEntities = 3 + random.nextInt(12);
+      List<TextEntity> entities = new ArrayList<TextEntity>(numEntities);
+      for( int ee = 0; ee < numEntities; ee++ )
+        entities.add(entity(random));
+      docs.add(entities);
+    }
+    return docs;
+  }
+
+  private static TextEntity entity(Random random) {
+    TextEntity entity = new TextEntity();
+    String word = word(random);
+    NERSpan.TYPE ner = NERS[random.nextInt(NERS.length)];
+    int numMentions = 1 + random.nextInt(4);
+    for( int mm = 0; mm < numMentions; mm++ ) {
+      String dep = RELS[random.nextInt(RELS.length)] + "--" + VERBS[skewed(random, VERBS.length)];
+      entity.addMention(word.toUpperCase(), word, dep, ner);
+    }
+    entity.setCoreToken(word, word.toUpperCase());
+
+    Set<TextEntity.TYPE> types = new HashSet<TextEntity.TYPE>();
+    types.add(TextEntity.TYPE.values()[random.nextInt(TextEntity.TYPE.values().length)]);
+    entity.setEntityTypes(types);
+    return entity;
+  }
+
+  public static List<String> docNames(int numDocs) {
+    List<String> names = new ArrayList<String>(numDocs);
+    for( int doc = 0; doc < numDocs; doc++ )
+      names.add("DEV-MUC3-" + doc);
+    return names;
+  }
+
+  /**
+   * @return Dependency strings like "nsubj kidnap-4 w12-2", the form stored in the parsed Gigaword files.
+   */
+  public static List<String> depStrings(int num, long seed) {
+    Random random = new Random(seed);
+    List<String> deps = new ArrayList<String>(num);
+    for( int ii = 0; ii < num; ii++ )
+      deps.add(depString(random));
+    return deps;
+  }
+
+  private static String depString(Random random) {
+    String copies = (random.nextInt(20) == 0 ? "'" : "");
+    return RELS[random.nextInt(RELS.length)] + " " + VERBS[skewed(random, VERBS.length)] + "-" + (1 + random.nextInt(30)) + copies +
+        " " + word(random) + "-" + (1 + random.nextInt(30));
+  }
+
+  /**
+   * @return Penn Treebank parse strings, "(ROOT (S (NP (NN w1)) (VP (VBD said) ...)))", with varied depth.
+   */
+  public static List<String> parseStrings(int num, long seed) {
+    Random random = new Random(seed);
+    List<String> parses = new ArrayList<String>(num);
+    for( int ii = 0; ii < num; ii++ ) {
+      StringBuilder sb = new StringBuilder("(ROOT ");
+      sentence(random, sb, 0);
+      sb.append(")");
+      parses.add(sb.toString());
+    }
+    return parses;
+  }
+
+  private static void sentence(Random random, StringBuilder sb, int depth) {
+    sb.append("(S ");
+    nounPhrase(random, sb);
+    sb.append(" (VP (VBD ").append(VERBS[skewed(random, VERBS.length)]).append(") ");
+    nounPhrase(random, sb);
+    if( depth < 3 && random.nextBoolean() ) {
+      sb.append(" (SBAR (IN that) ");
+      sentence(random, sb, depth+1);
+      sb.append(")");
+    }
+    else if( random.nextBoolean() ) {
+      sb.append(" (PP (IN in) ");
+      nounPhrase(random, sb);
+      sb.append(")");
+    }
+    sb.append(") (. .))");
+  }
+
+  private static void nounPhrase(Random random, StringBuilder sb) {
+    sb.append("(NP (DT the)");
+    int numNouns = 1 + random.nextInt(3);
+    for( int nn = 0; nn < numNouns; nn++ )
+      sb.append(" (NN ").append(word(random)).append(")");
+    sb.append(")");
+  }
+
+  /**
+   * @return The contents of a parsed Gigaword-style file that GigaDocReader can read, with
+   *         entity, dependency and NER lines for each story.
+   */
+  public static String gigaDocFile(int numStories, long seed) {
+    Random random = new Random(seed);
+    StringBuilder sb = new StringBuilder();
+    for( int story = 0; story < numStories; story++ ) {
+      sb.append("<DOC id=\"NYT_ENG_" + story + "\" type=\"story\" num=\"" + story + "\" >\n");
+      sb.append("<TEXT>\n");
+      int numSentences = 5 + random.nextInt(20);
+      for( int sid = 0; sid < numSentences; sid++ ) {
+        sb.append("<DEPS>\n");
+        int numDeps = 5 + random.nextInt(20);
+        for( int dd = 0; dd < numDeps; dd++ )
+          sb.append("<D>").append(depString(random)).append("</D>\n");
+        sb.append("</DEPS>\n");
+      }
+      int numMentions = 10 + random.nextInt(30);
+      for( int mm = 0; mm < numMentions; mm++ ) {
+        int start = 1 + random.nextInt(25);
+        sb.append("<ENT>" + random.nextInt(numSentences) + " " + random.nextInt(15) + " " + start + " " + (start + 1 + random.nextInt(3)) +
+            " " + word(random) + "</ENT>\n");
+      }
+      int numNers = 3 + random.nextInt(10);
+      for( int nn = 0; nn < numNers; nn++ ) {
+        int start = 1 + random.nextInt(25);
+        sb.append("<N>" + NERS[1 + random.nextInt(NERS.length-1)] + "\t" + random.nextInt(numSentences) + "\t" + start + "\t" + (start+1) + "</N>\n");
+      }
+      sb.append("</TEXT>\n");
+      sb.append("</DOC>\n");
+    }
+    return sb.toString();
+  }
+
+  private static String word(Random random) {
+    return "w" + skewed(random, NUM_WORDS);
+  }
+
+  /**
+   * @return A number in [0,max), with small numbers much more likely, like word frequencies.
+   */
+  private static int skewed(Random random, int max) {
+    double uniform = random.nextDouble();
+    return Math.min(max-1, (int)(max * uniform * uniform * uniform));
+  }
+}
@@ -5,6 +5,7 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -21,6 +22,7 @@ import edu.stanford.nlp.ling.CoreLabel;
 import edu.stanford.nlp.parser.lexparser.Options;
 import edu.stanford.nlp.pipeline.Annotation;
 import edu.stanford.nlp.pipeline.StanfordCoreNLP;
+import edu.stanford.nlp.trees.GrammaticalRelation;
 import edu.stanford.nlp.trees.GrammaticalStructure;
 import edu.stanford.nlp.trees.GrammaticalStructureFactory;
 import edu.stanford.nlp.trees.PennTreebankLanguagePack;
@@ -64,8 +66,16 @@ public class AllParser {
   public static final int TEXT = 3;
   
   private int _docType = TEXT;
+  private Map<String,GrammaticalRelation> _gramRels = new HashMap<String,GrammaticalRelation>();
 
 
+  /**
+   * A parser for in-memory use with analyze(). Loads the CoreNLP pipeline, no files are involved.
+   */
+  public AllParser() {
+    initLexResources();
+  }
+
   public AllParser(String[] args) {
     if( args.length < 2 ) {
       System.out.println("DirectoryParser [-output <dir>] -type giga|muc -input <text-directory>");
@@ -136,17 +146,33 @@ public class AllParser {
   }
 
 
+  /**
+   * Parse a story in memory, with no output files.
+   * @param currentStory The name of the document these sentences are from.
+   * @param currentStoryNum Unique ID for this document/story.
+   * @param paragraphs Vector of strings of sentences
+   * @return The parses, dependencies, coref mentions and NER of the story, or null if CoreNLP failed on it.
+   */
+  public ProcessedDocument analyze(String currentStory, int currentStoryNum, Vector<String> paragraphs) {
+    return analyzeSentences(currentStory, currentStoryNum, paragraphs, null, null, null, null);
+  }
+
   /**
    * @desc Parses input sentences and prints the parses to the given doc.
    * @param currentStory The name of the document these sentences are from.
    * @param currentStoryNum Unique ID for this document/story.
    * @param paragraphs Vector of strings of sentences
-   * @param pdoc The current document we're printing to.
-   * @param depdoc The document of dependencies that we're printing to.
-   * @param corefdoc The document of coref chains that we're printing to.
+   * @param pdoc The current document we're printing to, or null to not print.
+   * @param depdoc The document of dependencies that we're printing to, or null.
+   * @param corefdoc The document of coref chains that we're printing to, or null.
+   * @param nerdoc The document of named entities that we're printing to, or null.
+   * @return The same analysis in memory, as it would be read back from the files, or null if CoreNLP failed.
    */
-  private void analyzeSentences(String currentStory, int currentStoryNum, Vector<String> paragraphs, GigaDoc pdoc, GigaDoc depdoc, GigaDoc corefdoc, GigaDoc nerdoc) {
+  public ProcessedDocument analyzeSentences(String currentStory, int currentStoryNum, Vector<String> paragraphs, GigaDoc pdoc, GigaDoc depdoc, GigaDoc corefdoc, GigaDoc nerdoc) {
     int sid = 0;
+    List<String> parses = new ArrayList<String>();
+    List<List<TypedDependency>> alldeps = new ArrayList<List<TypedDependency>>();
+    List<NERSpan> ners = new ArrayList<NERSpan>();
 
     // Paragraphs may be multiple sentences
     String allsents = "";
@@ -165,7 +191,7 @@ public class AllParser {
     } catch( Exception ex ) {
       ex.printStackTrace();
       System.out.println("ERROR: skipping document due to Stanford CoreNLP failure.");
-      return;
+      return null;
     }
 
     // Loop over the sentences.
@@ -183,7 +209,8 @@ public class AllParser {
       StringWriter treeStrWriter = new StringWriter();
       TreePrint tp = new TreePrint("penn");
       tp.printTree(tree, new PrintWriter(treeStrWriter,true));
-      pdoc.addParse(treeStrWriter.toString());
+      parses.add(treeStrWriter.toString());
+      if( pdoc != null ) pdoc.addParse(treeStrWriter.toString());
 
       // DEPENDENCY GRAPH (old way of doing it)
       // Create the dependency tree - CAUTION: DESTRUCTIVE to parse tree
@@ -191,11 +218,13 @@ public class AllParser {
         GrammaticalStructure gs = gsf.newGrammaticalStructure(tree);
         //      Collection<TypedDependency> deps = gs.typedDependenciesCollapsed();
         Collection<TypedDependency> deps = gs.typedDependenciesCCprocessed(true);
-        depdoc.addDependencies(deps, sid);
+        if( depdoc != null ) depdoc.addDependencies(deps, sid);
+        alldeps.add(readBackDependencies(deps));
       } catch( Exception ex ) { 
         ex.printStackTrace();
         System.out.println("WARNING: dependency tree creation failed...adding null deps");
-        depdoc.addDependencies(null, sid);
+        if( depdoc != null ) depdoc.addDependencies(null, sid);
+        alldeps.add(new ArrayList<TypedDependency>());
       }
 
       // This is the new way to make Dependency Graphs, but I can't shove it into my old data structure...
@@ -218,7 +247,7 @@ public class AllParser {
         // If no NE here, but there was a previous NE.
         if( ne.equals("O") && prev != null ) {
           NERSpan.TYPE type = nerStringToType(prev);
-          if( type != null ) nerdoc.addNER(new NERSpan(type, sid, start, i-1));
+          if( type != null ) addNER(new NERSpan(type, sid, start, i-1), ners, nerdoc);
 //          System.out.println("Added1 " + (new NERSpan(type, sid, start, i-1)));
           prev = null;
           start = -1;
@@ -226,7 +255,7 @@ public class AllParser {
         // If a different NE is next to the previous NE.
         else if( !ne.equals("O") && prev != null && !ne.equals(prev) ) {
           NERSpan.TYPE type = nerStringToType(prev);
-          if( type != null ) nerdoc.addNER(new NERSpan(type, sid, start, i-1));
+          if( type != null ) addNER(new NERSpan(type, sid, start, i-1), ners, nerdoc);
 //          System.out.println("Added2 " + (new NERSpan(type, sid, start, i-1)));
           prev = ne;
           start = i;          
@@ -264,7 +293,27 @@ public class AllParser {
     }
     // Put the entities into the doc, and save the mentions that are arguments of verbs.
     if( debug ) System.out.println("MYMENTIONS = " + mymentions);
-    mapCorefToTrees(corefdoc, trees, mymentions);
+    if( corefdoc != null ) mapCorefToTrees(corefdoc, trees, mymentions);
+
+    return new ProcessedDocument(currentStory, parses, alldeps, mymentions, ners);
+  }
+
+  private void addNER(NERSpan ner, List<NERSpan> ners, GigaDoc nerdoc) {
+    ners.add(ner);
+    if( nerdoc != null ) nerdoc.addNER(ner);
+  }
+
+  /**
+   * Convert dependencies to the strings written to the .deps files and back, so the in-memory
+   * dependencies are exactly the ones that GigaDocReader would read from disk.
+   */
+  private List<TypedDependency> readBackDependencies(Collection<TypedDependency> deps) {
+    List<TypedDependency> readBack = new ArrayList<TypedDependency>();
+    for( String str : GigaDoc.dependencyStrings(deps) ) {
+      TypedDependency dep = GigaDocReader.stringToDepNoXML(str, _gramRels);
+      if( dep != null ) readBack.add(dep);
+    }
+    return readBack;
   }
 
   /**
@@ -473,16 +522,7 @@ public class AllParser {
             }
 
             // Open the text file to parse.
-            DocumentHandler giga = null;
-            String outpath = dirPath + File.separator + file;
-            if( _docType == GIGAWORD )
-              giga = new GigawordHandler(outpath);
-            else if( _docType == ENVIRO )
-              giga = new EnviroHandler(outpath);
-            else if( _docType == MUC )
-              giga = new MUCHandler(outpath);
-            else if( _docType == TEXT )
-              giga = new TextHandler(outpath);
+            DocumentHandler giga = createHandler(_docType, dirPath + File.separator + file);
 
             // Read the documents in the text file.               else if( _docType == MUC )
             //              giga = new MUCHandler(_dataPath + File.separator + file);
@@ -522,12 +562,31 @@ public class AllParser {
     else System.err.println("ERROR: bad file path of documents: " + _dataPath);
   }
 
+  /**
+   * @return A reader for the stories in the given file, for the given document type.
+   */
+  public static DocumentHandler createHandler(int docType, String path) {
+    if( docType == GIGAWORD )
+      return new GigawordHandler(path);
+    else if( docType == ENVIRO )
+      return new EnviroHandler(path);
+    else if( docType == MUC )
+      return new MUCHandler(path);
+    else if( docType == TEXT )
+      return new TextHandler(path);
+    return null;
+  }
+
+  private boolean validFilename(String file) {
+    return validFilename(file, _docType);
+  }
+
   /**
    * @param file A filename, not the complete path.
    * @returns True if the given filename matches the requirements of whatever type
    *          of documents we are currently processing.  False otherwise.
    */
-  private boolean validFilename(String file) {
+  public static boolean validFilename(String file, int _docType) {
     if( !file.startsWith(".") ) {
       if( _docType == GIGAWORD ) {
         if( file.endsWith(".gz") || file.endsWith(".txt") ) return true;
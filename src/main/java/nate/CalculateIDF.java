@@ -385,6 +385,33 @@ public class CalculateIDF {
     calculateIDF(parseStrings);
   }
   
+  /**
+   * Same as countStory(), but for parse trees that were already built, so a caller that
+   * needs the trees too only parses the story once. The trees are not changed.
+   * @param trees The story's parse trees, in sentence order.
+   */
+  public void countStoryTrees(List<Tree> trees) {
+    System.out.println("Calculating for a single story: numsentences = " + trees.size());
+
+    _idf.increaseDocCount();
+    _idfLemmas.increaseDocCount();
+
+    // clear the global seen list for this new story
+    _seen.clear();
+    _seenLemmas.clear();
+
+    int sid = 0;
+    int numSentences = trees.size();
+    for( Tree tree : trees ) {
+      // Count all, or only the first two sentences.
+      if( !_firstSentences || (numSentences > 4 && sid < 2) ) {
+        if( tree != null )
+          calculateTreeIDF(tree, tree);
+      }
+      sid++;
+    }
+  }
+
   public void calculateIDF() {
     if( _idf != null ) _idf.calculateIDF();
     if( _idfLemmas != null ) _idfLemmas.calculateIDF();
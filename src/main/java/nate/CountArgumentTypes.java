@@ -1,15 +1,17 @@
 package nate;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import nate.CountTokenPairs;
 import nate.EntityMention;
@@ -20,10 +22,10 @@ import nate.GigawordProcessed;
 import nate.IDFMap;
 import nate.NERSpan;
 import nate.WordEvent;
+import nate.args.VerbArgCounts;
 import nate.util.Directory;
 import nate.util.HandleParameters;
 import nate.util.Ling;
-import nate.util.SortableScore;
 import nate.util.TreeOperator;
 import nate.util.Util;
 import nate.util.WordNet;
@@ -50,7 +52,11 @@ import edu.stanford.nlp.trees.TypedDependency;
  * -nopairs
  * Only counts args of verbs, doesn't also count pairs of coref verbs.
  * 
- * CountArgumentTypes [-idf <idf>] [-nopairs] [-output <output-dir>] -events <events-dir> -deps <deps-dir> -parsed <parse-dir> -ner <ner-dir>
+ * -threads <n>
+ * Count the files of a directory on n threads. Each file is counted into its own
+ * VerbArgCounts, and these are merged before each save to disk.
+ * 
+ * CountArgumentTypes [-idf <idf>] [-nopairs] [-threads <n>] [-output <output-dir>] -events <events-dir> -deps <deps-dir> -parsed <parse-dir> -ner <ner-dir>
  *
  */
 public class CountArgumentTypes {
@@ -73,13 +79,13 @@ public class CountArgumentTypes {
   boolean _fullPrep = true; // true if you want "p_during" and not just "p"
   boolean _doPairs = true; // false if you don't want to count verb pair arguments
   boolean _countObjectCollocations = false; // true if you want to count objects as part of events
+  int _numThreads = 1;
 
   
   private HashSet<String> _ignoreList;
   private HashSet<String> _duplicates;
-  private Map<String, Map<String,Integer>> _pairCounts;
-  //  private Map<String, Map<String, Map<String,Integer>>> _pairCounts;
-  private Map<String, Map<String,Integer>> _verbCounts;
+  private VerbArgCounts _pairCounts;
+  private VerbArgCounts _verbCounts;
 
   private WordNet _wordnet;
   private IDFMap _idf;
@@ -90,8 +96,8 @@ public class CountArgumentTypes {
 
     initLexResources();
 
-    _pairCounts = new HashMap<String, Map<String,Integer>>();
-    _verbCounts = new HashMap<String, Map<String,Integer>>();
+    _pairCounts = new VerbArgCounts();
+    _verbCounts = new VerbArgCounts();
   }
 
   public CountArgumentTypes(WordNet wordnet, boolean fullPrep, boolean doPairs) {
@@ -101,8 +107,28 @@ public class CountArgumentTypes {
     // Make an empty IDF map ... this is just usd in counting verb pairs to save memory.
     _idf = new IDFMap();
 
-    if( _doPairs ) _pairCounts = new HashMap<String, Map<String,Integer>>();
-    _verbCounts = new HashMap<String, Map<String,Integer>>();
+    if( _doPairs ) _pairCounts = new VerbArgCounts();
+    _verbCounts = new VerbArgCounts();
+  }
+
+  /**
+   * A counter for one file of a parallel run, with its own counts and the parent's
+   * settings and lexical resources.
+   */
+  private CountArgumentTypes(CountArgumentTypes parent) {
+    _wordnet = parent._wordnet;
+    _idf = parent._idf;
+    _duplicates = parent._duplicates;
+    _tokenType = parent._tokenType;
+    _idfCutoff = parent._idfCutoff;
+    _docCutoff = parent._docCutoff;
+    _pairDistance = parent._pairDistance;
+    _fullPrep = parent._fullPrep;
+    _doPairs = parent._doPairs;
+    _countObjectCollocations = parent._countObjectCollocations;
+
+    if( _doPairs ) _pairCounts = new VerbArgCounts();
+    _verbCounts = new VerbArgCounts();
   }
 
   /**
@@ -131,6 +157,10 @@ public class CountArgumentTypes {
     if( params.hasFlag("-output") )
       _outputDir = params.get("-output");
 
+    if( params.hasFlag("-threads") )
+      _numThreads = Integer.parseInt(params.get("-threads"));
+    System.out.println("threads\t" + _numThreads);
+
     _parseDir = params.get("-parsed");
     _eventsDir = params.get("-events");
     _depsDir = params.get("-deps");
@@ -422,20 +452,7 @@ public class CountArgumentTypes {
   private void countArgTypeForPair( String verbPair, String argString ) {
     assert verbPair != null;
     assert argString != null;
-    Map<String,Integer> args;
-
-    // Find the verb pair, or create a new entry.
-    if( _pairCounts.containsKey(verbPair) ) args = _pairCounts.get(verbPair);
-    else {
-      args = new HashMap<String,Integer>();
-      _pairCounts.put(verbPair, args);
-    }
-
-    // Find the argument string, or create a new entry.
-    if( args.containsKey(argString) )
-      args.put(argString, args.get(argString)+1);
-    else
-      args.put(argString, 1);
+    _pairCounts.incrementCount(verbPair, argString, 1);
   }
 
 
@@ -444,19 +461,7 @@ public class CountArgumentTypes {
    * table 'verbCounts'.
    */
   private void countSingleArgType( String verb, String argString ) {
-    Map<String,Integer> args;
-
-    if( _verbCounts.containsKey(verb) ) args = _verbCounts.get(verb);
-    else {
-      args = new HashMap<String,Integer>();
-      _verbCounts.put(verb, args);
-    }
-
-    // Find the argument string, or create a new entry.
-    if( args.containsKey(argString) )
-      args.put(argString, args.get(argString)+1);
-    else
-      args.put(argString, 1);
+    _verbCounts.incrementCount(verb, argString, 1);
   }
 
 
@@ -623,7 +628,7 @@ public class CountArgumentTypes {
     }
   }
 
-  public Map<String,Map<String,Integer>> getVerbCounts() {
+  public VerbArgCounts getVerbCounts() {
     return _verbCounts;
   }
 
@@ -705,49 +710,34 @@ public class CountArgumentTypes {
       File dir = new File(_parseDir);
       String haveLock = "";
 
+      // Directory of files, counted on worker threads.
+      if( dir.isDirectory() && _numThreads > 1 )
+        processDirectoryParallel();
+
       // Directory of files.  *** never tested
-      if( dir.isDirectory() ) {
+      else if( dir.isDirectory() ) {
         int numfiles = 0;
         for( String file : Directory.getFilesSorted(_parseDir) ) {
           if( file.contains("parse") ) {
             System.out.println("file: " + file);
-            String year = (file.length() > 15 && file.matches(".*\\d\\d\\d\\d.*")) ? file.substring(8,12) : "noyear";
-            String month = (file.length() > 15 && file.matches(".*\\d\\d\\d\\d.*")) ? file.substring(12,14) : "nomonth";
-            String parseFile = _parseDir + File.separator + file;
-            String gzsuffix = "";
-            if( parseFile.endsWith(".gz") ) gzsuffix = ".gz";
-            String depsFile = _depsDir + File.separator + file.substring(0,file.indexOf(".parse")) + ".deps" + gzsuffix;
-            String corefFile = _eventsDir + File.separator + file.substring(0,file.indexOf(".parse")) + ".events" + gzsuffix;
-            String nerFile = _nerDir + File.separator + file.substring(0,file.indexOf(".parse")) + ".gz.ner" + gzsuffix;
+            String year = fileYear(file);
+            String month = fileMonth(file);
+            String[] paths = dataPaths(file);
 
             // Lock this year for processing.
             if( checkLock(haveLock, year) ) {
               haveLock = year;
 
               // Count the pairs.
-              countDocument(parseFile, depsFile, corefFile, nerFile);
+              countDocument(paths[0], paths[1], paths[2], paths[3]);
 
               //              writeCountsToFile(_pairCounts, _outputDir + File.separator + _outputPairFile);
               //              writeCountsToFile(_verbCounts, _outputDir + File.separator + _outputVerbFile);
               //              System.exit(-1);
 
               // Save to file by year (and at half years).
-              if( month.equals("06") || month.equals("12") || 
-                  (year.equals("1999") && month.equals("11")) || (year.equals("2004") && month.equals("05")) ) {
-                System.out.println("saving to disc...");
-                String suffix = "-1";
-                if( !month.equals("06") && !month.equals("05") ) suffix = "-2";
-                // Trim collocations
-                trimVerbObjects(_verbCounts);
-                // Write to file.
-                if( _doPairs )
-                  writeCountsToFile(_pairCounts, _outputDir + File.separator + _outputPairFile + "-" + year + suffix);
-                writeCountsToFile(_verbCounts, _outputDir + File.separator + _outputVerbFile + "-" + year + suffix);
-                // Now clear the memory.
-                if( _doPairs ) _pairCounts.clear();
-                _verbCounts.clear();
-                System.out.println("Cleared memory.");
-              }
+              if( isSavePoint(year, month) )
+                saveCounts(year, month);
 
               Util.reportMemory();
               numfiles++;
@@ -767,6 +757,125 @@ public class CountArgumentTypes {
     }
   }
 
+  private static String fileYear(String file) {
+    return (file.length() > 15 && file.matches(".*\\d\\d\\d\\d.*")) ? file.substring(8,12) : "noyear";
+  }
+
+  private static String fileMonth(String file) {
+    return (file.length() > 15 && file.matches(".*\\d\\d\\d\\d.*")) ? file.substring(12,14) : "nomonth";
+  }
+
+  /**
+   * @return The parse, deps, events and ner paths of the given parse file in the directories.
+   */
+  private String[] dataPaths(String file) {
+    String parseFile = _parseDir + File.separator + file;
+    String gzsuffix = "";
+    if( parseFile.endsWith(".gz") ) gzsuffix = ".gz";
+    String base = file.substring(0,file.indexOf(".parse"));
+    String depsFile = _depsDir + File.separator + base + ".deps" + gzsuffix;
+    String corefFile = _eventsDir + File.separator + base + ".events" + gzsuffix;
+    String nerFile = _nerDir + File.separator + base + ".gz.ner" + gzsuffix;
+    return new String[] { parseFile, depsFile, corefFile, nerFile };
+  }
+
+  /**
+   * Counts are saved to disk by year, at half years.
+   */
+  private static boolean isSavePoint(String year, String month) {
+    return month.equals("06") || month.equals("12") || 
+        (year.equals("1999") && month.equals("11")) || (year.equals("2004") && month.equals("05"));
+  }
+
+  /**
+   * Trim, write and clear the counts so far, in files named by the given year and month.
+   */
+  private void saveCounts(String year, String month) {
+    System.out.println("saving to disc...");
+    String suffix = "-1";
+    if( !month.equals("06") && !month.equals("05") ) suffix = "-2";
+    // Trim collocations
+    trimVerbObjects(_verbCounts);
+    // Write to file.
+    if( _doPairs )
+      writeCountsToFile(_pairCounts, _outputDir + File.separator + _outputPairFile + "-" + year + suffix);
+    writeCountsToFile(_verbCounts, _outputDir + File.separator + _outputVerbFile + "-" + year + suffix);
+    // Now clear the memory.
+    if( _doPairs ) _pairCounts.clear();
+    _verbCounts.clear();
+    System.out.println("Cleared memory.");
+  }
+
+  /**
+   * The directory mode of processData(), with each file counted on a worker thread into
+   * its own shard of counts. Shards are merged into the global counts as they finish, and
+   * the files of a save period are all merged before that period is written. The files
+   * that are counted, the locks and the output files are the same as the sequential mode.
+   */
+  private void processDirectoryParallel() {
+    ExecutorService pool = Executors.newFixedThreadPool(_numThreads);
+    CompletionService<CountArgumentTypes> finished = new ExecutorCompletionService<CountArgumentTypes>(pool);
+    String haveLock = "";
+    int running = 0;
+
+    for( String file : Directory.getFilesSorted(_parseDir) ) {
+      if( file.contains("parse") ) {
+        String year = fileYear(file);
+        String month = fileMonth(file);
+        final String[] paths = dataPaths(file);
+
+        // Lock this year for processing.
+        if( checkLock(haveLock, year) ) {
+          haveLock = year;
+          System.out.println("file: " + file);
+
+          final CountArgumentTypes shard = new CountArgumentTypes(this);
+          finished.submit(new Callable<CountArgumentTypes>() {
+            public CountArgumentTypes call() {
+              shard.countDocument(paths[0], paths[1], paths[2], paths[3]);
+              return shard;
+            }
+          });
+          running++;
+
+          // Don't let finished shards pile up in memory.
+          while( running > 2*_numThreads ) {
+            mergeShard(takeShard(finished));
+            running--;
+          }
+
+          if( isSavePoint(year, month) ) {
+            for( ; running > 0; running-- )
+              mergeShard(takeShard(finished));
+            saveCounts(year, month);
+            Util.reportMemory();
+          }
+        }
+      }
+    }
+
+    // Files after the last save point are not written, as in the sequential mode.
+    for( ; running > 0; running-- )
+      mergeShard(takeShard(finished));
+    pool.shutdown();
+  }
+
+  private static CountArgumentTypes takeShard(CompletionService<CountArgumentTypes> finished) {
+    try {
+      return finished.take().get();
+    } catch( Exception ex ) {
+      System.out.println("ERROR: a counting thread failed.");
+      ex.printStackTrace();
+      System.exit(1);
+    }
+    return null;
+  }
+
+  private void mergeShard(CountArgumentTypes shard) {
+    _verbCounts.addCounts(shard._verbCounts);
+    if( _doPairs ) _pairCounts.addCounts(shard._pairCounts);
+  }
+
 
   /**
    * Returns true if our current locked year matches the new year,
@@ -795,62 +904,31 @@ public class CountArgumentTypes {
    * these possibilities, so we are pretty harsh when we trim.  Only the most frequent
    * are kept.
    */
-  private void trimVerbObjects(Map<String, Map<String,Integer>> counts) {
+  private void trimVerbObjects(VerbArgCounts counts) {
     Set<String> removal = new HashSet<String>();
     
     // Find entries that don't have many arguments.
-    for( Map.Entry<String, Map<String,Integer>> entry : counts.entrySet() ) {
+    for( String slot : counts.keySet() ) {
       // If this is a verb-object special collocation.
-      if( isObjectString(entry.getKey()) ) {
-        Map<String,Integer> args = entry.getValue();
-        if( args != null ) {
-          if( args.size() < 10 )
-            removal.add(entry.getKey());
-        }
+      if( isObjectString(slot) ) {
+        if( counts.numArgs(slot) < 10 )
+          removal.add(slot);
       }
     }
     
     // Physically remove the keys.
     for( String remove : removal )
-      counts.remove(remove);
+      counts.removeSlot(remove);
   }
   
   /**
    * Output the pairCounts table to file.
    * @param path The file path to create and overwrite if it already exists.
    */
-  private void writeCountsToFile(Map<String, Map<String,Integer>> counts, String path) {
-    // Find the correct path.
-    File outfile = new File(path);
-
-    System.out.println("Writing " + counts.size() + " lines to file " + outfile);
-
+  private void writeCountsToFile(VerbArgCounts counts, String path) {
+    System.out.println("Writing " + counts.size() + " lines to file " + path);
     try {
-      BufferedWriter out = new BufferedWriter(new FileWriter(outfile));
-
-      // Sort the keys.
-      String[] keys = new String[counts.size()];
-      keys = counts.keySet().toArray(keys);
-      Arrays.sort(keys);
-
-      for( String key : keys ) {
-        out.write(key);
-
-        // Write the argument counts
-        Map<String,Integer> argCounts = counts.get(key);
-
-        // Sort the counts.
-        SortableScore[] scores = new SortableScore[argCounts.size()];
-        int xx = 0;
-        for( Map.Entry<String,Integer> entry : argCounts.entrySet() )
-          scores[xx++] = new SortableScore(entry.getValue(), entry.getKey());
-        Arrays.sort(scores);
-
-        for( SortableScore score : scores )
-          out.write("\t" + score.key() + "\t" + (int)score.score());
-        out.write("\n");
-      }
-      out.close();
+      counts.writeToFile(path);
     } catch( Exception ex ) { ex.printStackTrace(); System.exit(1); }
     System.out.println("Finished writing");
   }
@@ -1,18 +1,27 @@
 package nate;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Vector;
 
 import nate.util.Directory;
 import nate.util.HandleParameters;
@@ -44,6 +53,12 @@ import edu.stanford.nlp.trees.TypedDependency;
  * Output counts format, one verb per line with its deps counts:
  *   v-justify  o 32 35 4  s 23 24 8  p 11 13 2
  *
+ * Words and relations are interned to ids, and each word keeps its (docs, occurrences,
+ * corefs) triples in int arrays along with its totals over all relations. So scoring
+ * the whole vocabulary is a scan over word ids, see numWordIDs() and the id getters.
+ * The counts can also be written in a binary form that loads without string parsing,
+ * and fromFile() reads either form.
+ *
  * "java CountVerbDepCorefs -deps <deps-file> -events <events-file> -parsed <parse-file> [-fullprep]"
  * 
  * -fullprep
@@ -52,6 +67,12 @@ import edu.stanford.nlp.trees.TypedDependency;
  * 
  * -output
  * Directory to put the generated files.
+ *
+ * -binary
+ * Also write the counts in binary form, to the same file name plus ".bin".
+ *
+ * "java CountVerbDepCorefs -tobinary <counts-file>"
+ * Converts an existing text counts file to <counts-file>.bin
  * 
  */
 public class CountVerbDepCorefs {
@@ -66,10 +87,11 @@ public class CountVerbDepCorefs {
 
   boolean _fullPrep = false; // true if you want "p_during" and not just "p"
   boolean _countObjectCollocations = false; // true if you want to count collocations too
+  boolean _writeBinary = false; // true if you want a binary copy of the output counts
   private String duplicatesPath = "duplicates";
   private Set<String> _duplicates;
-  Map<String,Map<String,Count>> _counts;
-  Map<String,Map<String,Count>> _countsLemmas;
+  CountTable _counts;
+  CountTable _countsLemmas;
   WordNet _wordnet;
   int _numStories = 0;
 
@@ -87,6 +109,9 @@ public class CountVerbDepCorefs {
     if( params.hasFlag("-objects") ) _countObjectCollocations = true;
     System.out.println("objectCollocations\t" + _countObjectCollocations);
 
+    if( params.hasFlag("-binary") ) _writeBinary = true;
+    System.out.println("binary\t" + _writeBinary);
+
     if( params.hasFlag("-output") )
       _outdir = params.get("-output");
 
@@ -94,8 +119,8 @@ public class CountVerbDepCorefs {
     _wordnet = new WordNet(params.get("-wordnet"));
 
     // Initialize count maps.
-    _counts = new HashMap<String, Map<String, Count>>();
-    _countsLemmas = new HashMap<String, Map<String, Count>>();
+    _counts = new CountTable();
+    _countsLemmas = new CountTable();
 
     // Duplicate Gigaword files to ignore.
     _duplicates = GigawordDuplicates.fromFile(duplicatesPath);
@@ -108,8 +133,8 @@ public class CountVerbDepCorefs {
    */
   public CountVerbDepCorefs(WordNet wordnet) {
     // Initialize count maps.
-    _counts = new HashMap<String, Map<String, Count>>();
-    _countsLemmas = new HashMap<String, Map<String, Count>>();
+    _counts = new CountTable();
+    _countsLemmas = new CountTable();
     _wordnet = wordnet;
   }
 
@@ -130,67 +155,34 @@ public class CountVerbDepCorefs {
   /**
    * Tally a verb/dep into our global _counts hashmaps.
    */
-  private void incrementCount(Map<String,Map<String,Count>> counts, String verb, String dep, boolean iscoref) {
-    // Find the verb
-    Map<String,Count> verbMap;
-    if( !counts.containsKey(verb) ) {
-      verbMap = new HashMap<String, Count>(8);
-      counts.put(verb, verbMap);
-    } else {
-      verbMap = counts.get(verb);
-    }
-
-    // Increment the argtype for the verb
-    if( !verbMap.containsKey(dep) ) verbMap.put(dep, new Count(0,1,(iscoref ? 1 : 0)));
-    else {
-      Count count = verbMap.get(dep);
-      count.occurrences++;
-      if( iscoref ) count.corefs++;
-    }
+  private void incrementCount(CountTable counts, String verb, String dep, boolean iscoref) {
+    counts.add(verb, dep, 0, 1, (iscoref ? 1 : 0));
   }
 
   /**
    * Tally a verb/dep into our global _counts hashmaps.
    */
-  private void incrementDocCount(Map<String,Map<String,Count>> counts, String verb, String dep) {
-    // Find the verb
-    Map<String,Count> verbMap;
-    if( !counts.containsKey(verb) ) {
-      verbMap = new HashMap<String, Count>(8);
-      counts.put(verb, verbMap);
-    } else {
-      verbMap = counts.get(verb);
-    }
-
-    // Increment the argtype for the verb
-    if( !verbMap.containsKey(dep) ) verbMap.put(dep, new Count(1,0,0));
-    else {
-      Count count = verbMap.get(dep);
-      count.docCount++;
-    }
+  private void incrementDocCount(CountTable counts, String verb, String dep) {
+    counts.add(verb, dep, 1, 0, 0);
   }
 
   /**
    * Print the verbs with their dependency-count pairs.
    */
-  private void countsToFile(Map<String,Map<String,Count>> counts, int numDocs,
-      String outfile) {
+  private void countsToFile(CountTable counts, int numDocs, String outfile) {
     System.out.println("Writing to file " + outfile);
     try {
       BufferedWriter out = new BufferedWriter(new FileWriter(outfile));
       out.write("NUMDOCS " + numDocs + "\n");
 
-      for( Map.Entry<String,Map<String,Count>> entry : counts.entrySet() ) {
-        if( entry.getKey() != null ) {
-          out.write(entry.getKey());
-
-          Map<String,Count> verbCounts = entry.getValue();
-          for( Map.Entry<String,Count> entry2 : verbCounts.entrySet() ) {
-            if( entry2.getKey() != null ) {
-              Count count = entry2.getValue();
-              out.write("\t" + entry2.getKey() + "\t" + count.docCount + "\t" +
-                  count.occurrences + "\t" + count.corefs);
-            }
+      for( int wid = 0; wid < counts.numWordIDs(); wid++ ) {
+        String word = counts.word(wid);
+        if( word != null ) {
+          out.write(word);
+          for( int i = 0; i < counts.numRelns(wid); i++ ) {
+            int[] triple = counts.triple(wid, i);
+            out.write("\t" + counts.reln(counts.relnAt(wid, i)) + "\t" + triple[0] + "\t" +
+                triple[1] + "\t" + triple[2]);
           }
           out.write("\n");
         }
@@ -200,6 +192,45 @@ public class CountVerbDepCorefs {
     } catch( Exception ex ) { ex.printStackTrace(); }
   }
 
+  /**
+   * Binary form of the counts:
+   *   magic, version, numdocs, #relations, the relation strings,
+   *   #words, then per word: the word, #relations, and (relation id, docs, occurrences, corefs) each.
+   */
+  private static final int BINARY_MAGIC = 0x44435243;
+  private static final int BINARY_VERSION = 1;
+
+  private void countsToBinaryFile(CountTable counts, int numDocs, String outfile) {
+    System.out.println("Writing binary to file " + outfile);
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outfile)));
+      out.writeInt(BINARY_MAGIC);
+      out.writeInt(BINARY_VERSION);
+      out.writeInt(numDocs);
+
+      out.writeInt(counts.numRelnIDs());
+      for( int rid = 0; rid < counts.numRelnIDs(); rid++ )
+        out.writeUTF(counts.reln(rid));
+
+      out.writeInt(counts.numWords());
+      for( int wid = 0; wid < counts.numWordIDs(); wid++ ) {
+        String word = counts.word(wid);
+        if( word != null ) {
+          out.writeUTF(word);
+          out.writeInt(counts.numRelns(wid));
+          for( int i = 0; i < counts.numRelns(wid); i++ ) {
+            int[] triple = counts.triple(wid, i);
+            out.writeInt(counts.relnAt(wid, i));
+            out.writeInt(triple[0]);
+            out.writeInt(triple[1]);
+            out.writeInt(triple[2]);
+          }
+        }
+      }
+      out.close();
+    } catch( Exception ex ) { ex.printStackTrace(); }
+  }
+
   /**
    * @return The number of mentions in the coref class of the given mention.
    */
@@ -354,20 +385,12 @@ public class CountVerbDepCorefs {
    * Removes any key (with an object) from the counts map whose relation counts are 
    * not seen more than or equal to the given cutoff.
    */
-  private void trimObjects(Map<String,Map<String,Count>> counts, int freqCutoff) {
-    Set<String> removal = new HashSet<String>();
-    for( Map.Entry<String, Map<String,Count>> entry : counts.entrySet() ) {
-      if( CountArgumentTypes.isObjectString(entry.getKey()) ) {
-        int sum = 0;
-        for( Map.Entry<String, Count> entry2 : entry.getValue().entrySet() )
-          sum += entry2.getValue().occurrences;
-        if( sum <= freqCutoff )
-          removal.add(entry.getKey());
-      }
+  private void trimObjects(CountTable counts, int freqCutoff) {
+    for( int wid = 0; wid < counts.numWordIDs(); wid++ ) {
+      String word = counts.word(wid);
+      if( word != null && CountArgumentTypes.isObjectString(word) && counts.total(wid) <= freqCutoff )
+        counts.remove(wid);
     }
-    
-    for( String remove : removal )
-      counts.remove(remove);
   }
 
   /**
@@ -377,9 +400,13 @@ public class CountVerbDepCorefs {
     fromFile(path, null);
   }
   public void fromFile(String path, Collection<String> include) {
+    if( isBinaryFile(path) ) {
+      fromBinaryFile(path, include);
+      return;
+    }
+
     String line = null;
-    if( _counts == null ) _counts = new HashMap<String, Map<String, Count>>();
-    else _counts.clear();
+    _counts = new CountTable();
     _totalCount = 0;
 
     System.out.println("CountVerbDepCorefs fromFile " + path);
@@ -404,25 +431,91 @@ public class CountVerbDepCorefs {
           String verb = parts[0];
           // Save to memory if it is in our desired list.
           if( include == null || include.contains(verb) ) {
-            Map<String,Count> verbMap = new HashMap<String, Count>(8);
-            _counts.put(verb, verbMap);
+            // A repeated verb line replaces the earlier one.
+            _totalCount -= _counts.total(_counts.wordID(verb));
+            _counts.remove(_counts.wordID(verb));
             // Extract the dependent types
             for( int i = 1; i < parts.length; i += 4 ) {
-              Count count = new Count(Integer.valueOf(parts[i+1]), 
-                  Integer.valueOf(parts[i+2]),
+              int occurrences = Integer.valueOf(parts[i+2]);
+              _counts.set(verb, parts[i], Integer.valueOf(parts[i+1]), occurrences,
                   Integer.valueOf(parts[i+3]));
-              verbMap.put(parts[i], count);
-              _totalCount += count.occurrences;
+              _totalCount += occurrences;
             }
           }
         }
       }
+      in.close();
     } catch( Exception ex ) { 
       System.out.println("Error on line: " + line);
       ex.printStackTrace(); 
       System.exit(-1); 
     }
-    System.out.println("...loaded " + _counts.size() + " words.");
+    System.out.println("...loaded " + _counts.numWords() + " words.");
+  }
+
+  /**
+   * @return True if the file starts with the binary counts header.
+   */
+  public static boolean isBinaryFile(String path) {
+    try {
+      DataInputStream in = new DataInputStream(new FileInputStream(path));
+      try {
+        return in.readInt() == BINARY_MAGIC;
+      } finally { in.close(); }
+    } catch( IOException ex ) { return false; }
+  }
+
+  /**
+   * Read a counts file written by countsToBinaryFile().
+   */
+  private void fromBinaryFile(String path, Collection<String> include) {
+    _counts = new CountTable();
+    _totalCount = 0;
+
+    System.out.println("CountVerbDepCorefs fromBinaryFile " + path);
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 1 << 16));
+      in.readInt();
+      int version = in.readInt();
+      if( version != BINARY_VERSION ) {
+        System.out.println("ERROR: unknown binary counts version " + version + " in " + path);
+        System.exit(1);
+      }
+      _numStories = in.readInt();
+
+      String[] relns = new String[in.readInt()];
+      for( int rid = 0; rid < relns.length; rid++ )
+        relns[rid] = in.readUTF();
+
+      int numWords = in.readInt();
+      for( int w = 0; w < numWords; w++ ) {
+        String word = in.readUTF();
+        int size = in.readInt();
+        boolean keep = (include == null || include.contains(word));
+        for( int i = 0; i < size; i++ ) {
+          int rid = in.readInt();
+          int docs = in.readInt();
+          int occurrences = in.readInt();
+          int corefs = in.readInt();
+          if( keep ) {
+            _counts.set(word, relns[rid], docs, occurrences, corefs);
+            _totalCount += occurrences;
+          }
+        }
+      }
+      in.close();
+    } catch( Exception ex ) {
+      ex.printStackTrace();
+      System.exit(-1);
+    }
+    System.out.println("...loaded " + _counts.numWords() + " words.");
+  }
+
+  /**
+   * Write the loaded counts in binary form.
+   */
+  public void toBinaryFile(String path) {
+    countsToBinaryFile(_counts, _numStories, path);
   }
 
   /**
@@ -430,18 +523,8 @@ public class CountVerbDepCorefs {
    * Returns zero if token-reln is not found.
    */
   public int getCount(String token, String reln) {
-    //    System.out.println("getCount " + token + " -- " + reln);
-    if( _counts != null ) {
-      Map<String,Count> relnMap = _counts.get(token);
-      if( relnMap != null ) {
-        //	System.out.println("  got relnMap size " + relnMap.size());
-        Count count = relnMap.get(reln);
-        if( count == null ) return 0;
-        else return count.occurrences;
-      }
-      else return 0;
-    }
-    else return 0;
+    if( _counts == null ) return 0;
+    return _counts.get(_counts.wordID(token), _counts.relnID(reln), 1);
   }
 
   /**
@@ -449,50 +532,54 @@ public class CountVerbDepCorefs {
    * Returns zero if token-reln is not found.
    */
   public int getCorefCount(String token, String reln) {
-    //    System.out.println("getCount " + token + " -- " + reln);
-    if( _counts != null ) {
-      Map<String,Count> relnMap = _counts.get(token);
-      if( relnMap != null ) {
-        //	System.out.println("  got relnMap size " + relnMap.size());
-        Count count = relnMap.get(reln);
-        if( count == null ) return 0;
-        else return count.corefs;
-      }
-      else return 0;
-    }
-    else return 0;
+    if( _counts == null ) return 0;
+    return _counts.get(_counts.wordID(token), _counts.relnID(reln), 2);
   }
 
   /**
-   * Get the number of times a token and a relation were seen with a coreferring argument.
+   * Get the number of documents in which a token and a relation were seen.
    * Returns zero if token-reln is not found.
    */
   public int getDocCount(String token, String reln) {
-    //    System.out.println("getCount " + token + " -- " + reln);
-    if( _counts != null ) {
-      Map<String,Count> relnMap = _counts.get(token);
-      if( relnMap != null ) {
-        //	System.out.println("  got relnMap size " + relnMap.size());
-        Count count = relnMap.get(reln);
-        if( count == null ) return 0;
-        else return count.docCount;
-      }
-      else return 0;
-    }
-    else return 0;
+    if( _counts == null ) return 0;
+    return _counts.get(_counts.wordID(token), _counts.relnID(reln), 0);
   }
 
   public Set<String> getRelns(String token) {
-    Map<String,Count> relnMap = _counts.get(token);
-    if( relnMap != null )
-      return relnMap.keySet();
-    else return null;
+    int wid = _counts.wordID(token);
+    if( wid == -1 ) return null;
+    Set<String> relns = new LinkedHashSet<String>();
+    for( int i = 0; i < _counts.numRelns(wid); i++ )
+      relns.add(_counts.reln(_counts.relnAt(wid, i)));
+    return relns;
   }
 
   public Set<String> getWords() {
-    return _counts.keySet();
+    return _counts.words();
   }
 
+  /**
+   * Ids for scanning the vocabulary: words are 0..numWordIDs()-1, but word(id)
+   * is null for ids that were removed.
+   */
+  public int numWordIDs() { return _counts.numWordIDs(); }
+  public String word(int wordID) { return _counts.word(wordID); }
+  /** @return The word's id, or -1 if it is unknown. */
+  public int wordID(String word) { return _counts.wordID(word); }
+  /** @return The relation's id, or -1 if it is unknown. */
+  public int relnID(String reln) { return _counts.relnID(reln); }
+
+  /** @return The occurrences of the word with the relation, zero if not seen. */
+  public int getCount(int wordID, int relnID) { return _counts.get(wordID, relnID, 1); }
+
+  /** @return The occurrences of the word summed over all its relations. */
+  public int getWordCount(int wordID) { return _counts.total(wordID); }
+  public int getWordCount(String word) { return _counts.total(_counts.wordID(word)); }
+
+  /** @return The coreferring occurrences of the word summed over all its relations. */
+  public int getWordCorefCount(int wordID) { return _counts.corefTotal(wordID); }
+  public int getWordCorefCount(String word) { return _counts.corefTotal(_counts.wordID(word)); }
+
   public int getTotalCount() { return _totalCount; }
   public int getTotalDocs() { return _numStories; }
 
@@ -536,7 +623,7 @@ public class CountVerbDepCorefs {
         System.out.println("file: " + _depsPath);
         ProcessedData dataReader = new ProcessedData(_parsePath, _depsPath, _corefPath, _nerPath);
         countDeps(dataReader);
-        System.out.println("_countsLemmas!!! has " + _countsLemmas.size() + " elements.");
+        System.out.println("_countsLemmas!!! has " + _countsLemmas.numWords() + " elements.");
       }
 
       // Trim collocations?
@@ -544,23 +631,170 @@ public class CountVerbDepCorefs {
       
       // Output the full counts!
       countsToFile(_countsLemmas, _numStories, _outdir + File.separator + _outfileLemmas);
+      if( _writeBinary )
+        countsToBinaryFile(_countsLemmas, _numStories, _outdir + File.separator + _outfileLemmas + ".bin");
       //        countsToFile(_counts, _numStories, _outdir + File.separator + _outfile);
     }
   }
 
-  private class Count {
-    public int docCount = 0;
-    public int occurrences = 0;
-    public int corefs = 0; // # of occurrences that had coreferring arguments
+  /**
+   * Counts of words with their relations. Words and relations are interned, and each word
+   * has parallel arrays of its relation ids and (docs, occurrences, corefs) triples. A word
+   * has few relations, so they are found by a linear scan.
+   */
+  private static class CountTable {
+    private Map<String,Integer> _wordIDs = new HashMap<String,Integer>();
+    private List<String> _words = new ArrayList<String>();
+    private Map<String,Integer> _relnIDs = new HashMap<String,Integer>();
+    private List<String> _relns = new ArrayList<String>();
+
+    private int[][] _wordRelns = new int[64][];   // [word][i] relation id
+    private int[][] _triples = new int[64][];     // [word][3*i + 0/1/2] docs, occurrences, corefs
+    private int[] _sizes = new int[64];           // [word] number of relations
+    private int[] _totals = new int[64];          // [word] occurrences summed over relations
+    private int[] _corefTotals = new int[64];     // [word] corefs summed over relations
+    private int _numWords = 0;
+
+    int numWordIDs() { return _words.size(); }
+    int numWords() { return _numWords; }
+    int numRelnIDs() { return _relns.size(); }
+    String word(int wid) { return _words.get(wid); }
+    String reln(int rid) { return _relns.get(rid); }
+    Set<String> words() { return Collections.unmodifiableSet(_wordIDs.keySet()); }
+
+    int wordID(String word) {
+      Integer id = _wordIDs.get(word);
+      return (id == null ? -1 : id);
+    }
 
-    Count(int doc, int occ, int co) { 
-      docCount = doc;
-      occurrences = occ;
-      corefs = co;
+    int relnID(String reln) {
+      Integer id = _relnIDs.get(reln);
+      return (id == null ? -1 : id);
+    }
+
+    int numRelns(int wid) { return _sizes[wid]; }
+    int relnAt(int wid, int i) { return _wordRelns[wid][i]; }
+    int[] triple(int wid, int i) {
+      return Arrays.copyOfRange(_triples[wid], 3*i, 3*i+3);
+    }
+    int total(int wid) { return (wid == -1 ? 0 : _totals[wid]); }
+    int corefTotal(int wid) { return (wid == -1 ? 0 : _corefTotals[wid]); }
+
+    /**
+     * @param field 0 docs, 1 occurrences, 2 corefs
+     * @return The count, or zero if the word never had the relation.
+     */
+    int get(int wid, int rid, int field) {
+      if( wid == -1 || rid == -1 ) return 0;
+      int i = find(wid, rid);
+      return (i == -1 ? 0 : _triples[wid][3*i + field]);
+    }
+
+    private int find(int wid, int rid) {
+      int[] relns = _wordRelns[wid];
+      for( int i = 0; i < _sizes[wid]; i++ )
+        if( relns[i] == rid ) return i;
+      return -1;
+    }
+
+    private int internWord(String word) {
+      Integer id = _wordIDs.get(word);
+      if( id == null ) {
+        id = _words.size();
+        _wordIDs.put(word, id);
+        _words.add(word);
+        if( id == _sizes.length ) {
+          int len = 2 * _sizes.length;
+          _wordRelns = Arrays.copyOf(_wordRelns, len);
+          _triples = Arrays.copyOf(_triples, len);
+          _sizes = Arrays.copyOf(_sizes, len);
+          _totals = Arrays.copyOf(_totals, len);
+          _corefTotals = Arrays.copyOf(_corefTotals, len);
+        }
+        _wordRelns[id] = new int[4];
+        _triples[id] = new int[12];
+        _numWords++;
+      }
+      return id;
+    }
+
+    private int internReln(String reln) {
+      Integer id = _relnIDs.get(reln);
+      if( id == null ) {
+        id = _relns.size();
+        _relnIDs.put(reln, id);
+        _relns.add(reln);
+      }
+      return id;
+    }
+
+    /**
+     * @return The position of the word's relation, added with zero counts if new.
+     */
+    private int slot(int wid, int rid) {
+      int i = find(wid, rid);
+      if( i == -1 ) {
+        i = _sizes[wid]++;
+        if( i == _wordRelns[wid].length ) {
+          _wordRelns[wid] = Arrays.copyOf(_wordRelns[wid], 2*i);
+          _triples[wid] = Arrays.copyOf(_triples[wid], 6*i);
+        }
+        _wordRelns[wid][i] = rid;
+      }
+      return i;
+    }
+
+    /**
+     * Add to the counts of a word and relation.
+     */
+    void add(String word, String reln, int docs, int occurrences, int corefs) {
+      int wid = internWord(word);
+      int i = slot(wid, internReln(reln));
+      int[] triples = _triples[wid];
+      triples[3*i] += docs;
+      triples[3*i+1] += occurrences;
+      triples[3*i+2] += corefs;
+      _totals[wid] += occurrences;
+      _corefTotals[wid] += corefs;
+    }
+
+    /**
+     * Replace the counts of a word and relation.
+     */
+    void set(String word, String reln, int docs, int occurrences, int corefs) {
+      int wid = internWord(word);
+      int i = slot(wid, internReln(reln));
+      int[] triples = _triples[wid];
+      _totals[wid] += occurrences - triples[3*i+1];
+      _corefTotals[wid] += corefs - triples[3*i+2];
+      triples[3*i] = docs;
+      triples[3*i+1] = occurrences;
+      triples[3*i+2] = corefs;
+    }
+
+    /**
+     * Remove a word and all of its counts. Its id is not reused.
+     */
+    void remove(int wid) {
+      if( wid == -1 || _words.get(wid) == null ) return;
+      _wordIDs.remove(_words.get(wid));
+      _words.set(wid, null);
+      _wordRelns[wid] = null;
+      _triples[wid] = null;
+      _sizes[wid] = 0;
+      _totals[wid] = 0;
+      _corefTotals[wid] = 0;
+      _numWords--;
     }
   }
 
   public static void main(String[] args) {
+    if( args.length == 2 && args[0].equals("-tobinary") ) {
+      CountVerbDepCorefs counts = new CountVerbDepCorefs(args[1]);
+      counts.toBinaryFile(args[1] + ".bin");
+      return;
+    }
+
     CountVerbDepCorefs count = new CountVerbDepCorefs(args);
     count.process();
   }
@@ -93,32 +93,11 @@ public class GigaDoc {
       StringBuffer buf = new StringBuffer();
       buf.append("<DEPS sid=" + sid + ">\n");
       if( deps != null ) {
-        // There can be duplicate relations with these new "prime" relations that are added
-        // for implicit relations and fillers.
-        List<String> inorder = new ArrayList<String>();
-        Set<String> added = new HashSet<String>();
-        
-        try {
-          for( TypedDependency dep : deps ) {
-            String govstr = dep.gov().toString("value-index");
-            String depstr = dep.dep().toString("value-index");
-            // The JavaNLP code is now not just returning indices, they put "prime" marks on the integers
-            // if the dep was generated as a copy (not explicit in the syntax). We throw these prime markers away.
-            if( govstr.charAt(govstr.length()-1) == '\'' ) govstr = govstr.substring(0, govstr.length()-1);
-            if( depstr.charAt(depstr.length()-1) == '\'' ) depstr = depstr.substring(0, depstr.length()-1);
-            String str = dep.reln() + " " + govstr + " " + depstr;
-            if( !added.contains(str) ) {
-              added.add(str);
-              inorder.add(str);
-            }
-          }
-          
-          for( String str : inorder ) {
-            buf.append("<" + DEP_ELEM + ">");
-            buf.append(str);
-            buf.append("</" + DEP_ELEM + ">\n");
-          }
-        } catch( Exception ex ) { ex.printStackTrace(); }
+        for( String str : dependencyStrings(deps) ) {
+          buf.append("<" + DEP_ELEM + ">");
+          buf.append(str);
+          buf.append("</" + DEP_ELEM + ">\n");
+        }
       }
       buf.append("</DEPS>\n");
       writer.write(buf.toString());
@@ -127,6 +106,34 @@ public class GigaDoc {
     }
   }
 
+  /**
+   * The string forms of the dependencies as they are written to file, e.g. "nsubj testified-17 dealer-16",
+   * in order and without duplicates.
+   */
+  public static List<String> dependencyStrings(Collection<TypedDependency> deps) {
+    // There can be duplicate relations with these new "prime" relations that are added
+    // for implicit relations and fillers.
+    List<String> inorder = new ArrayList<String>();
+    Set<String> added = new HashSet<String>();
+
+    try {
+      for( TypedDependency dep : deps ) {
+        String govstr = dep.gov().toString("value-index");
+        String depstr = dep.dep().toString("value-index");
+        // The JavaNLP code is now not just returning indices, they put "prime" marks on the integers
+        // if the dep was generated as a copy (not explicit in the syntax). We throw these prime markers away.
+        if( govstr.charAt(govstr.length()-1) == '\'' ) govstr = govstr.substring(0, govstr.length()-1);
+        if( depstr.charAt(depstr.length()-1) == '\'' ) depstr = depstr.substring(0, depstr.length()-1);
+        String str = dep.reln() + " " + govstr + " " + depstr;
+        if( !added.contains(str) ) {
+          added.add(str);
+          inorder.add(str);
+        }
+      }
+    } catch( Exception ex ) { ex.printStackTrace(); }
+    return inorder;
+  }
+
   public void addNER(NERSpan ner) {
     if( writer != null && storyOpen ) {
       try {
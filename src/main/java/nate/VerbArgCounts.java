@@ -1,36 +1,64 @@
 package nate.args;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import nate.util.Util;
+import nate.util.SortableScore;
 
 
 /**
  * This class reads formatted files that contain argument counts.
  * The files are counts of head words that appear as arguments to single
- * verbs.  A hash from verb slots to hashes of argument counts is saved in memory.
+ * verbs.  The counts of each verb slot are saved in memory.
  *
  * File line format:
  * arrest:s white 1 rosa 2 mayor 1 judge 1 *per* 82 tibet 1
  *
+ * Slots and arguments are interned to integer IDs, and each slot's arguments and counts
+ * are two int arrays, so a large count file does not need a HashMap and Integer objects
+ * per count. A single open addressing table finds the count of a (slot, argument) pair.
+ * The Map methods (getArgsForSlot, getSlots) build a new Map on each call.
+ *
+ * CountArgumentTypes also counts into this class, and writes it with writeToFile().
  */
 public class VerbArgCounts {
-  // eat:o -> food/12
-  Map<String, Map<String,Integer>> _verbHash = null;
-  // food -> eat-o/12
-  Map<String, Map<String,Integer>> _argHash = null;
-
+  // Slot and argument strings, interned to IDs.
+  Map<String,Integer> _slotIDs = new HashMap<String,Integer>();
+  List<String> _slots = new ArrayList<String>();
+  Map<String,Integer> _argIDs = new HashMap<String,Integer>();
+  List<String> _args = new ArrayList<String>();
+
+  // [slot] The slot's argument IDs and their counts, the first _slotSizes[slot] are used.
+  // Null for a removed slot.
+  int[][] _slotArgs = new int[16][];
+  int[][] _slotCounts = new int[16][];
+  int[] _slotSizes = new int[16];
+
+  // (slot, arg) -> position in the slot's arrays, by linear probing. Empty keys are -1.
+  long[] _keys;
+  int[] _positions;
+  int _numPairs = 0;
+
+  // [arg] The slots of each argument, built on the first call to getSlots().
+  int[][] _argSlots = null;
 
   // Counts that are *equal to or greater* are saved.
   int ARGUMENT_CUTOFF = 0;
 
-  public VerbArgCounts() { 
-    _verbHash = new HashMap<String, Map<String,Integer>>();
+  public VerbArgCounts() {
+    initTable(64);
   }
 
   /**
@@ -38,8 +66,8 @@ public class VerbArgCounts {
    * @param cutoff Don't read arguments with counts below the cutoff.
    */
   public VerbArgCounts(String filename, int cutoff) {
+    this();
     ARGUMENT_CUTOFF = cutoff;
-    _verbHash = new HashMap<String, Map<String,Integer>>();
     fromFile(filename);
   }
 
@@ -49,52 +77,160 @@ public class VerbArgCounts {
    * @param desiredVerbs Set of verbs that we are interested in.  We will
    *                     only load pairs that include a verb in the set.
    * @param bothdesired If true, then loading from file will only load pairs where both
-   *                    words are in the list, not just one.  False means only one.        
+   *                    words are in the list, not just one.  False means only one.
    */
   public VerbArgCounts(String filename, int cutoff, Set<String> desiredVerbs) {
+    this();
     ARGUMENT_CUTOFF = cutoff;
-    _verbHash = new HashMap<String, Map<String,Integer>>();
     fromFile(filename, desiredVerbs);
   }
 
-//  public static VerbArgCounts invertCounts(VerbArgCounts argcounts) {
-//    VerbArgCounts inverted = new VerbArgCounts();
-//    for( String slot : argcounts.keySet() ) {
-//      Map<String,Integer> args = argcounts.getArgsForSlot(slot);
-//      for( Map.Entry<String, Integer> entry : args.entrySet() ) {
-//        inverted.incrementCount(slot, entry.getKey(), entry.getValue());
-//      }
-//    }
-//  }
-//
-//  public void incrementCount(String slot, String arg, int count) {
-//
-//  }
-  
+  private void initTable(int capacity) {
+    _keys = new long[capacity];
+    Arrays.fill(_keys, -1L);
+    _positions = new int[capacity];
+    _numPairs = 0;
+  }
+
+  private static long key(int slot, int arg) {
+    return ((long)slot << 32) | (arg & 0xffffffffL);
+  }
+
+  private int bucket(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int)(h >>> 33) & (_keys.length-1);
+  }
+
+  /**
+   * @return The index in the table of the given key, or of the empty bucket where it would go.
+   */
+  private int probe(long key) {
+    int i = bucket(key);
+    while( _keys[i] != -1L && _keys[i] != key )
+      i = (i+1) & (_keys.length-1);
+    return i;
+  }
+
+  private void tablePut(long key, int position) {
+    if( 2*(_numPairs+1) > _keys.length ) {
+      long[] oldKeys = _keys;
+      int[] oldPositions = _positions;
+      initTable(2*oldKeys.length);
+      for( int i = 0; i < oldKeys.length; i++ )
+        if( oldKeys[i] != -1L ) tablePut(oldKeys[i], oldPositions[i]);
+    }
+    int i = probe(key);
+    if( _keys[i] == -1L ) _numPairs++;
+    _keys[i] = key;
+    _positions[i] = position;
+  }
+
+  /**
+   * Remove a key, and shift later keys of its probe run back into the gap.
+   */
+  private void tableRemove(long key) {
+    int i = probe(key);
+    if( _keys[i] == -1L ) return;
+    _keys[i] = -1L;
+    _numPairs--;
+    int j = i;
+    while( true ) {
+      j = (j+1) & (_keys.length-1);
+      if( _keys[j] == -1L ) return;
+      int home = bucket(_keys[j]);
+      // Move the key back if its home bucket is not between the gap and its position.
+      boolean between = (i <= j ? (i < home && home <= j) : (i < home || home <= j));
+      if( !between ) {
+        _keys[i] = _keys[j];
+        _positions[i] = _positions[j];
+        _keys[j] = -1L;
+        i = j;
+      }
+    }
+  }
+
+  private int slotID(String slot, boolean create) {
+    Integer id = _slotIDs.get(slot);
+    if( id != null ) return id;
+    if( !create ) return -1;
+
+    int newid = _slots.size();
+    _slots.add(slot);
+    _slotIDs.put(slot, newid);
+    if( newid == _slotArgs.length ) {
+      _slotArgs = Arrays.copyOf(_slotArgs, 2*newid);
+      _slotCounts = Arrays.copyOf(_slotCounts, 2*newid);
+      _slotSizes = Arrays.copyOf(_slotSizes, 2*newid);
+    }
+    _slotArgs[newid] = new int[2];
+    _slotCounts[newid] = new int[2];
+    return newid;
+  }
+
+  private int argID(String arg, boolean create) {
+    Integer id = _argIDs.get(arg);
+    if( id != null ) return id;
+    if( !create ) return -1;
+
+    int newid = _args.size();
+    _args.add(arg);
+    _argIDs.put(arg, newid);
+    return newid;
+  }
+
+  /**
+   * @return The position of the argument in the slot's arrays, or -1 if it is not there.
+   */
+  private int position(int slot, int arg) {
+    if( slot < 0 || arg < 0 ) return -1;
+    int i = probe(key(slot, arg));
+    return (_keys[i] == -1L ? -1 : _positions[i]);
+  }
+
+  private void increment(int slot, int arg, int count) {
+    int pos = position(slot, arg);
+    if( pos > -1 ) {
+      _slotCounts[slot][pos] += count;
+      return;
+    }
+    int size = _slotSizes[slot];
+    if( size == _slotArgs[slot].length ) {
+      _slotArgs[slot] = Arrays.copyOf(_slotArgs[slot], 2*size);
+      _slotCounts[slot] = Arrays.copyOf(_slotCounts[slot], 2*size);
+    }
+    _slotArgs[slot][size] = arg;
+    _slotCounts[slot][size] = count;
+    _slotSizes[slot] = size+1;
+    tablePut(key(slot, arg), size);
+  }
+
+  /**
+   * Adds to the count of an argument in a slot, creating either if needed.
+   * @param slot A verb slot e.g. arrest:s
+   * @param arg An argument head string
+   */
+  public void incrementCount(String slot, String arg, int count) {
+    _argSlots = null;
+    increment(slotID(slot, true), argID(arg, true), count);
+  }
+
   /**
    * @return All the slots.
    */
   public Set<String> getAllSlots() {
-    if( _verbHash != null )
-      return _verbHash.keySet();
-    else
-      return null;
+    return _slotIDs.keySet();
   }
-  
+
   /**
    * @return All the root tokens that form slots. (e.g. return v-claim for the slot v-claim:s)
    */
   public Set<String> getAllSlotTokens() {
-    if( _verbHash != null ) {
-      Set<String> tokens = new HashSet<String>();
-      for( String slot : _verbHash.keySet() ) {
+    Set<String> tokens = new HashSet<String>();
+    for( String slot : _slotIDs.keySet() ) {
 //        System.out.println("allslots slot " + slot + " substr " + slot.substring(0, slot.lastIndexOf(':')));
-        tokens.add(slot.substring(0, slot.lastIndexOf(':')));
-      }
-      return tokens;
+      tokens.add(slot.substring(0, slot.lastIndexOf(':')));
     }
-    else
-      return null;
+    return tokens;
   }
 
   /**
@@ -103,14 +239,14 @@ public class VerbArgCounts {
    */
   public String getBestArgForPair(String slot) {
     String highArg = null;
-    Map<String,Integer> args = getArgsForSlot(slot);
+    int id = slotID(slot, false);
 
-    if( args != null ) {
+    if( id > -1 ) {
       int high = 0;
-      for( Map.Entry<String,Integer> entry : args.entrySet() ) {
-        if( entry.getValue() > high ) {
-          high = entry.getValue();
-          highArg = entry.getKey();
+      for( int i = 0; i < _slotSizes[id]; i++ ) {
+        if( _slotCounts[id][i] > high ) {
+          high = _slotCounts[id][i];
+          highArg = _args.get(_slotArgs[id][i]);
         }
       }
     }
@@ -118,15 +254,30 @@ public class VerbArgCounts {
   }
 
   public int size() {
-    return _verbHash.size();
+    return _slotIDs.size();
   }
 
   /**
    * @param slot "arrest:s"
-   * @return A hashmap of argument heads with their counts
+   * @return A new hashmap of argument heads with their counts, or null if the slot is unknown.
+   *         Changing it does not change these counts.
    */
   public Map<String,Integer> getArgsForSlot(String slot) {
-    return _verbHash.get(slot);
+    int id = slotID(slot, false);
+    if( id == -1 ) return null;
+
+    Map<String,Integer> args = new HashMap<String,Integer>();
+    for( int i = 0; i < _slotSizes[id]; i++ )
+      args.put(_args.get(_slotArgs[id][i]), _slotCounts[id][i]);
+    return args;
+  }
+
+  /**
+   * @return The number of arguments counted in the slot, 0 if the slot is unknown.
+   */
+  public int numArgs(String slot) {
+    int id = slotID(slot, false);
+    return (id == -1 ? 0 : _slotSizes[id]);
   }
 
   public Map<String,Integer> getArgsForSlot(String verb, String role) {
@@ -137,20 +288,39 @@ public class VerbArgCounts {
    * Remove an argument's count from a slot.
    */
   public void removeArgFromSlot(String slot, String arg) {
-    if( _verbHash != null ) {
-      Map<String,Integer> argCounts = _verbHash.get(slot);
-      if( argCounts != null )
-        argCounts.remove(arg);
-    }
-    
-    if( _argHash != null ) {
-      Map<String,Integer> slotCounts = _verbHash.get(arg);
-      if( slotCounts != null ) {
-        slotCounts.remove(slot);
-      }
+    int sid = slotID(slot, false);
+    int aid = argID(arg, false);
+    int pos = position(sid, aid);
+    if( pos == -1 ) return;
+    _argSlots = null;
+
+    // Move the slot's last argument into the gap.
+    tableRemove(key(sid, aid));
+    int last = _slotSizes[sid]-1;
+    if( pos != last ) {
+      _slotArgs[sid][pos] = _slotArgs[sid][last];
+      _slotCounts[sid][pos] = _slotCounts[sid][last];
+      tablePut(key(sid, _slotArgs[sid][pos]), pos);
     }
+    _slotSizes[sid] = last;
+  }
+
+  /**
+   * Remove a slot and all of its argument counts.
+   */
+  public void removeSlot(String slot) {
+    int sid = slotID(slot, false);
+    if( sid == -1 ) return;
+    _argSlots = null;
+
+    for( int i = 0; i < _slotSizes[sid]; i++ )
+      tableRemove(key(sid, _slotArgs[sid][i]));
+    _slotArgs[sid] = null;
+    _slotCounts[sid] = null;
+    _slotSizes[sid] = 0;
+    _slotIDs.remove(slot);
   }
-  
+
   public static String buildKey(String verb, String role) {
     return verb + ":" + role;
   }
@@ -161,34 +331,31 @@ public class VerbArgCounts {
    * @param arg An argument head string
    */
   public int getCount(String slot, String arg) {
-    Map<String,Integer> args = _verbHash.get(slot);
-    if( args != null ) {
-      Integer count = args.get(arg);
-      if( count == null ) return 0;
-      else return count.intValue();
-    }
-    else return 0;
+    int sid = slotID(slot, false);
+    int pos = position(sid, argID(arg, false));
+    if( pos == -1 ) return 0;
+    else return _slotCounts[sid][pos];
   }
 
 
   /**
-   * Adds verb-slot counts for an argument to storage.
+   * Sets the verb-slot counts for an argument, replacing any the slot had.
    * @param pair A verb slot e.g. arrest:s
    * @param counts Map of argument strings to their counts
    */
   public void put(String slot, Map<String,Integer> counts) {
-    _verbHash.put(slot, counts);
+    removeSlot(slot);
+    int sid = slotID(slot, true);
+    for( Map.Entry<String,Integer> entry : counts.entrySet() )
+      increment(sid, argID(entry.getKey(), true), entry.getValue());
   }
 
   public boolean containsSlot(String slot) {
-    if( _verbHash != null && _verbHash.containsKey(slot) )
-      return true;
-    else
-      return false;
+    return _slotIDs.containsKey(slot);
   }
 
   public Set<String> keySet() {
-    return _verbHash.keySet();
+    return _slotIDs.keySet();
   }
 
   public void fromFile(String filename) {
@@ -210,62 +377,57 @@ public class VerbArgCounts {
 
 
   /**
-   * @return A hashmap of verb slots in which this argument appeared
+   * @return A new hashmap of verb slots in which this argument appeared, or null if none.
    */
   public Map<String,Integer> getSlots(String arg) {
-    if( _argHash == null ) {
+    if( _argSlots == null ) {
       System.out.println("Building the inverse arg->verbcount table");
-      _argHash = new HashMap<String, Map<String, Integer>>();
-      buildArgHash();
+      buildArgSlots();
     }
     //    System.out.println("getSlots for arg " + arg);
-    return _argHash.get(arg);
+    int aid = argID(arg, false);
+    if( aid == -1 || _argSlots[aid] == null ) return null;
+
+    Map<String,Integer> slots = new HashMap<String,Integer>();
+    for( int sid : _argSlots[aid] )
+      slots.put(_slots.get(sid), _slotCounts[sid][position(sid, aid)]);
+    return slots;
   }
 
   /**
    * Adds their counts to ours.
    */
   public void addCounts(VerbArgCounts counts) {
-    _argHash = null;
-    
+    _argSlots = null;
+
     for( String slot : counts.keySet() ) {
-      // Get our current argument counts for this slot.
-      Map<String,Integer> mySlotCounts = _verbHash.get(slot);
-      if( mySlotCounts == null ) {
-        mySlotCounts = new HashMap<String,Integer>();
-        put(slot, mySlotCounts);
+      int mine = slotID(slot, true);
+      int theirs = counts.slotID(slot, false);
+      for( int i = 0; i < counts._slotSizes[theirs]; i++ ) {
+        String arg = counts._args.get(counts._slotArgs[theirs][i]);
+        increment(mine, argID(arg, true), counts._slotCounts[theirs][i]);
       }
-      
-      // Add their argument counts to ours.
-      Map<String,Integer> theirSlotCounts = counts.getArgsForSlot(slot);
-      for( Map.Entry<String, Integer> entry : theirSlotCounts.entrySet() )
-        Util.incrementCount(mySlotCounts, entry.getKey(), entry.getValue());
     }
   }
-  
+
   /**
-   * Assuming the slot->argcount hash is built, invert the table and build
-   * the arg->slotcount table.
+   * Invert the slot->argcount arrays into the arg->slots arrays.
    */
-  private void buildArgHash() {
-    //    System.out.println("building inverse");
-    for( Map.Entry<String, Map<String,Integer>> entry : _verbHash.entrySet() ) {
-      String verb = entry.getKey();
-      //      System.out.println("verb = " + verb);
-      for( Map.Entry<String,Integer> entry2 : entry.getValue().entrySet() ) {
-        String arg = entry2.getKey();
-        Integer count = entry2.getValue();
-
-        //	System.out.println("arg = " + arg + " = " + count);
-
-        Map<String,Integer> counts = _argHash.get(arg);
-        if( counts == null ) {
-          counts = new HashMap<String, Integer>();
-          _argHash.put(arg, counts);
-        }
-        counts.put(verb, count);
+  private void buildArgSlots() {
+    int[] sizes = new int[_args.size()];
+    for( int sid : _slotIDs.values() )
+      for( int i = 0; i < _slotSizes[sid]; i++ )
+        sizes[_slotArgs[sid][i]]++;
+
+    _argSlots = new int[_args.size()][];
+    for( int aid = 0; aid < sizes.length; aid++ )
+      if( sizes[aid] > 0 ) _argSlots[aid] = new int[sizes[aid]];
+    Arrays.fill(sizes, 0);
+    for( int sid : _slotIDs.values() )
+      for( int i = 0; i < _slotSizes[sid]; i++ ) {
+        int aid = _slotArgs[sid][i];
+        _argSlots[aid][sizes[aid]++] = sid;
       }
-    }
   }
 
   /**
@@ -278,7 +440,7 @@ public class VerbArgCounts {
     String line;
     clear();
 
-    if( desiredVerbs != null ) 
+    if( desiredVerbs != null )
       System.out.println("Loading arg counts for " + desiredVerbs.size() + " verbs");
     else System.out.println("Loading all arg counts");
 
@@ -308,14 +470,11 @@ public class VerbArgCounts {
           saved++;
 
           // Sanity check
-          if( _verbHash.containsKey(slot) ) {
+          if( containsSlot(slot) ) {
             System.out.println("Repeated key? " + slot);
             System.exit(1);
           }
-
-          // Create the arguments hash
-          Map<String,Integer> slotArgCounts = new HashMap<String, Integer>();
-          _verbHash.put(slot, slotArgCounts);
+          int sid = slotID(slot, true);
 
           // Read the arguments from the end of the line
           //	  System.out.println("line = " + line);
@@ -323,7 +482,7 @@ public class VerbArgCounts {
           for( int i = 0, n = parts.length; i < n; i += 2 ) {
             int count = Integer.parseInt(parts[i+1]);
             if( count >= ARGUMENT_CUTOFF )
-              slotArgCounts.put(parts[i], count);
+              increment(sid, argID(parts[i], true), count);
           }
         } // if saveSlot
       } // while
@@ -333,26 +492,68 @@ public class VerbArgCounts {
     } catch(Exception ex) { ex.printStackTrace(); }
   }
 
+  /**
+   * Write the counts in the format fromFile() reads: slots sorted, and each slot's
+   * arguments sorted by count, highest first (equal counts by argument string).
+   * @param path The file path to create and overwrite if it already exists.
+   */
+  public void writeToFile(String path) throws IOException {
+    BufferedWriter out = new BufferedWriter(new FileWriter(new File(path)));
+
+    String[] keys = new String[_slotIDs.size()];
+    keys = _slotIDs.keySet().toArray(keys);
+    Arrays.sort(keys);
+
+    for( String key : keys ) {
+      int sid = _slotIDs.get(key);
+      // fromFile() rejects a slot with no arguments.
+      if( _slotSizes[sid] == 0 ) continue;
+      out.write(key);
+
+      SortableScore[] scores = new SortableScore[_slotSizes[sid]];
+      for( int i = 0; i < scores.length; i++ )
+        scores[i] = new SortableScore(_slotCounts[sid][i], _args.get(_slotArgs[sid][i]));
+      // The sort by score is stable, so sort by argument first. The second sort is
+      // SortableScore's natural order, highest count first.
+      Arrays.sort(scores, new Comparator<SortableScore>() {
+        public int compare(SortableScore a, SortableScore b) { return a.key().compareTo(b.key()); }
+      });
+      Arrays.sort(scores);
+
+      for( SortableScore score : scores )
+        out.write("\t" + score.key() + "\t" + (int)score.score());
+      out.write("\n");
+    }
+    out.close();
+  }
+
   /**
    * Find all keys in the map that start with the given string.
    */
   public Set<String> keysThatStartWith(String start) {
     Set<String> keys = new HashSet<String>();
-    for( Map.Entry<String, Map<String,Integer>> entry : _verbHash.entrySet() ) {
-      if( entry.getKey().startsWith(start) )
-        keys.add(entry.getKey());
+    for( String slot : _slotIDs.keySet() ) {
+      if( slot.startsWith(start) )
+        keys.add(slot);
     }
     return keys;
   }
 
   public void setVerbHash(Map<String, Map<String,Integer>> verbHash) {
-    _verbHash = verbHash;
-    // TODO: this should really be created here, if we need it for something.
-    _argHash = null;
+    clear();
+    for( Map.Entry<String, Map<String,Integer>> entry : verbHash.entrySet() )
+      put(entry.getKey(), entry.getValue());
   }
-  
+
   public void clear() {
-    if( _verbHash != null ) _verbHash.clear();
-    if( _argHash != null ) _argHash.clear();
+    _slotIDs.clear();
+    _slots.clear();
+    _argIDs.clear();
+    _args.clear();
+    _slotArgs = new int[16][];
+    _slotCounts = new int[16][];
+    _slotSizes = new int[16];
+    _argSlots = null;
+    initTable(64);
   }
 }
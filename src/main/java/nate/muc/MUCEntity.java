@@ -1,5 +1,6 @@
 package nate.muc;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -13,6 +14,10 @@ public class MUCEntity {
   String _slotType; // The MUC slot name.
   List<String> _mentions = null;
   boolean _optional = false; // If true, this entity is from an optional template.
+  // Lowercased mentions and their rightmost words, for string matching.
+  List<String> _lowerMentions = null;
+  List<String> _rightmostWords = null;
+  MUCGoldIndex _index = null; // The index of this entity's story, if any.
 
   public MUCEntity(String templateType) {
     _templateType = templateType;
@@ -30,12 +35,27 @@ public class MUCEntity {
     if( _mentions == null )
       _mentions = new LinkedList<String>();
     _mentions.add(mention);
+
+    if( _lowerMentions == null ) {
+      _lowerMentions = new ArrayList<String>(2);
+      _rightmostWords = new ArrayList<String>(2);
+    }
+    String lower = mention.toLowerCase();
+    _lowerMentions.add(lower);
+    _rightmostWords.add(lower.indexOf(' ') > -1 ? lower.substring(lower.lastIndexOf(' ')+1) : lower);
   }
 
   public List<String> getMentions() {
     return _mentions;
   }
   
+  public int numMentions() { return (_mentions == null ? 0 : _mentions.size()); }
+  public String lowerMention(int i) { return _lowerMentions.get(i); }
+  public String rightmostWord(int i) { return _rightmostWords.get(i); }
+
+  void setGoldIndex(MUCGoldIndex index) { _index = index; }
+  public MUCGoldIndex goldIndex() { return _index; }
+
   public String getTemplateType() { return _templateType; }
 
   public boolean equals(Object obj) {
@@ -0,0 +1,113 @@
+package nate.muc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An index over the gold entities of one story, so a guessed string is only compared to
+ * the golds it could match, instead of to every gold in the story.
+ *
+ * TemplateTester.stringMatchToMUCEntity() matches a guess to a mention if one starts a
+ * word in the other, if their rightmost words are equal, or if both are long and nearly
+ * equal. So a gold can only match if:
+ *   - a mention's first word is a prefix of one of the guess's words,
+ *   - the guess's first word is a prefix of one of a mention's words,
+ *   - a mention has the guess's rightmost word, or
+ *   - the guess and a mention are both longer than 15 characters.
+ * candidates() returns the golds that pass one of these. They still need the full check.
+ *
+ * Guesses and mentions are lowercased. Guesses are the output of TemplateTester.normalizeGuess().
+ */
+public class MUCGoldIndex {
+  private Map<String,List<MUCEntity>> _byFirstWord = new HashMap<String,List<MUCEntity>>();
+  private Map<String,List<MUCEntity>> _byWordPrefix = new HashMap<String,List<MUCEntity>>();
+  private Map<String,List<MUCEntity>> _byRightmostWord = new HashMap<String,List<MUCEntity>>();
+  private List<MUCEntity> _longMentions = new ArrayList<MUCEntity>();
+  // Golds with an empty mention, or one that starts with a space, can start anywhere.
+  private List<MUCEntity> _alwaysCheck = new ArrayList<MUCEntity>();
+  private List<MUCEntity> _all = new ArrayList<MUCEntity>();
+
+  /**
+   * Index the given golds, and point each of them at this index.
+   */
+  public MUCGoldIndex(Collection<MUCEntity> golds) {
+    Set<MUCEntity> seen = Collections.newSetFromMap(new IdentityHashMap<MUCEntity,Boolean>());
+    for( MUCEntity gold : golds ) {
+      if( !seen.add(gold) ) continue;
+      _all.add(gold);
+      gold.setGoldIndex(this);
+      if( gold.getMentions() == null ) continue;
+
+      for( int i = 0; i < gold.numMentions(); i++ ) {
+        String mention = gold.lowerMention(i);
+        if( mention.length() == 0 || mention.charAt(0) == ' ' ) {
+          add(_alwaysCheck, gold);
+          continue;
+        }
+        addTo(_byFirstWord, firstWord(mention), gold);
+        addTo(_byRightmostWord, gold.rightmostWord(i), gold);
+        if( mention.length() > 15 ) add(_longMentions, gold);
+        for( String word : mention.split(" ") )
+          for( int end = 1; end <= word.length(); end++ )
+            addTo(_byWordPrefix, word.substring(0, end), gold);
+      }
+    }
+  }
+
+  private static String firstWord(String str) {
+    int space = str.indexOf(' ');
+    return (space > -1 ? str.substring(0, space) : str);
+  }
+
+  private static void addTo(Map<String,List<MUCEntity>> map, String key, MUCEntity gold) {
+    List<MUCEntity> golds = map.get(key);
+    if( golds == null ) {
+      golds = new ArrayList<MUCEntity>(1);
+      map.put(key, golds);
+    }
+    add(golds, gold);
+  }
+
+  // Golds are added mention by mention, so a repeat is always at the end.
+  private static void add(List<MUCEntity> golds, MUCEntity gold) {
+    if( golds.size() == 0 || golds.get(golds.size()-1) != gold )
+      golds.add(gold);
+  }
+
+  private static void addAll(Set<MUCEntity> set, List<MUCEntity> golds) {
+    if( golds != null ) set.addAll(golds);
+  }
+
+  /**
+   * @param guess A lowercased guess, from TemplateTester.normalizeGuess().
+   * @param guessRightmost The guess's rightmost word.
+   * @return The indexed golds that might match the guess. Compared by identity.
+   */
+  public Set<MUCEntity> candidates(String guess, String guessRightmost) {
+    Set<MUCEntity> candidates = Collections.newSetFromMap(new IdentityHashMap<MUCEntity,Boolean>());
+
+    // An empty first word could be found in any mention.
+    String guessFirst = firstWord(guess);
+    if( guessFirst.length() == 0 ) {
+      candidates.addAll(_all);
+      return candidates;
+    }
+
+    candidates.addAll(_alwaysCheck);
+    addAll(candidates, _byWordPrefix.get(guessFirst));
+    addAll(candidates, _byRightmostWord.get(guessRightmost));
+    if( guess.length() > 15 ) candidates.addAll(_longMentions);
+    for( String word : guess.split(" ") )
+      for( int end = 1; end <= word.length(); end++ )
+        addAll(candidates, _byFirstWord.get(word.substring(0, end)));
+    return candidates;
+  }
+
+  public int size() { return _all.size(); }
+}
@@ -20,6 +20,7 @@ import edu.stanford.nlp.stats.Counter;
 public class MUCKeyReader implements KeyReader {
   Map<String, List<Template>> _storyTemplates = null;
   List<String> _storyNames = null;
+  Map<String, MUCGoldIndex> _storyIndexes = null;
 
   public MUCKeyReader() {
   }
@@ -37,10 +38,42 @@ public class MUCKeyReader implements KeyReader {
     //    System.out.println("Retrieving story: " + storyName);
     if( _storyTemplates != null ) {
       //      System.out.println(" - looking up " + storyName);
-      return _storyTemplates.get(storyName.toLowerCase());
+      // Story names are stored lowercased, and are usually asked for that way.
+      List<Template> templates = _storyTemplates.get(storyName);
+      if( templates == null ) templates = _storyTemplates.get(storyName.toLowerCase());
+      return templates;
     }
     else return null;
   }
+
+  /**
+   * @return The index of the given story's gold entities, or null if the story has no
+   *         templates or indexGolds() was not run since its templates were added.
+   */
+  public MUCGoldIndex getGoldIndex(String storyName) {
+    if( _storyIndexes == null ) return null;
+    MUCGoldIndex index = _storyIndexes.get(storyName);
+    if( index == null ) index = _storyIndexes.get(storyName.toLowerCase());
+    return index;
+  }
+
+  /**
+   * Build a MUCGoldIndex over each story's gold entities. fromFile() calls this after
+   * reading the key. Call it again after adding templates with addTemplate().
+   */
+  public void indexGolds() {
+    _storyIndexes = new HashMap<String, MUCGoldIndex>();
+    if( _storyNames == null ) return;
+    for( String story : _storyNames ) {
+      List<MUCEntity> golds = new ArrayList<MUCEntity>();
+      for( Template template : _storyTemplates.get(story) )
+        for( int sloti = 0; sloti < numSlots(); sloti++ ) {
+          List<MUCEntity> entities = template.getSlotEntities(sloti);
+          if( entities != null ) golds.addAll(entities);
+        }
+      _storyIndexes.put(story, new MUCGoldIndex(golds));
+    }
+  }
   
   public Collection<String> getStories() {
     if( _storyNames == null )
@@ -183,6 +216,8 @@ public class MUCKeyReader implements KeyReader {
       ex.printStackTrace(); 
       }
     
+    indexGolds();
+
     // Print some basic statistics.
     outputStats();
   }
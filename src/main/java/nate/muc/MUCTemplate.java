@@ -16,6 +16,8 @@ import java.util.Set;
  */
 public class MUCTemplate implements Template {
   Map<String, String> _template = null;
+  // The parsed entities of each key, so that every call returns the same MUCEntity objects.
+  Map<String, List<MUCEntity>> _entities = new HashMap<String, List<MUCEntity>>();
   public static final String HUMAN_PERP = "PERP: INDIVIDUAL ID";
   public static final String ORG_PERP = "PERP: ORGANIZATION ID";
   public static final String HUMAN_TARGET = "HUM TGT: DESCRIPTION";
@@ -117,8 +119,7 @@ public class MUCTemplate implements Template {
   public List<MUCEntity> getEntitiesByType(String[] types) {
     List<MUCEntity> entities = new LinkedList<MUCEntity>();
     for( String type : types ) {
-      String value = get(type);
-      List<MUCEntity> localentities = mucValueToEntities(value, type);
+      List<MUCEntity> localentities = entitiesOfType(type);
 
       if( localentities != null ) {
         for( MUCEntity entity : localentities )
@@ -135,6 +136,15 @@ public class MUCTemplate implements Template {
   }
 
   
+  /**
+   * @return The entities of the given key, parsed on the first call. Null if the key is empty.
+   */
+  private synchronized List<MUCEntity> entitiesOfType(String type) {
+    if( !_entities.containsKey(type) )
+      _entities.put(type, mucValueToEntities(get(type), type));
+    return _entities.get(type);
+  }
+
   /**
    * Given a (possibly multi-line) string value from a MUC template,
    * split it into its string values.  Sometimes there is just one,
@@ -196,8 +206,9 @@ public class MUCTemplate implements Template {
     put(key, value);
   }
 
-  public void put(String key, String value) {
+  public synchronized void put(String key, String value) {
     _template.put(key, value);
+    _entities.clear();
   }
 
   public String get(String key) {
@@ -208,8 +219,9 @@ public class MUCTemplate implements Template {
     return _template.size();
   }
 
-  public void clear() {
+  public synchronized void clear() {
     _template.clear();
+    _entities.clear();
   }
   
   public String toString() {
@@ -0,0 +1,196 @@
+package nate.probschemas;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import nate.util.SymbolTable;
+
+/**
+ * The documents in one or more entity cache files (see DataSimplifier.writeToResolvedCache()),
+ * read from disk when they are asked for instead of being kept on the heap.
+ *
+ * Opening the files only reads their document names and the byte range of each document.
+ * get() reads one document, and documents() streams a list of them, e.g. into
+ * GibbsSamplerEntities.initializeModelFromData(). Each document read this way gets its own
+ * symbol table, so nothing is kept once the caller drops it. loadAll() reads every document
+ * into the global symbol table, for the callers that need the whole corpus on the heap.
+ *
+ * The files must not change while this object is in use.
+ */
+public class CachedDocuments {
+  private final List<String> _paths;
+  private final List<String> _names = new ArrayList<String>();
+  private int[] _files = new int[16];    // [doc] the index of the doc's file in _paths
+  private long[] _starts = new long[16]; // [doc] the offset of the doc's "DOC <name>" line
+  private long[] _ends = new long[16];   // [doc] the offset just past the doc's last entity line
+  private int _numDocs = 0;              // the number of docs indexed so far
+  private RandomAccessFile[] _open;      // opened on the first get()
+
+  /**
+   * @param paths The cache files, in order. Their documents are numbered in this order.
+   */
+  public CachedDocuments(List<String> paths) throws IOException {
+    _paths = new ArrayList<String>(paths);
+    _open = new RandomAccessFile[paths.size()];
+    for( int filei = 0; filei < _paths.size(); filei++ )
+      index(filei);
+    System.out.println("Indexed " + _names.size() + " cached docs in " + _paths.size() + " file(s).");
+  }
+
+  /**
+   * Read the names line of a cache file, and find where each document starts and ends.
+   */
+  private void index(int filei) throws IOException {
+    String path = _paths.get(filei);
+    InputStream in = new BufferedInputStream(new FileInputStream(path), 1 << 16);
+    try {
+      // The first line holds the document names.
+      ByteArrayOutputStream namesLine = new ByteArrayOutputStream();
+      long offset = 0;
+      int b;
+      while( (b = in.read()) != -1 ) {
+        offset++;
+        if( b == '\n' ) break;
+        namesLine.write(b);
+      }
+      int numNames = 0;
+      for( String name : namesLine.toString().split("\t") ) {
+        if( name.length() > 0 ) {
+          _names.add(name);
+          numNames++;
+        }
+      }
+
+      // Every other line is "DOC <name>" or an entity.
+      int firstDoc = _names.size() - numNames;
+      int numDocs = 0;
+      byte[] buf = new byte[1 << 16];
+      byte[] prefix = { 'D', 'O', 'C', ' ' };
+      int matched = 0; // the number of prefix bytes seen at the start of the current line
+      int read;
+      while( (read = in.read(buf)) > 0 ) {
+        for( int ii = 0; ii < read; ii++, offset++ ) {
+          if( buf[ii] == '\n' )
+            matched = 0;
+          else if( matched > -1 && matched < prefix.length ) {
+            if( buf[ii] == prefix[matched] ) matched++;
+            else matched = -1;
+            if( matched == prefix.length ) {
+              long start = offset - (prefix.length-1);
+              if( numDocs > 0 ) _ends[firstDoc + numDocs - 1] = start;
+              addDoc(filei, start);
+              numDocs++;
+            }
+          }
+        }
+      }
+      if( numDocs > 0 ) _ends[firstDoc + numDocs - 1] = offset;
+
+      if( numDocs != numNames ) {
+        System.out.println("ERROR: cache file " + path + " names " + numNames + " docs but has " + numDocs);
+        System.exit(1);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private void addDoc(int filei, long start) {
+    if( _numDocs == _files.length ) {
+      int capacity = _files.length * 2;
+      _files = Arrays.copyOf(_files, capacity);
+      _starts = Arrays.copyOf(_starts, capacity);
+      _ends = Arrays.copyOf(_ends, capacity);
+    }
+    _files[_numDocs] = filei;
+    _starts[_numDocs] = start;
+    _numDocs++;
+  }
+
+  /**
+   * @return The document names, in document order. Don't change the list.
+   */
+  public List<String> names() { return _names; }
+
+  public int size() { return _names.size(); }
+
+  /**
+   * @return The entities of the given document, interned in a symbol table of their own.
+   */
+  public List<TextEntity> get(int doc) {
+    return get(doc, new SymbolTable());
+  }
+
+  /**
+   * @param symbols The table to intern the entities' strings in, or null for the global one.
+   * @return The entities of the given document.
+   */
+  public synchronized List<TextEntity> get(int doc, SymbolTable symbols) {
+    int filei = _files[doc];
+    byte[] bytes = new byte[(int)(_ends[doc] - _starts[doc])];
+    try {
+      if( _open[filei] == null ) _open[filei] = new RandomAccessFile(_paths.get(filei), "r");
+      _open[filei].seek(_starts[doc]);
+      _open[filei].readFully(bytes);
+    } catch( IOException ex ) {
+      System.out.println("ERROR: could not read doc " + _names.get(doc) + " from " + _paths.get(filei) + ": " + ex);
+      System.exit(1);
+    }
+
+    // The FileWriter wrote the file in the default charset.
+    String[] lines = new String(bytes).split("\n");
+    List<TextEntity> entities = new ArrayList<TextEntity>(lines.length - 1);
+    for( int ii = 1; ii < lines.length; ii++ )
+      if( lines[ii].length() > 0 )
+        entities.add(symbols == null ? TextEntity.fromFullString(lines[ii]) : TextEntity.fromFullString(lines[ii], symbols));
+    return entities;
+  }
+
+  /**
+   * @param docs Document numbers.
+   * @return The given documents, each read when the iteration reaches it.
+   */
+  public Iterable<List<TextEntity>> documents(final List<Integer> docs) {
+    return new Iterable<List<TextEntity>>() {
+      public Iterator<List<TextEntity>> iterator() {
+        return new Iterator<List<TextEntity>>() {
+          int next = 0;
+          public boolean hasNext() { return next < docs.size(); }
+          public List<TextEntity> next() { return get(docs.get(next++)); }
+          public void remove() { throw new UnsupportedOperationException(); }
+        };
+      }
+    };
+  }
+
+  /**
+   * @return Every document, with the entities interned in the global symbol table.
+   */
+  public List<List<TextEntity>> loadAll() {
+    System.out.println("Loading all " + size() + " cached docs.");
+    List<List<TextEntity>> all = new ArrayList<List<TextEntity>>(size());
+    for( int doc = 0; doc < size(); doc++ )
+      all.add(get(doc, null));
+    return all;
+  }
+
+  /**
+   * Close the files. A later get() opens them again.
+   */
+  public synchronized void close() {
+    for( int ii = 0; ii < _open.length; ii++ ) {
+      if( _open[ii] != null ) {
+        try { _open[ii].close(); } catch( IOException ex ) { ex.printStackTrace(); }
+        _open[ii] = null;
+      }
+    }
+  }
+}
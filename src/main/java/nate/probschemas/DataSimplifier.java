@@ -3,8 +3,11 @@ package nate.probschemas;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
@@ -14,6 +17,10 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 import edu.stanford.nlp.stats.ClassicCounter;
 import edu.stanford.nlp.stats.Counter;
@@ -24,11 +31,15 @@ import edu.stanford.nlp.trees.TypedDependency;
 
 import nate.util.Directory;
 import nate.util.Ling;
+import nate.CalculateIDF;
 import nate.EntityMention;
 import nate.IDFMap;
 import nate.NERSpan;
 import nate.util.Pair;
+import nate.util.SortableScore;
+import nate.util.SymbolTable;
 import nate.ProcessedData;
+import nate.ProcessedDocument;
 import nate.util.Locks;
 import nate.util.TreeOperator;
 import nate.util.Util;
@@ -52,8 +63,18 @@ public class DataSimplifier {
   private final String _cacheGigaDir = "cachegiga";
   private double _minDepCounts = 10; // number of times a dep must be seen
   private int _minDocCounts = 10;    // number of docs a verb must occur in
+  private int _numThreads = 1;       // documents filtered in parallel by the corpus-wide filters
   public boolean debug = false;
 
+  /**
+   * A test on one mention of an entity. Filters are run once per mention, and the
+   * mentions they flag are removed together, see removeMentions().
+   */
+  private interface MentionFilter {
+    /** @return True if the entity's ith mention should be removed. */
+    boolean remove(TextEntity entity, int ii);
+  }
+
   public DataSimplifier(int minDepCount, int minDocCount) {
     this();
     _minDepCounts = minDepCount;
@@ -62,6 +83,10 @@ public class DataSimplifier {
     System.out.println("DataSimplifier minDocCounts = " + minDocCount);
   }
   
+  public void setNumThreads(int threads) {
+    _numThreads = Math.max(1, threads);
+  }
+
   public DataSimplifier() {
     _tf = new LabeledScoredTreeFactory();
     System.out.println("Loading Wordnet from: " + WordNet.findWordnetPath());
@@ -106,7 +131,21 @@ public class DataSimplifier {
    * @param n The first n documents are read.
    */
   public List<List<TextEntity>> getEntityList(ProcessedData data, List<String> docsNames, int n) {
-    IDFMap domainIDF = BaselineBestVerb.computeIDF(data, null, _wordnet);
+    Pair<IDFMap,List<List<TextEntity>>> raw = getRawEntityList(data, docsNames, n);
+    filterCorpus(raw.second(), raw.first());
+    return raw.second();
+  }
+
+  /**
+   * The first stage of getEntityList(): each document's entities with only the per-document
+   * filters applied, and the domain IDF of all the documents. These don't depend on the
+   * corpus filter cutoffs, so they can be cached and filtered again with other cutoffs.
+   * @return The domain IDF and the entity list per document.
+   */
+  public Pair<IDFMap,List<List<TextEntity>>> getRawEntityList(ProcessedData data, List<String> docsNames, int n) {
+    // One pass over the data: each story's trees are parsed once, and counted into the
+    // domain IDF (all stories) before its entities are extracted (the first n).
+    CalculateIDF calc = new CalculateIDF(_wordnet);
     data.reset();
     data.nextStory();
 
@@ -114,25 +153,38 @@ public class DataSimplifier {
     int xx = 0;
 
     while( data.getParseStrings() != null ) {
-    	if( xx >= n ) break;
-
-    	//      if( data.currentStory().contains("20061007") ) {
-    	// Get the tokens and dependencies from this file.
-    	List<TextEntity> entities = getEntityListCurrentDoc(data);
-
-    	// Debugging output.
-    	System.out.println("**Entities**\t" + data.currentStory() + "\t" + data.currentDoc());
-    	System.out.println("\t" + entities);
-    	System.out.println();
-
-    	// Advance to next story.
-    	docsEntities.add(entities);
-    	docsNames.add(data.currentStory());
-    	//      }
-    	data.nextStory();
-    	xx++;
+      List<Tree> trees = TreeOperator.stringsToTrees(data.getParseStrings());
+      calc.countStoryTrees(trees);
+
+      if( xx < n ) {
+        //      if( data.currentStory().contains("20061007") ) {
+        // Get the tokens and dependencies from this file.
+        List<TextEntity> entities = getEntityListCurrentDoc(data.getDocument(), trees);
+
+        // Debugging output.
+        System.out.println("**Entities**\t" + data.currentStory() + "\t" + data.currentDoc());
+        System.out.println("\t" + entities);
+        System.out.println();
+
+        docsEntities.add(entities);
+        docsNames.add(data.currentStory());
+        //      }
+      }
+
+      // Advance to next story.
+      data.nextStory();
+      xx++;
     }
 
+    calc.calculateIDF();
+    return new Pair<IDFMap,List<List<TextEntity>>>(calc._idfLemmas, docsEntities);
+  }
+
+  /**
+   * The second stage of getEntityList(): the corpus-level filters, which use the mention
+   * counts over all documents and the domain IDF. The entities are changed in place.
+   */
+  public void filterCorpus(List<List<TextEntity>> docsEntities, IDFMap domainIDF) {
     if( debug )
       for( List<TextEntity> doc : docsEntities )
         for( TextEntity entity : doc ) System.out.println("..> " + entity);
@@ -148,8 +200,6 @@ public class DataSimplifier {
     if( debug )
       for( List<TextEntity> doc : docsEntities )
         for( TextEntity entity : doc ) System.out.println("==> " + entity);
-
-    return docsEntities;
   }
 
   /**
@@ -160,25 +210,48 @@ public class DataSimplifier {
    * @return
    */
   public List<TextEntity> getEntityListCurrentDoc(ProcessedData data) {
+    return getEntityListCurrentDoc(data.getDocument());
+  }
+
+  /**
+   * Same as getEntityListCurrentDoc(ProcessedData), but for a document that is already in memory,
+   * such as one straight from AllParser.analyze().
+   */
+  public List<TextEntity> getEntityListCurrentDoc(ProcessedDocument doc) {
+    return getEntityListCurrentDoc(doc, TreeOperator.stringsToTrees(doc.parses));
+  }
+
+  /**
+   * Same as getEntityListCurrentDoc(ProcessedDocument), with the document's parse trees
+   * already built from doc.parses.
+   */
+  public List<TextEntity> getEntityListCurrentDoc(ProcessedDocument doc, List<Tree> trees) {
+    return getEntityListCurrentDoc(doc, trees, null);
+  }
+
+  /**
+   * Same as getEntityListCurrentDoc(ProcessedDocument, List<Tree>), with the entities' strings
+   * interned in the given table, or in TextEntity's global table if it is null.
+   */
+  public List<TextEntity> getEntityListCurrentDoc(ProcessedDocument doc, List<Tree> trees, SymbolTable symbols) {
     Map<Integer,TextEntity> idToEntity = new HashMap<Integer,TextEntity>();
 
-    List<Tree> trees = TreeOperator.stringsToTrees(data.getParseStrings());
-    List<List<TypedDependency>> alldeps = data.getDependencies();
-    List<NERSpan> ners = data.getNER();
+    List<List<TypedDependency>> alldeps = doc.deps;
+    List<NERSpan> ners = doc.ners;
 
     if( trees.size() != alldeps.size() ) {
-      System.out.println("Tree/Dep size no match in " + data.currentStory() + "(" + trees.size() + " " + alldeps.size());
+      System.out.println("Tree/Dep size no match in " + doc.storyname + "(" + trees.size() + " " + alldeps.size());
     }
     
     // Add NER labels to the entity mentions.
-    Collection<EntityMention> mentions = data.getEntities();
+    Collection<EntityMention> mentions = doc.mentions;
     addNERToEntities(mentions, ners);
 
     // Put the mentions in order of their sentences.
     List<EntityMention>[] mentionsBySentence = new ArrayList[trees.size()];
     for( EntityMention mention : mentions ) {
       if( mention.sid() > trees.size() ) {
-        System.out.println("doc: " + data.currentStory());
+        System.out.println("doc: " + doc.storyname);
         System.out.println("mention: " + mention);
         System.out.println("num trees: " + trees.size());        
       }
@@ -217,7 +290,7 @@ public class DataSimplifier {
             	dep = normalizeDep(dep);
             	// Create the entity if this is the first mention.
             	if( !idToEntity.containsKey(mention.entityID()) )
-            		idToEntity.put(mention.entityID(), new TextEntity());
+            		idToEntity.put(mention.entityID(), (symbols == null ? new TextEntity() : new TextEntity(symbols)));
             	// Add the mention to the entity's list.
             	idToEntity.get(mention.entityID()).addMention(leaf, leaflemma, dep, ner);
             }
@@ -271,6 +344,114 @@ public class DataSimplifier {
   }
 
 
+  /**
+   * getEntityList() with the two stages cached separately in the cache directory:
+   *   <name>-<inputs>-raw       the raw entities from getRawEntityList(), and its domain IDF in .idf
+   *   <name>-<inputs>-<filters> the entities after filterCorpus() with this object's cutoffs
+   * <inputs> is a fingerprint of the contents of the input files, and <filters> names the
+   * cutoffs. Changed inputs miss both caches, and new cutoffs only rerun the corpus filters.
+   * @param name Names the cache files, e.g. "train-" + parsesPath.
+   * @param data The documents, only read if the raw stage isn't cached.
+   * @param docsNames Filled with the story names, as in getEntityList().
+   * @param inputPaths The files (or directories) the data is read from. Null paths are skipped.
+   */
+  public List<List<TextEntity>> getEntityListCached(String name, ProcessedData data, List<String> docsNames, String... inputPaths) {
+    String base = createCachePath(name) + "-" + fingerprintFiles(inputPaths);
+    String filteredPath = base + "-" + filterParameters();
+    String rawPath = base + "-raw";
+
+    // Filtered with these cutoffs before?
+    if( Directory.fileExists(filteredPath) ) {
+      Pair<List<String>,List<List<TextEntity>>> cached = getResolvedCachedEntityList(filteredPath);
+      if( cached != null ) {
+        docsNames.addAll(cached.first());
+        return cached.second();
+      }
+    }
+
+    // The raw stage, read or built.
+    List<String> names = new ArrayList<String>();
+    List<List<TextEntity>> docsEntities = null;
+    IDFMap domainIDF = null;
+    if( Directory.fileExists(rawPath) && Directory.fileExists(rawPath + ".idf") ) {
+      Pair<List<String>,List<List<TextEntity>>> cached = getResolvedCachedEntityList(rawPath);
+      if( cached != null ) {
+        names = cached.first();
+        docsEntities = cached.second();
+        domainIDF = new IDFMap(rawPath + ".idf");
+        // The file rounds IDF scores, recompute them from the counts.
+        domainIDF.calculateIDF();
+      }
+    }
+    if( docsEntities == null ) {
+      Pair<IDFMap,List<List<TextEntity>>> raw = getRawEntityList(data, names, Integer.MAX_VALUE);
+      domainIDF = raw.first();
+      docsEntities = raw.second();
+      writeToResolvedCache(rawPath, names, docsEntities);
+      domainIDF.saveToFile(rawPath + ".idf");
+    }
+
+    // The corpus filters.
+    filterCorpus(docsEntities, domainIDF);
+    writeToResolvedCache(filteredPath, names, docsEntities);
+    docsNames.addAll(names);
+    return docsEntities;
+  }
+
+  /**
+   * Build the filtered cache of getEntityListCached() if it doesn't exist yet, without
+   * keeping the entities, e.g. to read them with CachedDocuments.
+   * @return The path of the filtered cache file.
+   */
+  public String getEntityCacheFile(String name, ProcessedData data, String... inputPaths) {
+    String filteredPath = createCachePath(name) + "-" + fingerprintFiles(inputPaths) + "-" + filterParameters();
+    if( !Directory.fileExists(filteredPath) )
+      getEntityListCached(name, data, new ArrayList<String>(), inputPaths);
+    return filteredPath;
+  }
+
+  /**
+   * @return The corpus filter cutoffs, as they appear in cache file names.
+   */
+  private String filterParameters() {
+    return "dep" + _minDepCounts + "-doc" + _minDocCounts;
+  }
+
+  /**
+   * A CRC32 over the contents of the given files, in order. A directory stands for its
+   * files in sorted order.
+   * @return The checksum in hex.
+   */
+  public static String fingerprintFiles(String... paths) {
+    CRC32 crc = new CRC32();
+    byte[] buf = new byte[1 << 16];
+    for( String path : paths ) {
+      if( path == null ) continue;
+      File file = new File(path);
+      List<File> files = new ArrayList<File>();
+      if( file.isDirectory() ) {
+        for( String name : Directory.getFilesSorted(path) )
+          files.add(new File(file, name));
+      }
+      else files.add(file);
+
+      for( File one : files ) {
+        if( one.isDirectory() ) continue;
+        try {
+          InputStream in = new FileInputStream(one);
+          int read;
+          while( (read = in.read(buf)) > 0 )
+            crc.update(buf, 0, read);
+          in.close();
+        } catch( IOException ex ) {
+          System.err.println("Error fingerprinting " + one);
+          ex.printStackTrace();
+        }
+      }
+    }
+    return Long.toHexString(crc.getValue());
+  }
+
   public Pair<List<String>,List<List<TextEntity>>> getCachedEntityList(String path) {
     return getResolvedCachedEntityList(createCachePath(path));
   }
@@ -280,7 +461,7 @@ public class DataSimplifier {
    * @param path
    * @return
    */
-  public Pair<List<String>,List<List<TextEntity>>> getResolvedCachedEntityList(String cachePath) {
+  public static Pair<List<String>,List<List<TextEntity>>> getResolvedCachedEntityList(String cachePath) {
     System.out.println("Reading from cache: " + cachePath);
 
     if( Directory.fileExists(cachePath) ) {
@@ -401,7 +582,7 @@ public class DataSimplifier {
    * @param docnames List of document names.
    * @param docEntities List of entities per document, must align with docnames.
    */
-  public void writeToResolvedCache(String cachepath, List<String> docnames, List<List<TextEntity>> docEntities) {
+  public static void writeToResolvedCache(String cachepath, List<String> docnames, List<List<TextEntity>> docEntities) {
     System.out.println("Writing to cache: " + cachepath);
 
     try {
@@ -477,18 +658,18 @@ public class DataSimplifier {
    * @param entity The entity with mentions.
    */
   private void removeCommonMentions(TextEntity entity) {
-    for( int ii = 0; ii < entity.numMentions(); ii++ ) {
-      String dep = entity.getMentionDependency(ii);
-      String verb = dep.substring(dep.indexOf("--")+2);
-      // If the mention is an argument of a reporting verb, remove.
-      if( isCommonVerbLemma(verb) ) {
-        if( debug ) System.out.println("Removing common verb mention: " + verb + "/" + dep + " for token " + entity.getMentionToken(ii));
-        entity.removeMention(ii);
-        // Recurse.
-        removeCommonMentions(entity);
-        return;
+    removeMentions(entity, new MentionFilter() {
+      public boolean remove(TextEntity entity, int ii) {
+        String dep = entity.getMentionDependency(ii);
+        String verb = mentionVerb(dep);
+        // If the mention is an argument of a reporting verb, remove.
+        if( isCommonVerbLemma(verb) ) {
+          if( debug ) System.out.println("Removing common verb mention: " + verb + "/" + dep + " for token " + entity.getMentionToken(ii));
+          return true;
+        }
+        return false;
       }
-    }
+    });
   }
 
   /**
@@ -509,18 +690,74 @@ public class DataSimplifier {
    * @param entity The entity with mentions.
    */
   private void removeReportingMentions(TextEntity entity) {
-    for( int ii = 0; ii < entity.numMentions(); ii++ ) {
-      String dep = entity.getMentionDependency(ii);
-      String verb = dep.substring(dep.indexOf("--")+2);
-      // If the mention is an argument of a reporting verb, remove.
-      if( isReportingVerbLemma(verb) ) {
-        if( debug ) System.out.println("Removing reporting mention: " + verb + "/" + dep + " for token " + entity.getMentionToken(ii));
-        entity.removeMention(ii);
-        // Recurse.
-        removeReportingMentions(entity);
-        return;
+    removeMentions(entity, new MentionFilter() {
+      public boolean remove(TextEntity entity, int ii) {
+        String dep = entity.getMentionDependency(ii);
+        String verb = mentionVerb(dep);
+        // If the mention is an argument of a reporting verb, remove.
+        if( isReportingVerbLemma(verb) ) {
+          if( debug ) System.out.println("Removing reporting mention: " + verb + "/" + dep + " for token " + entity.getMentionToken(ii));
+          return true;
+        }
+        return false;
       }
+    });
+  }
+
+  /**
+   * @param dep A mention's dependency, e.g. "s--kidnap"
+   * @return The governing word, e.g. "kidnap"
+   */
+  private static String mentionVerb(String dep) {
+    return dep.substring(dep.indexOf("--")+2);
+  }
+
+  /**
+   * Remove the entity's mentions that the filter flags. Every mention is tested once,
+   * before any is removed, and the rest are compacted in one pass.
+   * This may result in an entity with zero mentions.
+   */
+  private void removeMentions(TextEntity entity, MentionFilter filter) {
+    int n = entity.numMentions();
+    if( n == 0 ) return;
+    boolean[] remove = new boolean[n];
+    boolean any = false;
+    for( int ii = 0; ii < n; ii++ ) {
+      remove[ii] = filter.remove(entity, ii);
+      any = any || remove[ii];
+    }
+    if( any ) entity.removeMentions(remove);
+  }
+
+  /**
+   * Filter the mentions of every document's entities, then delete the entities without any
+   * remaining mentions. Documents are filtered in parallel with setNumThreads(), so the
+   * filter may only read shared state.
+   */
+  private void removeMentions(final List<List<TextEntity>> allentities, final MentionFilter filter) {
+    if( _numThreads <= 1 ) {
+      for( List<TextEntity> docentities : allentities ) {
+        for( TextEntity entity : docentities )
+          removeMentions(entity, filter);
+        removeEntitiesWithNMentions(docentities, 0);
+      }
+      return;
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(_numThreads);
+    for( final List<TextEntity> docentities : allentities ) {
+      pool.execute(new Runnable() {
+        public void run() {
+          for( TextEntity entity : docentities )
+            removeMentions(entity, filter);
+          removeEntitiesWithNMentions(docentities, 0);
+        }
+      });
     }
+    pool.shutdown();
+    try {
+      while( !pool.awaitTermination(1, TimeUnit.MINUTES) ) ;
+    } catch( InterruptedException ex ) { ex.printStackTrace(); }
   }
 
   /**
@@ -528,13 +765,15 @@ public class DataSimplifier {
    * @param entities List of entity objects.
    */
   private void removeEntitiesWithNMentions(List<TextEntity> entities, int n) {
-    List<TextEntity> remove = new ArrayList<TextEntity>();
-    for( TextEntity entity : entities ) {
-      if( entity.numMentions() <= n )
-        remove.add(entity);
+    // Compact the kept entities to the front, then cut the tail.
+    int kept = 0;
+    for( int ii = 0; ii < entities.size(); ii++ ) {
+      TextEntity entity = entities.get(ii);
+      if( entity.numMentions() > n )
+        entities.set(kept++, entity);
     }
-    for( TextEntity entity : remove )
-      entities.remove(entity);    
+    if( kept < entities.size() )
+      entities.subList(kept, entities.size()).clear();
   }
 
   /**
@@ -590,27 +829,22 @@ public class DataSimplifier {
       for( String key : counter.keySet() ) System.out.println("..." + key + " " + counter.getCount(key));
     }
 
-    // Remove mentions
-    for( List<TextEntity> docentities : allentities ) {
-      for( TextEntity entity : docentities ) {
-        boolean removed = true;
-        while( removed ) {
-          removed = false;
-          for( int ii = 0; ii < entity.numMentions(); ii++ ) {
-            String dep = entity.getMentionDependency(ii);
-            double count = counter.getCount(dep);
-            if( count < _minDepCounts ) {
-              if( debug ) System.out.println("Removing rare mention " + entity.getMentionToken(ii) + " " + dep);
-              entity.removeMention(ii);
-              removed = true;
-              break;
-            }
-          }
+    // The rare dependencies, so the filter is a set lookup.
+    final Set<String> rare = new HashSet<String>();
+    for( String dep : counter.keySet() )
+      if( counter.getCount(dep) < _minDepCounts ) rare.add(dep);
+
+    // Remove mentions, and the entities left without any.
+    removeMentions(allentities, new MentionFilter() {
+      public boolean remove(TextEntity entity, int ii) {
+        String dep = entity.getMentionDependency(ii);
+        if( rare.contains(dep) ) {
+          if( debug ) System.out.println("Removing rare mention " + entity.getMentionToken(ii) + " " + dep);
+          return true;
         }
+        return false;
       }
-      // Delete entities without any remaining mentions.
-      removeEntitiesWithNMentions(docentities, 0);
-    }
+    });
   }
   
   private void removeLowIDFChange(List<List<TextEntity>> allentities, IDFMap generalIDF, IDFMap domainIDF) {
@@ -628,21 +862,19 @@ public class DataSimplifier {
     // }
 
     // Grabs only the top 200 verbs.
-    List<String> topVerbs = getTopVerbs(generalIDF, domainIDF, 1000);
-    System.out.println("Top verbs: " + topVerbs);
+    List<String> topVerbList = getTopVerbs(generalIDF, domainIDF, 1000);
+    System.out.println("Top verbs: " + topVerbList);
+    final Set<String> topVerbs = new HashSet<String>(topVerbList);
     
-    // Remove mentions
-    for( List<TextEntity> docentities : allentities ) {
-      for( TextEntity entity : docentities ) {
-        boolean removed = true;
-        while( removed ) {
-          removed = false;
-          for( int ii = 0; ii < entity.numMentions(); ii++ ) {
-            String dep = entity.getMentionDependency(ii);
-            String verb = dep.substring(dep.indexOf("--")+2); // kidnap
-
-            if( !topVerbs.contains("v-"+verb) && !topVerbs.contains("n-"+verb) ) removed = true;
-            
+    // Remove mentions, and the entities left without any.
+    removeMentions(allentities, new MentionFilter() {
+      public boolean remove(TextEntity entity, int ii) {
+        String dep = entity.getMentionDependency(ii);
+        String verb = mentionVerb(dep); // kidnap
+
+        boolean removed = false;
+        if( !topVerbs.contains("v-"+verb) && !topVerbs.contains("n-"+verb) ) removed = true;
+        
 //            verb = "v-" + verb;
 //            System.out.println("verb=" + verb + "\t" + generalIDF.get(verb));
 //            if( generalIDF.get(verb) < filatovaIDFCutoff )
@@ -656,18 +888,12 @@ public class DataSimplifier {
 //              if( score < scoreCutoff )
 //                removed = true;
 //            }
-            
-            if( removed ) {
-            	System.out.println("Removing mention with low IDF change verb: " + dep + "-" + verb);
-              entity.removeMention(ii);
-              break;
-            }
-          }
-        }
+        
+        if( removed )
+        	System.out.println("Removing mention with low IDF change verb: " + dep + "-" + verb);
+        return removed;
       }
-      // Delete entities without any remaining mentions.
-      removeEntitiesWithNMentions(docentities, 0);
-    }
+    });
   }
 
   /**
@@ -678,31 +904,18 @@ public class DataSimplifier {
    * @return An ordered list of the top words.
    */
   private List<String> getTopVerbs(IDFMap generalIDF, IDFMap domainIDF, int n) {
-    Counter<String> wordscores = new ClassicCounter<String>();    
-    for( String word : domainIDF.getWords() ) {
-      if( word.startsWith("v-") || (word.startsWith("n-") && _wordnet.isNounEvent(word.substring(2))) ) {
-      	System.out.println("word: " + word + "\tgeneralIDF=" + generalIDF.get(word) + "\tdomainDocCount=" + domainIDF.getDocCount(word));
-        if( (generalIDF.get(word) >= 0.2 || !generalIDF.contains(word)) && 
-        		(domainIDF.getDocCount(word) > _minDocCounts || domainIDF.getDocCount(word) > domainIDF.numDocs()/5) ) {
-
-          // ratio
-          double score = generalIDF.get(word) / domainIDF.get(word);
-
-          // filtaova : probability of word, multiplied by IDF score
-//          score = (double)domainIDF.getFrequency(word) / (double)domainIDF.totalCorpusCount();
-//          score *= (double)domainIDF.getDocCount(word) / (double)domainIDF.numDocs();
-
-          wordscores.incrementCount(word, score);
-          System.out.println("scored: " + word + "\t" + score);
-        }
-      }
-    }
-    
-    List<String> sortedWords = Util.sortCounterKeys(wordscores);
+    // Verbs and event nouns, scored by the general IDF over the domain IDF.
+    // The scores are cached, so the same corpus isn't rescored on the next call.
+    List<SortableScore> scored = new DomainWordScores(domainIDF, generalIDF).topIDFChange(_minDocCounts, _wordnet, n);
+
+    // filtaova : probability of word, multiplied by IDF score
+//    score = (double)domainIDF.getFrequency(word) / (double)domainIDF.totalCorpusCount();
+//    score *= (double)domainIDF.getDocCount(word) / (double)domainIDF.numDocs();
+
     List<String> topWords = new ArrayList<String>();
-    for( int ii = 0; ii < n && ii < sortedWords.size(); ii++ ) {
-      topWords.add(sortedWords.get(ii));
-      System.out.println("top: " + sortedWords.get(ii) + "\t" + wordscores.getCount(sortedWords.get(ii)));
+    for( SortableScore score : scored ) {
+      topWords.add(score.key());
+      System.out.println("top: " + score.key() + "\t" + score.score());
     }
     return topWords;
   }
@@ -717,7 +930,7 @@ public class DataSimplifier {
    */
   private void setTopLevelAttributes(List<TextEntity> entities) {
     for( TextEntity entity : entities ) {
-      Set<TextEntity.TYPE> types = validEntityRoleTypes(entity.ners, entity.getCoreToken());
+      Set<TextEntity.TYPE> types = validEntityRoleTypes(entity.getMentionNERs(), entity.getCoreToken());
       entity.setEntityTypes(types);
     }
   }
@@ -734,7 +947,8 @@ public class DataSimplifier {
   private void setCoreEntityMention(TextEntity entity) {
     String bestToken = null;
     int mentioni = 0, besti = 0;
-    for( String token : entity.tokens ) {
+    for( int ii = 0; ii < entity.numMentions(); ii++ ) {
+      String token = entity.getMentionToken(ii);
       if( bestToken == null ) {
         bestToken = token;
         besti = mentioni;
@@ -752,20 +966,20 @@ public class DataSimplifier {
       mentioni++;
     }
 
-    entity.setCoreToken(bestToken, entity.rawTokens.get(besti));
+    entity.setCoreToken(bestToken, entity.getMentionRawToken(besti));
 
     if( bestToken.matches("^\\d+$") ) {
       if( debug ) System.out.println("Number turned from " + bestToken);
-      entity.setCoreToken("NUMBER", entity.rawTokens.get(besti));
+      entity.setCoreToken("NUMBER", entity.getMentionRawToken(besti));
     }
 
     // Set this entity's token to be an NER label if it has one.
     if( _changeTokensToNELabel ) {
-      NERSpan.TYPE bestNER = entity.ners.get(besti); 
+      NERSpan.TYPE bestNER = entity.getMentionNER(besti); 
       if( bestNER == NERSpan.TYPE.PERSON )
-        entity.setCoreToken("PERSON", entity.rawTokens.get(besti));
+        entity.setCoreToken("PERSON", entity.getMentionRawToken(besti));
       else if( bestNER == NERSpan.TYPE.ORGANIZATION )
-        entity.setCoreToken("ORG", entity.rawTokens.get(besti));
+        entity.setCoreToken("ORG", entity.getMentionRawToken(besti));
     }
   }
 
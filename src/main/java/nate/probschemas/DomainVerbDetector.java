@@ -5,7 +5,6 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import nate.CalculateIDF;
 import nate.CountVerbDepCorefs;
@@ -29,6 +28,8 @@ public class DomainVerbDetector {
   public IDFMap _initialIDF;
   // Set by Nate, instead of a verb stop list.
   float _filatovaIDFCutoff = 2.0f;
+  // The domain vocabulary aligned with the general IDFs, built when first needed.
+  private DomainWordScores _scores;
 
   public DomainVerbDetector(String[] args) {
     this(args[0], args[1]);
@@ -52,6 +53,15 @@ public class DomainVerbDetector {
   }
 
 
+  /**
+   * @return The aligned scorer for the current domain and general IDF maps.
+   */
+  public DomainWordScores wordScores() {
+    if( _scores == null )
+      _scores = new DomainWordScores(_domainIDF, _generalIDF);
+    return _scores;
+  }
+
   public void detectVerbs() {
     System.out.println("**Filatova Domain Score");
     detectWordsFilatova(false);
@@ -83,13 +93,17 @@ public class DomainVerbDetector {
   }
 
   public static double probabilityOfTmodGivenWord(String word, CountVerbDepCorefs depCorefCounts) {
-    Set<String> relns = depCorefCounts.getRelns(word);
+    return probabilityOfTmodGivenWord(depCorefCounts.wordID(word), depCorefCounts.relnID("tmod"), depCorefCounts);
+  }
 
-    if( relns != null ) {
-      int count = 0;
-      for( String reln : relns )
-        count += depCorefCounts.getCount(word, reln);
-      double tmodCount = depCorefCounts.getCount(word, "tmod");
+  /**
+   * @param wordID The word's id in the counts, or -1.
+   * @param tmodID The id of the "tmod" relation in the counts, or -1.
+   */
+  public static double probabilityOfTmodGivenWord(int wordID, int tmodID, CountVerbDepCorefs depCorefCounts) {
+    if( wordID != -1 ) {
+      int count = depCorefCounts.getWordCount(wordID);
+      double tmodCount = (tmodID == -1 ? 0 : depCorefCounts.getCount(wordID, tmodID));
 
       double prob = (double)tmodCount / (double)count;
       return prob;
@@ -108,18 +122,20 @@ public class DomainVerbDetector {
   public static double salienceScore(String word,
       int countCutoff,
       CountVerbDepCorefs depCorefCounts) {
+    int wordID = depCorefCounts.wordID(word);
+    if( wordID == -1 ) System.out.println("salienceScore: depscounts didn't have " + word);
+    return salienceScore(wordID, countCutoff, depCorefCounts);
+  }
+
+  /**
+   * @param wordID The word's id in the counts, or -1.
+   */
+  public static double salienceScore(int wordID,
+      int countCutoff,
+      CountVerbDepCorefs depCorefCounts) {
     // Count total seen arguments for this word.
-    int count = 0;
-    int corefCount = 0;
-
-    Set<String> relns = depCorefCounts.getRelns(word);
-    if( relns != null ) {
-      for( String reln : relns ) {
-        count += depCorefCounts.getCount(word, reln);
-        corefCount += depCorefCounts.getCorefCount(word, reln);
-      }
-    }
-    else System.out.println("salienceScore: depscounts didn't have " + word);
+    int count = depCorefCounts.getWordCount(wordID);
+    int corefCount = depCorefCounts.getWordCorefCount(wordID);
 
     // The overall count for this word should be high enough to score with confidence.
     if( count >= countCutoff ) {
@@ -171,18 +187,22 @@ public class DomainVerbDetector {
     System.out.println("---Salience Detector---");
     System.out.println(depCorefCounts.getWords().size() + " words in the counts");
 
-    // Score each word.
+    // Score each word, scanning the counts by word id.
     int i = 0;
+    int tmodID = depCorefCounts.relnID("tmod");
     List<SortableScore> wordScores = new ArrayList<SortableScore>();
-    for( String word : depCorefCounts.getWords() ) {
-      if( !verbsOnly || word.startsWith("v-") ) {
+    for( int wordID = 0; wordID < depCorefCounts.numWordIDs(); wordID++ ) {
+      String word = depCorefCounts.word(wordID);
+      if( word != null && (!verbsOnly || word.startsWith("v-")) ) {
         double idfscore = _generalIDF.get(word);
         // Skip words with low IDFs in the general corpus.
         if( idfscore < _filatovaIDFCutoff && idfscore > 0.0 ) {
           //	System.out.println("salience: skipping low general IDF of " + word);
         }
         else {
-          double score = discourseSalienceScore(word, 20, depCorefCounts, _domainIDF);
+          // Same as discourseSalienceScore().
+          double score = salienceScore(wordID, 20, depCorefCounts) * probabilityOfWord(word, _domainIDF)
+              * probabilityOfTmodGivenWord(wordID, tmodID, depCorefCounts);
           if( score > 0.0 )
             wordScores.add(new SortableScore(score, word));
           //	else System.out.println("salience skipping word " + word + " due to low score");
@@ -238,47 +258,9 @@ public class DomainVerbDetector {
    * idf-ratio: log(D / D(x)) / log(Dd / Dd(x))
    */
   public List<String> detectWordsIDFRatio () {
-    int domainTotalOccurrences = 0;
-    int generalTotalOccurrences = 0;    
-
-    // Sum total frequencies of domain words.
-    for( String word : _domainIDF.getWords() ) {
-      domainTotalOccurrences += _domainIDF.getFrequency(word);
-    }
-
-    // Sum total frequencies of general words.
-    for( String word : _generalIDF.getWords() ) {
-      generalTotalOccurrences += _generalIDF.getFrequency(word);
-    }
-
-    // Score each word.
-    List<SortableScore> wordScores = new ArrayList<SortableScore>();
-    for( String word : _domainIDF.getWords() ) {
-
-      // Skip words seen only a few times...they have high variance in scores.
-      if( _domainIDF.getDocCount(word) > 100 ) {
-        // IDF of the word IN THE DOMAIN.
-        double domainIDF = (double)_domainIDF.numDocs() / (double)_domainIDF.getDocCount(word);
-
-        // IDF of the word OUT OF DOMAIN.
-        double generalIDF = 1.0;
-        if( _generalIDF.getDocCount(word) > 0 )
-          generalIDF = (double)_generalIDF.numDocs() / (double)_generalIDF.getDocCount(word);
-
-        // Calculate the ratio.
-        // We want words with lower domain IDF than the general corpus.
-        double score = generalIDF / domainIDF;
-
-        //  System.out.printf("idf: %s\td=%.5f\tg=%.5f\t==%.2f\n", word, domainIDF, generalIDF, score);
-
-        wordScores.add(new SortableScore(score, word));
-      }
-    }
-
-    // Sort by score
-    SortableScore[] arr = new SortableScore[wordScores.size()];
-    arr = wordScores.toArray(arr);
-    Arrays.sort(arr);
+    // Words seen in 100 or fewer domain docs are skipped...they have high variance in scores.
+    // We want words with lower domain IDF than the general corpus.
+    List<SortableScore> arr = wordScores().topIDFRatio(Integer.MAX_VALUE);
 
     // Output
     System.out.println("SORTED");
@@ -316,41 +298,14 @@ public class DomainVerbDetector {
 
   public List<SortableScore> detectWordsRelativeFrequencyRatio(boolean verbsOnly) {
     // Ignore words that appear very rarely in the general corpus.
-    int generalCutoff = Math.round(_generalIDF.numDocs() * 0.0004f + 0.5f);
-    System.out.println("general doc cutoff = " + generalCutoff);
-
-    int domainCutoff = Math.round(_domainIDF.numDocs() * 0.05f + 0.5f);
-    System.out.println("domain doc cutoff = " + domainCutoff);
-
-    // Score each word.
-    List<SortableScore> wordScores = new ArrayList<SortableScore>();
-    for( String word : _domainIDF.getWords() ) {
-      if( !verbsOnly || word.startsWith("v-") ) {
-        if( _domainIDF.getDocCount(word) < domainCutoff || 
-            _generalIDF.getDocCount(word) < generalCutoff ) {
-          wordScores.add(new SortableScore(0.0, word));
-        }
-        else {
-          // Probability of the word IN THE DOMAIN.
-          double domainProb = (double)_domainIDF.getFrequency(word) / (double)_domainIDF.totalCorpusCount();
-          // Probability of the word OUT OF DOMAIN.
-          double genProb = 1.0;
-          if( _generalIDF.getFrequency(word) > 0 )
-            genProb = (double)_generalIDF.getFrequency(word) / (double)_generalIDF.totalCorpusCount();
-          // Calculate the ratio.
-          double score = domainProb / genProb;
-
-          //	System.out.printf("%s d=%.5f g=%.5f ==%.2f\n", word, domainProb, genProb, score);
-          wordScores.add(new SortableScore(score, word));
-        }
-      }
-    }
-
-    // Scale the scores.
-    // Sort by score
-    SortableScore[] arr = new SortableScore[wordScores.size()];
-    arr = wordScores.toArray(arr);
-    Arrays.sort(arr);
+    DomainWordScores scores = wordScores();
+    System.out.println("general doc cutoff = " + scores.generalDocCutoff());
+    System.out.println("domain doc cutoff = " + scores.domainDocCutoff());
+
+    // Score each word, then scale the scores.
+    List<SortableScore> ratios = scores.topRelativeFrequencyRatio(verbsOnly, Integer.MAX_VALUE);
+    SortableScore[] arr = new SortableScore[ratios.size()];
+    arr = ratios.toArray(arr);
     Util.scaleToUnit(arr);
 
     // Output
@@ -391,37 +346,10 @@ public class DomainVerbDetector {
    * @param verbsOnly True if you want only verbs returned.
    */
   public List<String> detectWordsFilatova(boolean verbsOnly) {
-    List<SortableScore> wordScores = new ArrayList<SortableScore>();
-    int domainTotalOccurrences = 0;
-
     System.out.println("detectWordsFilatova...");
 
-    // Sum total frequencies of all seen words.
-    for( String word : _domainIDF.getWords() ) {
-      if( !verbsOnly || word.startsWith("v-") ) {
-        if( _generalIDF.get(word) >= _filatovaIDFCutoff ) {
-          domainTotalOccurrences += _domainIDF.getFrequency(word);
-        }
-      }
-    }
-
-    // Score each word.
-    for( String word : _domainIDF.getWords() ) {
-      if( !verbsOnly || word.startsWith("v-") ) {
-        if( _generalIDF.get(word) >= _filatovaIDFCutoff ) {
-          // probability of the word
-          double score = (double)_domainIDF.getFrequency(word) / (double)domainTotalOccurrences;
-          // multiplied by an IDF score
-          score *= (double)_domainIDF.getDocCount(word) / (double)_domainIDF.numDocs();
-          wordScores.add(new SortableScore(score, word));
-        }
-      }
-    }
-
-    // Sort by score
-    SortableScore[] arr = new SortableScore[wordScores.size()];
-    arr = wordScores.toArray(arr);
-    Arrays.sort(arr);
+    // Score each word, the top 102 are output.
+    List<SortableScore> arr = wordScores().topFilatova(verbsOnly, _filatovaIDFCutoff, 102);
     List<String> words = new ArrayList<String>();
     // Output
     int i = 0;
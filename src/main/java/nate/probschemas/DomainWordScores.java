@@ -0,0 +1,336 @@
+package nate.probschemas;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import nate.IDFMap;
+import nate.util.SortableScore;
+import nate.util.WordNet;
+
+/**
+ * Scores every word of a domain's vocabulary against a general corpus, for the domain
+ * word detectors in DomainVerbDetector and DataSimplifier.
+ *
+ * The two IDF maps are aligned once: the domain words are sorted, and their counts in
+ * both corpora are copied into parallel arrays. Each scoring function is then one loop
+ * over those arrays, split across threads if setNumThreads() is more than one.
+ *
+ * The top-k lists are cached by a fingerprint of the aligned counts, so a second run over
+ * the same corpus (e.g. a parameter sweep that rebuilds the domain IDF each time) gets
+ * the same list back without rescoring.
+ */
+public class DomainWordScores {
+  String[] _words;
+  boolean[] _isVerb;
+  int[] _domainFreq;
+  int[] _domainDocs;
+  float[] _domainIDF;
+  int[] _generalFreq;
+  int[] _generalDocs;
+  float[] _generalIDF;
+  boolean[] _inGeneral;
+
+  int _domainTotal;
+  int _domainNumDocs;
+  int _generalTotal;
+  int _generalNumDocs;
+  String _fingerprint;
+  int _numThreads = 1;
+
+  // Top-k lists by fingerprint and scoring function, least recently used dropped first.
+  private static final int CACHE_SIZE = 32;
+  private static final Map<String,List<SortableScore>> _topCache =
+    new LinkedHashMap<String,List<SortableScore>>(16, 0.75f, true) {
+      static final long serialVersionUID = 1;
+      protected boolean removeEldestEntry(Map.Entry<String,List<SortableScore>> eldest) {
+        return size() > CACHE_SIZE;
+      }
+    };
+
+  /** A score for the word at an index of the aligned arrays. NaN leaves the word out. */
+  private interface Scorer {
+    double score(int i);
+  }
+
+
+  public DomainWordScores(IDFMap domainIDF, IDFMap generalIDF) {
+    _words = domainIDF.getWords().toArray(new String[0]);
+    Arrays.sort(_words);
+    int n = _words.length;
+    _isVerb = new boolean[n];
+    _domainFreq = new int[n];
+    _domainDocs = new int[n];
+    _domainIDF = new float[n];
+    _generalFreq = new int[n];
+    _generalDocs = new int[n];
+    _generalIDF = new float[n];
+    _inGeneral = new boolean[n];
+
+    _domainTotal = domainIDF.totalCorpusCount();
+    _domainNumDocs = domainIDF.numDocs();
+    _generalTotal = generalIDF.totalCorpusCount();
+    _generalNumDocs = generalIDF.numDocs();
+
+    long hash = 17;
+    hash = 31*hash + _domainTotal;
+    hash = 31*hash + _domainNumDocs;
+    hash = 31*hash + _generalTotal;
+    hash = 31*hash + _generalNumDocs;
+    for( int i = 0; i < n; i++ ) {
+      String word = _words[i];
+      _isVerb[i] = word.startsWith("v-");
+      _domainFreq[i] = domainIDF.getFrequency(word);
+      _domainDocs[i] = domainIDF.getDocCount(word);
+      _domainIDF[i] = domainIDF.get(word);
+      _inGeneral[i] = generalIDF.contains(word);
+      if( _inGeneral[i] ) {
+        _generalFreq[i] = generalIDF.getFrequency(word);
+        _generalDocs[i] = generalIDF.getDocCount(word);
+        _generalIDF[i] = generalIDF.get(word);
+      }
+
+      hash = 31*hash + word.hashCode();
+      hash = 31*hash + _domainFreq[i];
+      hash = 31*hash + _domainDocs[i];
+      hash = 31*hash + Float.floatToIntBits(_domainIDF[i]);
+      hash = 31*hash + _generalFreq[i];
+      hash = 31*hash + _generalDocs[i];
+      hash = 31*hash + Float.floatToIntBits(_generalIDF[i]);
+    }
+    _fingerprint = n + ":" + Long.toHexString(hash);
+  }
+
+  public void setNumThreads(int threads) { _numThreads = Math.max(1, threads); }
+
+  public int size() { return _words.length; }
+  public String word(int i) { return _words[i]; }
+
+
+  /**
+   * Filatova's domain score: P(word | domain) * docs(word)/docs, over words with a general
+   * IDF of at least the cutoff. A word the general corpus hasn't seen has IDF zero.
+   */
+  public double[] filatova(final boolean verbsOnly, final float generalIDFCutoff) {
+    // Total frequency of the eligible words.
+    long total = 0;
+    for( int i = 0; i < _words.length; i++ )
+      if( (!verbsOnly || _isVerb[i]) && _generalIDF[i] >= generalIDFCutoff )
+        total += _domainFreq[i];
+    final double domainTotal = (double)total;
+
+    return scoreAll(new Scorer() {
+      public double score(int i) {
+        if( (verbsOnly && !_isVerb[i]) || _generalIDF[i] < generalIDFCutoff ) return Double.NaN;
+        return ((double)_domainFreq[i] / domainTotal) * ((double)_domainDocs[i] / (double)_domainNumDocs);
+      }
+    });
+  }
+
+  /**
+   * P(word | domain) / P(word | general). Words in fewer than 5% of the domain's documents,
+   * or too rare in the general corpus, score zero.
+   */
+  public double[] relativeFrequencyRatio(final boolean verbsOnly) {
+    final int generalCutoff = generalDocCutoff();
+    final int domainCutoff = domainDocCutoff();
+    return scoreAll(new Scorer() {
+      public double score(int i) {
+        if( verbsOnly && !_isVerb[i] ) return Double.NaN;
+        if( _domainDocs[i] < domainCutoff || _generalDocs[i] < generalCutoff ) return 0.0;
+        double domainProb = (double)_domainFreq[i] / (double)_domainTotal;
+        double genProb = 1.0;
+        if( _generalFreq[i] > 0 )
+          genProb = (double)_generalFreq[i] / (double)_generalTotal;
+        return domainProb / genProb;
+      }
+    });
+  }
+
+  public int generalDocCutoff() { return Math.round(_generalNumDocs * 0.0004f + 0.5f); }
+  public int domainDocCutoff() { return Math.round(_domainNumDocs * 0.05f + 0.5f); }
+
+  /**
+   * idf-ratio: log(D / D(x)) / log(Dd / Dd(x)), over words in more than 100 domain documents.
+   */
+  public double[] idfRatio() {
+    return scoreAll(new Scorer() {
+      public double score(int i) {
+        if( _domainDocs[i] <= 100 ) return Double.NaN;
+        double domainIDF = (double)_domainNumDocs / (double)_domainDocs[i];
+        double generalIDF = 1.0;
+        if( _generalDocs[i] > 0 )
+          generalIDF = (double)_generalNumDocs / (double)_generalDocs[i];
+        return generalIDF / domainIDF;
+      }
+    });
+  }
+
+  /**
+   * General IDF over domain IDF, for verbs and event nouns (if wordnet is given) that are
+   * in more than minDocCounts domain documents or a fifth of them, and whose general IDF
+   * is at least 0.2 or unknown.
+   */
+  public double[] idfChange(final int minDocCounts, final WordNet wordnet) {
+    final boolean[] eligible = new boolean[_words.length];
+    for( int i = 0; i < _words.length; i++ ) {
+      if( (_generalIDF[i] >= 0.2 || !_inGeneral[i]) &&
+          (_domainDocs[i] > minDocCounts || _domainDocs[i] > _domainNumDocs/5) ) {
+        // The WordNet check last, it is the slow one.
+        eligible[i] = _isVerb[i] ||
+          (wordnet != null && _words[i].startsWith("n-") && wordnet.isNounEvent(_words[i].substring(2)));
+      }
+    }
+    return scoreAll(new Scorer() {
+      public double score(int i) {
+        if( !eligible[i] ) return Double.NaN;
+        return (double)_generalIDF[i] / (double)_domainIDF[i];
+      }
+    });
+  }
+
+
+  public List<SortableScore> topFilatova(boolean verbsOnly, float generalIDFCutoff, int k) {
+    String key = "filatova " + verbsOnly + " " + generalIDFCutoff;
+    List<SortableScore> top = cached(key, k);
+    if( top == null ) top = cache(key, k, top(filatova(verbsOnly, generalIDFCutoff), k));
+    return top;
+  }
+
+  public List<SortableScore> topRelativeFrequencyRatio(boolean verbsOnly, int k) {
+    String key = "ratio " + verbsOnly;
+    List<SortableScore> top = cached(key, k);
+    if( top == null ) top = cache(key, k, top(relativeFrequencyRatio(verbsOnly), k));
+    return top;
+  }
+
+  public List<SortableScore> topIDFRatio(int k) {
+    String key = "idfratio";
+    List<SortableScore> top = cached(key, k);
+    if( top == null ) top = cache(key, k, top(idfRatio(), k));
+    return top;
+  }
+
+  public List<SortableScore> topIDFChange(int minDocCounts, WordNet wordnet, int k) {
+    String key = "idfchange " + minDocCounts + " " + (wordnet != null);
+    List<SortableScore> top = cached(key, k);
+    if( top == null ) top = cache(key, k, top(idfChange(minDocCounts, wordnet), k));
+    return top;
+  }
+
+  /**
+   * The k highest scoring words, best first. Words with a NaN score are left out, and
+   * equal scores stay in word order.
+   */
+  public List<SortableScore> top(double[] scores, int k) {
+    int count = 0;
+    for( double score : scores )
+      if( !Double.isNaN(score) ) count++;
+
+    SortableScore[] sorted;
+    if( k >= count ) {
+      sorted = new SortableScore[count];
+      int j = 0;
+      for( int i = 0; i < scores.length; i++ )
+        if( !Double.isNaN(scores[i]) ) sorted[j++] = new SortableScore(scores[i], _words[i]);
+    }
+    else {
+      // Keep the best k indices in a heap with the worst on top.
+      PriorityQueue<Integer> heap = new PriorityQueue<Integer>(k+1, new IndexOrder(scores));
+      for( int i = 0; i < scores.length && k > 0; i++ ) {
+        if( Double.isNaN(scores[i]) ) continue;
+        heap.add(i);
+        if( heap.size() > k ) heap.poll();
+      }
+      sorted = new SortableScore[heap.size()];
+      int j = 0;
+      for( int i : heap ) sorted[j++] = new SortableScore(scores[i], _words[i]);
+      Arrays.sort(sorted, new Comparator<SortableScore>() {
+        public int compare(SortableScore a, SortableScore b) { return a.key().compareTo(b.key()); }
+      });
+    }
+    // Stable, so ties stay in word order.
+    Arrays.sort(sorted, BEST_FIRST);
+
+    List<SortableScore> top = new ArrayList<SortableScore>(sorted.length);
+    Collections.addAll(top, sorted);
+    return top;
+  }
+
+  /** Orders scores from best to worst. */
+  private static final Comparator<SortableScore> BEST_FIRST = new Comparator<SortableScore>() {
+    public int compare(SortableScore a, SortableScore b) { return Double.compare(b.score(), a.score()); }
+  };
+
+  /** Orders indices from worst to best score, and later words first among ties. */
+  private static class IndexOrder implements Comparator<Integer> {
+    double[] _scores;
+    IndexOrder(double[] scores) { _scores = scores; }
+    public int compare(Integer a, Integer b) {
+      int c = Double.compare(_scores[a], _scores[b]);
+      return (c != 0 ? c : b.compareTo(a));
+    }
+  }
+
+  private double[] scoreAll(final Scorer scorer) {
+    final double[] scores = new double[_words.length];
+    int threads = Math.min(_numThreads, Math.max(1, _words.length / 10000));
+    if( threads <= 1 ) {
+      for( int i = 0; i < scores.length; i++ ) scores[i] = scorer.score(i);
+      return scores;
+    }
+
+    final int chunk = (scores.length + threads - 1) / threads;
+    Thread[] workers = new Thread[threads];
+    for( int t = 0; t < threads; t++ ) {
+      final int start = t * chunk;
+      final int end = Math.min(scores.length, start + chunk);
+      workers[t] = new Thread() {
+        public void run() {
+          for( int i = start; i < end; i++ ) scores[i] = scorer.score(i);
+        }
+      };
+      workers[t].start();
+    }
+    try {
+      for( Thread worker : workers ) worker.join();
+    } catch( InterruptedException ex ) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(ex);
+    }
+    return scores;
+  }
+
+  private List<SortableScore> cached(String name, int k) {
+    List<SortableScore> top;
+    synchronized( _topCache ) {
+      top = _topCache.get(_fingerprint + " " + name + " " + k);
+    }
+    return (top == null ? null : copy(top));
+  }
+
+  private List<SortableScore> cache(String name, int k, List<SortableScore> top) {
+    synchronized( _topCache ) {
+      _topCache.put(_fingerprint + " " + name + " " + k, copy(top));
+    }
+    return top;
+  }
+
+  // Callers rescale and rescore the lists they get, so the cache holds its own copy.
+  private static List<SortableScore> copy(List<SortableScore> scores) {
+    List<SortableScore> copy = new ArrayList<SortableScore>(scores.size());
+    for( SortableScore score : scores ) copy.add(new SortableScore(score.score(), score.key()));
+    return copy;
+  }
+
+  public static void clearCache() {
+    synchronized( _topCache ) {
+      _topCache.clear();
+    }
+  }
+}
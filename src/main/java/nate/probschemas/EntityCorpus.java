@@ -0,0 +1,183 @@
+package nate.probschemas;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The documents as the Gibbs samplers see them: each entity's word and features, and each
+ * mention's dependency, inverse dependency and verb, as integer IDs.
+ *
+ * Everything is stored flat, like a compressed sparse row matrix. Entities are numbered across
+ * the whole corpus, and a document is a range of entity numbers. Mentions are numbered the
+ * same way, and an entity is a range of mention numbers. This is a handful of large arrays
+ * instead of int[doc][entity][mention] arrays, which need one small array per entity and
+ * field. Each entity's features are packed into one byte.
+ *
+ * Documents are appended with startDocument(), addEntity() and addMention(). Appending can
+ * continue after sampling has started (see GibbsSamplerEntities.addDocuments()).
+ *
+ * MappedEntityCorpus keeps the same arrays off the heap, in a memory-mapped file.
+ */
+public class EntityCorpus implements Serializable {
+  static final long serialVersionUID = 10000;
+
+  private int numDocs = 0;
+  private int numEntities = 0;
+  private int numMentions = 0;
+  private int[] docStarts;      // [doc]     doc d has entities docStarts[d] to docStarts[d+1]-1
+  private int[] mentionStarts;  // [entity]  entity e has mentions mentionStarts[e] to mentionStarts[e+1]-1
+  private int[] words;          // [entity]  all mentions of an entity share its core token
+  private byte[] feats;         // [entity]  bit f is set if the entity has feature TextEntity.TYPE f
+  private int[] deps;           // [mention]
+  private int[] inverseDeps;    // [mention] -1 if the dependency has no inverse
+  private int[] verbs;          // [mention] null if verbs are not used
+
+  public EntityCorpus(boolean includeVerbs) {
+    checkFeats();
+    docStarts = new int[16];
+    mentionStarts = new int[256];
+    words = new int[256];
+    feats = new byte[256];
+    deps = new int[1024];
+    inverseDeps = new int[1024];
+    if( includeVerbs ) verbs = new int[1024];
+  }
+
+  /**
+   * For subclasses that store the arrays elsewhere.
+   */
+  protected EntityCorpus() {
+    checkFeats();
+  }
+
+  private static void checkFeats() {
+    if( TextEntity.TYPE.values().length > 8 ) {
+      System.out.println("ERROR: EntityCorpus packs entity features into a byte, but there are " + TextEntity.TYPE.values().length);
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Make room to append this many more documents, entities and mentions, so a batch of
+   * known size is appended without regrowing the arrays.
+   */
+  public void reserve(int moreDocs, int moreEntities, int moreMentions) {
+    if( numDocs+moreDocs+1 > docStarts.length ) docStarts = Arrays.copyOf(docStarts, numDocs+moreDocs+1);
+    if( numEntities+moreEntities+1 > mentionStarts.length ) {
+      int size = numEntities+moreEntities+1;
+      mentionStarts = Arrays.copyOf(mentionStarts, size);
+      words = Arrays.copyOf(words, size);
+      feats = Arrays.copyOf(feats, size);
+    }
+    if( numMentions+moreMentions > deps.length ) {
+      int size = numMentions+moreMentions;
+      deps = Arrays.copyOf(deps, size);
+      inverseDeps = Arrays.copyOf(inverseDeps, size);
+      if( verbs != null ) verbs = Arrays.copyOf(verbs, size);
+    }
+  }
+
+  /**
+   * Start a new document. The entities added after this call belong to it.
+   * @return The new document's number.
+   */
+  public int startDocument() {
+    if( numDocs+2 > docStarts.length ) docStarts = Arrays.copyOf(docStarts, 2*docStarts.length);
+    numDocs++;
+    docStarts[numDocs-1] = numEntities;
+    docStarts[numDocs] = numEntities;
+    return numDocs-1;
+  }
+
+  /**
+   * Add an entity to the current document. Its mentions are the ones added after this call.
+   * @param featMask Bit f is set if the entity has feature TextEntity.TYPE f.
+   * @return The new entity's number, across all documents.
+   */
+  public int addEntity(int word, int featMask) {
+    if( numEntities+2 > mentionStarts.length ) {
+      int size = 2*mentionStarts.length;
+      mentionStarts = Arrays.copyOf(mentionStarts, size);
+      words = Arrays.copyOf(words, size);
+      feats = Arrays.copyOf(feats, size);
+    }
+    words[numEntities] = word;
+    feats[numEntities] = (byte)featMask;
+    mentionStarts[numEntities] = numMentions;
+    numEntities++;
+    mentionStarts[numEntities] = numMentions;
+    docStarts[numDocs] = numEntities;
+    return numEntities-1;
+  }
+
+  /**
+   * Add a mention to the current entity.
+   */
+  public void addMention(int dep, int inverseDep, int verb) {
+    if( numMentions+1 > deps.length ) {
+      int size = 2*deps.length;
+      deps = Arrays.copyOf(deps, size);
+      inverseDeps = Arrays.copyOf(inverseDeps, size);
+      if( verbs != null ) verbs = Arrays.copyOf(verbs, size);
+    }
+    deps[numMentions] = dep;
+    inverseDeps[numMentions] = inverseDep;
+    if( verbs != null ) verbs[numMentions] = verb;
+    numMentions++;
+    mentionStarts[numEntities] = numMentions;
+  }
+
+  /**
+   * Drop the spare room left at the ends of the arrays by appending.
+   */
+  public void trim() {
+    docStarts = Arrays.copyOf(docStarts, numDocs+1);
+    mentionStarts = Arrays.copyOf(mentionStarts, numEntities+1);
+    words = Arrays.copyOf(words, numEntities);
+    feats = Arrays.copyOf(feats, numEntities);
+    deps = Arrays.copyOf(deps, numMentions);
+    inverseDeps = Arrays.copyOf(inverseDeps, numMentions);
+    if( verbs != null ) verbs = Arrays.copyOf(verbs, numMentions);
+  }
+
+  public boolean hasVerbs() { return verbs != null; }
+
+  /**
+   * Append all of the given corpus's documents to this one.
+   */
+  public void addAll(EntityCorpus other) {
+    reserve(other.numDocs(), other.numEntities(), other.numMentions());
+    boolean verbs = other.hasVerbs();
+    for( int doc = 0; doc < other.numDocs(); doc++ ) {
+      startDocument();
+      for( int entity = other.firstEntity(doc); entity < other.endEntity(doc); entity++ ) {
+        addEntity(other.word(entity), other.featMask(entity));
+        for( int mention = other.firstMention(entity); mention < other.endMention(entity); mention++ )
+          addMention(other.dep(mention), other.inverseDep(mention), (verbs ? other.verb(mention) : -1));
+      }
+    }
+  }
+
+  public int numDocs() { return numDocs; }
+  public int numEntities() { return numEntities; }
+  public int numMentions() { return numMentions; }
+
+  // Entities of a document.
+  public int firstEntity(int doc) { return docStarts[doc]; }
+  public int endEntity(int doc) { return docStarts[doc+1]; }
+  public int numEntities(int doc) { return docStarts[doc+1] - docStarts[doc]; }
+  public int entity(int doc, int entityi) { return docStarts[doc] + entityi; }
+
+  // Mentions of an entity.
+  public int firstMention(int entity) { return mentionStarts[entity]; }
+  public int endMention(int entity) { return mentionStarts[entity+1]; }
+  public int numMentions(int entity) { return mentionStarts[entity+1] - mentionStarts[entity]; }
+
+  public int word(int entity) { return words[entity]; }
+  public int featMask(int entity) { return feats[entity] & 0xff; }
+  public boolean hasFeat(int entity, int feat) { return (feats[entity] & (1 << feat)) != 0; }
+
+  public int dep(int mention) { return deps[mention]; }
+  public int inverseDep(int mention) { return inverseDeps[mention]; }
+  public int verb(int mention) { return verbs[mention]; }
+}
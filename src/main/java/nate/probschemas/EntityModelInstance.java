@@ -1,74 +1,54 @@
 package nate.probschemas;
 
 import java.io.Serializable;
-import java.util.Arrays;
-
-import edu.stanford.nlp.stats.ClassicCounter;
-import edu.stanford.nlp.util.ErasureUtils;
 
+/**
+ * A saved sampling state, usually the one with the best likelihood so far.
+ * Only the z assignments are saved. The count tables are a function of the zs and the data,
+ * so the sampler rebuilds them from the zs when it loads an instance. This keeps saving a
+ * new best instance cheap: one int per entity, copied into arrays that are allocated once.
+ */
 public class EntityModelInstance implements Serializable {
   static final long serialVersionUID = 10000;
 
   public double likelihood;
   public int samplingStep;
-  // Model.
-//  public int[][][] words; // [doc][entity][mention]
-//  public int[][][] deps;  // [doc][entity][mention]
-//  public int[][][] verbs; // [doc][entity][mention]
-//  public int[][][] inverseDeps;  // [doc][entity][mention]   : the inverse of "subj" is "obj" and vice versa
-//  public int[][][] feats;  // [doc][entity][feattype]
-//  
   public int[][] zs;      // [doc][entity]  zs are z variable assignments to single entities
 
-  // Required.
-  public double[] topicCounts;      // when one global Theta distribution
-  public int[][] topicCountsByDoc;  // when Thetas are per document
-  public ClassicCounter<Integer>[] wCountsBySlot;
-  public ClassicCounter<Integer>[] verbCountsBySlot;
-  public ClassicCounter<Integer>[] depCountsBySlot;
-  public ClassicCounter<Integer>[] featCountsBySlot;
-
 
   public EntityModelInstance() {
-    // TODO Auto-generated constructor stub
   }
 
-  public void storeAll(
-      int[][] zs,
-      double[] topicCounts, 
-      int[][] topicCountsByDoc,
-      ClassicCounter<Integer>[] wCountsBySlot, 
-      ClassicCounter<Integer>[] verbCountsBySlot,
-      ClassicCounter<Integer>[] depCountsBySlot,
-      ClassicCounter<Integer>[] featCountsBySlot) {
+  /**
+   * Save the given z assignments. The arrays from earlier calls are reused when the shapes
+   * match, so repeated calls do not allocate.
+   */
+  public void storeZs(int[][] zs) {
+    if( this.zs == null || this.zs.length != zs.length )
+      this.zs = new int[zs.length][];
+    for( int xx = 0; xx < zs.length; xx++ ) {
+      if( this.zs[xx] == null || this.zs[xx].length != zs[xx].length )
+        this.zs[xx] = new int[zs[xx].length];
+      System.arraycopy(zs[xx], 0, this.zs[xx], 0, zs[xx].length);
+    }
+  }
 
-    this.zs = new int[zs.length][];
-    for( int xx = 0; xx < zs.length; xx++ )
-      this.zs[xx] = Arrays.copyOf(zs[xx], zs[xx].length);
-    
-    this.topicCounts = Arrays.copyOf(topicCounts, topicCounts.length);
-    this.topicCountsByDoc = new int[topicCountsByDoc.length][];
-    for( int xx = 0; xx < topicCountsByDoc.length; xx++ )
-      this.topicCountsByDoc[xx] = Arrays.copyOf(topicCountsByDoc[xx], topicCountsByDoc[xx].length);
-    
-    this.wCountsBySlot = cloneCounter(wCountsBySlot);
-    this.verbCountsBySlot = cloneCounter(verbCountsBySlot);
-    this.depCountsBySlot = cloneCounter(depCountsBySlot);
-    this.featCountsBySlot = cloneCounter(featCountsBySlot);
+  /**
+   * @return True if zs have been stored in this instance.
+   */
+  public boolean hasZs() {
+    return zs != null;
   }
-  
+
   /**
-   * Make a copy of the array of counters.
+   * @return A deep copy of this instance.
    */
-  public ClassicCounter<Integer>[] cloneCounter(ClassicCounter<Integer>[] counter) {
-    ClassicCounter<Integer>[] newcount = ErasureUtils.<ClassicCounter<Integer>>mkTArray(ClassicCounter.class, counter.length);
-    for( int xx = 0; xx < counter.length; xx++ ) {
-      ClassicCounter<Integer> cc = new ClassicCounter<Integer>();
-      newcount[xx] = cc;
-      for( Integer key : counter[xx].keySet() )
-        cc.incrementCount(key, counter[xx].getCount(key));
-    }
-    return newcount;
+  public EntityModelInstance copy() {
+    EntityModelInstance copy = new EntityModelInstance();
+    copy.likelihood = likelihood;
+    copy.samplingStep = samplingStep;
+    if( zs != null ) copy.storeZs(zs);
+    return copy;
   }
-  
+
 }
@@ -2,11 +2,15 @@ package nate.probschemas;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import nate.probschemas.EvaluateTemplates;
 import nate.muc.MUCEntity;
@@ -16,6 +20,14 @@ import nate.muc.Template;
 import nate.util.Util;
 
 
+/**
+ * Scores labeled entities against a MUC answer key, under the best mapping of learned roles
+ * to gold template slots.
+ *
+ * The alignment searches score many role->slot mappings over the same guesses. The guesses are
+ * string matched against the gold slots once, into a MatchMatrix, and each mapping is then
+ * scored by counting over it. Debugging runs still rescan the documents, for their output.
+ */
 public class EvaluateModel {
   KeyReader _answerKey;
   
@@ -28,6 +40,13 @@ public class EvaluateModel {
   // Documents with no templates are removed (don't count any false positives in them).
   public boolean _evaluateOnTemplateDocsOnly = false; 
 
+  // Number of threads that match the guesses against the gold slots.
+  public int _numThreads = Runtime.getRuntime().availableProcessors();
+
+  // Guesses matched against the gold slots, by template type and _evaluateOnTemplateDocsOnly.
+  // Cleared when new guesses are set.
+  private Map<String,MatchMatrix> _matchMatrices = new HashMap<String,MatchMatrix>();
+
   
   /**
    * Assumes we will evaluate every template you give, no filtering later.
@@ -40,6 +59,7 @@ public class EvaluateModel {
   public void setGuesses(List<String> docNames, List<List<TextEntity>> docGuesses) {
     _docNames = docNames;
     _docGuesses = docGuesses;
+    _matchMatrices.clear();
   }
 
   /**
@@ -756,6 +776,28 @@ public class EvaluateModel {
   		debug = true;
   	
     System.out.println("evaluateSlot sloti= " + sloti + "\trolei=" + rolei);
+    int[] overall = (debug ? scanSlot(sloti, rolei, specificTemplateType, debug) : getMatchMatrix(specificTemplateType).countSlot(sloti, rolei));
+
+    // Print the results!!
+    System.out.println("evaluateSlot Results (sloti=" + sloti + " rolei=" + rolei + ")");
+    System.out.println("  x = [correct, false-pos, false-neg]");
+    System.out.println("  " + sloti + " = " + Arrays.toString(overall));
+    
+    // Debug output, per slot...
+    float precision = ((float)overall[0] / (float)(overall[0]+overall[1]));
+    float recall = ((float)overall[0] / (float)(overall[0]+overall[2]));
+    float f1 = 2.0f * (precision*recall) / (precision+recall);
+    System.out.printf("\tslot " + sloti + "\tprec=%.3f\trecall=%.3f\tf1=%.2f\n", precision, recall, f1);
+
+    double[] scores = EvaluateTemplates.score(overall[0], overall[1], overall[0]+overall[2]);
+    return scores;
+  }
+
+  /**
+   * evaluateSlot() by rescanning every document's guesses against the key, with debugging output.
+   * @return Three counts: correct, false positives, false negatives.
+   */
+  private int[] scanSlot(int sloti, int rolei, String specificTemplateType, boolean debug) {
     int unfilled = 0, unfilledCorrect = 0;
     // Initialize the counts of correct/incorrect/missed.
     int[] overall = new int[3];
@@ -850,20 +892,7 @@ public class EvaluateModel {
         }
       } // else
     } // story loop
-
-    // Print the results!!
-    System.out.println("evaluateSlot Results (sloti=" + sloti + " rolei=" + rolei + ")");
-    System.out.println("  x = [correct, false-pos, false-neg]");
-    System.out.println("  " + sloti + " = " + Arrays.toString(overall));
-    
-    // Debug output, per slot...
-    float precision = ((float)overall[0] / (float)(overall[0]+overall[1]));
-    float recall = ((float)overall[0] / (float)(overall[0]+overall[2]));
-    float f1 = 2.0f * (precision*recall) / (precision+recall);
-    System.out.printf("\tslot " + sloti + "\tprec=%.3f\trecall=%.3f\tf1=%.2f\n", precision, recall, f1);
-
-    double[] scores = EvaluateTemplates.score(overall[0], overall[1], overall[0]+overall[2]);
-    return scores;
+    return overall;
   }
   
   /**
@@ -882,6 +911,45 @@ public class EvaluateModel {
   
   public double[] evaluateSlotsIgnoringEventTypes(int[] perm, boolean debug) {
     System.out.println("evalSlotsIgnoringEventTypes perm=" + Arrays.toString(perm));
+    List<int[]> slotResults = (debug ? scanSlotsIgnoringEventTypes(perm, debug) : getMatchMatrix(null).countSlots(perm));
+
+    // Print the results!!
+    System.out.println("evaluateSlotsIgnoringEventTypes Results (perm=" + Arrays.toString(perm) + ")");
+    System.out.print("evaluateSlotsIgnoringEventTypes Results (perm=");
+    for( int xx = 0; xx < perm.length; xx++ ) System.out.print(xx + ":" + perm[xx] + " ");
+    System.out.println(")");
+    System.out.println("  x = [correct, false-pos, false-neg]");
+    for( int i = 0; i < slotResults.size(); i++ )
+      System.out.println("  " + i + " = " + Arrays.toString(slotResults.get(i)));
+    
+    // Calculate the overall F1 score.
+    int[] allscores = new int[slotResults.get(0).length];
+    for( int i = 0; i < slotResults.size(); i++ ) {
+      int[] scores = slotResults.get(i);
+      
+      if( scores[0] + scores[2] > 0 ) {// don't count slots that had no gold entities. any of our guesses are thus ignored
+        for( int j = 0; j < scores.length; j++ )
+          allscores[j] += scores[j];
+      }
+
+      // Debug output, per slot...
+      float precision = ((float)scores[0] / (float)(scores[0]+scores[1]));
+      float recall = ((float)scores[0] / (float)(scores[0]+scores[2]));
+      float f1 = 2.0f * (precision*recall) / (precision+recall);
+      System.out.printf("\tslot " + i + "\tprec=%.3f\trecall=%.3f\tf1=%.2f\n", precision, recall, f1);
+    }
+    double[] scores = EvaluateTemplates.score(allscores[0], allscores[1], allscores[0]+allscores[2]);
+    System.out.printf("\tall\tprec=%.3f\trecall=%.3f\tf1=%.2f\n", scores[0], scores[1], scores[2]);
+
+    return scores;
+  }
+
+  /**
+   * evaluateSlotsIgnoringEventTypes() by rescanning every document's guesses against the key,
+   * with debugging output.
+   * @return For each gold slot, three counts: correct, false positives, false negatives.
+   */
+  private List<int[]> scanSlotsIgnoringEventTypes(int[] perm, boolean debug) {
     int unfilled = 0, unfilledCorrect = 0;
     // Initialize the counts of correct/incorrect/missed.
     List<int[]> slotResults = new ArrayList<int[]>();
@@ -1020,39 +1088,228 @@ public class EvaluateModel {
         }
       } // else
     } // story loop
+    return slotResults;
+  }
 
-    // Print the results!!
-    System.out.println("evaluateSlotsIgnoringEventTypes Results (perm=" + Arrays.toString(perm) + ")");
-    System.out.print("evaluateSlotsIgnoringEventTypes Results (perm=");
-    for( int xx = 0; xx < perm.length; xx++ ) System.out.print(xx + ":" + perm[xx] + " ");
-    System.out.println(")");
-    System.out.println("  x = [correct, false-pos, false-neg]");
-    for( int i = 0; i < slotResults.size(); i++ )
-      System.out.println("  " + i + " = " + Arrays.toString(slotResults.get(i)));
-    
-    // Calculate the overall F1 score.
-    int[] allscores = new int[slotResults.get(0).length];
-    for( int i = 0; i < slotResults.size(); i++ ) {
-      int[] scores = slotResults.get(i);
-      
-      if( scores[0] + scores[2] > 0 ) {// don't count slots that had no gold entities. any of our guesses are thus ignored
-        for( int j = 0; j < scores.length; j++ )
-          allscores[j] += scores[j];
+
+  /**
+   * @return The guesses matched against the gold slots of the given template type (null for
+   *         all types), built on first use.
+   */
+  private MatchMatrix getMatchMatrix(String specificTemplateType) {
+    String key = specificTemplateType + " " + _evaluateOnTemplateDocsOnly;
+    MatchMatrix matrix = _matchMatrices.get(key);
+    if( matrix == null ) {
+      matrix = new MatchMatrix(specificTemplateType);
+      _matchMatrices.put(key, matrix);
+    }
+    return matrix;
+  }
+
+  /**
+   * Every learned role's guesses string matched against every gold slot, in every document,
+   * with the same rules as scanSlot() and scanSlotsIgnoringEventTypes(). The string matching
+   * is done once, one document per thread. Scoring a role->slot mapping is then counting: OR
+   * the gold matches of the roles mapped to a slot, and count the guesses that matched nothing.
+   */
+  private class MatchMatrix {
+    final int[] falsePositives;        // [role] guesses in (test) documents with no gold templates
+    final int[] missedWithoutGuesses;  // [slot] non-optional golds in documents with no guesses at all
+    final DocMatches[] docs;           // documents with gold templates and guesses
+
+    MatchMatrix(String specificTemplateType) {
+      long startTime = System.currentTimeMillis();
+      int numSlots = _answerKey.numSlots();
+      falsePositives = new int[_numLearnedSlots];
+      missedWithoutGuesses = new int[numSlots];
+      final List<List<List<MUCEntity>>> goldDocs = new ArrayList<List<List<MUCEntity>>>();
+      final List<List<TextEntity>> guessDocs = new ArrayList<List<TextEntity>>();
+
+      int docid = 0;
+      for( String storyname : _docNames ) {
+        List<Template> goldTemplates = _answerKey.getTemplates(storyname);
+        if( specificTemplateType != null )
+          goldTemplates = EvaluateTemplates.templatesContain(specificTemplateType, goldTemplates);
+        List<TextEntity> entities = _docGuesses.get(docid++);
+
+        if( _evaluateOnTemplateDocsOnly && goldTemplates == null ) { }
+        else if( goldTemplates == null && entities == null ) { }
+        // No gold templates, these are all false positives.
+        else if( goldTemplates == null ) {
+          // TEMPORARY - ONLY TEST ON THESE
+          if( !storyname.toLowerCase().startsWith("tst3") && !storyname.toLowerCase().startsWith("tst4") )
+            continue;
+          for( TextEntity entity : entities )
+            for( int rolei = 0; rolei < _numLearnedSlots; rolei++ )
+              if( entity.hasLabel(rolei) ) falsePositives[rolei]++;
+        }
+        else {
+          List<List<MUCEntity>> goldSlots = EvaluateTemplates.getAllGoldSlots(goldTemplates, numSlots);
+          if( entities == null ) {
+            for( int sloti = 0; sloti < numSlots; sloti++ )
+              missedWithoutGuesses[sloti] += EvaluateTemplates.removeOptionals(goldSlots.get(sloti)).size();
+          }
+          else {
+            goldDocs.add(goldSlots);
+            guessDocs.add(entities);
+          }
+        }
       }
 
-      // Debug output, per slot...
-      float precision = ((float)scores[0] / (float)(scores[0]+scores[1]));
-      float recall = ((float)scores[0] / (float)(scores[0]+scores[2]));
-      float f1 = 2.0f * (precision*recall) / (precision+recall);
-      System.out.printf("\tslot " + i + "\tprec=%.3f\trecall=%.3f\tf1=%.2f\n", precision, recall, f1);
+      docs = new DocMatches[goldDocs.size()];
+      ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, _numThreads));
+      for( int doci = 0; doci < docs.length; doci++ ) {
+        final int doc = doci;
+        pool.execute(new Runnable() {
+          public void run() {
+            docs[doc] = new DocMatches(goldDocs.get(doc), guessDocs.get(doc), _numLearnedSlots);
+          }
+        });
+      }
+      pool.shutdown();
+      try {
+        while( !pool.awaitTermination(1, TimeUnit.MINUTES) ) ;
+      } catch( InterruptedException ex ) { ex.printStackTrace(); }
+
+      System.out.println("Matched guesses to gold slots" + (specificTemplateType == null ? "" : " of " + specificTemplateType) + 
+          " in " + docs.length + " docs in " + (System.currentTimeMillis()-startTime) + " ms");
     }
-    double[] scores = EvaluateTemplates.score(allscores[0], allscores[1], allscores[0]+allscores[2]);
-    System.out.printf("\tall\tprec=%.3f\trecall=%.3f\tf1=%.2f\n", scores[0], scores[1], scores[2]);
 
-    return scores;
+    /**
+     * The counts of scanSlot(): one learned role's guesses against one gold slot.
+     * @return Three counts: correct, false positives, false negatives.
+     */
+    int[] countSlot(int sloti, int rolei) {
+      int[] overall = new int[3];
+      overall[1] += falsePositives[rolei];
+      overall[2] += missedWithoutGuesses[sloti];
+      int[] roles = { rolei };
+      for( DocMatches doc : docs ) {
+        int[] matches = doc.evaluate(sloti, roles, 1);
+        for( int j = 0; j < overall.length; j++ ) overall[j] += matches[j];
+      }
+      return overall;
+    }
+
+    /**
+     * The counts of scanSlotsIgnoringEventTypes(): each gold slot against the guesses of all
+     * roles mapped to it.
+     * @param perm The gold slot of each learned role, or -1.
+     * @return For each gold slot, three counts: correct, false positives, false negatives.
+     */
+    List<int[]> countSlots(int[] perm) {
+      int numSlots = missedWithoutGuesses.length;
+      List<int[]> slotResults = new ArrayList<int[]>();
+      for( int sloti = 0; sloti < numSlots; sloti++ ) {
+        int[] overall = new int[3];
+        overall[2] += missedWithoutGuesses[sloti];
+        slotResults.add(overall);
+      }
+      for( int rolei = 0; rolei < _numLearnedSlots; rolei++ )
+        if( perm[rolei] > -1 ) slotResults.get(perm[rolei])[1] += falsePositives[rolei];
+
+      // The roles mapped to each slot, in role order.
+      int[][] slotRoles = new int[numSlots][_numLearnedSlots];
+      int[] numSlotRoles = new int[numSlots];
+      for( int rolei = 0; rolei < _numLearnedSlots; rolei++ )
+        if( perm[rolei] > -1 ) slotRoles[perm[rolei]][numSlotRoles[perm[rolei]]++] = rolei;
+
+      for( DocMatches doc : docs ) {
+        for( int sloti = 0; sloti < numSlots; sloti++ ) {
+          int[] overall = slotResults.get(sloti);
+          int[] matches = doc.evaluate(sloti, slotRoles[sloti], numSlotRoles[sloti]);
+          for( int j = 0; j < overall.length; j++ ) overall[j] += matches[j];
+          // Slots no role maps to are false negatives (again, as in scanSlotsIgnoringEventTypes()).
+          if( numSlotRoles[sloti] == 0 ) overall[2] += doc.numRequired(sloti);
+        }
+      }
+      return slotResults;
+    }
+  }
+
+  /**
+   * One document's guesses matched against its gold slots, by learned role.
+   */
+  private static class DocMatches {
+    final boolean[][] optional;  // [slot][gold]
+    final BitSet[][] matched;    // [role][slot] golds matched by any of the role's guesses, null if the role guessed nothing
+    final String[][][] wrong;    // [role][slot] the role's guesses that matched no gold, in entity order
+
+    DocMatches(List<List<MUCEntity>> goldSlots, List<TextEntity> entities, int numRoles) {
+      int numSlots = goldSlots.size();
+      optional = new boolean[numSlots][];
+      for( int sloti = 0; sloti < numSlots; sloti++ ) {
+        List<MUCEntity> golds = goldSlots.get(sloti);
+        optional[sloti] = new boolean[golds.size()];
+        for( int gi = 0; gi < golds.size(); gi++ )
+          optional[sloti][gi] = golds.get(gi).isOptional();
+      }
+
+      // Match each labeled entity against each slot once, whichever roles it has.
+      BitSet[][] entityMatches = new BitSet[entities.size()][];
+      for( int ei = 0; ei < entities.size(); ei++ ) {
+        TextEntity entity = entities.get(ei);
+        if( !entity.hasALabel() ) continue;
+        String guess = entity.getCoreTokenRaw();
+        entityMatches[ei] = new BitSet[numSlots];
+        for( int sloti = 0; sloti < numSlots; sloti++ ) {
+          entityMatches[ei][sloti] = TemplateTester.matchesToMUCEntities(goldSlots.get(sloti), guess);
+        }
+      }
+
+      matched = new BitSet[numRoles][];
+      wrong = new String[numRoles][][];
+      for( int rolei = 0; rolei < numRoles; rolei++ ) {
+        List<Integer> guessed = new ArrayList<Integer>();
+        for( int ei = 0; ei < entities.size(); ei++ )
+          if( entities.get(ei).hasLabel(rolei) ) guessed.add(ei);
+        if( guessed.size() == 0 ) continue;
+
+        matched[rolei] = new BitSet[numSlots];
+        wrong[rolei] = new String[numSlots][];
+        for( int sloti = 0; sloti < numSlots; sloti++ ) {
+          BitSet bits = new BitSet();
+          List<String> misses = new ArrayList<String>();
+          for( int ei : guessed ) {
+            bits.or(entityMatches[ei][sloti]);
+            if( entityMatches[ei][sloti].isEmpty() ) misses.add(entities.get(ei).getCoreTokenRaw());
+          }
+          matched[rolei][sloti] = bits;
+          wrong[rolei][sloti] = misses.toArray(new String[misses.size()]);
+        }
+      }
+    }
+
+    int numRequired(int sloti) {
+      int required = 0;
+      for( boolean opt : optional[sloti] )
+        if( !opt ) required++;
+      return required;
+    }
+
+    /**
+     * The counts of TemplateTester.evaluateEntities() for the guesses of the given roles, in
+     * order, against one gold slot.
+     * @return Three counts: correct, false positives, false negatives.
+     */
+    int[] evaluate(int sloti, int[] roles, int numRoles) {
+      BitSet found = new BitSet();
+      List<String> misses = new ArrayList<String>();
+      for( int xx = 0; xx < numRoles; xx++ ) {
+        int rolei = roles[xx];
+        if( matched[rolei] == null ) continue;
+        found.or(matched[rolei][sloti]);
+        misses.addAll(Arrays.asList(wrong[rolei][sloti]));
+      }
+
+      int missed = 0;
+      for( int gi = 0; gi < optional[sloti].length; gi++ )
+        if( !found.get(gi) && !optional[sloti][gi] ) missed++;
+      int incorrect = misses.size() - TemplateTester.duplicatesThatWereWrong(misses, new int[misses.size()], false);
+      return new int[] { found.cardinality(), incorrect, missed };
+    }
   }
 
-  
   public static void main(String[] args) {
   }
 }
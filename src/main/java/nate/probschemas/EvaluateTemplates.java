@@ -3,12 +3,15 @@ package nate.probschemas;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import nate.util.Assignment;
 import nate.util.Pair;
 import nate.util.Util;
 import nate.muc.MUCEntity;
@@ -710,38 +713,18 @@ public class EvaluateTemplates {
    * @return A pair: The avg F1 score over all MUC slots, and the Frame role to MUC slot mapping.
    */
   public Pair<Double,int[]> evaluateSpecificRoleAssignments(Frame targetFrame, String mucType, int scoreType, boolean goldDocsOnly) {
-    List<Integer> slotids = new ArrayList<Integer>();
-    for( int i = 0; i < _answerKey.numSlots(); i++ )
-      slotids.add(i);
-
-//    Frame frame = allframes[targetFrameID];
     System.out.println("Frame " + targetFrame + " (use score type " + scoreType + ")");
-    int[] roleids = new int[targetFrame.getNumRoles()];
-    for( int i = 0; i < roleids.length; i++ )
-      roleids[i] = -1;
-
-    // Generate permutations of the roles to map to MUC slots.
-    System.out.println("Getting permutations for muc slots " + slotids + " and roles " + Arrays.toString(roleids) + " type " + mucType + " " + Arrays.toString(roleids));
-    List<int[]> perms = permutations(slotids, roleids);
-    if( perms != null ) {
-      for( int[] perm : perms ) System.out.println(Arrays.toString(perm));
-    } else {
-      System.out.println("No permutation found!");
-      return null;
-    }
 
-    // Test each permutation to find the best.
-    int i = 0;
+    // The best mapping, and a few runners-up for the log.
+    List<Pair<Double,int[]>> best = bestRoleAssignments(targetFrame, mucType, scoreType, goldDocsOnly, 5);
+    for( Pair<Double,int[]> scored : best )
+      System.out.println("Candidate permutation " + Arrays.toString(scored.second()) + " score=" + scored.first());
+
     double bestf1 = -1.0;
     int[] bestperm = null;
-    for( int[] perm : perms ) {
-      double[] avgPRF1 = evaluateSpecificRoleAssignments(targetFrame.getID(), mucType, perm, goldDocsOnly, false);
-      if( avgPRF1[scoreType] > bestf1 ) {
-        bestf1 = avgPRF1[scoreType];
-        bestperm = perm;
-      }
-      i++;
-      //      if( i == 5 ) break;
+    if( best.size() > 0 && !Double.isNaN(best.get(0).first()) ) {
+      bestf1 = best.get(0).first();
+      bestperm = best.get(0).second();
     }
     System.out.println("Best permutation for " + mucType + " is " + Arrays.toString(bestperm) + " at avgF1=" + bestf1);
     
@@ -750,6 +733,237 @@ public class EvaluateTemplates {
     
     return new Pair<Double,int[]>(bestf1,bestperm);
   }
+
+  /**
+   * The counts that evaluateSpecificRoleAssignments() adds up for one frame, split by where
+   * they come from. A mapping is one-to-one, so each MUC slot's counts are its constant
+   * counts plus either one role's counts or the counts of leaving the slot unmapped.
+   * Every mapping's score comes from these without going back to the documents.
+   * Each entry is [correct, false-pos, false-neg].
+   */
+  static class RoleSlotCounts {
+    int[][][] mapped;   // [role][slot] the role's guesses against the slot's golds
+    int[][] unmapped;   // [slot] all golds missed in docs where the frame was guessed
+    int[][] constant;   // [slot] non-optional golds missed in docs where the frame was not guessed
+
+    RoleSlotCounts(int numRoles, int numSlots) {
+      mapped = new int[numRoles][numSlots][3];
+      unmapped = new int[numSlots][3];
+      constant = new int[numSlots][3];
+    }
+
+    int numRoles() { return mapped.length; }
+    int numSlots() { return unmapped.length; }
+
+    /**
+     * @return The slot's counts when the given role (or -1 for none) fills it.
+     */
+    int[] slotCounts(int sloti, int rolei) {
+      int[] counts = constant[sloti].clone();
+      int[] chosen = (rolei > -1 ? mapped[rolei][sloti] : unmapped[sloti]);
+      for( int j = 0; j < counts.length; j++ ) counts[j] += chosen[j];
+      return counts;
+    }
+  }
+
+  /**
+   * Scan the documents once and count every role against every MUC slot, with the
+   * same rules as evaluateSpecificRoleAssignments(targetFrameID, mucType, perm, ...).
+   */
+  private RoleSlotCounts countRoleSlotMatches(Frame targetFrame, String mucType, boolean goldDocsOnly) {
+    int numSlots = _answerKey.numSlots();
+    RoleSlotCounts counts = new RoleSlotCounts(targetFrame.getNumRoles(), numSlots);
+
+    for( String storyname : allStories(_answerKey, _docFrameGuesses) ) {
+      Frame guessedFrame = framesContain(targetFrame.getID(), _docFrameGuesses.get(storyname.toLowerCase()));
+      List<Template> goldTemplates = templatesContain(mucType, _answerKey.getTemplates(storyname));
+      if( goldTemplates == null && guessedFrame == null ) continue;
+      int numRoles = (guessedFrame == null ? 0 : Math.min(guessedFrame.getNumRoles(), counts.numRoles()));
+
+      // No gold templates, every guess is a false positive in whichever slot its role fills.
+      if( goldTemplates == null ) {
+        if( !goldDocsOnly ) {
+          for( int rolei = 0; rolei < numRoles; rolei++ ) {
+            List<Integer> ids = guessedFrame.getEntityIDsOfRole(rolei);
+            int size = (ids == null ? 0 : ids.size());
+            for( int sloti = 0; sloti < numSlots; sloti++ )
+              counts.mapped[rolei][sloti][1] += size;
+          }
+        }
+      }
+
+      else {
+        List<List<MUCEntity>> goldSlots = getAllGoldSlots(goldTemplates, numSlots);
+        if( guessedFrame == null ) {
+          for( int sloti = 0; sloti < numSlots; sloti++ )
+            counts.constant[sloti][2] += removeOptionals(goldSlots.get(sloti)).size();
+        }
+        else {
+          for( int sloti = 0; sloti < numSlots; sloti++ )
+            counts.unmapped[sloti][2] += goldSlots.get(sloti).size();
+          for( int rolei = 0; rolei < numRoles; rolei++ ) {
+            List<String> guessedStrings = new ArrayList<String>();
+            List<Integer> ids = guessedFrame.getEntityIDsOfRole(rolei);
+            if( ids != null ) {
+              for( Integer id : ids )
+                guessedStrings.add(guessedFrame.getEntity(id).string());
+            }
+            for( int sloti = 0; sloti < numSlots; sloti++ ) {
+              int[] matches = TemplateTester.evaluateEntities(goldSlots.get(sloti), guessedStrings, false);
+              for( int j = 0; j < 3; j++ ) counts.mapped[rolei][sloti][j] += matches[j];
+            }
+          }
+        }
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * @param perm The MUC slot of each role, or less than 0 if the role is unmapped.
+   * @return The overall P/R/F1 of the mapping, computed as in evaluateSpecificRoleAssignments().
+   */
+  static double[] scoreRoleAssignment(RoleSlotCounts counts, int[] perm) {
+    int[] allscores = new int[3];
+    for( int sloti = 0; sloti < counts.numSlots(); sloti++ ) {
+      int[] scores = counts.slotCounts(sloti, roleInSlot(perm, sloti));
+      // Don't count slots that had no gold entities in overall F1.
+      if( scores[0] + scores[2] > 0 )
+        for( int j = 0; j < scores.length; j++ )
+          allscores[j] += scores[j];
+    }
+    return score(allscores[0], allscores[1], allscores[0]+allscores[2]);
+  }
+
+  private static int roleInSlot(int[] perm, int sloti) {
+    for( int rolei = 0; rolei < perm.length; rolei++ )
+      if( perm[rolei] == sloti ) return rolei;
+    return -1;
+  }
+
+  /**
+   * Precision, recall and F1 over the summed slot counts are all a ratio of two sums:
+   * TP/(TP+FP), TP/(TP+FN) and 2TP/(2TP+FP+FN). This returns one slot's share of the
+   * numerator and denominator for the given score type.
+   */
+  private static int[] ratioTerms(int[] slotCounts, int scoreType) {
+    int[] terms = new int[2];
+    // Slots with no gold entities are left out of the overall score.
+    if( slotCounts[0] + slotCounts[2] == 0 ) return terms;
+    if( scoreType == PRECISION ) {
+      terms[0] = slotCounts[0];
+      terms[1] = slotCounts[0] + slotCounts[1];
+    } else if( scoreType == RECALL ) {
+      terms[0] = slotCounts[0];
+      terms[1] = slotCounts[0] + slotCounts[2];
+    } else {
+      terms[0] = 2 * slotCounts[0];
+      terms[1] = 2 * slotCounts[0] + slotCounts[1] + slotCounts[2];
+    }
+    return terms;
+  }
+
+  /**
+   * Weights for the assignment problem: maximize numerator - lambda*denominator. Row i is
+   * role i. Column j < numSlots puts the role in slot j, column numSlots+i leaves role i
+   * unmapped. Weights are relative to leaving every slot unmapped.
+   */
+  private static double[][] assignmentWeights(RoleSlotCounts counts, int scoreType, double lambda) {
+    int numRoles = counts.numRoles(), numSlots = counts.numSlots();
+    double[] unmappedValue = new double[numSlots];
+    for( int sloti = 0; sloti < numSlots; sloti++ ) {
+      int[] terms = ratioTerms(counts.slotCounts(sloti, -1), scoreType);
+      unmappedValue[sloti] = terms[0] - lambda*terms[1];
+    }
+
+    double[][] weights = new double[numRoles][numSlots + numRoles];
+    for( int rolei = 0; rolei < numRoles; rolei++ ) {
+      for( int sloti = 0; sloti < numSlots; sloti++ ) {
+        int[] terms = ratioTerms(counts.slotCounts(sloti, rolei), scoreType);
+        weights[rolei][sloti] = terms[0] - lambda*terms[1] - unmappedValue[sloti];
+      }
+      for( int other = 0; other < numRoles; other++ )
+        weights[rolei][numSlots + other] = (other == rolei ? 0.0 : Double.NEGATIVE_INFINITY);
+    }
+    return weights;
+  }
+
+  private static int[] assignmentToPerm(int[] assignment, int numSlots) {
+    int[] perm = new int[assignment.length];
+    for( int rolei = 0; rolei < assignment.length; rolei++ )
+      perm[rolei] = (assignment[rolei] < numSlots ? assignment[rolei] : -1);
+    return perm;
+  }
+
+  /**
+   * Finds the role to slot mappings with the best score, without trying every mapping.
+   *
+   * The score is a ratio of sums over the slots (see ratioTerms), which is not a sum itself,
+   * so this uses Dinkelbach's method: the Hungarian algorithm finds the mapping that maximizes
+   * numerator - lambda*denominator, lambda becomes that mapping's score, and this repeats
+   * until the score stops going up. The last lambda is the best score of any mapping.
+   * The runners-up are the k best mappings for that last lambda (Murty's algorithm),
+   * rescored and sorted by their real score.
+   * @param n The number of mappings to return.
+   * @return Up to n pairs of score and mapping, best first. Scores that are NaN sort last.
+   */
+  static List<Pair<Double,int[]>> bestRoleAssignments(RoleSlotCounts counts, int scoreType, int n) {
+    int numSlots = counts.numSlots();
+    double lambda = 0.0;
+    double[][] weights = assignmentWeights(counts, scoreType, lambda);
+    int[] bestperm = null;
+    for( int iter = 0; iter < 100; iter++ ) {
+      int[] perm = assignmentToPerm(Assignment.best(weights), numSlots);
+      if( bestperm == null ) bestperm = perm;
+      int numer = 0, denom = 0;
+      for( int sloti = 0; sloti < numSlots; sloti++ ) {
+        int[] terms = ratioTerms(counts.slotCounts(sloti, roleInSlot(perm, sloti)), scoreType);
+        numer += terms[0];
+        denom += terms[1];
+      }
+      if( denom == 0 || (double)numer/denom <= lambda + 1e-12 ) break;
+      lambda = (double)numer/denom;
+      bestperm = perm;
+      weights = assignmentWeights(counts, scoreType, lambda);
+    }
+
+    // Mappings with an empty denominator tie with the best one at the last lambda,
+    // so the best one is added first in case the k best are all such ties.
+    List<int[]> perms = new ArrayList<int[]>();
+    Set<String> seen = new HashSet<String>();
+    perms.add(bestperm);
+    seen.add(Arrays.toString(bestperm));
+    for( int[] assignment : Assignment.kBest(weights, n) ) {
+      int[] perm = assignmentToPerm(assignment, numSlots);
+      if( perms.size() < n && seen.add(Arrays.toString(perm)) ) perms.add(perm);
+    }
+
+    final int type = scoreType;
+    List<Pair<Double,int[]>> scored = new ArrayList<Pair<Double,int[]>>();
+    for( int[] perm : perms )
+      scored.add(new Pair<Double,int[]>(scoreRoleAssignment(counts, perm)[type], perm));
+    Collections.sort(scored, new Comparator<Pair<Double,int[]>>() {
+      public int compare(Pair<Double,int[]> a, Pair<Double,int[]> b) {
+        double sa = (a.first().isNaN() ? -1.0 : a.first());
+        double sb = (b.first().isNaN() ? -1.0 : b.first());
+        return Double.compare(sb, sa);
+      }
+    });
+    return scored;
+  }
+
+  /**
+   * Finds the n best role to MUC slot mappings of a frame for the given score type.
+   * The documents are scanned once, then the mappings are searched on the counts.
+   * @param targetFrame The Frame that you want to evaluate.
+   * @param mucType The MUC type we think the frame extracts for (e.g. kidnap).
+   * @param n The number of mappings to return.
+   * @return Up to n pairs: the score over all MUC slots, and the Frame role to MUC slot mapping. Best first.
+   */
+  public List<Pair<Double,int[]>> bestRoleAssignments(Frame targetFrame, String mucType, int scoreType, boolean goldDocsOnly, int n) {
+    RoleSlotCounts counts = countRoleSlotMatches(targetFrame, mucType, goldDocsOnly);
+    return bestRoleAssignments(counts, scoreType, n);
+  }
   
   /**
    * Should be called after all documents have been labeled with frames and those guesses are in 
@@ -1248,34 +1462,9 @@ public class EvaluateTemplates {
     return arr;
   }
   
-  /**
-   * @return True if the two arrays contain equal elements. False otherwise.
-   */
-  private static boolean permutationMatch(int[] perm1, int[] perm2) {
-    if( perm1 == null && perm2 == null)
-      return true;
-    
-    if( perm1 != null && perm2 != null && perm1.length == perm2.length) {
-      for( int i = 0; i < perm1.length; i++ )
-        if( perm1[i] != perm2[i] )
-          return false;
-      return true;
-    }
-    return false;
-  }
-  
-  /**
-   * @return True if the list of arrays contains an array equal to the given perm array.
-   */
-  private static boolean containsPermutation(List<int[]> perms, int[] perm) {
-    for( int[] aperm : perms )
-      if( permutationMatch(aperm, perm) )
-        return true;
-    return false;
-  }
-  
   /**
    * Creates a new List that is identical to the given one, but with duplicate arrays removed.
+   * The dummy slots in permutations() make many duplicates, so this looks them up in a hash set.
    * @param perms
    * @return
    */
@@ -1284,8 +1473,9 @@ public class EvaluateTemplates {
       return null;
     
     List<int[]> all = new ArrayList<int[]>();
+    Set<String> seen = new HashSet<String>();
     for( int[] perm : perms )
-      if( !containsPermutation(all, perm) )
+      if( seen.add(Arrays.toString(perm)) )
         all.add(perm);
     return all;
   }
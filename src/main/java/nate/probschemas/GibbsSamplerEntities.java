@@ -1,17 +1,26 @@
 package nate.probschemas;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import nate.util.Pair;
 import nate.util.Util;
@@ -35,6 +44,10 @@ import edu.stanford.nlp.util.Index;
  * "templates" - Number of higher-level scenarios, e.g., kidnap or arrest
  * "topics" - Number of overall roles across all templates, e.g., the "location of an arrest"
  *          - Topics must be divisible by the number of templates (4 templates and 4 roles in each = 16 topics)
+ *
+ * P(entity | topic) is a product of factors (topic prior, word, features, dependencies, verbs),
+ * chosen by the settings below in buildFactors(). Model variants like GibbsSamplerWorkshop
+ * are the same sampler with different settings.
  *          
  */
 public class GibbsSamplerEntities implements Sampler, Serializable {
@@ -43,7 +56,7 @@ public class GibbsSamplerEntities implements Sampler, Serializable {
   public Index<String> wordIndex;
   public Index<String> verbIndex;
   public Index<String> depIndex;
-  private final Random random;
+  private Random random;
   public List<String> docNames;
 
   public boolean thetasInDoc = true;
@@ -53,20 +66,19 @@ public class GibbsSamplerEntities implements Sampler, Serializable {
   int maxEntitiesPerTopic = 2; // (constrained sampler mode) each document can only map this many entities to a single role
 
   // Model.
-  private int[][][] words; // [doc][entity][mention]
-  private int[][][] deps;  // [doc][entity][mention]
-  private int[][][] verbs; // [doc][entity][mention]
-  private int[][][] inverseDeps;  // [doc][entity][mention]   : the inverse of "subj" is "obj" and vice versa
-  private int[][][] feats;  // [doc][entity][feattype]
+  private EntityCorpus corpus; // words, deps, verbs, inverse deps and features of every entity
   private int[][] zs;      // [doc][entity]  zs are z variable assignments to single entities
   private double[] topicCounts;      // when one global Theta distribution
   private int[][] topicCountsByDoc;  // when Thetas are per document
+  private int[] entityCountsByDoc;   // [doc] sum of topicCountsByDoc[doc], kept up to date by unlabel/relabel
+  private int[][] templateCountsByDoc; // [doc][template] sum of the doc's topic counts in each template (nested model only)
   private int numEntitiesInAllDocs = 0; // # of entities in dataset
   private int numMentionsInAllDocs = 0; // # of entity mentions in dataset
   private ClassicCounter<Integer>[] wCountsBySlot;
   private ClassicCounter<Integer>[] verbCountsBySlot;
   private ClassicCounter<Integer>[] depCountsBySlot;
   private ClassicCounter<Integer>[] featCountsBySlot;
+  private transient Factor[] factors; // the terms of P(entity | topic), see buildFactors()
   public final int numFeats = TextEntity.TYPE.values().length;
 
   // Model parameters.
@@ -92,8 +104,21 @@ public class GibbsSamplerEntities implements Sampler, Serializable {
   double _bestLikelihood = -Double.MAX_VALUE;
   int _bestLikelihoodStep = 0;
   int currentIteration = -1; // keep track of what iteration the sampler is on
+  int startIteration = 0;    // first iteration to run, after resuming from a checkpoint
   EntityModelInstance _bestModelInstance;
 
+  // Checkpoints: if a path is set, the sampler state is saved every checkpointInterval iterations.
+  String checkpointPath = null;
+  int checkpointInterval = 50;
+  private transient ExecutorService checkpointWriter;
+  private transient Future<?> lastCheckpointWrite;
+
+  // If set, the corpus is kept off the heap in a memory-mapped file in this directory (see MappedEntityCorpus).
+  String corpusDir = null;
+
+  // If set, timings and throughput of each iteration are reported here.
+  transient SamplerMetrics metrics = null;
+
   public GibbsSamplerEntities() {
     this(10, 0, 2, 0);
   }
@@ -124,6 +149,13 @@ public class GibbsSamplerEntities implements Sampler, Serializable {
     _bestModelInstance = new EntityModelInstance();
   }
 
+  /**
+   * Seed the sampler's random number generator, so runs can be repeated.
+   */
+  public void setRandomSeed(long seed) {
+    random = new Random(seed);
+  }
+
   private void printGlobals() {
     System.out.println("\tThetas per Doc: " + thetasInDoc);
     System.out.println("\tInclude Entity Features: " + includeEntityFeatures);
@@ -140,18 +172,32 @@ public class GibbsSamplerEntities implements Sampler, Serializable {
    * Initializes the model with the given document's entities. An entity contains its entity
    * mentions which are simply words and typed dependencies. 
    * @param docEntities A list of entity objects, each entity contains a list of mentions.e
+   *                    It is read twice, first to size the corpus, so the documents can be
+   *                    streamed from disk (see CachedDocuments.documents()).
    */
-  public void initializeModelFromData(List<String> docnames, List<List<TextEntity>> docEntities) {
-    System.out.println("initializeModelFromData (" + docEntities.size() + " docs)");
+  public void initializeModelFromData(List<String> docnames, Iterable<List<TextEntity>> docEntities) {
+    initializeModelFromData(docnames, docEntities, null);
+  }
+
+  /**
+   * @param vocabulary If not null, the words, deps and verbs to index first, in this order,
+   *                   so that several samplers give the same strings the same IDs.
+   *                   See vocabulary().
+   */
+  void initializeModelFromData(List<String> docnames, Iterable<List<TextEntity>> docEntities, List<List<String>> vocabulary) {
+    System.out.println("initializeModelFromData (" + docnames.size() + " docs)");
     printGlobals();
     long startTime = System.currentTimeMillis();
-    int numDocs = docEntities.size();
+    int numDocs = docnames.size();
     this.docNames = docnames;
-    TextEntity.TYPE[] featTypes = TextEntity.TYPE.values();
 
     // debug out
     int counts = 0;
-    for( List<TextEntity> doc : docEntities ) counts += doc.size();
+    int mentionCounts = 0;
+    for( List<TextEntity> doc : docEntities ) {
+      counts += doc.size();
+      mentionCounts += countMentions(doc);
+    }
     System.out.println("initializeModelFromData with " + counts + " entities across all docs.");
     
     // init tCountsByTopic       
@@ -170,279 +216,449 @@ public class GibbsSamplerEntities implements Sampler, Serializable {
     wordIndex   = new HashIndex<String>();
     verbIndex   = new HashIndex<String>();
     depIndex    = new HashIndex<String>();
-    words       = new int[numDocs][][];
-    deps        = new int[numDocs][][];
-    inverseDeps = new int[numDocs][][];
-    verbs       = new int[numDocs][][];
-    feats       = new int[numDocs][][];
+    if( vocabulary != null ) {
+      wordIndex.addAll(vocabulary.get(0));
+      depIndex.addAll(vocabulary.get(1));
+      verbIndex.addAll(vocabulary.get(2));
+    }
+    corpus      = newCorpus(numDocs, counts, mentionCounts);
     zs          = new int[numDocs][];
     topicCounts = new double[numTopics];
     topicCountsByDoc = new int[numDocs][];
+    entityCountsByDoc = new int[numDocs];
+    templateCountsByDoc = (numTemplates > 0 ? new int[numDocs][] : null);
 
     // Initialize zs uniformly at random. Increment all counts based on these.
     int doci = 0;
-    for (List<TextEntity> doc : docEntities) {
-      //      System.out.println("doc " + doc);
-      int numEntities = doc.size();
-      words[doci] = new int[numEntities][];
-      deps[doci]  = new int[numEntities][];
-      inverseDeps[doci]  = new int[numEntities][];
-      if( includeVerbs )
-        verbs[doci] = new int[numEntities][];
-      if( includeEntityFeatures )
-        feats[doci]  = new int[numEntities][];
-      zs[doci]    = new int[numEntities];
-      topicCountsByDoc[doci] = new int[numTopics];
-
-      int entityi = 0;
+    for (List<TextEntity> doc : docEntities)
+      addDocument(doci++, doc);
+    if( doci != numDocs ) {
+      System.out.println("ERROR: " + numDocs + " doc names but " + doci + " docs of entities.");
+      System.exit(1);
+    }
+    corpus.trim();
+    System.out.println("Finished init. wordIndex.size()=" + wordIndex.size() + " depIndex.size()=" + depIndex.size() + " verbIndex.size()=" + verbIndex.size());
+    System.out.println("\tNum total entities = " + numEntitiesInAllDocs);
+
+    setVocabularySmoothing();
+    buildFactors();
+
+    Util.reportElapsedTime(startTime);
+    if( !checkVerbDistributions() ) System.exit(1);
+    if( !checkTopicDistributions() ) System.exit(1);
+  }
+
+  /**
+   * @return An empty corpus with room for the given counts, in a mapped file if corpusDir is set.
+   */
+  EntityCorpus newCorpus(int numDocs, int numEntities, int numMentions) {
+    EntityCorpus newCorpus;
+    if( corpusDir != null ) {
+      newCorpus = new MappedEntityCorpus(corpusDir, includeVerbs, numDocs, numEntities, numMentions);
+      System.out.println("Mapped the corpus to " + ((MappedEntityCorpus)newCorpus).file());
+    }
+    else newCorpus = new EntityCorpus(includeVerbs);
+    newCorpus.reserve(numDocs, numEntities, numMentions);
+    return newCorpus;
+  }
+
+  /**
+   * @return The words, deps and verbs of the given documents, each in the order that
+   *         initializeModelFromData() first sees them.
+   */
+  static List<List<String>> vocabulary(Iterable<List<TextEntity>> docEntities) {
+    Set<String> words = new LinkedHashSet<String>();
+    Set<String> deps = new LinkedHashSet<String>();
+    Set<String> verbs = new LinkedHashSet<String>();
+    for( List<TextEntity> doc : docEntities ) {
       for( TextEntity entity : doc ) {
-        //        System.out.println("\t" + entity.toFullString());
-        words[doci][entityi] = new int[entity.numMentions()];
-        deps[doci][entityi]  = new int[entity.numMentions()];
-        inverseDeps[doci][entityi]  = new int[entity.numMentions()];
-        if( includeVerbs )
-          verbs[doci][entityi]  = new int[entity.numMentions()];
-        if( includeEntityFeatures ) 
-          feats[doci][entityi]  = new int[numFeats];
-        //        System.out.println("adding words doc=" + doci + "\tentity=" + entityi);
-
-        // Choose a topic for this entity.
-        int topic = random.nextInt(numTopics);
-        zs[doci][entityi] = topic;
-        topicCounts[topic]++;
-        topicCountsByDoc[doci][topic]++;
-
-        // Set the features for this entity.
-        if( includeEntityFeatures ) {
-          for( int feati = 0; feati < numFeats; feati++ ) {
-            boolean containsFeat = entity.types.contains(featTypes[feati]);
-            feats[doci][entityi][feati] = (containsFeat ? 1 : 0);
-            if( containsFeat ) 
-              featCountsBySlot[topic].incrementCount(feati);
-          }
+        if( entity.numMentions() > 0 ) words.add(entity.getCoreToken());
+        for( int wi = 0; wi < entity.numMentions(); wi++ ) {
+          String dep = entity.getMentionDependency(wi);
+          verbs.add(dep.substring(dep.indexOf("--")+2));
+          deps.add(dep);
+          String inverseDep = inverseDep(dep);
+          if( inverseDep != null ) deps.add(inverseDep);
         }
+      }
+    }
+    List<List<String>> vocabulary = new ArrayList<List<String>>();
+    vocabulary.add(new ArrayList<String>(words));
+    vocabulary.add(new ArrayList<String>(deps));
+    vocabulary.add(new ArrayList<String>(verbs));
+    return vocabulary;
+  }
 
-        // Count the mentions.
-        //        int wi = 0;
-        for( int wi = 0; wi < entity.numMentions(); wi++ ) {
-          String token = entity.getCoreToken();
-          wordIndex.add(token);
-          int wIndex = wordIndex.indexOf(token);
-          String verb = entity.deps.get(wi);
-          verb = verb.substring(verb.indexOf("--")+2);
-          verbIndex.add(verb);
-          int vIndex = verbIndex.indexOf(verb);
-          String dep = entity.deps.get(wi);
-          String inverseDep = inverseDep(entity.deps.get(wi));
-          if( dep == null ) {
-            System.out.println("ERROR: null deps dep=" + dep + " on entity " + entity);
-            System.exit(-1);
-          }
-          depIndex.add(dep);
-          int dIndex = depIndex.indexOf(dep);
-
-          // If no inverse dep relation, then set it to -1
-          int dinverseIndex = -1;
-          if( inverseDep != null ) {
-            depIndex.add(inverseDep);
-            dinverseIndex = depIndex.indexOf(inverseDep);
+  private static int countMentions(List<TextEntity> doc) {
+    int count = 0;
+    for( TextEntity entity : doc ) count += entity.numMentions();
+    return count;
+  }
+
+  /**
+   * Index one document's entities into the corpus as document doci, choose a random z
+   * for each entity, and add them to the counts. The zs and topicCountsByDoc arrays must
+   * already be long enough.
+   */
+  private void addDocument(int doci, List<TextEntity> doc) {
+    TextEntity.TYPE[] featTypes = TextEntity.TYPE.values();
+    //      System.out.println("doc " + doc);
+    int numEntities = doc.size();
+    corpus.startDocument();
+    zs[doci]    = new int[numEntities];
+    topicCountsByDoc[doci] = new int[numTopics];
+    if( numTemplates > 0 ) templateCountsByDoc[doci] = new int[numTemplates];
+
+    int entityi = 0;
+    for( TextEntity entity : doc ) {
+      //        System.out.println("\t" + entity.toFullString());
+
+      // Choose a topic for this entity.
+      int topic = random.nextInt(numTopics);
+      zs[doci][entityi] = topic;
+      topicCounts[topic]++;
+      topicCountsByDoc[doci][topic]++;
+      entityCountsByDoc[doci]++;
+      if( numTemplates > 0 ) templateCountsByDoc[doci][topic / numTopicsPerTemplate]++;
+
+      // Set the features for this entity.
+      int featMask = 0;
+      if( includeEntityFeatures ) {
+        for( int feati = 0; feati < numFeats; feati++ ) {
+          if( entity.hasType(featTypes[feati]) ) {
+            featMask |= (1 << feati);
+            featCountsBySlot[topic].incrementCount(feati);
           }
+        }
+      }
 
-          words[doci][entityi][wi] = wIndex;
-          deps[doci][entityi][wi] = dIndex;
-          inverseDeps[doci][entityi][wi] = dinverseIndex;
-          if( includeVerbs ) verbs[doci][entityi][wi] = vIndex;
-
-          wCountsBySlot[topic].incrementCount(wIndex);
-          if( includeVerbs ) verbCountsBySlot[topic].incrementCount(vIndex);
-          depCountsBySlot[topic].incrementCount(dIndex);
-          numMentionsInAllDocs++;
-          //          System.out.println("added word " + wIndex + " " + wordIndex.get(wIndex) + " to topic=" + topic + "\tentityi=" + entityi + "\twi=" + wi + "\t\t" + entity);
-          //          wi++;
-        } // entity mentions
-        entityi++;
-        numEntitiesInAllDocs++;
-      } // entities
-      
-      // Check topic counts per doc.
-//    	int sum = 0;
-//      	for( int xx = 0; xx < numTopics; xx++ )
-//      		sum += topicCountsByDoc[doci][xx];
-//      	if( sum != docEntities.size() )
-//      		System.out.println("sum=" + sum + "\tnumentities=" + docEntities.get(doci).size());
-      	
-      //      printDocument(doci);
-      doci++;
-    } // docs
-    System.out.println("Finished init. wordIndex.size()=" + wordIndex.size() + " depIndex.size()=" + depIndex.size() + " verbIndex.size()=" + verbIndex.size());
-    System.out.println("\tNum total entities = " + numEntitiesInAllDocs);
+      // All mentions share the entity's core token, so it is counted once, as WordFactor does.
+      int wIndex = -1;
+      if( entity.numMentions() > 0 ) {
+        String token = entity.getCoreToken();
+        wordIndex.add(token);
+        wIndex = wordIndex.indexOf(token);
+        wCountsBySlot[topic].incrementCount(wIndex);
+      }
+      corpus.addEntity(wIndex, featMask);
+
+      // Count the mentions.
+      for( int wi = 0; wi < entity.numMentions(); wi++ ) {
+        String verb = entity.getMentionDependency(wi);
+        verb = verb.substring(verb.indexOf("--")+2);
+        verbIndex.add(verb);
+        int vIndex = verbIndex.indexOf(verb);
+        String dep = entity.getMentionDependency(wi);
+        String inverseDep = inverseDep(entity.getMentionDependency(wi));
+        if( dep == null ) {
+          System.out.println("ERROR: null deps dep=" + dep + " on entity " + entity);
+          System.exit(-1);
+        }
+        depIndex.add(dep);
+        int dIndex = depIndex.indexOf(dep);
+
+        // If no inverse dep relation, then set it to -1
+        int dinverseIndex = -1;
+        if( inverseDep != null ) {
+          depIndex.add(inverseDep);
+          dinverseIndex = depIndex.indexOf(inverseDep);
+        }
+
+        corpus.addMention(dIndex, dinverseIndex, vIndex);
+
+        if( includeVerbs ) verbCountsBySlot[topic].incrementCount(vIndex);
+        depCountsBySlot[topic].incrementCount(dIndex);
+        numMentionsInAllDocs++;
+        //          System.out.println("added word " + wIndex + " " + wordIndex.get(wIndex) + " to topic=" + topic + "\tentityi=" + entityi + "\twi=" + wi + "\t\t" + entity);
+      } // entity mentions
+      entityi++;
+      numEntitiesInAllDocs++;
+    } // entities
+    //      printDocument(doci);
+  }
+
+  /**
+   * Compute entityCountsByDoc and templateCountsByDoc from topicCountsByDoc, for models that
+   * were saved before these totals were kept.
+   */
+  private void countDocTotals() {
+    entityCountsByDoc = new int[topicCountsByDoc.length];
+    if( numTemplates > 0 ) templateCountsByDoc = new int[topicCountsByDoc.length][numTemplates];
+    for( int doci = 0; doci < topicCountsByDoc.length; doci++ ) {
+      for( int topic = 0; topic < numTopics; topic++ ) {
+        entityCountsByDoc[doci] += topicCountsByDoc[doci][topic];
+        if( numTemplates > 0 ) templateCountsByDoc[doci][topic / numTopicsPerTemplate] += topicCountsByDoc[doci][topic];
+      }
+    }
+  }
 
+  /**
+   * The smoothing sums depend on the vocabulary sizes, so reset them when the indexes grow.
+   */
+  private void setVocabularySmoothing() {
     wSmoothingTimesNumW = wSmoothing * (double)wordIndex.size();
     depSmoothingTimesNumDeps = depSmoothing * (double)depIndex.size();
     verbSmoothingTimesNumVerbs = verbSmoothing * (double)verbIndex.size();
+  }
 
-    Util.reportElapsedTime(startTime);
-    if( !checkVerbDistributions() ) System.exit(1);
-    if( !checkTopicDistributions() ) System.exit(1);
+  /**
+   * Choose the factors of P(entity | topic) from the model settings. Called when the model is
+   * initialized or loaded, and again before sampling in case a setting changed since.
+   */
+  private void buildFactors() {
+    List<Factor> list = new ArrayList<Factor>();
+    if( !thetasInDoc )          list.add(new TopicFactor());
+    else if( numTemplates > 0 ) list.add(new TemplateTopicFactor());
+    else                        list.add(new DocTopicFactor());
+    list.add(new WordFactor());
+    if( includeEntityFeatures ) list.add(new FeatFactor());
+    list.add(new DepFactor());
+    if( includeVerbs ) list.add(new VerbFactor());
+    factors = list.toArray(new Factor[list.size()]);
   }
 
   /**
-   * @return A probability distribution, not in log-space.
+   * One factor of an entity's probability under each topic. getTopicDistribution() adds up
+   * the log factors, and unlabel()/relabel() tell every factor when an entity leaves or joins
+   * a topic, so it can keep the counts it is estimated from up to date.
+   *
+   * A factor scores all topics in one call, so its loop over the topics stays tight and it
+   * can share work between topics (e.g., the verb counts of a template).
    */
-  public double[] getTopicDistribution(int doc, int entityPosition) {
-    int[] mentionTokens = words[doc][entityPosition];
-    int[] mentionVerbs  = (includeVerbs ? verbs[doc][entityPosition] : null);
-    int[] mentionDeps   = deps[doc][entityPosition];
-    int[] mentionInverseDeps = inverseDeps[doc][entityPosition];
-    int[] features      = (includeEntityFeatures ? feats[doc][entityPosition] : null);
-    int numMentions = mentionTokens.length;
-    
-    double[] probs = new double[numTopics];
-    for (int topic = 0; topic < numTopics; topic++) {
+  private abstract class Factor {
+    /** Add the log of this factor for the entity to logProbs[topic], for every topic. */
+    abstract void addLogProbs(int doc, int entity, double[] logProbs);
+    abstract void remove(int doc, int entity, int topic);
+    abstract void add(int doc, int entity, int topic);
+  }
 
-      // Probability of topic in this specific document.
-      double probOfTopic = (thetasInDoc ? probOfTopicGivenDoc(topic, doc) : probOfTopic(topic));
+  /**
+   * P(topic) from one global distribution. Also keeps the global and per-document topic
+   * counts, for all three topic priors.
+   */
+  private class TopicFactor extends Factor {
+    void addLogProbs(int doc, int entity, double[] logProbs) {
+      for( int topic = 0; topic < numTopics; topic++ )
+        logProbs[topic] += Math.log(probOfTopic(topic));
+    }
 
-      // This assumes all mentions use the same core entity token.
-      double probOfWGivenTopic = (wCountsBySlot[topic].getCount(mentionTokens[0]) + wSmoothing) / (wCountsBySlot[topic].totalCount() + wSmoothingTimesNumW);
-      probs[topic] = Math.log(probOfTopic * probOfWGivenTopic);
+    void remove(int doc, int entity, int topic) {
+      topicCounts[topic]--;
+      topicCountsByDoc[doc][topic]--;
+      entityCountsByDoc[doc]--;
+      if( numTemplates > 0 ) templateCountsByDoc[doc][topic / numTopicsPerTemplate]--;
+    }
 
-      // Entity features.
-      if( includeEntityFeatures ) {
+    void add(int doc, int entity, int topic) {
+      topicCounts[topic]++;
+      topicCountsByDoc[doc][topic]++;
+      entityCountsByDoc[doc]++;
+      if( numTemplates > 0 ) templateCountsByDoc[doc][topic / numTopicsPerTemplate]++;
+    }
+  }
+
+  /** P(topic | doc), a topic distribution per document. */
+  private class DocTopicFactor extends TopicFactor {
+    void addLogProbs(int doc, int entity, double[] logProbs) {
+      for( int topic = 0; topic < numTopics; topic++ )
+        logProbs[topic] += Math.log(probOfTopicGivenDocTotals(topic, topicCountsByDoc[doc][topic], entityCountsByDoc[doc]));
+    }
+  }
+
+  /** P(topic | template) * P(template | doc), in the nested template model. */
+  private class TemplateTopicFactor extends TopicFactor {
+    void addLogProbs(int doc, int entity, double[] logProbs) {
+      for( int topic = 0; topic < numTopics; topic++ )
+        logProbs[topic] += Math.log(probOfTemplateTopicGivenDoc(topic, doc));
+    }
+  }
+
+  /** P(w | topic) of the entity's core token. All mentions share it, so it counts once. */
+  private class WordFactor extends Factor {
+    void addLogProbs(int doc, int entity, double[] logProbs) {
+      int wordID = corpus.word(entity);
+      for( int topic = 0; topic < numTopics; topic++ )
+        logProbs[topic] += Math.log((wCountsBySlot[topic].getCount(wordID) + wSmoothing) / (wCountsBySlot[topic].totalCount() + wSmoothingTimesNumW));
+    }
+
+    void remove(int doc, int entity, int topic) {
+      int wordID = corpus.word(entity);
+      if( wordID < 0 ) return; // no mentions
+      wCountsBySlot[topic].decrementCount(wordID);
+      if (SloppyMath.isCloseTo(wCountsBySlot[topic].getCount(wordID), 0.0))
+        wCountsBySlot[topic].remove(wordID);
+    }
+
+    void add(int doc, int entity, int topic) {
+      int wordID = corpus.word(entity);
+      if( wordID >= 0 ) wCountsBySlot[topic].incrementCount(wordID);
+    }
+  }
+
+  /** P(feat | topic) of each of the entity's types (person, location, etc.). */
+  private class FeatFactor extends Factor {
+    void addLogProbs(int doc, int entity, double[] logProbs) {
+      if( corpus.featMask(entity) == 0 ) return;
+      for( int topic = 0; topic < numTopics; topic++ ) {
+        double total = featCountsBySlot[topic].totalCount() + featSmoothingTimesNumFeats;
         for( int feat = 0; feat < numFeats; feat++ ) {
-          double sumprobs = 0.0;
-          int numOn = 0;
-          if( features[feat] == 1) {
-            sumprobs += (featCountsBySlot[topic].getCount(feat) + featSmoothing) / (featCountsBySlot[topic].totalCount() + featSmoothingTimesNumFeats);
-            numOn++;
-          }
-          if( numOn > 0 ) // same as interpolating with uniform lambda weights on each probability
-            probs[topic] += Math.log(sumprobs / numOn);
+          if( corpus.hasFeat(entity, feat) )
+            logProbs[topic] += Math.log((featCountsBySlot[topic].getCount(feat) + featSmoothing) / total);
         }
       }
+    }
 
-      // Loop over the mentions for this entity.
-      for( int mention = 0; mention < numMentions; mention++ ) {
-        //        double probOfDepGivenTopic = Math.log(depCountsBySlot[topic].getCount(mentionDeps[mention]) + depSmoothing) - Math.log(depCountsBySlot[topic].totalCount() + depSmoothingTimesNumDeps);
+    void remove(int doc, int entity, int topic) {
+      for( int feat = 0; feat < numFeats; feat++ ) {
+        if( corpus.hasFeat(entity, feat) )
+          featCountsBySlot[topic].decrementCount(feat);
+      }
+    }
 
-        // Divide is faster than logarithm
-        double probOfDepGivenTopic = (depCountsBySlot[topic].getCount(mentionDeps[mention]) + depSmoothing) / (depCountsBySlot[topic].totalCount() + depSmoothingTimesNumDeps);
+    void add(int doc, int entity, int topic) {
+      for( int feat = 0; feat < numFeats; feat++ ) {
+        if( corpus.hasFeat(entity, feat) )
+          featCountsBySlot[topic].incrementCount(feat);
+      }
+    }
+  }
 
-        // Penalty if the nsubj is much higher than the dobj in this topic.
-        if( constrainInverseDeps && inverseDeps != null && currentIteration > 50 ) {
-          // Only nsubj and dobj have inverses, so things like prep_in are null (value -1 in the array).
-          if( mentionInverseDeps[mention] >= 0 ) {
-            double probOfInverseDepGivenTopic = (depCountsBySlot[topic].getCount(mentionInverseDeps[mention]) + depSmoothing) / (depCountsBySlot[topic].totalCount() + depSmoothingTimesNumDeps);
-            if( probOfInverseDepGivenTopic > probOfDepGivenTopic+0.03 ) {
-              //            System.out.printf("Higher topic %d, %s: %.4f\t%.4f\n", topic, depIndex.get(mentionDeps[mention]), probOfInverseDepGivenTopic, probOfDepGivenTopic);
+  /**
+   * P(d | topic) of each mention's dependency. With constrainInverseDeps, after the first 50
+   * iterations a mention's dependency gets a tiny probability in topics where its inverse
+   * (nsubj for dobj and the reverse) is much more likely, so a role doesn't mix subjects
+   * and objects of the same verb.
+   */
+  private class DepFactor extends Factor {
+    void addLogProbs(int doc, int entity, double[] logProbs) {
+      boolean constrain = constrainInverseDeps && currentIteration > 50;
+      for( int mention = corpus.firstMention(entity); mention < corpus.endMention(entity); mention++ ) {
+        int depID = corpus.dep(mention);
+        // Only nsubj and dobj have inverses, so things like prep_in are null (value -1 in the array).
+        int inverseDep = (constrain ? corpus.inverseDep(mention) : -1);
+        for( int topic = 0; topic < numTopics; topic++ ) {
+          // Divide is faster than logarithm
+          double total = depCountsBySlot[topic].totalCount() + depSmoothingTimesNumDeps;
+          double probOfDepGivenTopic = (depCountsBySlot[topic].getCount(depID) + depSmoothing) / total;
+
+          // Penalty if the nsubj is much higher than the dobj in this topic.
+          if( inverseDep >= 0 ) {
+            double probOfInverseDepGivenTopic = (depCountsBySlot[topic].getCount(inverseDep) + depSmoothing) / total;
+            if( probOfInverseDepGivenTopic > probOfDepGivenTopic+0.03 )
               probOfDepGivenTopic = .0001;
-            }
           }
+          logProbs[topic] += Math.log(probOfDepGivenTopic);
         }
+      }
+    }
 
-        probOfDepGivenTopic = Math.log(probOfDepGivenTopic);
-
-        //        System.out.printf("  %s dep  count %.1f total dep count %.1f, depsmoothing=%.1f, deptotalsmoothing=%.1f\n", 
-        //            dep, depCountsBySlot[topic].getCount(mentionDeps[mention]), depCountsBySlot[topic].totalCount(), depSmoothing, depSmoothingTimesNumDeps);
-        //        System.out.printf("  %s word count %.1f total word count %.1f, wsmoothing=%.1f, wtotalsmoothing=%.1f\n", 
-        //            word, wCountsBySlot[topic].getCount(mentionTokens[mention]), wCountsBySlot[topic].totalCount(), wSmoothing, wSmoothingTimesNumW);
-        probs[topic] += probOfDepGivenTopic;
+    void remove(int doc, int entity, int topic) {
+      for( int mention = corpus.firstMention(entity); mention < corpus.endMention(entity); mention++ ) {
+        int depID = corpus.dep(mention);
+        depCountsBySlot[topic].decrementCount(depID);
+        if (SloppyMath.isCloseTo(depCountsBySlot[topic].getCount(depID), 0.0))
+          depCountsBySlot[topic].remove(depID);
+      }
+    }
 
+    void add(int doc, int entity, int topic) {
+      for( int mention = corpus.firstMention(entity); mention < corpus.endMention(entity); mention++ )
+        depCountsBySlot[topic].incrementCount(corpus.dep(mention));
+    }
+  }
 
-        if( includeVerbs ) {
-          double probOfVerbGivenTopic = probOfVerbGivenTopic(mentionVerbs[mention], topic);
-          probs[topic] += Math.log(probOfVerbGivenTopic);
-//          System.out.printf("v=%s\tt=%d\tp=%.4f\n", verbIndex.get(mentionVerbs[mention]), topic, probOfVerbGivenTopic);
+  /**
+   * P(v | topic) of each mention's verb. In the nested model the verb distribution is shared
+   * by all topics of a template, so it is computed once per template.
+   */
+  private class VerbFactor extends Factor {
+    void addLogProbs(int doc, int entity, double[] logProbs) {
+      for( int mention = corpus.firstMention(entity); mention < corpus.endMention(entity); mention++ ) {
+        int verbID = corpus.verb(mention);
+        if( numTemplates > 0 ) {
+          for( int start = 0; start < numTopics; start += numTopicsPerTemplate ) {
+            double logProb = Math.log(probOfVerbGivenNestedTopic(verbID, start));
+            for( int topic = start; topic < start + numTopicsPerTemplate; topic++ )
+              logProbs[topic] += logProb;
+          }
         }
+        else {
+          for( int topic = 0; topic < numTopics; topic++ )
+            logProbs[topic] += Math.log((verbCountsBySlot[topic].getCount(verbID) + verbSmoothing) / (verbCountsBySlot[topic].totalCount() + verbSmoothingTimesNumVerbs));
+        }
+      }
+    }
 
-
-        // DEBUGGING OUTPUT
-        //        System.out.printf("P(slot=%d)= %.5f * P(%s|slot=%d)= %.5f(%.5f) * P(%s|slot=%d)= %.5f(%.5f) \t= %.5f(%.9f)\n", 
-        //            topic, probOfTopic, word, topic, Math.exp(probOfWGivenTopic), probOfWGivenTopic, dep, topic, Math.exp(probOfDepGivenTopic), probOfDepGivenTopic, probs[topic], Math.exp(probs[topic]));
+    void remove(int doc, int entity, int topic) {
+      for( int mention = corpus.firstMention(entity); mention < corpus.endMention(entity); mention++ ) {
+        int verbID = corpus.verb(mention);
+        verbCountsBySlot[topic].decrementCount(verbID);
+        if (SloppyMath.isCloseTo(verbCountsBySlot[topic].getCount(verbID), 0.0))
+          verbCountsBySlot[topic].remove(verbID);
       }
     }
 
-    ArrayMath.logNormalize(probs);
-    ArrayMath.expInPlace(probs);
+    void add(int doc, int entity, int topic) {
+      for( int mention = corpus.firstMention(entity); mention < corpus.endMention(entity); mention++ )
+        verbCountsBySlot[topic].incrementCount(corpus.verb(mention));
+    }
+  }
+
+  /**
+   * Stop with an error if the model has no corpus. Models saved before the corpus was kept,
+   * models from a distributed run, and models whose training data was dropped can label new
+   * documents with Inference, but can't be sampled.
+   */
+  private void requireCorpus(String what) {
+    if( corpus == null ) {
+      System.out.println("ERROR: this model has no corpus, so it can't " + what + ". Retrain the model, or use fold-in inference instead.");
+      System.exit(1);
+    }
+  }
+
+  /**
+   * @return A probability distribution, not in log-space.
+   */
+  public double[] getTopicDistribution(int doc, int entityPosition) {
+    if( factors == null || corpus == null ) {
+      requireCorpus("score its training entities");
+      buildFactors();
+    }
+    int entity = corpus.entity(doc, entityPosition);
 
-    //      ArrayMath.normalize(probs);
-    //    System.out.println("Returning probs: " + Arrays.toString(probs));
+    double[] probs = new double[numTopics];
+    for( Factor factor : factors )
+      factor.addLogProbs(doc, entity, probs);
 
+    ArrayMath.logNormalize(probs);
+    ArrayMath.expInPlace(probs);
     return probs;
   }
 
   public void unlabel(int doci, int entityi) {
-    int[] mentionWords = words[doci][entityi];
-    int[] mentionVerbs = (includeVerbs ? verbs[doci][entityi] : null);
-    int[] mentionDeps  = deps[doci][entityi];
-    int numMentions = mentionWords.length;
-    int wordID = mentionWords[0];
+    if( factors == null || corpus == null ) {
+      requireCorpus("relabel its training entities");
+      buildFactors();
+    }
+    int entity = corpus.entity(doci, entityi);
 
     // Remove old counts of the current z.
     int oldZ = zs[doci][entityi];
-    topicCounts[oldZ]--;
-    topicCountsByDoc[doci][oldZ]--;
-
-    wCountsBySlot[oldZ].decrementCount(wordID);
-    if (SloppyMath.isCloseTo(wCountsBySlot[oldZ].getCount(wordID), 0.0))
-    	wCountsBySlot[oldZ].remove(wordID);
-
-    for (int mention = 0; mention < numMentions; mention++) {
-    	int depID = mentionDeps[mention];
-
-    	depCountsBySlot[oldZ].decrementCount(depID);
-    	if (SloppyMath.isCloseTo(depCountsBySlot[oldZ].getCount(depID), 0.0))
-    		depCountsBySlot[oldZ].remove(depID);
-
-    	if( includeVerbs ) {
-    		int verbID = mentionVerbs[mention];
-    		verbCountsBySlot[oldZ].decrementCount(verbID);
-    		if (SloppyMath.isCloseTo(verbCountsBySlot[oldZ].getCount(verbID), 0.0))
-    			verbCountsBySlot[oldZ].remove(verbID);
-    	}
-    	//            System.out.println("subtracted " + wordID + " " + wordIndex.get(wordID) + " from z=" + oldZ);
-    }
-
-    if( includeEntityFeatures ) {
-    	for( int feat = 0; feat < numFeats; feat++ ) {
-    		if( feats[doci][entityi][feat] == 1 )
-    			featCountsBySlot[oldZ].decrementCount(feat);
-    	}
-    }
+    for( Factor factor : factors )
+      factor.remove(doci, entity, oldZ);
   }
 
   public void relabel(int doci, int entityi, int newZ) {
-  	int[] mentionWords = words[doci][entityi];
-  	int[] mentionVerbs = (includeVerbs ? verbs[doci][entityi] : null);
-  	int[] mentionDeps  = deps[doci][entityi];
-  	int numMentions = mentionWords.length;
-  	int wordID  = words[doci][entityi][0];
-
-  	// Update counts with new sampled z value.
-  	zs[doci][entityi] = newZ;
-  	topicCounts[newZ]++;
-  	topicCountsByDoc[doci][newZ]++;
-
-  	wCountsBySlot[newZ].incrementCount(wordID);
-  	for (int mention = 0; mention < numMentions; mention++) {
-  		//          int wordID = mentionWords[mention];
-  		int depID = mentionDeps[mention];
-  		depCountsBySlot[newZ].incrementCount(depID);            
-
-  		if( includeVerbs ) {
-  			int verbID = mentionVerbs[mention];
-  			verbCountsBySlot[newZ].incrementCount(verbID);            
-  		}
-  	}
+    if( factors == null || corpus == null ) {
+      requireCorpus("relabel its training entities");
+      buildFactors();
+    }
+    int entity = corpus.entity(doci, entityi);
 
-  	if( includeEntityFeatures ) {
-  		for( int feat = 0; feat < numFeats; feat++ ) {
-  			if( feats[doci][entityi][feat] == 1 )
-  				featCountsBySlot[newZ].incrementCount(feat);
-  		}
-  	}
-  	
-//    System.out.println("RELABELED doci=" + doci + " entityi=" + entityi);
+    // Update counts with new sampled z value.
+    zs[doci][entityi] = newZ;
+    for( Factor factor : factors )
+      factor.add(doci, entity, newZ);
   }
 
   /**
@@ -459,13 +675,20 @@ public class GibbsSamplerEntities implements Sampler, Serializable {
     // should act like one entity is missing each time. I add this entity back in
     // at the end of this function.
     numEntitiesInAllDocs--; 
+    buildFactors();
 
-    for (int iter = 0; iter < numIterations; iter++) {
+    for (int iter = startIteration; iter < numIterations; iter++) {
       System.err.println("Iteration: "+iter);
       currentIteration = iter;
+      if( metrics != null ) metrics.startIteration(iter);
+
+      if( checkpointPath != null && iter > startIteration && iter % checkpointInterval == 0 )
+        checkpoint(iter);
 
-      if( iter % 15 == 14 && stoppingCriterionLikelihoodMet(iter) )
+      if( iter % 15 == 14 && stoppingCriterionLikelihoodMet(iter) ) {
+        if( metrics != null ) metrics.endIteration();
         break;      
+      }
       if( iter % 15 == 14 ) {
       	numEntitiesInAllDocs++;
       	if( !checkVerbDistributions() || !checkTopicDistributions() || !checkFeatCountsBySlot() )
@@ -473,31 +696,16 @@ public class GibbsSamplerEntities implements Sampler, Serializable {
       	numEntitiesInAllDocs--;
       }
 
-      for (int doc = 0; doc < words.length; doc++) {
-        for (int entity = 0; entity < words[doc].length; entity++) {
-          //          System.out.println("doc=" + doc + "\tentity=" + entity);
-
-        	unlabel(doc,entity);
-        	
-          // Sample a new z.
-          double[] probs = getTopicDistribution(doc, entity);
-          int newZ = ArrayMath.sampleFromDistribution(probs);
-          //          int newZ = random.nextInt(numTopics);
-
-          // DEBUG
-          //          for( int pp = 0; pp < probs.length; pp++ ) System.out.printf(" %.3f", probs[pp]);
-          //          System.out.print(" oldz=" + oldZ + " newz=" + newZ);
-          //          System.out.println();
-
-          relabel(doc, entity, newZ);
-        }
-      }
+      for (int doc = 0; doc < zs.length; doc++)
+        sampleDocument(doc);
+      if( metrics != null ) metrics.endIteration();
       
 //      if( iter % 15 == 0)
 //        printWordDistributionsPerTopic();
     }
 
     numEntitiesInAllDocs++;
+    finishCheckpoints();
     //    System.out.println("Checking data structures result = " + checkDataStructures());
 
     // Final print.
@@ -509,11 +717,234 @@ public class GibbsSamplerEntities implements Sampler, Serializable {
     loadBestModelInstance(_bestModelInstance);
   }
   
+  /**
+   * Sample new z values for all entities in one document.
+   * Assumes numEntitiesInAllDocs has been decremented, as runSampler() does.
+   */
+  private void sampleDocument(int doc) {
+    for (int entity = 0; entity < zs[doc].length; entity++) {
+      //          System.out.println("doc=" + doc + "\tentity=" + entity);
+
+      int oldZ = zs[doc][entity];
+      long start = (metrics == null ? 0 : System.nanoTime());
+      unlabel(doc,entity);
+      long unlabeled = (metrics == null ? 0 : System.nanoTime());
+
+      // Sample a new z.
+      double[] probs = getTopicDistribution(doc, entity);
+      int newZ = ArrayMath.sampleFromDistribution(probs, random);
+      long sampled = (metrics == null ? 0 : System.nanoTime());
+      //          int newZ = random.nextInt(numTopics);
+
+      // DEBUG
+      //          for( int pp = 0; pp < probs.length; pp++ ) System.out.printf(" %.3f", probs[pp]);
+      //          System.out.print(" oldz=" + oldZ + " newz=" + newZ);
+      //          System.out.println();
+
+      relabel(doc, entity, newZ);
+
+      if( metrics != null ) {
+        metrics.addRelabelNanos((unlabeled - start) + (System.nanoTime() - sampled));
+        metrics.addTopicDistributionNanos(sampled - unlabeled);
+        metrics.entitySampled(corpus.numMentions(corpus.entity(doc, entity)), newZ != oldZ);
+      }
+    }
+  }
+
+  /**
+   * Sample this sampler's documents for a number of iterations, as one worker of a distributed
+   * sampler (see SamplerWorker). Unlike runSampler() there are no checkpoints, no stopping
+   * criterion and no best instance, since the likelihood of one shard says little about the
+   * whole model.
+   * @param firstIteration The iteration number across the whole run, for the settings that
+   *                       change with it.
+   */
+  void sampleShard(int firstIteration, int numIterations) {
+    numEntitiesInAllDocs--;
+    buildFactors();
+    for( int iter = firstIteration; iter < firstIteration + numIterations; iter++ ) {
+      System.err.println("Iteration: " + iter);
+      currentIteration = iter;
+      if( metrics != null ) metrics.startIteration(iter);
+      for( int doc = 0; doc < zs.length; doc++ )
+        sampleDocument(doc);
+      if( metrics != null ) metrics.endIteration();
+    }
+    numEntitiesInAllDocs++;
+  }
+
+  /**
+   * @return The count tables that are summed over all documents, and so are shared by the
+   *         workers of a distributed sampler: topic, word, verb, dep and feature counts.
+   *         These are the sampler's own tables, not copies.
+   */
+  double[] sharedTopicCounts() { return topicCounts; }
+  ClassicCounter<Integer>[][] sharedCounts() {
+    ClassicCounter<Integer>[][] tables = newCountTables(4, 0);
+    tables[0] = wCountsBySlot;
+    tables[1] = verbCountsBySlot;
+    tables[2] = depCountsBySlot;
+    tables[3] = featCountsBySlot;
+    return tables;
+  }
+
+  /**
+   * @return A [table][topic] array of count tables, with null counters. Java can't create an
+   *         array of a generic type, so this is the one place that makes it raw.
+   */
+  @SuppressWarnings({"rawtypes","unchecked"})
+  static ClassicCounter<Integer>[][] newCountTables(int numTables, int numTopics) {
+    return new ClassicCounter[numTables][numTopics];
+  }
+  int numEntitiesInAllDocs() { return numEntitiesInAllDocs; }
+  int numMentionsInAllDocs() { return numMentionsInAllDocs; }
+  EntityCorpus corpus() { return corpus; }
+
+  /**
+   * Replace the shared count tables with ones summed over all workers. The per-document
+   * counts and zs are unchanged.
+   * @param counts The word, verb, dep and feature tables, in the order of sharedCounts().
+   * @param numEntities The number of entities in all workers' documents.
+   * @param numMentions The number of mentions in all workers' documents.
+   */
+  void setSharedCounts(double[] topicCounts, ClassicCounter<Integer>[][] counts, int numEntities, int numMentions) {
+    this.topicCounts = topicCounts;
+    wCountsBySlot = counts[0];
+    verbCountsBySlot = counts[1];
+    depCountsBySlot = counts[2];
+    featCountsBySlot = counts[3];
+    numEntitiesInAllDocs = numEntities;
+    numMentionsInAllDocs = numMentions;
+  }
+
+  /**
+   * Build the trained model of a distributed run from the merged count tables, and every
+   * worker's documents and zs. The tables must be the counts of the zs over the corpus.
+   * @param vocabulary The words, deps and verbs, in ID order.
+   * @param corpus Every worker's documents, in the order of docnames (see newCorpus()).
+   */
+  void initializeFromShards(List<List<String>> vocabulary, double[] topicCounts, ClassicCounter<Integer>[][] counts,
+      List<String> docnames, int[][] zs, EntityCorpus corpus) {
+    wordIndex = new HashIndex<String>();
+    depIndex = new HashIndex<String>();
+    verbIndex = new HashIndex<String>();
+    wordIndex.addAll(vocabulary.get(0));
+    depIndex.addAll(vocabulary.get(1));
+    verbIndex.addAll(vocabulary.get(2));
+    corpus.trim();
+    setSharedCounts(topicCounts, counts, corpus.numEntities(), corpus.numMentions());
+    docNames = docnames;
+    this.corpus = corpus;
+    this.zs = zs;
+    topicCountsByDoc = new int[zs.length][numTopics];
+    for( int doci = 0; doci < zs.length; doci++ )
+      for( int z : zs[doci] ) topicCountsByDoc[doci][z]++;
+    countDocTotals();
+    setVocabularySmoothing();
+    buildFactors();
+    System.out.println("Built the model from " + zs.length + " docs. wordIndex.size()=" + wordIndex.size() + " depIndex.size()=" + depIndex.size() + " verbIndex.size()=" + verbIndex.size());
+    if( !checkVerbDistributions() ) System.exit(1);
+    if( !checkTopicDistributions() ) System.exit(1);
+    if( !checkDataStructures() ) System.exit(1);
+  }
+
+  /**
+   * Free what only training uses: the corpus, the zs, the per-document counts and the best
+   * instance. Inference only reads the count tables, so a model loaded just to label new
+   * documents doesn't need these. The model can't be sampled or updated afterwards.
+   */
+  public void dropTrainingData() {
+    corpus = null;
+    zs = new int[0][];
+    topicCountsByDoc = new int[0][];
+    entityCountsByDoc = new int[0];
+    templateCountsByDoc = (numTemplates > 0 ? new int[0][] : null);
+    docNames = new ArrayList<String>();
+    _bestModelInstance = null;
+  }
+
+  /**
+   * Add new documents to an already trained sampler, and sample only them. The indexes and
+   * count tables grow to include the new documents, and the existing documents keep their
+   * z assignments. The cost depends on the new data, not on the size of the whole corpus.
+   *
+   * Rejuvenation: on each sweep, the entities in this many randomly chosen old documents are
+   * also resampled, so old assignments can adjust to the new data.
+   *
+   * The saved best model instance is reset, since it no longer matches the data.
+   *
+   * @param newNames The names of the new documents.
+   * @param newDocs The entities of the new documents.
+   * @param numIterations The number of sweeps over the new documents.
+   * @param numRejuvenateDocs The number of old documents to also resample on each sweep.
+   */
+  public void addDocuments(List<String> newNames, List<List<TextEntity>> newDocs, int numIterations, int numRejuvenateDocs) {
+    requireCorpus("have documents added to it");
+    int numOldDocs = zs.length;
+    int numDocs = numOldDocs + newDocs.size();
+    System.out.println("addDocuments: adding " + newDocs.size() + " docs to " + numOldDocs + " existing docs.");
+    long startTime = System.currentTimeMillis();
+
+    List<String> names = new ArrayList<String>(numDocs);
+    names.addAll(docNames);
+    names.addAll(newNames);
+    docNames = names;
+
+    zs          = Arrays.copyOf(zs, numDocs);
+    topicCountsByDoc = Arrays.copyOf(topicCountsByDoc, numDocs);
+    entityCountsByDoc = Arrays.copyOf(entityCountsByDoc, numDocs);
+    if( numTemplates > 0 ) templateCountsByDoc = Arrays.copyOf(templateCountsByDoc, numDocs);
+
+    int newEntities = 0, newMentions = 0;
+    for( List<TextEntity> doc : newDocs ) {
+      newEntities += doc.size();
+      newMentions += countMentions(doc);
+    }
+    if( corpusDir != null && !(corpus instanceof MappedEntityCorpus) ) {
+      // A loaded model has its corpus on the heap, so move it to the mapped file.
+      EntityCorpus mapped = newCorpus(corpus.numDocs() + newDocs.size(), corpus.numEntities() + newEntities, corpus.numMentions() + newMentions);
+      mapped.addAll(corpus);
+      corpus = mapped;
+    }
+    else corpus.reserve(newDocs.size(), newEntities, newMentions);
+
+    int doci = numOldDocs;
+    for( List<TextEntity> doc : newDocs )
+      addDocument(doci++, doc);
+    corpus.trim();
+    setVocabularySmoothing();
+    System.out.println("addDocuments: wordIndex.size()=" + wordIndex.size() + " depIndex.size()=" + depIndex.size() + " verbIndex.size()=" + verbIndex.size());
+
+    numEntitiesInAllDocs--;
+    for( int iter = 0; iter < numIterations; iter++ ) {
+      System.err.println("Update iteration: " + iter);
+      if( metrics != null ) metrics.startIteration(iter);
+      for( int doc = numOldDocs; doc < numDocs; doc++ )
+        sampleDocument(doc);
+      for( int xx = 0; xx < numRejuvenateDocs && numOldDocs > 0; xx++ )
+        sampleDocument(random.nextInt(numOldDocs));
+      if( metrics != null ) metrics.endIteration();
+    }
+    numEntitiesInAllDocs++;
+
+    _lastLikelihood = -Double.MAX_VALUE;
+    _lastLikelihoodDelta = -Double.MAX_VALUE;
+    _bestLikelihood = -Double.MAX_VALUE;
+    _bestLikelihoodStep = 0;
+    _bestModelInstance = new EntityModelInstance();
+
+    Util.reportElapsedTime(startTime);
+    if( !checkVerbDistributions() ) System.exit(1);
+    if( !checkTopicDistributions() ) System.exit(1);
+  }
+
   /**
    * Compute likelihood of the data to determine stopping point.
    */
   public boolean stoppingCriterionLikelihoodMet(int currentStep) {
+    long start = System.nanoTime();
     double like = computeDataLikelihood();
+    if( metrics != null ) metrics.addLikelihoodCheckNanos(System.nanoTime() - start);
     double change = _lastLikelihood - like;
   
     if( Math.abs(change) > 999999 )
@@ -539,7 +970,9 @@ public class GibbsSamplerEntities implements Sampler, Serializable {
     	System.out.println("** New best!");
       _bestLikelihood = like;
       _bestLikelihoodStep = currentStep;
-      _bestModelInstance.storeAll(zs, topicCounts, topicCountsByDoc, wCountsBySlot, verbCountsBySlot, depCountsBySlot, featCountsBySlot);
+      start = System.nanoTime();
+      _bestModelInstance.storeZs(zs);
+      if( metrics != null ) metrics.addSnapshotNanos(System.nanoTime() - start);
       _bestModelInstance.likelihood = like;
       _bestModelInstance.samplingStep = currentStep;
     }
@@ -551,23 +984,161 @@ public class GibbsSamplerEntities implements Sampler, Serializable {
 
   /**
    * Move the saved best sampling instance (by likelihood) into memory. Overwrite the current sampler's
-   * z assignments and use the best model's counts/assignments.
+   * z assignments with the best model's, and rebuild the counts from them. The rebuilt model should
+   * have the likelihood that was recorded for the instance, and a warning is printed if not.
    */
   public void loadBestModelInstance(EntityModelInstance best) {
+    if( !best.hasZs() ) {
+      System.out.println("No best sampled instance was saved, keeping the current one.");
+      return;
+    }
   	System.out.println("Reloading best sampled instance...");
 
   	for( int xx = 0; xx < best.zs.length; xx++ )
-      this.zs[xx] = Arrays.copyOf(best.zs[xx], best.zs[xx].length);
-    
-    this.topicCounts = Arrays.copyOf(best.topicCounts, best.topicCounts.length);
-    
-    for( int xx = 0; xx < best.topicCountsByDoc.length; xx++ )
-      this.topicCountsByDoc[xx] = Arrays.copyOf(best.topicCountsByDoc[xx], best.topicCountsByDoc[xx].length);
-    
-    this.wCountsBySlot    = best.cloneCounter(best.wCountsBySlot);
-    this.verbCountsBySlot = best.cloneCounter(best.verbCountsBySlot);
-    this.depCountsBySlot  = best.cloneCounter(best.depCountsBySlot);
-    this.featCountsBySlot = best.cloneCounter(best.featCountsBySlot);
+      System.arraycopy(best.zs[xx], 0, this.zs[xx], 0, best.zs[xx].length);
+    recountFromZs();
+
+    // The best likelihood was computed inside runSampler(), with one entity left out of
+    // numEntitiesInAllDocs and the settings of that iteration, so recompute it the same way.
+    int iteration = currentIteration;
+    currentIteration = best.samplingStep;
+    numEntitiesInAllDocs--;
+    double like = computeDataLikelihood();
+    numEntitiesInAllDocs++;
+    currentIteration = iteration;
+    if( Math.abs(like - best.likelihood) > 1e-6 * Math.abs(best.likelihood) )
+      System.out.println("WARNING: the rebuilt best instance has likelihood " + like + ", not " + best.likelihood);
+    else
+      System.out.println("Rebuilt best instance, likelihood=" + like);
+  }
+
+  /**
+   * Save the sampler's current state to checkpointPath. The state is copied here, and the copy
+   * is written to disk on a background thread so sampling continues right away. If the last
+   * checkpoint is still being written, this one is skipped.
+   * @param nextIteration The iteration that sampling would resume on.
+   */
+  public void checkpoint(int nextIteration) {
+    if( lastCheckpointWrite != null && !lastCheckpointWrite.isDone() ) {
+      System.out.println("Skipping checkpoint at iteration " + nextIteration + ", the last one is still being written.");
+      return;
+    }
+    if( checkpointWriter == null ) {
+      checkpointWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "sampler-checkpoint");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+
+    final SamplerCheckpoint checkpoint = new SamplerCheckpoint();
+    long start = System.nanoTime();
+    checkpoint.nextIteration = nextIteration;
+    checkpoint.numTopics = numTopics;
+    checkpoint.numTemplates = numTemplates;
+    checkpoint.docNames = new ArrayList<String>(docNames);
+    checkpoint.zs = new int[zs.length][];
+    for( int xx = 0; xx < zs.length; xx++ )
+      checkpoint.zs[xx] = Arrays.copyOf(zs[xx], zs[xx].length);
+    checkpoint.random = copyRandom(random);
+    checkpoint.lastLikelihood = _lastLikelihood;
+    checkpoint.lastLikelihoodDelta = _lastLikelihoodDelta;
+    checkpoint.bestLikelihood = _bestLikelihood;
+    checkpoint.bestLikelihoodStep = _bestLikelihoodStep;
+    checkpoint.bestModelInstance = _bestModelInstance.copy();
+    if( metrics != null ) metrics.addSnapshotNanos(System.nanoTime() - start);
+
+    final String path = checkpointPath;
+    lastCheckpointWrite = checkpointWriter.submit(new Runnable() {
+      public void run() {
+        long start = System.currentTimeMillis();
+        checkpoint.toFile(path);
+        System.out.println("Wrote checkpoint for iteration " + checkpoint.nextIteration + " to " + path + " in " + (System.currentTimeMillis()-start) + " ms");
+      }
+    });
+  }
+
+  /**
+   * Wait for any checkpoint still being written, and stop the writer thread.
+   */
+  private void finishCheckpoints() {
+    if( checkpointWriter != null ) {
+      checkpointWriter.shutdown();
+      try {
+        checkpointWriter.awaitTermination(10, TimeUnit.MINUTES);
+      } catch( InterruptedException ex ) { ex.printStackTrace(); }
+      checkpointWriter = null;
+    }
+  }
+
+  /**
+   * Continue sampling from a checkpoint. The sampler must already be initialized with the same
+   * documents that the checkpointed sampler had. The zs are loaded and all count tables are
+   * rebuilt from them.
+   */
+  public void restoreCheckpoint(SamplerCheckpoint checkpoint) {
+    if( checkpoint.numTopics != numTopics || checkpoint.numTemplates != numTemplates || !checkpoint.docNames.equals(docNames) ) {
+      System.out.println("ERROR: checkpoint does not match this sampler (" + checkpoint.numTopics + " topics, " + 
+          checkpoint.numTemplates + " templates, " + checkpoint.docNames.size() + " docs)");
+      System.exit(1);
+    }
+
+    for( int xx = 0; xx < zs.length; xx++ )
+      zs[xx] = Arrays.copyOf(checkpoint.zs[xx], checkpoint.zs[xx].length);
+    recountFromZs();
+
+    random = checkpoint.random;
+    startIteration = checkpoint.nextIteration;
+    _lastLikelihood = checkpoint.lastLikelihood;
+    _lastLikelihoodDelta = checkpoint.lastLikelihoodDelta;
+    _bestLikelihood = checkpoint.bestLikelihood;
+    _bestLikelihoodStep = checkpoint.bestLikelihoodStep;
+    _bestModelInstance = checkpoint.bestModelInstance;
+    System.out.println("Restored checkpoint, resuming at iteration " + startIteration + " (best likelihood " + _bestLikelihood + ")");
+  }
+
+  /**
+   * Clear all count tables and recount them from the current z assignments.
+   */
+  public void recountFromZs() {
+    Arrays.fill(topicCounts, 0.0);
+    for( int doci = 0; doci < topicCountsByDoc.length; doci++ )
+      Arrays.fill(topicCountsByDoc[doci], 0);
+    entityCountsByDoc = new int[topicCountsByDoc.length];
+    if( numTemplates > 0 ) {
+      templateCountsByDoc = new int[topicCountsByDoc.length][];
+      for( int doci = 0; doci < topicCountsByDoc.length; doci++ )
+        templateCountsByDoc[doci] = new int[numTemplates];
+    }
+    for( int topic = 0; topic < numTopics; topic++ ) {
+      wCountsBySlot[topic].clear();
+      verbCountsBySlot[topic].clear();
+      depCountsBySlot[topic].clear();
+      featCountsBySlot[topic].clear();
+    }
+
+    for( int doci = 0; doci < zs.length; doci++ )
+      for( int entityi = 0; entityi < zs[doci].length; entityi++ )
+        relabel(doci, entityi, zs[doci][entityi]);
+  }
+
+  /**
+   * @return A new Random in the same state as the given one.
+   */
+  private static Random copyRandom(Random random) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(random);
+      out.close();
+      ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+      return (Random)in.readObject();
+    } catch( Exception ex ) { 
+      ex.printStackTrace();
+      return new Random();
+    }
   }
 
   private boolean isJunkTopic(int tt) {
@@ -587,18 +1158,42 @@ public class GibbsSamplerEntities implements Sampler, Serializable {
   	return (topicCounts[topic] + topicSmoothing) / (numEntitiesInAllDocs + topicSmoothingTimesNumTopics);    
   }
 
+  /**
+   * P(topic | doc), from the document totals that unlabel() and relabel() keep up to date,
+   * so this costs the same for the flat and the nested template model.
+   */
   public double probOfTopicGivenDoc(int topic, int doc) {
-  	if( numTemplates > 0 )
-  		return probOfTemplateTopicGivenDoc(topic, doc);
-  	
+    if( numTemplates > 0 )
+      return probOfTemplateTopicGivenDoc(topic, doc);
+    return probOfTopicGivenDocTotals(topic, topicCountsByDoc[doc][topic], entityCountsByDoc[doc]);
+  }
+
+  /**
+   * P(topic | doc) for a document whose entities' topics are counted in the given array.
+   * The document does not have to be in the sampler, so this is also used for fold-in inference.
+   * @param docTopicCounts The number of entities in the document labeled with each topic.
+   */
+  public double probOfTopicGivenDocCounts(int topic, int[] docTopicCounts) {
     int numentities = 0;
     for( int xx = 0; xx < numTopics; xx++ )
-      numentities += topicCountsByDoc[doc][xx];
+      numentities += docTopicCounts[xx];
+
+    if( numTemplates > 0 ) {
+      Pair<Integer,Integer> startend = getSiblingTopics(topic);
+      int templateCount = 0;
+      for( int xx = startend.first(); xx < startend.second(); xx++ )
+        templateCount += docTopicCounts[xx];
+      return probOfTemplateTopicGivenDocTotals(topic, templateCount, numentities);
+    }
+    return probOfTopicGivenDocTotals(topic, docTopicCounts[topic], numentities);
+  }
+
+  private double probOfTopicGivenDocTotals(int topic, int topicCount, int numEntitiesInDoc) {
   	double topicSmoothing = this.topicSmoothing;
   	if( isJunkTopic(topic) ) topicSmoothing = this.junkTopicSmoothing;
 //  	System.out.println("probOfTopicGivenDoc " + topic + " smooth=" + topicSmoothing);
   	
-  	return (topicCountsByDoc[doc][topic] + topicSmoothing) / (numentities + topicSmoothingTimesNumTopics);    
+  	return (topicCount + topicSmoothing) / (numEntitiesInDoc + topicSmoothingTimesNumTopics);    
   }
 
   /**
@@ -610,19 +1205,17 @@ public class GibbsSamplerEntities implements Sampler, Serializable {
    * @return P(topic | document)
    */
   public double probOfTemplateTopicGivenDoc(int topic, int doc) {
-    int numEntitiesInDoc = 0;
-    for( int xx = 0; xx < numTopics; xx++ )
-      numEntitiesInDoc += topicCountsByDoc[doc][xx];
+    return probOfTemplateTopicGivenDocTotals(topic, templateCountsByDoc[doc][topic / numTopicsPerTemplate], entityCountsByDoc[doc]);
+  }
+
+  /**
+   * @param templateCount The number of entities in the document labeled with a topic from this topic's template.
+   */
+  private double probOfTemplateTopicGivenDocTotals(int topic, int templateCount, int numEntitiesInDoc) {
   	double topicSmoothing = this.topicSmoothing;
   	if( isInJunkTemplate(topic) ) topicSmoothing = this.junkTopicSmoothing;
 //  	System.out.println("probOfTopicGivenDoc " + topic + " smooth=" + topicSmoothing);
 
-  	// Sum up the topics belonging to this template
-  	Pair<Integer,Integer> startend = getSiblingTopics(topic);
-  	int templateCount = 0;
-  	for( int xx = startend.first(); xx < startend.second(); xx++ )
-  		templateCount += topicCountsByDoc[doc][xx];
-  	
   	// P(topic|doc) = Sum_template P(topic|doc)
   	// = Sum_template P(topic,template | doc)
   	// = Sum_template P(template|doc) * P(topic | template,doc)
@@ -757,10 +1350,10 @@ public class GibbsSamplerEntities implements Sampler, Serializable {
 
   public void printDocument(int docindex) {
     System.out.println("**Document " + docindex + "**");
-    for( int entityi = 0; entityi < words[docindex].length; entityi++ ) {
-      System.out.print("entity " + entityi);
-      for( int mentioni = 0; mentioni < words[docindex][entityi].length; mentioni++ )
-        System.out.println("\t" + wordIndex.get(words[docindex][entityi][mentioni]) + "," + depIndex.get(deps[docindex][entityi][mentioni]));
+    for( int entity = corpus.firstEntity(docindex); entity < corpus.endEntity(docindex); entity++ ) {
+      System.out.print("entity " + (entity - corpus.firstEntity(docindex)));
+      for( int mention = corpus.firstMention(entity); mention < corpus.endMention(entity); mention++ )
+        System.out.println("\t" + wordIndex.get(corpus.word(entity)) + "," + depIndex.get(corpus.dep(mention)));
     }
     System.out.println();
   }
@@ -815,6 +1408,7 @@ public class GibbsSamplerEntities implements Sampler, Serializable {
    * @return A sorted list of the top n verbs and any other verbs over minprob in probability.
    */
   public List<String> getTopVerbsInTopic(int topicnum, int n, double minprob) {
+    if( !includeVerbs ) return new ArrayList<String>();
     List<double[]> verbDistributions = (verbCountsBySlot == null ? null : getWordDistributionsPerTopic(verbCountsBySlot, verbSmoothing, verbSmoothingTimesNumVerbs, verbIndex));
     double[] verbDist = (verbDistributions == null ? null : verbDistributions.get(topicnum));
 
@@ -914,7 +1508,7 @@ public class GibbsSamplerEntities implements Sampler, Serializable {
     List<double[]> wordDistributions = getWordDistributionsPerTopic(wCountsBySlot, wSmoothing, wSmoothingTimesNumW, wordIndex);
     List<double[]> depDistributions  = getWordDistributionsPerTopic(depCountsBySlot, depSmoothing, depSmoothingTimesNumDeps, depIndex);
     List<double[]> featDistributions = getFeatDistributionsPerTopic();
-    List<double[]> verbDistributions = (verbCountsBySlot == null ? null : getWordDistributionsPerTopic(verbCountsBySlot, verbSmoothing, verbSmoothingTimesNumVerbs, verbIndex));
+    List<double[]> verbDistributions = (verbCountsBySlot == null || !includeVerbs ? null : getWordDistributionsPerTopic(verbCountsBySlot, verbSmoothing, verbSmoothingTimesNumVerbs, verbIndex));
     int[] topicCounts = countTopicOccurrences();
 
     for( int topicnum = 0; topicnum < numTopics; topicnum++ ) {
@@ -965,7 +1559,7 @@ public class GibbsSamplerEntities implements Sampler, Serializable {
       	System.out.println("*** Template " + (topicnum/numTopicsPerTemplate) + " seen=" + seen + " ***");
 
       	// Print the verb distribution for this template.
-      	List<String> sortedTemplateVerbs = getTopVerbsInTemplate(topicnum, 40, 0.0);
+      	List<String> sortedTemplateVerbs = (includeVerbs ? getTopVerbsInTemplate(topicnum, 40, 0.0) : new ArrayList<String>());
         for( int ii = 0; ii < sortedTemplateVerbs.size() && ii < 20; ii++ ) {
             String token = sortedTemplateVerbs.get(ii);
             String token20 = (ii+20 < sortedTemplateVerbs.size() ? sortedTemplateVerbs.get(ii+20) : "");
@@ -1027,7 +1621,7 @@ public class GibbsSamplerEntities implements Sampler, Serializable {
     }
   }
 
-  private String inverseDep(String dep) {
+  private static String inverseDep(String dep) {
     if( dep.startsWith("nsubj") )
       return "dobj--" + dep.substring(7);
     if( dep.startsWith("dobj") )
@@ -1111,16 +1705,14 @@ public class GibbsSamplerEntities implements Sampler, Serializable {
       countedWCountsBySlot[i] = new ClassicCounter<Integer>();
       countedDepCountsBySlot[i] = new ClassicCounter<Integer>();
     }
-    for (int docNum = 0; docNum < words.length; docNum++) {
-      for (int entityNum = 0; entityNum < words[docNum].length; entityNum++) {
-        for (int wordNum = 0; wordNum < words[docNum].length; wordNum++) {
-          int topic = zs[docNum][entityNum];
-          int word = words[docNum][entityNum][wordNum];
-          int dep = deps[docNum][entityNum][wordNum];
-          countedTopicCounts[topic]++;
-          countedWCountsBySlot[topic].incrementCount(word);
-          countedDepCountsBySlot[topic].incrementCount(dep);
-        }
+    for (int docNum = 0; docNum < zs.length; docNum++) {
+      for (int entityNum = 0; entityNum < zs[docNum].length; entityNum++) {
+        int entity = corpus.entity(docNum, entityNum);
+        int topic = zs[docNum][entityNum];
+        countedTopicCounts[topic]++;
+        if( corpus.word(entity) >= 0 ) countedWCountsBySlot[topic].incrementCount(corpus.word(entity));
+        for (int mention = corpus.firstMention(entity); mention < corpus.endMention(entity); mention++)
+          countedDepCountsBySlot[topic].incrementCount(corpus.dep(mention));
       }
     }
 
@@ -1151,17 +1743,46 @@ public class GibbsSamplerEntities implements Sampler, Serializable {
     } catch( Exception ex ) { ex.printStackTrace(); }
   }
 
+  /**
+   * Models saved before the per-document totals and checkpoints were added have no values
+   * for those fields, so fill them in.
+   */
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    if( topicCountsByDoc != null && (entityCountsByDoc == null || (numTemplates > 0 && templateCountsByDoc == null)) )
+      countDocTotals();
+    if( checkpointInterval <= 0 ) checkpointInterval = 50;
+  }
+
+  /**
+   * @return The saved model, or null if it could not be read.
+   */
   public static GibbsSamplerEntities fromFile(String filename) {
     try {
-      FileInputStream f = new FileInputStream(filename);
+      return load(filename);
+    } catch( Exception ex ) { ex.printStackTrace(); }
+    return null;
+  }
+
+  /**
+   * Like fromFile(), for callers that must keep running when a model can't be read.
+   * @throws IOException If the file can't be read or doesn't hold a saved model.
+   */
+  public static GibbsSamplerEntities load(String filename) throws IOException {
+    FileInputStream f = new FileInputStream(filename);
+    try {
       ObjectInputStream s = new ObjectInputStream(f);
       GibbsSamplerEntities sampler = (GibbsSamplerEntities)s.readObject();
-      f.close();
       System.out.println("fromFile: numtopics    = " + sampler.numTopics);
       if( sampler.numTemplates > 0 ) System.out.println("fromFile: numtemplates = " + sampler.numTemplates);
       return sampler;
-    } catch( Exception ex ) { ex.printStackTrace(); }
-    return null;
+    } catch( ClassNotFoundException ex ) {
+      throw new IOException(filename + " is not a saved model: " + ex, ex);
+    } catch( ClassCastException ex ) {
+      throw new IOException(filename + " is not a saved model: " + ex, ex);
+    } finally {
+      f.close();
+    }
   }
   
   /**
@@ -1169,8 +1790,8 @@ public class GibbsSamplerEntities implements Sampler, Serializable {
    */
   public double computeDataLikelihood() {
     double likelihood = 0.0;
-    for( int doc = 0; doc < words.length; doc++ ) {
-      for( int entity = 0; entity < words[doc].length; entity++ ) {
+    for( int doc = 0; doc < zs.length; doc++ ) {
+      for( int entity = 0; entity < zs[doc].length; entity++ ) {
         // The current entity's label.
         int currentZ = zs[doc][entity];
         // This is inefficient ... we should just compute probability for this Z, not all Z's.
@@ -1,11 +1,16 @@
 package nate.probschemas;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import nate.util.Util;
 
@@ -17,6 +22,10 @@ import edu.stanford.nlp.math.ArrayMath;
  * as a single document.
  * We label using the learned conditional probability tables from the Gibbs Sampler. 
  * 
+ * By default each entity gets its single most probable role. If _foldInSteps is positive,
+ * fold-in sampling is used instead: a short Gibbs chain per document resamples its entities'
+ * roles with the model's counts held fixed, so the document's own role mixture is learned as
+ * it is during training. Documents are independent, so labelDocuments() runs them in parallel.
  *
  */
 public class Inference {
@@ -25,15 +34,30 @@ public class Inference {
   int _maxEntitiesPerRole = 3; // cannot assign more than this number of entities to any single role
   boolean _oneLabelPerEntity = true; // if false, more than one topic can label an entity
   boolean _skipPoorDocuments = false; // if true, a topic does not label documents if its top verbs doesn't appear
+  SamplerMetrics metrics = null;      // if set, each labeled document is reported here
+  int _foldInSteps = 0;   // if positive, label with this many fold-in Gibbs iterations per document
+  int _foldInBurnIn = -1; // fold-in iterations not counted in the role distributions (-1 means half)
+  long _foldInSeed = 1;
+
+  // The model is frozen during inference, so these are computed once.
+  private Set<String> _topPredicates = null;
+  private List<String>[] _topVerbsByTopic = null;
   
   public Inference(String modelPath) {
-    init(modelPath);
+    init(modelPath, true);
   }
   
   public Inference(String modelPath, int maxEntities, double minProb) {
+    this(modelPath, maxEntities, minProb, true);
+  }
+
+  /**
+   * @param printModel If false, the model's word distributions are not printed after loading.
+   */
+  public Inference(String modelPath, int maxEntities, double minProb, boolean printModel) {
     _minAcceptableProbability = minProb;
     _maxEntitiesPerRole = maxEntities;
-    init(modelPath);
+    init(modelPath, printModel);
   }
   
   public Inference(GibbsSamplerEntities sampler, int maxEntities, double minProb) {
@@ -42,14 +66,35 @@ public class Inference {
     this.sampler = sampler;
   }
 
-  private void init(String modelPath) {
+  /**
+   * Load a model without exiting if it can't be read, for callers that must keep running
+   * (e.g. InferenceServer).
+   * @throws IOException If the model file can't be read.
+   */
+  public static Inference load(String modelPath, int maxEntities, double minProb, boolean printModel) throws IOException {
+    Inference infer = new Inference(GibbsSamplerEntities.load(modelPath), maxEntities, minProb);
+    infer.printLoaded(modelPath, printModel);
+    return infer;
+  }
+
+  private void init(String modelPath, boolean printModel) {
     this.sampler = GibbsSamplerEntities.fromFile(modelPath);
+    if( this.sampler == null ) {
+      System.out.println("ERROR: could not load model " + modelPath);
+      System.exit(1);
+    }
+    printLoaded(modelPath, printModel);
+  }
+
+  private void printLoaded(String modelPath, boolean printModel) {
     System.out.println("Loaded model from " + modelPath);
     System.out.println("Loaded model contains " + this.sampler.numTopics + " topics");
     System.out.println("Minimum acceptable probability: " + _minAcceptableProbability);
     System.out.println("Max entities per role: " + _maxEntitiesPerRole);
-    this.sampler.printWordDistributionsPerTopic();
-    System.out.println("\n");
+    if( printModel ) {
+      this.sampler.printWordDistributionsPerTopic();
+      System.out.println("\n");
+    }
   }
   
   /**
@@ -83,26 +128,31 @@ public class Inference {
    * Get the 4 best predicates (e.g., kidnap) from the current model.
    * @return
    */
-  private Set<String> getTopPredicatesBasedOnDeps() {
-    List<String> orderedPredicates = sampler.getTopPredicatesBasedOnDeps();
-    Set<String> preds = new HashSet<String>();
-    for( int xx = 0; xx < 4 && xx < orderedPredicates.size(); xx++ )
-      preds.add(orderedPredicates.get(xx));
-    return preds;
+  private synchronized Set<String> getTopPredicatesBasedOnDeps() {
+    if( _topPredicates == null ) {
+      List<String> orderedPredicates = sampler.getTopPredicatesBasedOnDeps();
+      Set<String> preds = new HashSet<String>();
+      for( int xx = 0; xx < 4 && xx < orderedPredicates.size(); xx++ )
+        preds.add(orderedPredicates.get(xx));
+      _topPredicates = preds;
+    }
+    return _topPredicates;
   }
   
   /**
    * Get the top n verbs in each topic. 
    * @return An array the length of the number of topics. Each cell is the top n verbs for that topic.
    */
-  private List<String>[] topVerbsByTopic() {
-    List<String>[] bytopic = new ArrayList[sampler.numTopics];
-    int n = 2;
-    
-    for( int topicid = 0; topicid < sampler.numTopics; topicid++ )
-      bytopic[topicid] = sampler.getTopVerbsInTopic(topicid, n, 0.05);
+  private synchronized List<String>[] topVerbsByTopic() {
+    if( _topVerbsByTopic == null ) {
+      List<String>[] bytopic = new ArrayList[sampler.numTopics];
+      int n = 2;
 
-    return bytopic;
+      for( int topicid = 0; topicid < sampler.numTopics; topicid++ )
+        bytopic[topicid] = sampler.getTopVerbsInTopic(topicid, n, 0.05);
+      _topVerbsByTopic = bytopic;
+    }
+    return _topVerbsByTopic;
   }
   
   private boolean predicateOverlap(List<String> preds, Set<String> preds2) {
@@ -142,21 +192,30 @@ public class Inference {
    * Probs are in log space.
    */
   private void getTopicDistribution(final TextEntity entity, double[] probs) {
+    getEntityLikelihoods(entity, probs);
     for( int topic = 0; topic < sampler.numTopics; topic++ ) {
       // P( z ) 
-      double probOfTopic = sampler.probOfTopic(topic);
+      probs[topic] += Math.log(sampler.probOfTopic(topic));
+    }
+    ArrayMath.logNormalize(probs);
+  }
+
+  /**
+   * Calculate P(entity | topic) for each topic, in log space and not normalized.
+   */
+  private void getEntityLikelihoods(final TextEntity entity, double[] probs) {
+    for( int topic = 0; topic < sampler.numTopics; topic++ ) {
       // P( w | slot )
-      double probOfWGivenTopic = sampler.probOfWGivenTopic(entity.getCoreToken(), topic);
-      probs[topic] = Math.log(probOfTopic * probOfWGivenTopic);
+      probs[topic] = Math.log(sampler.probOfWGivenTopic(entity.getCoreToken(), topic));
       
       if( sampler.includeEntityFeatures ) {
-        double prob = sampler.probOfFeatsGivenTopic(entity.types, topic);
+        double prob = sampler.probOfFeatsGivenTopic(entity.getTypes(), topic);
 //        System.out.println("feats p=" + prob);
         probs[topic] += Math.log(prob);
       }
       
       for( int mention = 0; mention < entity.numMentions(); mention++ ) {
-      	String depStr = entity.deps.get(mention);
+      	String depStr = entity.getMentionDependency(mention);
       	
       	// P( dep | slot )
       	double prob = sampler.probOfDepGivenTopic(depStr, topic);
@@ -171,7 +230,144 @@ public class Inference {
       	}
       }
     }
-    ArrayMath.logNormalize(probs);
+  }
+
+  /**
+   * Fold-in inference for one document. Its entities' roles are sampled with a short Gibbs
+   * chain, holding the model's word, dependency, verb and feature counts fixed. Only the
+   * document's own role counts change, so P(role | doc) is shared across the entities.
+   * @return For each entity, the log of the fraction of post-burn-in samples with each role.
+   */
+  private double[][] foldInDistributions(final List<TextEntity> docEntities) {
+    int numTopics = sampler.numTopics;
+    int numEntities = docEntities.size();
+    int burnIn = Math.min(_foldInSteps-1, (_foldInBurnIn < 0 ? _foldInSteps/2 : _foldInBurnIn));
+
+    // The counts are fixed, so each entity's likelihoods are computed once. Scale them by
+    // their max, since only their ratios matter and exp() of the log values underflows.
+    double[][] likelihoods = new double[numEntities][numTopics];
+    int entityi = 0;
+    for( TextEntity entity : docEntities ) {
+      getEntityLikelihoods(entity, likelihoods[entityi]);
+      double max = ArrayMath.max(likelihoods[entityi]);
+      for( int topic = 0; topic < numTopics; topic++ )
+        likelihoods[entityi][topic] = Math.exp(likelihoods[entityi][topic] - max);
+      entityi++;
+    }
+
+    // Seeded from the document's contents, so labels don't depend on thread scheduling.
+    long seed = _foldInSeed;
+    for( TextEntity entity : docEntities )
+      seed = seed * 31 + entity.getCoreToken().hashCode();
+    Random random = new Random(seed);
+
+    // Start from the entities' roles with the model's global P(role).
+    int[] zs = new int[numEntities];
+    int[] docCounts = new int[numTopics];
+    double[] probs = new double[numTopics];
+    for( int ee = 0; ee < numEntities; ee++ ) {
+      for( int topic = 0; topic < numTopics; topic++ )
+        probs[topic] = sampler.probOfTopic(topic) * likelihoods[ee][topic];
+      ArrayMath.normalize(probs);
+      zs[ee] = ArrayMath.sampleFromDistribution(probs, random);
+      docCounts[zs[ee]]++;
+    }
+
+    int[][] samples = new int[numEntities][numTopics];
+    for( int step = 0; step < _foldInSteps; step++ ) {
+      for( int ee = 0; ee < numEntities; ee++ ) {
+        docCounts[zs[ee]]--;
+        for( int topic = 0; topic < numTopics; topic++ ) {
+          double probOfTopic = (sampler.thetasInDoc ? sampler.probOfTopicGivenDocCounts(topic, docCounts) : sampler.probOfTopic(topic));
+          probs[topic] = probOfTopic * likelihoods[ee][topic];
+        }
+        ArrayMath.normalize(probs);
+        zs[ee] = ArrayMath.sampleFromDistribution(probs, random);
+        docCounts[zs[ee]]++;
+        if( step >= burnIn ) samples[ee][zs[ee]]++;
+      }
+    }
+
+    double numSamples = _foldInSteps - burnIn;
+    double[][] dists = new double[numEntities][numTopics];
+    for( int ee = 0; ee < numEntities; ee++ )
+      for( int topic = 0; topic < numTopics; topic++ )
+        dists[ee][topic] = Math.log(samples[ee][topic] / numSamples);
+    return dists;
+  }
+
+  /**
+   * @return For each entity, its distribution over roles in log space. Uses fold-in sampling
+   *         if _foldInSteps is positive.
+   */
+  public double[][] getEntityDistributions(final List<TextEntity> docEntities) {
+    if( _foldInSteps > 0 )
+      return foldInDistributions(docEntities);
+
+    double[][] dists = new double[docEntities.size()][sampler.numTopics];
+    int entityi = 0;
+    for( TextEntity entity : docEntities )
+      getTopicDistribution(entity, dists[entityi++]);
+    return dists;
+  }
+
+  /**
+   * Compute getEntityDistributions() for many documents, in parallel.
+   * @return The distributions, in the same order as the documents.
+   */
+  public double[][][] getEntityDistributions(final List<List<TextEntity>> docsEntities, int numThreads) {
+    final double[][][] dists = new double[docsEntities.size()][][];
+    runPerDocument(docsEntities.size(), numThreads, new DocumentJob() {
+      public void run(int doci) {
+        long start = System.nanoTime();
+        dists[doci] = getEntityDistributions(docsEntities.get(doci));
+        if( metrics != null ) metrics.inferenceDocument(dists[doci].length, System.nanoTime() - start);
+      }
+    });
+    return dists;
+  }
+
+  /**
+   * Label many documents with labelEntities(), in parallel.
+   */
+  public void labelDocuments(final List<List<TextEntity>> docsEntities, int numThreads) {
+    runPerDocument(docsEntities.size(), numThreads, new DocumentJob() {
+      public void run(int doci) { labelEntities(docsEntities.get(doci), false); }
+    });
+  }
+
+  private interface DocumentJob {
+    void run(int doci);
+  }
+
+  /**
+   * Run the job once for each document index on a pool of threads, and wait for all of them.
+   */
+  private static void runPerDocument(int numDocs, int numThreads, final DocumentJob job) {
+    if( numThreads <= 1 ) {
+      for( int doci = 0; doci < numDocs; doci++ )
+        job.run(doci);
+      return;
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+    for( int doci = 0; doci < numDocs; doci++ ) {
+      final int doc = doci;
+      pool.execute(new Runnable() {
+        public void run() {
+          try {
+            job.run(doc);
+          } catch( Exception ex ) {
+            System.err.println("Inference failed on document " + doc);
+            ex.printStackTrace();
+          }
+        }
+      });
+    }
+    pool.shutdown();
+    try {
+      while( !pool.awaitTermination(1, TimeUnit.MINUTES) ) ;
+    } catch( InterruptedException ex ) { ex.printStackTrace(); }
   }
   
   /**
@@ -185,16 +381,29 @@ public class Inference {
    * @param docEntities The list of entities to infer labels.
    */
   public void labelEntities(List<TextEntity> docEntities, boolean debug) {
+    long start = System.nanoTime();
+    labelEntities(docEntities, getEntityDistributions(docEntities), debug);
+    if( metrics != null ) metrics.inferenceDocument(docEntities.size(), System.nanoTime() - start);
+  }
+
+  /**
+   * Label the entities from distributions computed earlier by getEntityDistributions(). The
+   * distributions don't depend on _minAcceptableProbability or _maxEntitiesPerRole, so they
+   * can be reused when trying different values of those.
+   * @param entityDists Each entity's log distribution over roles.
+   */
+  public void labelEntities(List<TextEntity> docEntities, double[][] entityDists, boolean debug) {
     // Store the best entities scored with each role.
     Map<Integer,Double>[] entityToProbability = new HashMap[sampler.numTopics];
     for( int topic = 0; topic < sampler.numTopics; topic++ )
       entityToProbability[topic] = new HashMap<Integer,Double>();
     
     // DEBUG FOR NOW
-    Set<String> predicatesInDoc = getVerbsInDocFromDeps(docEntities);
-    Set<String> learnedTopPredicates = getTopPredicatesBasedOnDeps();
-    System.out.println("Learned top predicates: " + learnedTopPredicates);
-    System.out.println("Doc predicate words: " + predicatesInDoc);
+    Set<String> predicatesInDoc = (debug || _skipPoorDocuments ? getVerbsInDocFromDeps(docEntities) : null);
+    if( debug ) {
+      System.out.println("Learned top predicates: " + getTopPredicatesBasedOnDeps());
+      System.out.println("Doc predicate words: " + predicatesInDoc);
+    }
 //    sampler.printWordDistributionsPerTopic();
     boolean skipdoc = false;
 //    boolean skipdoc = true;
@@ -204,7 +413,7 @@ public class Inference {
 //      }
 //    }
 //    if( skipdoc ) System.out.println("Skipping doc!");
-    List<String>[] topverbs = topVerbsByTopic();
+    List<String>[] topverbs = (_skipPoorDocuments ? topVerbsByTopic() : null);
 //    for( int tt = 0; tt < topverbs.length; tt++ )
 //      System.out.println("topic " + tt + ":\t" + topverbs[tt]);
     
@@ -216,8 +425,7 @@ public class Inference {
         double best = -Double.MAX_VALUE;
         int bestTopic = -1;
 	//        Set<String> entityPredicates = getVerbsInEntity(entity); 
-        double[] probs = new double[sampler.numTopics];
-        getTopicDistribution(entity, probs);
+        double[] probs = entityDists[entityid];
 
         // Find the most probable topic for this entity.
         for( int topic = 0; topic < sampler.numTopics; topic++ ) {
@@ -0,0 +1,404 @@
+package nate.probschemas;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import nate.util.HandleParameters;
+import nate.util.SymbolTable;
+
+/**
+ * A resident HTTP server that labels entities with frozen models. The -model models are
+ * loaded at startup and then kept (see ModelRegistry), so requests only pay for inference,
+ * not for starting the JVM and deserializing the model. The server doesn't start if one of
+ * them can't be loaded. With a memory budget, models are loaded at startup until it is full,
+ * and the rest on their first request. The least recently used models are then dropped to
+ * make room and reloaded when asked for again. Models added with POST /models are loaded on
+ * their first request.
+ *
+ * Loading a model deserializes its file, so models can only be added at runtime from the
+ * -modeldir directory, and only if that flag is given.
+ *
+ * InferenceServer -model <path>[,<path>...] [-port <int>] [-p <double>] [-m <int>] [-threads <int>] [-foldin <int>] [-budget <MB>] [-modeldir <dir>]
+ *
+ * -model   : One or more sampler models from Learner. A model is named by its file name, or
+ *            give name=path to choose the name.
+ * -budget  : Estimated megabytes that loaded models may use (default 0, no limit).
+ * -modeldir: Allow POST and DELETE /models, for model files in this directory (default: not allowed).
+ * -port    : Port to listen on, on localhost (default 8080).
+ * -p       : Minimum probability for an entity to be labeled (default 0.95).
+ * -m       : Max entities labeled per role (default 3).
+ * -threads : Number of request threads (default: number of cores).
+ * -foldin  : Label with this many fold-in Gibbs iterations per document (default 0, most probable role).
+ *
+ * POST /label?model=<name>
+ *   The body is in the DataSimplifier cache format: a "DOC <name>" line starts each document,
+ *   followed by one TextEntity.toFullString() line per entity. The response is the same
+ *   format with the labels filled in. Latency is returned in the X-Parse-Micros, X-Label-Micros
+ *   and X-Total-Micros headers, with X-Documents and X-Entities counts. If only one model is
+ *   loaded, the model parameter can be left out. The name is URL-encoded, like any query value.
+ *   An unknown model gets a 404. A model that can't be loaded gets a 500, and is tried again
+ *   on the next request.
+ * GET /models
+ *   The names of the models, one per line, with their topics if they are loaded.
+ * POST /models
+ *   Add models, if -modeldir is given. Each line of the body is a path or name=path, like
+ *   -model. Relative paths are in -modeldir, and a path outside it gets a 403. A name that is
+ *   already registered gets a 409, since replacing a model takes a DELETE first. Nothing is
+ *   added unless every line is accepted.
+ * DELETE /models?model=<name>
+ *   Remove a model, if -modeldir is given. An unknown model gets a 404.
+ * GET /metrics
+ *   Documents, entities, average labeling time per document and loads for each model. The
+ *   X-Loaded-MB and X-Evictions headers give the estimated size of the loaded models and the
+ *   number of models evicted so far.
+ */
+public class InferenceServer {
+  private ModelRegistry _models;
+  // Kept across reloads of a model, so its counts continue.
+  private final Map<String,SamplerMetrics> _metrics = new LinkedHashMap<String,SamplerMetrics>();
+  private int _port = 8080;
+  private int _numThreads = Runtime.getRuntime().availableProcessors();
+  private double _minProb = 0.95;
+  private int _maxEntities = 3;
+  private int _foldInSteps = 0;
+  private long _budgetMB = 0;
+  private File _modelDir = null; // if set, models in this directory can be added at runtime
+  private HttpServer _server;
+
+  public InferenceServer(String[] args) {
+    HandleParameters params = new HandleParameters(args);
+    if( params.hasFlag("-port") )    _port        = Integer.parseInt(params.get("-port"));
+    if( params.hasFlag("-threads") ) _numThreads  = Integer.parseInt(params.get("-threads"));
+    if( params.hasFlag("-p") )       _minProb     = Double.parseDouble(params.get("-p"));
+    if( params.hasFlag("-m") )       _maxEntities = Integer.parseInt(params.get("-m"));
+    if( params.hasFlag("-foldin") )  _foldInSteps = Integer.parseInt(params.get("-foldin"));
+    if( params.hasFlag("-budget") )  _budgetMB    = Long.parseLong(params.get("-budget"));
+    if( params.hasFlag("-modeldir") ) {
+      try {
+        _modelDir = new File(params.get("-modeldir")).getCanonicalFile();
+      } catch( IOException ex ) {
+        System.out.println("ERROR: bad -modeldir " + params.get("-modeldir") + ": " + ex);
+        System.exit(1);
+      }
+      if( !_modelDir.isDirectory() ) {
+        System.out.println("ERROR: -modeldir " + _modelDir + " is not a directory");
+        System.exit(1);
+      }
+    }
+
+    if( !params.hasFlag("-model") ) {
+      System.out.println("InferenceServer -model <path>[,<path>...] [-port <int>] [-p <double>] [-m <int>] [-threads <int>] [-foldin <int>] [-budget <MB>] [-modeldir <dir>]");
+      System.exit(1);
+    }
+    _models = new ModelRegistry(_budgetMB << 20, _maxEntities, _minProb) {
+      protected void configure(String name, Inference infer) {
+        synchronized( _metrics ) {
+          if( !_metrics.containsKey(name) ) _metrics.put(name, SamplerMetrics.create("server-" + name));
+          infer.metrics = _metrics.get(name);
+        }
+        infer._foldInSteps = _foldInSteps;
+      }
+    };
+    for( String model : params.get("-model").split(",") ) {
+      String[] nameAndPath = parseModel(model);
+      if( !registerModel(nameAndPath[0], nameAndPath[1]) ) {
+        System.out.println("ERROR: two -model models are named " + nameAndPath[0]);
+        System.exit(1);
+      }
+    }
+
+    // Load the models before listening, so a bad path stops the server here instead of
+    // failing its requests, and the first requests don't wait for a load.
+    try {
+      _models.loadAll();
+    } catch( IOException ex ) {
+      System.out.println("ERROR: could not load " + ex.getMessage());
+      System.exit(1);
+    }
+  }
+
+  /**
+   * @return The name and path of a model given as "path" or "name=path".
+   */
+  private static String[] parseModel(String spec) {
+    String name, path;
+    int equals = spec.indexOf('=');
+    if( equals > -1 ) {
+      name = spec.substring(0, equals);
+      path = spec.substring(equals+1);
+    } else {
+      path = spec;
+      name = new File(path).getName();
+      if( name.endsWith(".model") ) name = name.substring(0, name.length()-6);
+    }
+    return new String[] { name, path };
+  }
+
+  /**
+   * @return False if a model of that name is already registered.
+   */
+  private boolean registerModel(String name, String path) {
+    if( !_models.register(name, path) ) return false;
+    System.out.println("Serving model " + name + " from " + path);
+    return true;
+  }
+
+  /**
+   * @return The canonical path of a model file given at runtime, resolved in -modeldir, or
+   *         null if it isn't a file in -modeldir.
+   */
+  private String resolveInModelDir(String path) throws IOException {
+    File file = new File(path);
+    if( !file.isAbsolute() ) file = new File(_modelDir, path);
+    file = file.getCanonicalFile();
+    if( !file.getPath().startsWith(_modelDir.getPath() + File.separator) || !file.isFile() ) return null;
+    return file.getPath();
+  }
+
+  public void start() throws IOException {
+    _server = HttpServer.create(new InetSocketAddress("localhost", _port), 0);
+    _server.createContext("/label", new LabelHandler());
+    _server.createContext("/models", new ModelsHandler());
+    _server.createContext("/metrics", new MetricsHandler());
+    _server.setExecutor(Executors.newFixedThreadPool(_numThreads));
+    _server.start();
+    System.out.println("InferenceServer listening on localhost:" + _port + " with " + _numThreads + " threads");
+  }
+
+  public void stop() {
+    if( _server != null ) _server.stop(0);
+  }
+
+  /**
+   * @return The model name in the query string, the only model if there is just one, or null.
+   */
+  private String getModelName(URI uri) throws IOException {
+    String name = getQueryParam(uri, "model");
+    if( name != null ) return name;
+    if( _models.size() == 1 ) return _models.names().get(0);
+    return null;
+  }
+
+  /**
+   * @return The URL-decoded value of the query parameter, or null if it isn't given.
+   */
+  private static String getQueryParam(URI uri, String key) throws IOException {
+    // The raw query, so an encoded '&' or '=' in a value doesn't split it.
+    String query = uri.getRawQuery();
+    if( query != null ) {
+      for( String pair : query.split("&") ) {
+        if( pair.startsWith(key + "=") )
+          return URLDecoder.decode(pair.substring(key.length()+1), "UTF-8");
+      }
+    }
+    return null;
+  }
+
+  private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+    byte[] bytes = body.getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(code, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.close();
+  }
+
+  private class LabelHandler implements HttpHandler {
+    public void handle(HttpExchange exchange) throws IOException {
+      try {
+        if( !exchange.getRequestMethod().equals("POST") ) {
+          respond(exchange, 405, "POST documents to /label\n");
+          return;
+        }
+        String name;
+        try {
+          name = getModelName(exchange.getRequestURI());
+        } catch( IllegalArgumentException ex ) {
+          respond(exchange, 400, "Bad query string: " + ex.getMessage() + "\n");
+          return;
+        }
+        Inference infer;
+        try {
+          infer = (name == null ? null : _models.get(name));
+        } catch( IOException ex ) {
+          System.out.println("ERROR: could not load model " + name + ": " + ex);
+          respond(exchange, 500, "Could not load model " + name + ": " + ex.getMessage() + "\n");
+          return;
+        }
+        if( infer == null ) {
+          respond(exchange, 404, "Unknown model. Models: " + _models.names() + "\n");
+          return;
+        }
+
+        long start = System.nanoTime();
+        List<String> docNames = new ArrayList<String>();
+        List<List<TextEntity>> docs = new ArrayList<List<TextEntity>>();
+        try {
+          readDocuments(exchange, docNames, docs);
+        } catch( Exception ex ) {
+          respond(exchange, 400, "Could not read documents: " + ex + "\n");
+          return;
+        }
+        long parsed = System.nanoTime();
+
+        int numEntities = 0;
+        for( List<TextEntity> doc : docs ) {
+          for( TextEntity entity : doc ) entity.clearLabels();
+          infer.labelEntities(doc, false);
+          numEntities += doc.size();
+        }
+        long labeled = System.nanoTime();
+
+        StringBuilder sb = new StringBuilder();
+        for( int ii = 0; ii < docs.size(); ii++ ) {
+          sb.append("DOC ").append(docNames.get(ii)).append("\n");
+          for( TextEntity entity : docs.get(ii) )
+            sb.append(entity.toFullString()).append("\n");
+        }
+
+        exchange.getResponseHeaders().set("X-Documents", String.valueOf(docs.size()));
+        exchange.getResponseHeaders().set("X-Entities", String.valueOf(numEntities));
+        exchange.getResponseHeaders().set("X-Parse-Micros", String.valueOf((parsed - start) / 1000));
+        exchange.getResponseHeaders().set("X-Label-Micros", String.valueOf((labeled - parsed) / 1000));
+        exchange.getResponseHeaders().set("X-Total-Micros", String.valueOf((System.nanoTime() - start) / 1000));
+        respond(exchange, 200, sb.toString());
+      } catch( RuntimeException ex ) {
+        ex.printStackTrace();
+        respond(exchange, 500, "Error: " + ex + "\n");
+      }
+    }
+  }
+
+  /**
+   * Read documents in the cache format from the request body. Entity lines before any DOC
+   * line are put in one unnamed document. The entities get a symbol table of their own, so
+   * the strings of past requests aren't kept for as long as the server runs.
+   */
+  private static void readDocuments(HttpExchange exchange, List<String> docNames, List<List<TextEntity>> docs) throws IOException {
+    BufferedReader in = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), "UTF-8"));
+    SymbolTable symbols = new SymbolTable();
+    List<TextEntity> current = null;
+    String line;
+    while( (line = in.readLine()) != null ) {
+      if( line.length() == 0 ) continue;
+      if( line.startsWith("DOC") ) {
+        docNames.add(line.length() > 4 ? line.substring(4).trim() : "doc" + docs.size());
+        current = new ArrayList<TextEntity>();
+        docs.add(current);
+      }
+      else {
+        if( current == null ) {
+          docNames.add("doc0");
+          current = new ArrayList<TextEntity>();
+          docs.add(current);
+        }
+        current.add(TextEntity.fromFullString(line, symbols));
+      }
+    }
+    in.close();
+  }
+
+  private class ModelsHandler implements HttpHandler {
+    public void handle(HttpExchange exchange) throws IOException {
+      String method = exchange.getRequestMethod();
+      if( (method.equals("POST") || method.equals("DELETE")) && _modelDir == null ) {
+        respond(exchange, 403, "Models can't be changed at runtime. Start the server with -modeldir to allow it.\n");
+        return;
+      }
+
+      if( method.equals("POST") ) {
+        // Check every line before adding any of them.
+        List<String[]> added = new ArrayList<String[]>();
+        Set<String> addedNames = new HashSet<String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), "UTF-8"));
+        String line;
+        while( (line = in.readLine()) != null ) {
+          if( line.trim().length() == 0 ) continue;
+          String[] nameAndPath = parseModel(line.trim());
+          String path = resolveInModelDir(nameAndPath[1]);
+          if( path == null ) {
+            respond(exchange, 403, "Not a model file in the model directory: " + nameAndPath[1] + "\n");
+            return;
+          }
+          if( _models.names().contains(nameAndPath[0]) || !addedNames.add(nameAndPath[0]) ) {
+            respond(exchange, 409, "Model " + nameAndPath[0] + " is already registered. DELETE it first to replace it.\n");
+            return;
+          }
+          added.add(new String[] { nameAndPath[0], path });
+        }
+        in.close();
+        for( String[] nameAndPath : added ) {
+          if( !registerModel(nameAndPath[0], nameAndPath[1]) ) {
+            respond(exchange, 409, "Model " + nameAndPath[0] + " is already registered. DELETE it first to replace it.\n");
+            return;
+          }
+        }
+      }
+      else if( method.equals("DELETE") ) {
+        String name;
+        try {
+          name = getQueryParam(exchange.getRequestURI(), "model");
+        } catch( IllegalArgumentException ex ) {
+          respond(exchange, 400, "Bad query string: " + ex.getMessage() + "\n");
+          return;
+        }
+        if( name == null || !_models.unregister(name) ) {
+          respond(exchange, 404, "Unknown model. Models: " + _models.names() + "\n");
+          return;
+        }
+        System.out.println("Removed model " + name);
+      }
+
+      StringBuilder sb = new StringBuilder();
+      for( String name : _models.names() ) {
+        Inference infer = _models.getLoaded(name);
+        sb.append(name).append("\t").append(infer == null ? "not loaded" : infer.sampler.numTopics + " topics").append("\n");
+      }
+      respond(exchange, 200, sb.toString());
+    }
+  }
+
+  private class MetricsHandler implements HttpHandler {
+    public void handle(HttpExchange exchange) throws IOException {
+      StringBuilder sb = new StringBuilder("model\tdocuments\tentities\tms-per-doc\tloads\n");
+      synchronized( _metrics ) {
+        for( Map.Entry<String,SamplerMetrics> entry : _metrics.entrySet() ) {
+          SamplerMetrics metrics = entry.getValue();
+          sb.append(String.format("%s\t%d\t%d\t%.3f\t%d\n", entry.getKey(), metrics.getInferenceDocuments(),
+              metrics.getInferenceEntities(), metrics.getInferenceMillisPerDocument(), _models.numLoads(entry.getKey())));
+        }
+      }
+      exchange.getResponseHeaders().set("X-Loaded-MB", String.valueOf(_models.loadedBytes() >> 20));
+      exchange.getResponseHeaders().set("X-Evictions", String.valueOf(_models.numEvictions()));
+      respond(exchange, 200, sb.toString());
+    }
+  }
+
+  public static void main(String[] args) {
+    InferenceServer server = new InferenceServer(args);
+    try {
+      server.start();
+    } catch( IOException ex ) {
+      System.err.println("Could not start the server.");
+      ex.printStackTrace();
+      System.exit(1);
+    }
+  }
+}
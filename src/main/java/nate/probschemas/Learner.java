@@ -1,15 +1,17 @@
 package nate.probschemas;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
 import edu.stanford.nlp.stats.ClassicCounter;
 import edu.stanford.nlp.stats.Counter;
-import nate.util.Pair;
 import nate.muc.MUCKeyReader;
 import nate.muc.KeyReader;
 import nate.ProcessedData;
@@ -26,6 +28,9 @@ import nate.util.TreeOperator;
  * 
  * Learner -topics <int> [-n <int>] [-d <int>] [-ir <int>] [-avg] -train <data-dir>,<data-dir>,etc.
  * Learner -model <filepath> -key <path> [-p <double>] [-m <int>] <data-dir>
+ * Learner -update <filepath> -train <data-dir> [-updatesteps <int>] [-rejuvenate <int>] [-outmodel <name>]
+ * Learner -coordinator <port> -workers <int> [-staleness <int>] -topics <int> -n <int> [-outmodel <name>]
+ * Learner -worker <host:port> -topics <int> -train <data-dir>
  * 
  * LEARNING
  * -train   : The directory containing text processed files.
@@ -46,12 +51,47 @@ import nate.util.TreeOperator;
  * -sd      : Dirichlet smoothing parameter for deps in the sampler.
  * -sv      : Dirichlet smoothing parameter for verbs in the sampler. Also, if this is used, it turns on the verbs variable in the graphical model.
  * -sf      : Dirichlet smoothing parameter for entity features in the sampler.
+ * -checkpoint      : Save the sampler state to this file while sampling.
+ * -checkpointevery : Number of iterations between checkpoints (default 50).
+ * -resume          : Resume sampling from the -checkpoint file, if it exists.
+ * -metrics         : Append per-iteration sampler metrics to this file as JSON lines.
+ *                    The same metrics are always available over JMX (nate.probschemas:type=SamplerMetrics).
+ * -corpusdir       : Keep the sampler's corpus off the heap, in a memory-mapped file in this directory.
+ *                    The file is deleted when the run ends.
+ * -skipcache       : Don't read or write the entity caches. The training documents are then kept on
+ *                    the heap, instead of being streamed from the cache into the sampler.
+ * 
+ * UPDATING
+ * -update      : A trained model to add the -train documents to. Documents it already has are skipped.
+ *                Only the new documents are sampled, so the old ones keep their labels.
+ *                The model is saved to -out/-outmodel if given, or overwritten otherwise.
+ * -updatesteps : The number of sampling iterations over the new documents (default 50).
+ * -rejuvenate  : The number of random old documents to resample in each iteration (default 0).
+ * 
+ * DISTRIBUTED
+ * -coordinator : Coordinate a distributed run on this port. Takes the sampler flags (-topics, -n, etc.)
+ *               but no data, and saves the model like a normal run. See SamplerCoordinator.
+ * -workers     : The number of workers the coordinator waits for (default 1).
+ * -staleness   : The number of iterations workers sample between syncs (default 1).
+ * -worker      : Sample a shard of the -train documents for the coordinator at this host:port.
+ *                Give it the same sampler flags as the coordinator.
+ * 
+ * SWEEPS
+ * -sweep    : A grid file of parameter values to try, one flag per line (e.g., "-sw 1.0 3.0 5.0").
+ *             The data is loaded once and every combination is trained and evaluated.
+ * -sweepout : The results table of the sweep (default sweep-results.tsv). Rerunning resumes it.
+ * -threads  : The number of sweep jobs to run at once (default: based on cores and memory).
+ *             Also the number of documents filtered at once when loading entities.
  * 
  * INFERENCE
  * -model  : The pretrained model to load. If given, runs inference instead of training.
  * -key    : The gold answers from MUC to evaluate against.
  * -p      : Inference...the minimum probability an entity must be labeled.
  * -m      : Inference...the max number of entities mapped to any given role.
+ * -foldin      : Inference...label with this many fold-in Gibbs iterations per document, instead of
+ *                each entity's most probable role (default 0, off).
+ * -foldinburn  : Inference...fold-in iterations before role samples are counted (default half of -foldin).
+ * -inferthreads: Inference...number of documents inferred at once (default: number of cores).
  * 
  * EXAMPLES
  * java nate.probschemas.Learner -topics 25 -m 10 -ir 100 kidnap/
@@ -60,11 +100,13 @@ import nate.util.TreeOperator;
  */
 public class Learner {
 //  IRDocuments ir;
-  List<List<TextEntity>> _trainDocsEntities;
+  List<List<TextEntity>> _trainDocsEntities; // null until needed if the docs are in _trainDocs, see trainDocsEntities()
   List<String> _trainDocsNames;
+  CachedDocuments _trainDocs; // the training docs in the entity cache, null with -skipcache
   List<List<TextEntity>> _testDocsEntities;
   List<String> _testDocsNames;
   ProcessedData _loadedTrainData;
+  KeyReader _answerKey; // loaded once on first use
 
   // Set to true to use GibbsSamplerWorkshop instead of the full model GibbsSamplerEntities
   boolean _workshop = false;
@@ -101,6 +143,25 @@ public class Learner {
   boolean _debugOn = false;
   boolean _evaluateOnlyTemplateDocs = false; // if true, artificially hide documents in test set that aren't labeled
   boolean _evaluateIgnoreSchemas = false;    // if true, map any learned role to any slot and ignore schema clusterings
+  String _sweepGridPath = null;
+  String _sweepOutPath = "sweep-results.tsv";
+  int _numThreads = 0; // 0 means the sweep picks its own number of worker threads
+  String _checkpointPath = null;
+  int _checkpointInterval = 50;
+  String _corpusDir = null; // if set, samplers keep their corpus in memory-mapped files in this directory
+  int _coordinatorPort = -1;         // if set, coordinate a distributed run on this port
+  int _numWorkers = 1;
+  int _staleness = 1;                // iterations between syncs of a distributed run
+  String _coordinatorAddress = null; // if set, sample as a worker of the coordinator at this host:port
+  boolean _resume = false;
+  String _metricsPath = null;
+  String _updateModelPath = null;
+  int _updateSteps = 50;
+  int _rejuvenateDocs = 0;
+  int _foldInSteps = 0;
+  int _foldInBurnIn = -1;
+  int _inferThreads = Runtime.getRuntime().availableProcessors();
+  SamplerMetrics _samplerMetrics = null, _inferenceMetrics = null; // created on first use
   
     //  final String[] _types = { "KIDNAP", "BOMBING", "ATTACK", "FORCED WORK STOPPAGE", "ROBBERY", "ARSON" };
 
@@ -113,40 +174,7 @@ public class Learner {
       System.exit(-1);
     }
     
-    if( params.hasFlag("-topics") ) _numTopics        = Integer.parseInt(params.get("-topics"));
-    if( params.hasFlag("-plates") ) _numTemplates     = Integer.parseInt(params.get("-plates"));
-    if( params.hasFlag("-templates") ) _numTemplates  = Integer.parseInt(params.get("-templates"));
-    if( params.hasFlag("-jtopics") ) _numJunkTopics   = Integer.parseInt(params.get("-jtopics"));
-    if( params.hasFlag("-jplates") ) _numJunkTemplates= Integer.parseInt(params.get("-jplates"));
-    if( params.hasFlag("-dtheta") || params.hasFlag("-dthetas") ) _thetasInDoc      = true;
-    if( params.hasFlag("-n") )      _sampleSteps      = Integer.parseInt(params.get("-n"));
-    if( params.hasFlag("-d") )      _numTrainingDocs  = Integer.parseInt(params.get("-d"));
-    if( params.hasFlag("-c") )      _minDepCounts     = Integer.parseInt(params.get("-c"));
-    if( params.hasFlag("-cdoc") )   _minDocCounts     = Integer.parseInt(params.get("-cdoc"));
-    if( params.hasFlag("-sd") )     _depSmoothing 	  = Double.parseDouble(params.get("-sd"));
-    if( params.hasFlag("-sw") )     _wordSmoothing 	  = Double.parseDouble(params.get("-sw"));
-    if( params.hasFlag("-sf") )     _featSmoothing    = Double.parseDouble(params.get("-sf"));
-    if( params.hasFlag("-sv") )     _verbSmoothing    = Double.parseDouble(params.get("-sv"));
-    if( params.hasFlag("-noent"))   _includeEntFeats  = false;
-    if( params.hasFlag("-noconstraints")) _constrainInverseDeps = false;
-    if( params.hasFlag("-avg") )    _learnAndInfer    = true;
-    if( params.hasFlag("-isamp") )  _inferBySampler   = true;
-    if( params.hasFlag("-isolated") ) _ignoreIsolated = true;
-    if( params.hasFlag("-model") )  _modelPath        = params.get("-model");
-    if( params.hasFlag("-p") )      _inferMinProb     = Double.parseDouble(params.get("-p"));
-    if( params.hasFlag("-m") )      _inferMaxEntities = Integer.parseInt(params.get("-m"));
-    if( params.hasFlag("-roles") )	_inferMaxRolesPerSlot = Integer.parseInt(params.get("-roles"));
-    if( params.hasFlag("-ir") && Integer.parseInt(params.get("-ir")) > 0 ) {  _doIR = true; _numIRDocs = Integer.parseInt(params.get("-ir"));  }
-    if( params.hasFlag("-debug") )  _debugOn          = true;
-    if( params.hasFlag("-evaleasy") )          _evaluateOnlyTemplateDocs = true;
-    if( params.hasFlag("-evalignoreschemas") ) _evaluateIgnoreSchemas = true;
-    if( params.hasFlag("-out") )    _modelOutDir      = params.get("-out");
-    if( params.hasFlag("-outmodel") ) _modelOutName   = params.get("-outmodel");
-    if( params.hasFlag("-test") )   _testDataDir      = params.get("-test");
-    if( params.hasFlag("-testkey")) _testKeyPath      = params.get("-testkey");
-    if( params.hasFlag("-train") )   _trainDataDir      = params.get("-train");
-    if( params.hasFlag("-skipcache")) _skipCache      = true;
-    if( params.hasFlag("-workshop"))  _workshop       = true;
+    setParameters(params);
 
     System.out.println("smoothing: " + _wordSmoothing + "\t" + _depSmoothing + "\t" + _featSmoothing);
     System.out.println("Use Entity Model:\t" + _sampleEntityModel);
@@ -195,14 +223,133 @@ public class Learner {
   }
 
   /**
-   * Populates the _trainDocsEntities variable based on this data directory.
+   * Copy all settings from another learner, and share its loaded training documents. The
+   * test documents are copied so that inference on this learner labels its own entity
+   * objects and not the other learner's.
+   * @param other The learner that already loaded the data.
+   */
+  Learner(Learner other) {
+    _trainDocsEntities = other.trainDocsEntities();
+    _trainDocsNames = other._trainDocsNames;
+    _trainDocs = other._trainDocs;
+    _testDocsNames = other._testDocsNames;
+    _testDocsEntities = (other._testDocsEntities == null ? null : TextEntity.copyWithoutLabels(other._testDocsEntities));
+    _loadedTrainData = other._loadedTrainData;
+    _answerKey = other._answerKey;
+    _workshop = other._workshop;
+    _sampleEntityModel = other._sampleEntityModel;
+    _doIR = other._doIR;
+    _learnAndInfer = other._learnAndInfer;
+    _includeEntFeats = other._includeEntFeats;
+    _constrainInverseDeps = other._constrainInverseDeps;
+    _thetasInDoc = other._thetasInDoc;
+    _numIRDocs = other._numIRDocs;
+    _numTrainingDocs = other._numTrainingDocs;
+    _minDepCounts = other._minDepCounts;
+    _minDocCounts = other._minDocCounts;
+    _numTopics = other._numTopics;
+    _numTemplates = other._numTemplates;
+    _numJunkTopics = other._numJunkTopics;
+    _numJunkTemplates = other._numJunkTemplates;
+    _sampleSteps = other._sampleSteps;
+    _inferMinProb = other._inferMinProb;
+    _inferMaxEntities = other._inferMaxEntities;
+    _inferMaxRolesPerSlot = other._inferMaxRolesPerSlot;
+    _modelPath = other._modelPath;
+    _inferBySampler = other._inferBySampler;
+    _ignoreIsolated = other._ignoreIsolated;
+    _trainDataDir = other._trainDataDir;
+    _testDataDir = other._testDataDir;
+    _testKeyPath = other._testKeyPath;
+    _modelOutDir = other._modelOutDir;
+    _modelOutName = other._modelOutName;
+    _skipCache = other._skipCache;
+    _corpusDir = other._corpusDir;
+    _depSmoothing = other._depSmoothing;
+    _wordSmoothing = other._wordSmoothing;
+    _featSmoothing = other._featSmoothing;
+    _verbSmoothing = other._verbSmoothing;
+    _debugOn = other._debugOn;
+    _evaluateOnlyTemplateDocs = other._evaluateOnlyTemplateDocs;
+    _evaluateIgnoreSchemas = other._evaluateIgnoreSchemas;
+    _foldInSteps = other._foldInSteps;
+    _foldInBurnIn = other._foldInBurnIn;
+    _inferenceMetrics = other.getInferenceMetrics();
+  }
+
+  /**
+   * Read the command-line flags into this learner's settings. Flags that are not given
+   * leave the current settings untouched, so this can also apply overrides on top of an
+   * already configured learner (see ParameterSweep).
+   */
+  void setParameters(HandleParameters params) {
+    if( params.hasFlag("-topics") ) _numTopics        = Integer.parseInt(params.get("-topics"));
+    if( params.hasFlag("-plates") ) _numTemplates     = Integer.parseInt(params.get("-plates"));
+    if( params.hasFlag("-templates") ) _numTemplates  = Integer.parseInt(params.get("-templates"));
+    if( params.hasFlag("-jtopics") ) _numJunkTopics   = Integer.parseInt(params.get("-jtopics"));
+    if( params.hasFlag("-jplates") ) _numJunkTemplates= Integer.parseInt(params.get("-jplates"));
+    if( params.hasFlag("-dtheta") || params.hasFlag("-dthetas") ) _thetasInDoc      = true;
+    if( params.hasFlag("-n") )      _sampleSteps      = Integer.parseInt(params.get("-n"));
+    if( params.hasFlag("-d") )      _numTrainingDocs  = Integer.parseInt(params.get("-d"));
+    if( params.hasFlag("-c") )      _minDepCounts     = Integer.parseInt(params.get("-c"));
+    if( params.hasFlag("-cdoc") )   _minDocCounts     = Integer.parseInt(params.get("-cdoc"));
+    if( params.hasFlag("-sd") )     _depSmoothing 	  = Double.parseDouble(params.get("-sd"));
+    if( params.hasFlag("-sw") )     _wordSmoothing 	  = Double.parseDouble(params.get("-sw"));
+    if( params.hasFlag("-sf") )     _featSmoothing    = Double.parseDouble(params.get("-sf"));
+    if( params.hasFlag("-sv") )     _verbSmoothing    = Double.parseDouble(params.get("-sv"));
+    if( params.hasFlag("-noent"))   _includeEntFeats  = false;
+    if( params.hasFlag("-noconstraints")) _constrainInverseDeps = false;
+    if( params.hasFlag("-avg") )    _learnAndInfer    = true;
+    if( params.hasFlag("-isamp") )  _inferBySampler   = true;
+    if( params.hasFlag("-isolated") ) _ignoreIsolated = true;
+    if( params.hasFlag("-model") )  _modelPath        = params.get("-model");
+    if( params.hasFlag("-p") )      _inferMinProb     = Double.parseDouble(params.get("-p"));
+    if( params.hasFlag("-m") )      _inferMaxEntities = Integer.parseInt(params.get("-m"));
+    if( params.hasFlag("-roles") )	_inferMaxRolesPerSlot = Integer.parseInt(params.get("-roles"));
+    if( params.hasFlag("-ir") && Integer.parseInt(params.get("-ir")) > 0 ) {  _doIR = true; _numIRDocs = Integer.parseInt(params.get("-ir"));  }
+    if( params.hasFlag("-debug") )  _debugOn          = true;
+    if( params.hasFlag("-evaleasy") )          _evaluateOnlyTemplateDocs = true;
+    if( params.hasFlag("-evalignoreschemas") ) _evaluateIgnoreSchemas = true;
+    if( params.hasFlag("-out") )    _modelOutDir      = params.get("-out");
+    if( params.hasFlag("-outmodel") ) _modelOutName   = params.get("-outmodel");
+    if( params.hasFlag("-test") )   _testDataDir      = params.get("-test");
+    if( params.hasFlag("-testkey")) _testKeyPath      = params.get("-testkey");
+    if( params.hasFlag("-train") )   _trainDataDir      = params.get("-train");
+    if( params.hasFlag("-skipcache")) _skipCache      = true;
+    if( params.hasFlag("-workshop"))  _workshop       = true;
+    if( params.hasFlag("-sweep") )  _sweepGridPath    = params.get("-sweep");
+    if( params.hasFlag("-sweepout") ) _sweepOutPath   = params.get("-sweepout");
+    if( params.hasFlag("-threads") ) _numThreads      = Integer.parseInt(params.get("-threads"));
+    if( params.hasFlag("-checkpoint") ) _checkpointPath = params.get("-checkpoint");
+    if( params.hasFlag("-corpusdir") ) _corpusDir     = params.get("-corpusdir");
+    if( params.hasFlag("-coordinator") ) _coordinatorPort = Integer.parseInt(params.get("-coordinator"));
+    if( params.hasFlag("-workers") ) _numWorkers      = Integer.parseInt(params.get("-workers"));
+    if( params.hasFlag("-staleness") ) _staleness     = Integer.parseInt(params.get("-staleness"));
+    if( params.hasFlag("-worker") ) _coordinatorAddress = params.get("-worker");
+    if( params.hasFlag("-checkpointevery") ) _checkpointInterval = Integer.parseInt(params.get("-checkpointevery"));
+    if( params.hasFlag("-resume") ) _resume           = true;
+    if( params.hasFlag("-metrics") ) _metricsPath     = params.get("-metrics");
+    if( params.hasFlag("-update") ) _updateModelPath  = params.get("-update");
+    if( params.hasFlag("-updatesteps") ) _updateSteps = Integer.parseInt(params.get("-updatesteps"));
+    if( params.hasFlag("-rejuvenate") ) _rejuvenateDocs = Integer.parseInt(params.get("-rejuvenate"));
+    if( params.hasFlag("-foldin") ) _foldInSteps      = Integer.parseInt(params.get("-foldin"));
+    if( params.hasFlag("-foldinburn") ) _foldInBurnIn = Integer.parseInt(params.get("-foldinburn"));
+    if( params.hasFlag("-inferthreads") ) _inferThreads = Integer.parseInt(params.get("-inferthreads"));
+
+  }
+
+  /**
+   * Populates the _trainDocsEntities variable based on this data directory. Training documents
+   * are only indexed in their entity cache (see _trainDocs) unless caching is off.
    * @param dataDir Path to a directory that contains the four preprocessed text files.
    */
   public void load(String dataDir, boolean loadIntoTest) {
 	  // Initialize the lists.
+	  List<String> cacheFiles = new ArrayList<String>();
 	  if( !loadIntoTest ) {
-		  _trainDocsEntities = new ArrayList<List<TextEntity>>();
+		  _trainDocsEntities = (_skipCache ? new ArrayList<List<TextEntity>>() : null);
 		  _trainDocsNames = new ArrayList<String>();
+		  _trainDocs = null;
 	  } else {
 		  _testDocsEntities = new ArrayList<List<TextEntity>>();
 		  _testDocsNames = new ArrayList<String>();
@@ -228,11 +375,25 @@ public class Learner {
 		  	loadFile(parsesFile, depsFile, eventsFile, nerFile, _testDocsNames, _testDocsEntities, loadIntoTest);
 			  System.out.println("Num test docs = " + _testDocsNames.size() + " and " + _testDocsEntities.size());
 		  }
+		  else if( !_skipCache )
+		  	cacheFiles.add(cacheTrainingFile(parsesFile, depsFile, eventsFile, nerFile));
 		  else {
 		  	loadFile(parsesFile, depsFile, eventsFile, nerFile, _trainDocsNames, _trainDocsEntities, loadIntoTest);
 			  System.out.println("Num training docs = " + _trainDocsNames.size() + " and " + _trainDocsEntities.size());
 		  }
 	  }
+
+	  // Index the training docs in their caches, to read them when they are needed.
+	  if( !loadIntoTest && !_skipCache ) {
+		  try {
+			  _trainDocs = new CachedDocuments(cacheFiles);
+		  } catch( IOException ex ) {
+			  System.out.println("ERROR: could not read the entity cache: " + ex);
+			  System.exit(1);
+		  }
+		  _trainDocsNames.addAll(_trainDocs.names());
+		  System.out.println("Num training docs = " + _trainDocsNames.size());
+	  }
   }
 
   /**
@@ -249,49 +410,66 @@ public class Learner {
   public void loadFile(String parsesPath, String depsPath, String eventsPath, String nerPath, List<String> docnames, List<List<TextEntity>> allentities, boolean loadIntoTest) {
 	  System.out.println("parses: " + parsesPath + " and deps: " + depsPath + " and events: " + eventsPath + "and ner: " + nerPath);
 	  DataSimplifier simplify = new DataSimplifier(_minDepCounts, _minDocCounts);
+	  if( _numThreads > 0 ) simplify.setNumThreads(_numThreads);
 
 	  // Read the data files from disk (IR needs this later).
 	  if( !loadIntoTest )
 		  _loadedTrainData = new ProcessedData(parsesPath, depsPath, eventsPath, nerPath);
 
-	  // Check the cache of this file. Read from there if we already processed it!
+	  // Read from the stage caches if we already processed these files. The raw entities are
+	  // cached by the input contents, the filtered ones also by the -c/-cdoc cutoffs.
 	  String cachePrefix = (loadIntoTest ? "test-" : "train-") + parsesPath;
-	  Pair<List<String>,List<List<TextEntity>>> cached = simplify.getCachedEntityList(cachePrefix);
-	  if( !_skipCache && cached != null ) {
-		  allentities.addAll(cached.second());
-		  docnames.addAll(cached.first());
-		  System.out.println("Cached number of docs in entity list: " + cached.second().size());
-		  System.out.println("Cached doc names: " + cached.first());
-		  System.out.println("Total doc names now " + docnames.size() + " with " + allentities.size() + " docs for entities (these numbers should be equal!).");
-	  }
-	  // Not cached yet.
-	  else {
-		  // Get the tokens and dependencies from this file.
-		  if( loadIntoTest ) {
-			  ProcessedData thedata = new ProcessedData(parsesPath, depsPath, eventsPath, nerPath);
-			  List<String> myDocnames = new ArrayList<String>();
-			  List<List<TextEntity>> docEntities = simplify.getEntityList(thedata, myDocnames, Integer.MAX_VALUE);
-			  docnames.addAll(myDocnames);
-			  allentities.addAll(docEntities);
-			  System.out.println("Loaded data into test.");
-			  // Write to cache.
-			  if( !_skipCache ) simplify.writeToCache(cachePrefix, myDocnames, docEntities);
-			  System.out.println("Past the cache writing.");
-		  }
-		  else {
-			  _loadedTrainData.nextStory();
-			  List<String> myDocnames = new ArrayList<String>();
-			  List<List<TextEntity>> docEntities = simplify.getEntityList(_loadedTrainData, myDocnames, Integer.MAX_VALUE); 
-			  docnames.addAll(myDocnames);
-			  allentities.addAll(docEntities);
-			  System.out.println("Loaded data into training.");
-			  // Write to cache.
-			  if( !_skipCache ) simplify.writeToCache(cachePrefix, myDocnames, docEntities);
-			  System.out.println("Past the cache writing.");
-		  }
-	  }
+	  ProcessedData thedata = (loadIntoTest ? new ProcessedData(parsesPath, depsPath, eventsPath, nerPath) : _loadedTrainData);
+	  List<String> myDocnames = new ArrayList<String>();
+	  List<List<TextEntity>> docEntities;
+	  if( !_skipCache )
+		  docEntities = simplify.getEntityListCached(cachePrefix, thedata, myDocnames, parsesPath, depsPath, eventsPath, nerPath);
+	  else
+		  docEntities = simplify.getEntityList(thedata, myDocnames, Integer.MAX_VALUE);
+	  docnames.addAll(myDocnames);
+	  allentities.addAll(docEntities);
+	  System.out.println("Loaded " + docEntities.size() + " docs into " + (loadIntoTest ? "test." : "training."));
+	  System.out.println("Total doc names now " + docnames.size() + " with " + allentities.size() + " docs for entities (these numbers should be equal!).");
   }
   
+  /**
+   * Like loadFile() for training data, but only makes sure that the entity cache of these
+   * files exists, without keeping the entities.
+   * @return The path of the cache file.
+   */
+  private String cacheTrainingFile(String parsesPath, String depsPath, String eventsPath, String nerPath) {
+	  System.out.println("parses: " + parsesPath + " and deps: " + depsPath + " and events: " + eventsPath + "and ner: " + nerPath);
+	  DataSimplifier simplify = new DataSimplifier(_minDepCounts, _minDocCounts);
+	  if( _numThreads > 0 ) simplify.setNumThreads(_numThreads);
+
+	  // Read the data files from disk (IR needs this later).
+	  _loadedTrainData = new ProcessedData(parsesPath, depsPath, eventsPath, nerPath);
+	  return simplify.getEntityCacheFile("train-" + parsesPath, _loadedTrainData, parsesPath, depsPath, eventsPath, nerPath);
+  }
+
+  /**
+   * @return The entities of all training docs, read from the entity cache on first use.
+   *         Training streams the docs instead (see trainDocuments()), so only the modes
+   *         that label or evaluate the training docs need these.
+   */
+  synchronized List<List<TextEntity>> trainDocsEntities() {
+    if( _trainDocsEntities == null && _trainDocs != null )
+      _trainDocsEntities = _trainDocs.loadAll();
+    return _trainDocsEntities;
+  }
+
+  /**
+   * @param docs Training doc numbers.
+   * @return The entities of the given training docs, from the heap if they are loaded, or else
+   *         read from the entity cache one doc at a time as they are iterated.
+   */
+  synchronized Iterable<List<TextEntity>> trainDocuments(List<Integer> docs) {
+    if( _trainDocsEntities == null ) return _trainDocs.documents(docs);
+    List<List<TextEntity>> entities = new ArrayList<List<TextEntity>>(docs.size());
+    for( int doc : docs ) entities.add(_trainDocsEntities.get(doc));
+    return entities;
+  }
+
   /**
    * 
    * @param ndocs The number of documents to retrieve and add to training.
@@ -346,6 +524,18 @@ public class Learner {
   }
 
   public GibbsSamplerEntities createSampler(List<String> docnames, List<List<TextEntity>> docsEntities) {
+    GibbsSamplerEntities sampler = newSampler();
+    sampler.initializeModelFromData(docnames, docsEntities);
+    //      sampler.runSampler(_sampleSteps/2);
+    //      sampler.printWordDistributionsPerTopic();
+
+    return sampler;
+  }
+
+  /**
+   * @return A sampler with this learner's settings, not yet given any documents.
+   */
+  private GibbsSamplerEntities newSampler() {
     GibbsSamplerEntities sampler;
     if( _workshop ) {
       sampler = new GibbsSamplerWorkshop(_numTopics, _numJunkTopics, _numTemplates, _numJunkTemplates);
@@ -357,14 +547,14 @@ public class Learner {
     if( _wordSmoothing >= 0.0 ) sampler.wSmoothing = _wordSmoothing;
     if( _depSmoothing >= 0.0 ) sampler.depSmoothing = _depSmoothing;
     if( _featSmoothing >= 0.0 ) sampler.featSmoothing = _featSmoothing;
-    if( _verbSmoothing > 0.0 ) { sampler.includeVerbs = true; sampler.verbSmoothing = _verbSmoothing; }
+    if( _verbSmoothing > 0.0 && !_workshop ) { sampler.includeVerbs = true; sampler.verbSmoothing = _verbSmoothing; }
     sampler.includeEntityFeatures = _includeEntFeats;
     sampler.constrainInverseDeps = _constrainInverseDeps;
     sampler.thetasInDoc = _thetasInDoc;
-    sampler.initializeModelFromData(docnames, docsEntities);
-    //      sampler.runSampler(_sampleSteps/2);
-    //      sampler.printWordDistributionsPerTopic();
-
+    sampler.checkpointPath = _checkpointPath;
+    sampler.corpusDir = _corpusDir;
+    sampler.checkpointInterval = _checkpointInterval;
+    sampler.metrics = getSamplerMetrics();
     return sampler;
   }
   
@@ -375,14 +565,26 @@ public class Learner {
    * @param fillNames The list of document names selected.
    * @param fillEntities The entity lists for each document selected.
    */
-  private void getRandomDocsFromTrain(int num, List<String> fillNames, List<List<TextEntity>> fillEntities) {
+  void getRandomDocsFromTrain(int num, List<String> fillNames, List<List<TextEntity>> fillEntities) {
+    List<List<TextEntity>> entities = trainDocsEntities();
+    for( int doc : randomDocsFromTrain(num) ) {
+      fillNames.add(_trainDocsNames.get(doc));
+      fillEntities.add(entities.get(doc));
+    }
+  }
+
+  /**
+   * @param num The number of random documents to select.
+   * @return The numbers of num random training docs, in order, or of all of them if there
+   *         aren't more than num.
+   */
+  List<Integer> randomDocsFromTrain(int num) {
+    List<Integer> docs = new ArrayList<Integer>();
     // Asked for more docs than we have, so just return them all.
     if( num >= _trainDocsNames.size() ) {
-      for( int ii = 0; ii < _trainDocsNames.size(); ii++ ) {
-        fillNames.add(_trainDocsNames.get(ii));
-        fillEntities.add(_trainDocsEntities.get(ii));
-      }
-      return;
+      for( int ii = 0; ii < _trainDocsNames.size(); ii++ )
+        docs.add(ii);
+      return docs;
     }
     
     // Asked for less docs than we have, so randomly sample.
@@ -398,11 +600,31 @@ public class Learner {
     System.out.println("Wanted " + num + " random docs, drew " + docids.size() + " docs.");
     
     for( int ii = 0; ii < _trainDocsNames.size(); ii++ ) {
-      if( docids.contains(ii) ) {
-        fillNames.add(_trainDocsNames.get(ii));
-        fillEntities.add(_trainDocsEntities.get(ii));
+      if( docids.contains(ii) )
+        docs.add(ii);
+    }
+    return docs;
+  }
+
+  /**
+   * @param names The document names to find.
+   * @return The numbers of the training docs with the given names, in the order of the names.
+   */
+  private List<Integer> namedDocsFromTrain(List<String> names) {
+    Map<String,Integer> nameToIndex = new HashMap<String,Integer>();
+    for( int ii = 0; ii < _trainDocsNames.size(); ii++ )
+      nameToIndex.put(_trainDocsNames.get(ii), ii);
+    
+    List<Integer> docs = new ArrayList<Integer>();
+    for( String name : names ) {
+      Integer index = nameToIndex.get(name);
+      if( index == null ) {
+        System.out.println("ERROR: document " + name + " is not in the training data.");
+        System.exit(1);
       }
+      docs.add(index);
     }
+    return docs;
   }
 
   /**
@@ -410,7 +632,7 @@ public class Learner {
    * This function adds all test to the train. Sometimes the test and the train are the same thing, so
    * this function does not add any test docs that are already in train.
    */
-  private void addDocsNoRepeats(List<String> names, List<List<TextEntity>> entities, List<String> newNames, List<List<TextEntity>> newEntities) {
+  void addDocsNoRepeats(List<String> names, List<List<TextEntity>> entities, List<String> newNames, List<List<TextEntity>> newEntities) {
     if( newNames != null ) {
       // Loop over each new document.
       for( int ii = 0; ii < newNames.size(); ii++ ) {
@@ -428,7 +650,34 @@ public class Learner {
     }
   }
   
-  private KeyReader getAnswerKey() {
+  /**
+   * @return The metrics that this learner's samplers report to, registered with JMX on first use.
+   */
+  SamplerMetrics getSamplerMetrics() {
+    if( _samplerMetrics == null ) _samplerMetrics = SamplerMetrics.create("sampler");
+    return _samplerMetrics;
+  }
+
+  /**
+   * @return The metrics that this learner's inference reports to, registered with JMX on first use.
+   */
+  SamplerMetrics getInferenceMetrics() {
+    if( _inferenceMetrics == null ) _inferenceMetrics = SamplerMetrics.create("inference");
+    return _inferenceMetrics;
+  }
+
+  /**
+   * Set up a new Inference object with this learner's metrics and fold-in settings.
+   */
+  void configureInference(Inference infer) {
+    infer.metrics = getInferenceMetrics();
+    infer._foldInSteps = _foldInSteps;
+    infer._foldInBurnIn = _foldInBurnIn;
+  }
+
+  KeyReader getAnswerKey() {
+    if( _answerKey != null ) return _answerKey;
+    
     // Load the answer key for MUC or Corporate Acq.
     KeyReader answerKey = null;
     String keypath = _testKeyPath;
@@ -436,6 +685,7 @@ public class Learner {
       answerKey = new MUCKeyReader(keypath);
     else 
       System.out.println("ERROR (Learner.java) getAnswerKey() only runs 'muc'");
+    _answerKey = answerKey;
     return answerKey;
   }
   
@@ -673,10 +923,10 @@ public class Learner {
     KeyReader answerKey = getAnswerKey();
     
     // Set the appropriate test set (train set often is the test set during development)
-    List<List<TextEntity>> testEntities = _trainDocsEntities;
-    List<String> testDocnames = _trainDocsNames;
-    if( _testDocsEntities != null ) testEntities = _testDocsEntities;
-    if( _testDocsEntities != null ) testDocnames = _testDocsNames;
+    List<List<TextEntity>> testEntities = _testDocsEntities;
+    List<String> testDocnames = _testDocsNames;
+    if( _testDocsEntities == null ) testEntities = trainDocsEntities();
+    if( _testDocsEntities == null ) testDocnames = _trainDocsNames;
                                     
     // Sum up all the F1 scores and then average them!
     double[] sumPRF1 = { 0, 0, 0 };
@@ -705,6 +955,7 @@ public class Learner {
 
       // Infer
       Inference infer = new Inference((GibbsSamplerEntities)sampler, _inferMaxEntities, _inferMinProb);
+      configureInference(infer);
       EvaluateModel evaluator = new EvaluateModel(infer.sampler.numTopics, answerKey);
       evaluator._debugOn = _debugOn;
 
@@ -835,20 +1086,37 @@ public class Learner {
     */
     
     // Sanity check.
-    if( _trainDocsNames.size() != _trainDocsEntities.size() ) {
+    if( _trainDocsEntities != null && _trainDocsNames.size() != _trainDocsEntities.size() ) {
       System.out.println("ERROR: names and entities lists not the same size: " + _trainDocsNames.size() + " " + _trainDocsEntities.size());
       System.exit(-1);
     }
     
-    // Select random subset of the training set (if desired).
-    List<String> docsNames = new ArrayList<String>();
-    List<List<TextEntity>> docsEntities = new ArrayList<List<TextEntity>>();
-    getRandomDocsFromTrain(_numTrainingDocs, docsNames, docsEntities);
+    // Resume from a checkpoint, if asked to and one exists.
+    SamplerCheckpoint checkpoint = null;
+    if( _resume && _checkpointPath != null ) {
+      checkpoint = SamplerCheckpoint.fromFile(_checkpointPath);
+      if( checkpoint == null ) System.out.println("No checkpoint to resume at " + _checkpointPath + ", starting from scratch.");
+    }
 
-    // Create the sampler.
-    GibbsSamplerEntities sampler = createSampler(docsNames, docsEntities);    
+    // Select random subset of the training set (if desired), or the checkpoint's documents.
+    List<Integer> docs = (checkpoint != null ? namedDocsFromTrain(checkpoint.docNames) : randomDocsFromTrain(_numTrainingDocs));
+    List<String> docsNames = new ArrayList<String>();
+    for( int doc : docs ) docsNames.add(_trainDocsNames.get(doc));
+
+    // Create the sampler. The docs are streamed from the entity cache if they aren't loaded,
+    // so only the sampler's corpus is kept while it runs.
+    GibbsSamplerEntities sampler = newSampler();
+    sampler.initializeModelFromData(docsNames, trainDocuments(docs));
+    if( _trainDocs != null ) _trainDocs.close();
+    if( checkpoint != null )
+      sampler.restoreCheckpoint(checkpoint);
     sampler.runSampler(_sampleSteps);
     sampler.printWordDistributionsPerTopic();
+    saveModel(sampler);
+    return sampler;
+  }
+
+  private void saveModel(GibbsSamplerEntities sampler) {
     if( _modelOutName != null )
       sampler.toFile(_modelOutDir + File.separator + _modelOutName);
     else {
@@ -857,6 +1125,73 @@ public class Learner {
       		(_numTrainingDocs == Integer.MAX_VALUE ? "" : _numTrainingDocs) + 
           "-ir" + _numIRDocs + "-plates" + _numTemplates + "-topics" + _numTopics + "-jp" + _numJunkTemplates + "-jt" + _numJunkTopics + ".model");
     }
+  }
+
+  /**
+   * Coordinate a distributed training run: wait for the -workers workers, merge their count
+   * tables while they sample, and save the model built from their final state.
+   * @return The trained model, with every worker's documents as its corpus.
+   */
+  public GibbsSamplerEntities coordinate() {
+    System.out.println("Time to coordinate " + _numWorkers + " workers!");
+    if( _modelOutName == null )
+      _modelOutName = "sampler-distributed-plates" + _numTemplates + "-topics" + _numTopics + "-jp" + _numJunkTemplates + "-jt" + _numJunkTopics + ".model";
+    GibbsSamplerEntities sampler = newSampler();
+    new SamplerCoordinator(_coordinatorPort, _numWorkers, _sampleSteps, _staleness).run(sampler);
+    sampler.printWordDistributionsPerTopic();
+    saveModel(sampler);
+    return sampler;
+  }
+
+  /**
+   * Sample this worker's shard of the training documents, as part of a distributed run. Only
+   * the shard is read from the entity cache, once the coordinator has assigned it.
+   */
+  public void work() {
+    System.out.println("Time to work for the coordinator at " + _coordinatorAddress);
+    new SamplerWorker(_coordinatorAddress).run(newSampler(), _trainDocsNames, new SamplerWorker.Documents() {
+      public Iterable<List<TextEntity>> get(List<Integer> docs) { return trainDocuments(docs); }
+    });
+  }
+
+  /**
+   * Load a trained model, add the training documents that it doesn't have yet, and sample
+   * just those. Saves the updated model.
+   * @return The updated sampler.
+   */
+  public GibbsSamplerEntities update() {
+    System.out.println("Time to update " + _updateModelPath);
+    GibbsSamplerEntities sampler = GibbsSamplerEntities.fromFile(_updateModelPath);
+    if( sampler == null ) {
+      System.out.println("ERROR: could not load the model " + _updateModelPath);
+      System.exit(1);
+    }
+    sampler.metrics = getSamplerMetrics();
+    sampler.corpusDir = _corpusDir;
+
+    // Only add documents that the model was not trained on.
+    Set<String> known = new HashSet<String>(sampler.docNames);
+    List<String> newNames = new ArrayList<String>();
+    List<Integer> newDocs = new ArrayList<Integer>();
+    for( int ii = 0; ii < _trainDocsNames.size(); ii++ ) {
+      if( !known.contains(_trainDocsNames.get(ii)) ) {
+        newNames.add(_trainDocsNames.get(ii));
+        newDocs.add(ii);
+      }
+    }
+    // Only the new docs are read from the entity cache.
+    List<List<TextEntity>> newEntities = new ArrayList<List<TextEntity>>();
+    for( List<TextEntity> doc : trainDocuments(newDocs) )
+      newEntities.add(doc);
+    System.out.println("Update: " + newNames.size() + " new docs, " + (_trainDocsNames.size() - newNames.size()) + " already in the model.");
+    if( newNames.size() == 0 )
+      return sampler;
+
+    sampler.addDocuments(newNames, newEntities, _updateSteps, _rejuvenateDocs);
+    if( _modelOutName != null )
+      sampler.toFile(_modelOutDir + File.separator + _modelOutName);
+    else
+      sampler.toFile(_updateModelPath);
     return sampler;
   }
 
@@ -869,6 +1204,7 @@ public class Learner {
   public void runInference() {
     System.out.println("Time to infer!");
     Inference infer = new Inference(_modelPath, _inferMaxEntities, _inferMinProb);
+    configureInference(infer);
     final int[] maxPerRoles = { 1, 2, 3, 4 };
     final double[] probs = { .9, .8, .7, .6, .5, .4, .3 };
 //    final int[] maxPerRoles = {  3 };
@@ -880,14 +1216,17 @@ public class Learner {
     KeyReader answerKey = getAnswerKey();
     
     // Set the appropriate test set (train set often is the test set during development)
-    List<List<TextEntity>> testEntities = _trainDocsEntities;
-    List<String> testDocnames = _trainDocsNames;
-    if( _testDocsEntities != null ) testEntities = _testDocsEntities;
-    if( _testDocsEntities != null ) testDocnames = _testDocsNames;
+    List<List<TextEntity>> testEntities = _testDocsEntities;
+    List<String> testDocnames = _testDocsNames;
+    if( _testDocsEntities == null ) testEntities = trainDocsEntities();
+    if( _testDocsEntities == null ) testDocnames = _trainDocsNames;
     
     EvaluateModel evaluator = new EvaluateModel(infer.sampler.numTopics, answerKey);
     evaluator._debugOn = _debugOn;
 
+    // The role distributions don't depend on the thresholds, so compute them once.
+    double[][][] entityDists = infer.getEntityDistributions(testEntities, _inferThreads);
+
     // Try different thresholds for the max per role map and the minimum acceptable probability.
     for( int maxPerRole : maxPerRoles ) {
       prf1s[ii] = new double[probs.length][];
@@ -913,7 +1252,7 @@ public class Learner {
 //          if( (likelihood/doc.size()) > -13.0 )
           
           System.out.println("label entities doc " + testDocnames.get(doci));
-          infer.labelEntities(doc, _debugOn);
+          infer.labelEntities(doc, entityDists[doci], _debugOn);
           doci++;
         }
 
@@ -945,8 +1284,18 @@ public class Learner {
    */
   public static void main(String[] args) {
     Learner learner = new Learner(args);
+    if( learner._metricsPath != null )
+      SamplerMetrics.setJsonLinesPath(learner._metricsPath);
     
-    if( learner._modelPath != null ) {
+    if( learner._sweepGridPath != null )
+      new ParameterSweep(learner, learner._sweepGridPath, learner._sweepOutPath, learner._numThreads).run();
+    else if( learner._coordinatorPort > -1 )
+      learner.coordinate();
+    else if( learner._coordinatorAddress != null )
+      learner.work();
+    else if( learner._updateModelPath != null )
+      learner.update();
+    else if( learner._modelPath != null ) {
       if( learner._inferBySampler )
       	learner.inferUsingSampledData(null);
       else
@@ -0,0 +1,232 @@
+package nate.probschemas;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An EntityCorpus whose arrays are in a memory-mapped file instead of on the heap, so the
+ * sampler's copy of a very large training set costs page cache and not -Xmx. The OS pages
+ * the file in as the sampler sweeps over it.
+ *
+ * The file is sized for a given number of documents, entities and mentions when it is created.
+ * reserve() moves the corpus to a new, larger file. The file is scratch space: it is deleted
+ * when the JVM exits, and serializing the corpus (e.g. saving the sampler) writes a plain
+ * EntityCorpus in its place.
+ *
+ * File layout: a header of ints (magic, version, docs, entities, mentions, verbs flag), then
+ * the docStarts, mentionStarts, words, feats, deps, inverseDeps and verbs sections, each
+ * sized to its capacity.
+ */
+public class MappedEntityCorpus extends EntityCorpus {
+  static final long serialVersionUID = 10000;
+  private static final int MAGIC = 0x45435250; // "ECRP"
+  private static final int VERSION = 1;
+  private static final int HEADER_INTS = 6;
+
+  private transient File file;
+  private transient boolean includeVerbs;
+  private transient int numDocs = 0;
+  private transient int numEntities = 0;
+  private transient int numMentions = 0;
+  private transient int docCapacity, entityCapacity, mentionCapacity;
+  private transient IntBuffer header;
+  private transient IntBuffer docStarts;      // [doc]     doc d has entities docStarts[d] to docStarts[d+1]-1
+  private transient IntBuffer mentionStarts;  // [entity]  entity e has mentions mentionStarts[e] to mentionStarts[e+1]-1
+  private transient IntBuffer words;          // [entity]
+  private transient ByteBuffer feats;         // [entity]
+  private transient IntBuffer deps;           // [mention]
+  private transient IntBuffer inverseDeps;    // [mention]
+  private transient IntBuffer verbs;          // [mention] null if verbs are not used
+
+  /**
+   * Create an empty corpus in a new file in the given directory.
+   * @param dir The directory for the file, or null for the system temp directory.
+   */
+  public MappedEntityCorpus(String dir, boolean includeVerbs, int numDocs, int numEntities, int numMentions) {
+    this.includeVerbs = includeVerbs;
+    map(dir, numDocs, numEntities, numMentions);
+  }
+
+  /**
+   * Create and map a new file with room for the given counts, replacing the current one.
+   */
+  private void map(String dir, int docCap, int entityCap, int mentionCap) {
+    // The feats section is padded so the int sections after it stay aligned.
+    long[] sizes = { 4L*HEADER_INTS, 4L*(docCap+1), 4L*(entityCap+1), 4L*entityCap, 4L*((entityCap+3L)/4),
+        4L*mentionCap, 4L*mentionCap, (includeVerbs ? 4L*mentionCap : 0) };
+    long total = 0;
+    for( long size : sizes ) {
+      if( size > Integer.MAX_VALUE ) {
+        System.out.println("ERROR: MappedEntityCorpus section of " + size + " bytes is larger than one mapping allows.");
+        System.exit(1);
+      }
+      total += size;
+    }
+
+    try {
+      File newFile = File.createTempFile("entitycorpus-", ".bin", (dir == null ? null : new File(dir)));
+      newFile.deleteOnExit();
+      RandomAccessFile raf = new RandomAccessFile(newFile, "rw");
+      try {
+        raf.setLength(total);
+        FileChannel channel = raf.getChannel();
+        long pos = 0;
+        ByteBuffer[] sections = new ByteBuffer[sizes.length];
+        for( int ii = 0; ii < sizes.length; ii++ ) {
+          sections[ii] = channel.map(FileChannel.MapMode.READ_WRITE, pos, sizes[ii]).order(ByteOrder.nativeOrder());
+          pos += sizes[ii];
+        }
+        // The mappings stay valid after the file is closed.
+        IntBuffer newHeader = sections[0].asIntBuffer();
+        IntBuffer newDocStarts = sections[1].asIntBuffer();
+        IntBuffer newMentionStarts = sections[2].asIntBuffer();
+        IntBuffer newWords = sections[3].asIntBuffer();
+        ByteBuffer newFeats = sections[4];
+        IntBuffer newDeps = sections[5].asIntBuffer();
+        IntBuffer newInverseDeps = sections[6].asIntBuffer();
+        IntBuffer newVerbs = (includeVerbs ? sections[7].asIntBuffer() : null);
+
+        // Copy over what is already stored.
+        if( file != null ) {
+          copy(docStarts, newDocStarts, numDocs+1);
+          copy(mentionStarts, newMentionStarts, numEntities+1);
+          copy(words, newWords, numEntities);
+          for( int ii = 0; ii < numEntities; ii++ ) newFeats.put(ii, feats.get(ii));
+          copy(deps, newDeps, numMentions);
+          copy(inverseDeps, newInverseDeps, numMentions);
+          if( includeVerbs ) copy(verbs, newVerbs, numMentions);
+          file.delete();
+        }
+
+        file = newFile;
+        header = newHeader;
+        docStarts = newDocStarts;
+        mentionStarts = newMentionStarts;
+        words = newWords;
+        feats = newFeats;
+        deps = newDeps;
+        inverseDeps = newInverseDeps;
+        verbs = newVerbs;
+        docCapacity = docCap;
+        entityCapacity = entityCap;
+        mentionCapacity = mentionCap;
+        header.put(0, MAGIC);
+        header.put(1, VERSION);
+        header.put(5, (includeVerbs ? 1 : 0));
+        writeCounts();
+      } finally {
+        raf.close();
+      }
+    } catch( IOException ex ) {
+      System.out.println("ERROR: could not map the entity corpus in " + dir);
+      ex.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  private static void copy(IntBuffer from, IntBuffer to, int length) {
+    IntBuffer src = from.duplicate();
+    src.position(0);
+    src.limit(length);
+    IntBuffer dest = to.duplicate();
+    dest.position(0);
+    dest.put(src);
+  }
+
+  private void writeCounts() {
+    header.put(2, numDocs);
+    header.put(3, numEntities);
+    header.put(4, numMentions);
+  }
+
+  /**
+   * Move to a new file if there isn't room for this many more documents, entities and mentions.
+   */
+  public void reserve(int moreDocs, int moreEntities, int moreMentions) {
+    if( numDocs+moreDocs > docCapacity || numEntities+moreEntities > entityCapacity || numMentions+moreMentions > mentionCapacity )
+      map(file.getParent(), Math.max(docCapacity, numDocs+moreDocs), Math.max(entityCapacity, numEntities+moreEntities),
+          Math.max(mentionCapacity, numMentions+moreMentions));
+  }
+
+  private void full(String what, int capacity) {
+    System.out.println("ERROR: MappedEntityCorpus has room for " + capacity + " " + what + ", call reserve() first.");
+    System.exit(1);
+  }
+
+  public int startDocument() {
+    if( numDocs == docCapacity ) full("docs", docCapacity);
+    numDocs++;
+    docStarts.put(numDocs-1, numEntities);
+    docStarts.put(numDocs, numEntities);
+    return numDocs-1;
+  }
+
+  public int addEntity(int word, int featMask) {
+    if( numEntities == entityCapacity ) full("entities", entityCapacity);
+    words.put(numEntities, word);
+    feats.put(numEntities, (byte)featMask);
+    mentionStarts.put(numEntities, numMentions);
+    numEntities++;
+    mentionStarts.put(numEntities, numMentions);
+    docStarts.put(numDocs, numEntities);
+    return numEntities-1;
+  }
+
+  public void addMention(int dep, int inverseDep, int verb) {
+    if( numMentions == mentionCapacity ) full("mentions", mentionCapacity);
+    deps.put(numMentions, dep);
+    inverseDeps.put(numMentions, inverseDep);
+    if( verbs != null ) verbs.put(numMentions, verb);
+    numMentions++;
+    mentionStarts.put(numEntities, numMentions);
+  }
+
+  /**
+   * The file keeps its size, so more documents can still be reserved. This only records the
+   * counts in the file's header.
+   */
+  public void trim() {
+    writeCounts();
+  }
+
+  public File file() { return file; }
+
+  public boolean hasVerbs() { return verbs != null; }
+
+  public int numDocs() { return numDocs; }
+  public int numEntities() { return numEntities; }
+  public int numMentions() { return numMentions; }
+
+  public int firstEntity(int doc) { return docStarts.get(doc); }
+  public int endEntity(int doc) { return docStarts.get(doc+1); }
+  public int numEntities(int doc) { return docStarts.get(doc+1) - docStarts.get(doc); }
+  public int entity(int doc, int entityi) { return docStarts.get(doc) + entityi; }
+
+  public int firstMention(int entity) { return mentionStarts.get(entity); }
+  public int endMention(int entity) { return mentionStarts.get(entity+1); }
+  public int numMentions(int entity) { return mentionStarts.get(entity+1) - mentionStarts.get(entity); }
+
+  public int word(int entity) { return words.get(entity); }
+  public int featMask(int entity) { return feats.get(entity) & 0xff; }
+  public boolean hasFeat(int entity, int feat) { return (feats.get(entity) & (1 << feat)) != 0; }
+
+  public int dep(int mention) { return deps.get(mention); }
+  public int inverseDep(int mention) { return inverseDeps.get(mention); }
+  public int verb(int mention) { return verbs.get(mention); }
+
+  /**
+   * Serialize as a plain EntityCorpus, since the mapping can't be written out.
+   */
+  private Object writeReplace() throws ObjectStreamException {
+    EntityCorpus copy = new EntityCorpus(includeVerbs);
+    copy.addAll(this);
+    copy.trim();
+    return copy;
+  }
+}
@@ -0,0 +1,285 @@
+package nate.probschemas;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.stanford.nlp.stats.ClassicCounter;
+import edu.stanford.nlp.util.HashIndex;
+import edu.stanford.nlp.util.Index;
+
+/**
+ * Named inference models (one per domain: kidnap, bombing, etc.) that are loaded when first
+ * asked for, and dropped again when memory runs short, least recently used first.
+ *
+ * Models are registered by name and path, and get() loads them on demand. A loaded model
+ * keeps only what inference needs (see GibbsSamplerEntities.dropTrainingData()). Its word,
+ * dep and verb indexes are shared with the loaded models when they are identical. Otherwise
+ * they are rebuilt from the strings that the loaded models already hold.
+ *
+ * The memory budget is compared to an estimate of each model's size, from the number of
+ * entries in its count tables and of strings that it doesn't share. When a load goes over
+ * the budget, other models are evicted until it fits. A request that is still using an
+ * evicted model keeps its Inference object, and the model is reloaded on its next get().
+ */
+public class ModelRegistry {
+  // Rough heap cost of one count table entry (map entry, Integer key, count) and one vocabulary string.
+  static final long BYTES_PER_COUNT = 80;
+  static final long BYTES_PER_STRING = 100;
+
+  private class Entry {
+    String name;
+    String path;
+    Inference infer; // null if not loaded
+    long bytes;      // estimated size while loaded
+    int numLoads = 0;
+  }
+
+  private Map<String,Entry> _entries = new LinkedHashMap<String,Entry>();
+  // The loaded models, least recently used first.
+  private LinkedHashMap<String,Entry> _loaded = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+  private long _budgetBytes;
+  private int _maxEntities;
+  private double _minProb;
+  private long _loadedBytes = 0;
+  private int _numEvictions = 0;
+
+  /**
+   * @param budgetBytes The estimated bytes that loaded models may use, or 0 for no limit.
+   * @param maxEntities Inference...the max number of entities labeled per role.
+   * @param minProb Inference...the minimum probability for an entity to be labeled.
+   */
+  public ModelRegistry(long budgetBytes, int maxEntities, double minProb) {
+    _budgetBytes = budgetBytes;
+    _maxEntities = maxEntities;
+    _minProb = minProb;
+  }
+
+  /**
+   * Add a model that can be loaded later. A registered name is never replaced, so a model in
+   * use can't be swapped out from under its requests; unregister() it first.
+   * @return False if a model of that name is already registered.
+   */
+  public synchronized boolean register(String name, String path) {
+    if( _entries.containsKey(name) ) return false;
+    if( !new File(path).exists() )
+      System.out.println("WARNING: model " + name + " has no file at " + path);
+    Entry entry = new Entry();
+    entry.name = name;
+    entry.path = path;
+    _entries.put(name, entry);
+    return true;
+  }
+
+  /**
+   * Remove a model, and unload it. Requests that already have its Inference object keep it.
+   * @return False if no model has that name.
+   */
+  public synchronized boolean unregister(String name) {
+    Entry entry = _entries.remove(name);
+    if( entry == null ) return false;
+    unload(entry);
+    return true;
+  }
+
+  /**
+   * Set up a newly loaded model, e.g. its inference settings. Called once per load, before the
+   * model is returned by get().
+   */
+  protected void configure(String name, Inference infer) { }
+
+  /**
+   * @return The named model, loading it if needed, or null if no model has that name.
+   * @throws IOException If the model can't be loaded. It stays registered, and the next get()
+   *                     tries again.
+   */
+  public Inference get(String name) throws IOException {
+    return get(name, true);
+  }
+
+  /**
+   * @param evict If false, a load that goes over the budget doesn't evict other models.
+   */
+  private Inference get(String name, boolean evict) throws IOException {
+    Entry entry;
+    synchronized( this ) {
+      entry = _entries.get(name);
+      if( entry == null ) return null;
+      if( entry.infer != null ) {
+        _loaded.get(name); // mark it recently used
+        return entry.infer;
+      }
+    }
+
+    // Load outside the registry lock, so requests for other models aren't held up. The lock
+    // on the entry makes concurrent requests for this model wait for one load.
+    synchronized( entry ) {
+      Inference infer;
+      synchronized( this ) {
+        infer = entry.infer;
+      }
+      if( infer != null ) return infer;
+
+      long start = System.currentTimeMillis();
+      infer = Inference.load(entry.path, _maxEntities, _minProb, false);
+      infer.sampler.dropTrainingData();
+      configure(name, infer);
+
+      synchronized( this ) {
+        if( _entries.get(name) != entry ) return infer; // re-registered while loading
+        entry.bytes = shareVocabulary(infer.sampler) + countBytes(infer.sampler);
+        entry.infer = infer;
+        entry.numLoads++;
+        _loaded.put(name, entry);
+        _loadedBytes += entry.bytes;
+        System.out.println("Loaded model " + name + " from " + entry.path + " in " + (System.currentTimeMillis()-start) + " ms, about " +
+            (entry.bytes >> 20) + " MB (" + (_loadedBytes >> 20) + " MB loaded)");
+        if( evict ) evict(entry);
+      }
+      return infer;
+    }
+  }
+
+  /**
+   * Load the registered models in order until the budget is full. The rest are read once to
+   * check that they can be loaded, then dropped, so they are loaded on their first get().
+   * These loads never evict each other. The model that fills the budget stays loaded even if
+   * it goes over, and the next get() of another model evicts as usual.
+   * @throws IOException If a model can't be loaded. The message names the model.
+   */
+  public void loadAll() throws IOException {
+    for( String name : names() ) {
+      String path;
+      boolean full;
+      synchronized( this ) {
+        Entry entry = _entries.get(name);
+        if( entry.infer != null ) continue;
+        path = entry.path;
+        full = (_budgetBytes > 0 && _loadedBytes >= _budgetBytes);
+      }
+      try {
+        if( full ) {
+          GibbsSamplerEntities.load(path);
+          System.out.println("Checked model " + name + ", it will be loaded on its first request (budget full)");
+        }
+        else get(name, false);
+      } catch( IOException ex ) {
+        throw new IOException("model " + name + " from " + path + ": " + ex.getMessage(), ex);
+      }
+    }
+  }
+
+  /**
+   * Unload least recently used models, other than the one to keep, until the loaded models
+   * fit in the budget.
+   */
+  private void evict(Entry keep) {
+    if( _budgetBytes <= 0 ) return;
+    Iterator<Entry> iter = _loaded.values().iterator();
+    while( _loadedBytes > _budgetBytes && iter.hasNext() ) {
+      Entry entry = iter.next();
+      if( entry == keep ) continue;
+      iter.remove();
+      entry.infer = null;
+      _loadedBytes -= entry.bytes;
+      _numEvictions++;
+      System.out.println("Evicted model " + entry.name + " (" + (_loadedBytes >> 20) + " MB still loaded)");
+    }
+    if( _loadedBytes > _budgetBytes )
+      System.out.println("WARNING: model " + keep.name + " alone is over the budget of " + (_budgetBytes >> 20) + " MB");
+  }
+
+  private void unload(Entry entry) {
+    if( entry.infer != null ) {
+      _loaded.remove(entry.name);
+      entry.infer = null;
+      _loadedBytes -= entry.bytes;
+    }
+  }
+
+  public synchronized void unload(String name) {
+    Entry entry = _entries.get(name);
+    if( entry != null ) unload(entry);
+  }
+
+  /**
+   * Point the sampler at the loaded models' indexes where they are identical, and rebuild its
+   * other indexes from the strings the loaded models already hold.
+   * @return The estimated bytes of the strings that are not shared.
+   */
+  private long shareVocabulary(GibbsSamplerEntities sampler) {
+    List<List<Index<String>>> loaded = new ArrayList<List<Index<String>>>();
+    for( Entry entry : _loaded.values() ) loaded.add(indexes(entry.infer.sampler));
+
+    List<Index<String>> indexes = indexes(sampler);
+    if( loaded.isEmpty() )
+      return BYTES_PER_STRING * (indexes.get(0).size() + indexes.get(1).size() + indexes.get(2).size());
+    Map<String,String> strings = null;
+    long bytes = 0;
+    for( int ii = 0; ii < indexes.size(); ii++ ) {
+      Index<String> index = indexes.get(ii);
+      Index<String> shared = null;
+      for( List<Index<String>> other : loaded ) {
+        if( other.get(ii).size() == index.size() && other.get(ii).objectsList().equals(index.objectsList()) ) {
+          shared = other.get(ii);
+          break;
+        }
+      }
+
+      if( shared == null ) {
+        if( strings == null ) {
+          strings = new HashMap<String,String>();
+          for( List<Index<String>> other : loaded )
+            for( Index<String> otherIndex : other )
+              for( String str : otherIndex ) strings.put(str, str);
+        }
+        shared = new HashIndex<String>();
+        for( String str : index ) {
+          String canonical = strings.get(str);
+          if( canonical == null ) {
+            canonical = str;
+            bytes += BYTES_PER_STRING;
+          }
+          shared.add(canonical);
+        }
+      }
+      indexes.set(ii, shared);
+    }
+    sampler.wordIndex = indexes.get(0);
+    sampler.depIndex = indexes.get(1);
+    sampler.verbIndex = indexes.get(2);
+    return bytes;
+  }
+
+  private static List<Index<String>> indexes(GibbsSamplerEntities sampler) {
+    List<Index<String>> indexes = new ArrayList<Index<String>>();
+    indexes.add(sampler.wordIndex);
+    indexes.add(sampler.depIndex);
+    indexes.add(sampler.verbIndex);
+    return indexes;
+  }
+
+  private static long countBytes(GibbsSamplerEntities sampler) {
+    long entries = 0;
+    for( ClassicCounter<Integer>[] table : sampler.sharedCounts() )
+      if( table != null )
+        for( ClassicCounter<Integer> counter : table )
+          if( counter != null ) entries += counter.size();
+    return entries * BYTES_PER_COUNT;
+  }
+
+  public synchronized List<String> names() { return new ArrayList<String>(_entries.keySet()); }
+  /**
+   * @return The named model if it is loaded, without loading it or marking it used.
+   */
+  public synchronized Inference getLoaded(String name) { return (_entries.containsKey(name) ? _entries.get(name).infer : null); }
+  public synchronized int numLoads(String name) { return (_entries.containsKey(name) ? _entries.get(name).numLoads : 0); }
+  public synchronized int size() { return _entries.size(); }
+  public synchronized long loadedBytes() { return _loadedBytes; }
+  public synchronized int numEvictions() { return _numEvictions; }
+}
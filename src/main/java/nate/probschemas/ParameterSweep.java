@@ -0,0 +1,384 @@
+package nate.probschemas;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import nate.util.HandleParameters;
+import nate.util.Triple;
+
+/**
+ * Trains and evaluates many models over a grid of parameter settings, sharing one set of
+ * loaded documents. The grid is a file with one flag per line followed by the values to try:
+ *
+ *   -sw 1.0 3.0 5.0
+ *   -topics 10 20
+ *   -p .9 .7 .5
+ *
+ * Sampler flags (-sw -sd -sv -sf -topics -plates -jtopics -jplates -n -d) each need a new
+ * sampler. Inference flags (-p -m -roles) reuse the trained sampler, so each sampler job
+ * evaluates all of the inference settings before it finishes.
+ *
+ * Jobs run on a pool of worker threads. Each finished row is appended to the results table
+ * right away, and rows already in the table are skipped, so an interrupted sweep is resumed
+ * by running the same command again.
+ *
+ * Flags that change how the documents are loaded (-c, -cdoc, -train, -test) can't be swept
+ * because all jobs share the loaded documents.
+ */
+public class ParameterSweep {
+  public static final String[] SAMPLER_FLAGS = { "-sw", "-sd", "-sv", "-sf", "-topics", "-plates", "-jtopics", "-jplates", "-n", "-d" };
+  public static final String[] INFERENCE_FLAGS = { "-p", "-m", "-roles" };
+  // Rough heap cost of one mention in a running sampler (index arrays and count tables).
+  private static final long BYTES_PER_MENTION = 128;
+  private static final String[] METRIC_COLUMNS = { "likelihood", "samp-prec", "samp-recall", "samp-f1", "inf-prec", "inf-recall", "inf-f1" };
+
+  private final Learner _base;
+  private final String _resultsPath;
+  private int _numThreads;
+  private final Map<String,List<String>> _samplerGrid = new LinkedHashMap<String,List<String>>();
+  private final Map<String,List<String>> _inferenceGrid = new LinkedHashMap<String,List<String>>();
+  private final List<String> _columns = new ArrayList<String>();
+  private Set<String> _finishedRows;
+  private PrintWriter _results;
+
+  // Each worker thread reports its samplers to its own metrics.
+  private final ThreadLocal<SamplerMetrics> _samplerMetrics = new ThreadLocal<SamplerMetrics>() {
+    protected SamplerMetrics initialValue() { return SamplerMetrics.create("sweep-sampler"); }
+  };
+
+  /**
+   * @param base A learner that already loaded its training (and maybe test) documents.
+   * @param gridPath The file of flags and their values to try.
+   * @param resultsPath The results table to write, and to resume from if it exists.
+   * @param numThreads The number of jobs to run at once, or 0 to choose based on cores and memory.
+   */
+  public ParameterSweep(Learner base, String gridPath, String resultsPath, int numThreads) {
+    _base = base;
+    _resultsPath = resultsPath;
+    _numThreads = numThreads;
+    readGrid(gridPath);
+  }
+
+  /**
+   * Read the grid file. Each line is a flag followed by its values.
+   */
+  private void readGrid(String gridPath) {
+    try {
+      BufferedReader in = new BufferedReader(new FileReader(gridPath));
+      String line;
+      while( (line = in.readLine()) != null ) {
+        line = line.trim();
+        if( line.length() == 0 || line.startsWith("#") ) continue;
+        String[] parts = line.split("\\s+");
+        List<String> values = new ArrayList<String>();
+        for( int ii = 1; ii < parts.length; ii++ ) values.add(parts[ii]);
+        if( values.size() == 0 ) {
+          System.out.println("ERROR: sweep flag " + parts[0] + " has no values in " + gridPath);
+          System.exit(1);
+        }
+
+        if( isOneOf(parts[0], SAMPLER_FLAGS) )        _samplerGrid.put(parts[0], values);
+        else if( isOneOf(parts[0], INFERENCE_FLAGS) ) _inferenceGrid.put(parts[0], values);
+        else {
+          System.out.println("ERROR: can't sweep over " + parts[0] + ". Sweepable flags are sampler flags " +
+              flagsToString(SAMPLER_FLAGS) + " and inference flags " + flagsToString(INFERENCE_FLAGS));
+          System.exit(1);
+        }
+      }
+      in.close();
+    } catch( Exception ex ) {
+      System.err.println("Error reading sweep grid " + gridPath);
+      ex.printStackTrace();
+      System.exit(1);
+    }
+    _columns.addAll(_samplerGrid.keySet());
+    _columns.addAll(_inferenceGrid.keySet());
+    System.out.println("Sweep grid: sampler " + _samplerGrid + " inference " + _inferenceGrid);
+  }
+
+  /**
+   * Run every job in the grid that isn't already in the results table.
+   */
+  public void run() {
+    List<Map<String,String>> samplerSettings = combinations(_samplerGrid);
+    List<Map<String,String>> inferenceSettings = combinations(_inferenceGrid);
+    _finishedRows = readFinishedRows();
+    openResults();
+
+    // Find the sampler jobs that still have unfinished rows.
+    List<Map<String,String>> jobs = new ArrayList<Map<String,String>>();
+    for( Map<String,String> sampling : samplerSettings ) {
+      for( Map<String,String> inference : inferenceSettings ) {
+        if( !_finishedRows.contains(rowKey(sampling, inference)) ) {
+          jobs.add(sampling);
+          break;
+        }
+      }
+    }
+    System.out.println("Sweep has " + samplerSettings.size() + " sampler settings, " + jobs.size() + " still to run.");
+    if( jobs.size() == 0 ) return;
+
+    // Load the answer key once for all jobs.
+    if( _base._testKeyPath != null ) _base.getAnswerKey();
+
+    int numThreads = chooseNumThreads(jobs.size());
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+    for( final Map<String,String> sampling : jobs ) {
+      final List<Map<String,String>> inferences = inferenceSettings;
+      pool.execute(new Runnable() {
+        public void run() {
+          try {
+            runJob(sampling, inferences);
+          } catch( Exception ex ) {
+            System.err.println("Sweep job failed: " + sampling);
+            ex.printStackTrace();
+          }
+        }
+      });
+    }
+    pool.shutdown();
+    try {
+      while( !pool.awaitTermination(1, TimeUnit.MINUTES) ) ;
+    } catch( InterruptedException ex ) { ex.printStackTrace(); }
+    _results.close();
+    System.out.println("Sweep finished. Results in " + _resultsPath);
+  }
+
+  /**
+   * Train one sampler with the given settings, then evaluate it with each inference setting.
+   */
+  private void runJob(Map<String,String> sampling, List<Map<String,String>> inferences) {
+    System.out.println("Sweep job starting: " + sampling);
+    Learner learner = new Learner(_base);
+    learner.setParameters(new HandleParameters(toArgs(sampling)));
+    learner._samplerMetrics = _samplerMetrics.get();
+
+    // Training docs, plus the test docs so the sampler labels them.
+    List<String> docsNames = new ArrayList<String>();
+    List<List<TextEntity>> docsEntities = new ArrayList<List<TextEntity>>();
+    learner.getRandomDocsFromTrain(learner._numTrainingDocs, docsNames, docsEntities);
+    if( learner._testDocsEntities != null )
+      learner.addDocsNoRepeats(docsNames, docsEntities, learner._testDocsNames, learner._testDocsEntities);
+    else {
+      learner._testDocsNames = docsNames;
+      learner._testDocsEntities = TextEntity.copyWithoutLabels(docsEntities);
+    }
+
+    GibbsSamplerEntities sampler = learner.createSampler(docsNames, docsEntities);
+    sampler.runSampler(learner._sampleSteps);
+    double likelihood = sampler._bestLikelihood;
+
+    // Evaluate with the sampled labels.
+    boolean evaluate = (learner._testKeyPath != null && learner.getAnswerKey() != null);
+    double[] sampledPRF1 = null;
+    if( evaluate ) {
+      Triple scores = learner.inferUsingSampledData(sampler);
+      if( scores != null ) sampledPRF1 = (double[])scores.first();
+    }
+
+    // Evaluate with inference for each inference setting.
+    for( Map<String,String> inference : inferences ) {
+      String key = rowKey(sampling, inference);
+      if( _finishedRows.contains(key) ) continue;
+
+      learner.setParameters(new HandleParameters(toArgs(inference)));
+      double[] inferredPRF1 = null;
+      if( evaluate ) {
+        Inference infer = new Inference(sampler, learner._inferMaxEntities, learner._inferMinProb);
+        learner.configureInference(infer);
+        Inference.clearEntityLabels(learner._testDocsEntities);
+        for( List<TextEntity> doc : learner._testDocsEntities )
+          infer.labelEntities(doc, false);
+        EvaluateModel evaluator = new EvaluateModel(sampler.numTopics, learner.getAnswerKey());
+        evaluator.setGuesses(learner._testDocsNames, learner._testDocsEntities);
+        inferredPRF1 = evaluator.evaluateSlotsGreedy(learner._inferMaxRolesPerSlot);
+      }
+      writeRow(key, likelihood, sampledPRF1, inferredPRF1);
+    }
+    System.out.println("Sweep job finished: " + sampling);
+  }
+
+  /**
+   * Pick the number of worker threads: no more than the cores, and no more samplers than
+   * the remaining heap can hold.
+   */
+  private int chooseNumThreads(int numJobs) {
+    if( _numThreads > 0 ) return Math.min(_numThreads, numJobs);
+
+    long numMentions = 0;
+    for( List<TextEntity> doc : _base.trainDocsEntities() )
+      for( TextEntity entity : doc )
+        numMentions += entity.numMentions();
+    long bytesPerJob = Math.max(1, numMentions * BYTES_PER_MENTION);
+
+    Runtime runtime = Runtime.getRuntime();
+    long freeHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    int byMemory = (int)Math.max(1, freeHeap / bytesPerJob);
+    int threads = Math.min(Math.min(runtime.availableProcessors(), byMemory), numJobs);
+    System.out.println("Sweep using " + threads + " threads (" + runtime.availableProcessors() + " cores, room for " + byMemory +
+        " samplers at ~" + (bytesPerJob/(1024*1024)) + "MB each)");
+    return threads;
+  }
+
+  /**
+   * @return All combinations of the values in the grid, each as a flag to value map.
+   */
+  private List<Map<String,String>> combinations(Map<String,List<String>> grid) {
+    List<Map<String,String>> combos = new ArrayList<Map<String,String>>();
+    combos.add(new LinkedHashMap<String,String>());
+    for( String flag : grid.keySet() ) {
+      List<Map<String,String>> expanded = new ArrayList<Map<String,String>>();
+      for( Map<String,String> combo : combos ) {
+        for( String value : grid.get(flag) ) {
+          Map<String,String> copy = new LinkedHashMap<String,String>(combo);
+          copy.put(flag, value);
+          expanded.add(copy);
+        }
+      }
+      combos = expanded;
+    }
+    return combos;
+  }
+
+  private String[] toArgs(Map<String,String> settings) {
+    String[] args = new String[settings.size()*2];
+    int ii = 0;
+    for( Map.Entry<String,String> entry : settings.entrySet() ) {
+      args[ii++] = entry.getKey();
+      args[ii++] = entry.getValue();
+    }
+    return args;
+  }
+
+  /**
+   * @return The parameter columns of a results row, tab separated in column order.
+   */
+  private String rowKey(Map<String,String> sampling, Map<String,String> inference) {
+    StringBuffer buf = new StringBuffer();
+    for( String flag : _columns ) {
+      if( buf.length() > 0 ) buf.append("\t");
+      buf.append(sampling.containsKey(flag) ? sampling.get(flag) : inference.get(flag));
+    }
+    return buf.toString();
+  }
+
+  private String header() {
+    StringBuffer buf = new StringBuffer();
+    for( String flag : _columns ) buf.append(flag).append("\t");
+    for( int ii = 0; ii < METRIC_COLUMNS.length; ii++ )
+      buf.append(METRIC_COLUMNS[ii]).append(ii < METRIC_COLUMNS.length-1 ? "\t" : "");
+    return buf.toString();
+  }
+
+  /**
+   * Read the rows that an earlier run of this sweep already finished.
+   * @return The parameter keys of the finished rows.
+   */
+  private Set<String> readFinishedRows() {
+    Set<String> finished = Collections.synchronizedSet(new HashSet<String>());
+    if( !(new File(_resultsPath)).exists() ) return finished;
+
+    try {
+      truncatePartialLine(_resultsPath);
+      BufferedReader in = new BufferedReader(new FileReader(_resultsPath));
+      String line = in.readLine();
+      if( line != null && !line.equals(header()) ) {
+        System.out.println("ERROR: results file " + _resultsPath + " was written by a different grid. Header: " + line);
+        System.exit(1);
+      }
+      while( (line = in.readLine()) != null ) {
+        String[] parts = line.split("\t");
+        // Skip malformed rows.
+        if( parts.length != _columns.size() + METRIC_COLUMNS.length ) continue;
+        StringBuffer key = new StringBuffer();
+        for( int ii = 0; ii < _columns.size(); ii++ ) {
+          if( ii > 0 ) key.append("\t");
+          key.append(parts[ii]);
+        }
+        finished.add(key.toString());
+      }
+      in.close();
+    } catch( Exception ex ) { ex.printStackTrace(); }
+    System.out.println("Resuming sweep with " + finished.size() + " finished rows from " + _resultsPath);
+    return finished;
+  }
+
+  private void openResults() {
+    try {
+      boolean exists = (new File(_resultsPath)).exists() && (new File(_resultsPath)).length() > 0;
+      _results = new PrintWriter(new BufferedWriter(new FileWriter(_resultsPath, true)));
+      if( !exists ) {
+        _results.println(header());
+        _results.flush();
+      }
+    } catch( Exception ex ) {
+      ex.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Cut off a partial last line left by an interrupted write, so that new rows start on a line
+   * of their own. A file with no complete line is emptied, and its header is written again.
+   */
+  private static void truncatePartialLine(String path) throws IOException {
+    File file = new File(path);
+    if( !file.exists() || file.length() == 0 ) return;
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      long end = raf.length();
+      while( end > 0 ) {
+        raf.seek(end-1);
+        if( raf.read() == '\n' ) break;
+        end--;
+      }
+      if( end < raf.length() ) {
+        System.out.println("Removing a partial row from the end of " + path);
+        raf.setLength(end);
+      }
+    } finally {
+      raf.close();
+    }
+  }
+
+  private synchronized void writeRow(String key, double likelihood, double[] sampledPRF1, double[] inferredPRF1) {
+    StringBuffer buf = new StringBuffer(key);
+    buf.append(String.format("\t%.3f", likelihood));
+    for( double[] prf1 : new double[][] { sampledPRF1, inferredPRF1 } ) {
+      for( int ii = 0; ii < 3; ii++ )
+        buf.append(prf1 == null ? "\tNaN" : String.format("\t%.4f", prf1[ii]));
+    }
+    _results.println(buf.toString());
+    _results.flush();
+    _finishedRows.add(key);
+    System.out.println("Sweep result:\t" + buf);
+  }
+
+  private static boolean isOneOf(String flag, String[] flags) {
+    for( String ff : flags )
+      if( ff.equals(flag) ) return true;
+    return false;
+  }
+
+  private static String flagsToString(String[] flags) {
+    StringBuffer buf = new StringBuffer();
+    for( String flag : flags ) buf.append(flag).append(" ");
+    return buf.toString().trim();
+  }
+}
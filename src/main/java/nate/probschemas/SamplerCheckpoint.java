@@ -0,0 +1,80 @@
+package nate.probschemas;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The state of a running GibbsSamplerEntities, saved so that a long sampling run can be
+ * resumed after the JVM dies. Only the z assignments are saved, not the count tables. The
+ * counts are a pure function of the zs and the data, so they are rebuilt on resume, which
+ * keeps checkpoints small and cheap to take.
+ *
+ * Files are written to a temporary file first and then renamed over the old checkpoint, so
+ * a crash during a write leaves the previous checkpoint intact.
+ */
+public class SamplerCheckpoint implements Serializable {
+  static final long serialVersionUID = 10000;
+
+  public int nextIteration;   // the iteration to run first when resuming
+  public int numTopics;
+  public int numTemplates;
+  public List<String> docNames;
+  public int[][] zs;          // [doc][entity]
+  public Random random;
+
+  // Stopping criterion and the best model so far.
+  public double lastLikelihood;
+  public double lastLikelihoodDelta;
+  public double bestLikelihood;
+  public int bestLikelihoodStep;
+  public EntityModelInstance bestModelInstance;
+
+  /**
+   * Write this checkpoint to the given path, replacing any checkpoint already there.
+   */
+  public void toFile(String path) {
+    File tmp = new File(path + ".tmp");
+    try {
+      ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      out.writeObject(this);
+      out.close();
+
+      File target = new File(path);
+      if( !tmp.renameTo(target) ) {
+        // Some file systems won't rename over an existing file.
+        target.delete();
+        if( !tmp.renameTo(target) )
+          System.out.println("ERROR: couldn't move checkpoint " + tmp + " to " + target);
+      }
+    } catch( Exception ex ) {
+      System.err.println("Error writing checkpoint " + path);
+      ex.printStackTrace();
+    }
+  }
+
+  /**
+   * @return The checkpoint saved at the path, or null if there isn't a readable one.
+   */
+  public static SamplerCheckpoint fromFile(String path) {
+    if( !(new File(path)).exists() ) return null;
+    try {
+      ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(path)));
+      SamplerCheckpoint checkpoint = (SamplerCheckpoint)in.readObject();
+      in.close();
+      System.out.println("Read checkpoint " + path + " at iteration " + checkpoint.nextIteration);
+      return checkpoint;
+    } catch( Exception ex ) {
+      System.err.println("Error reading checkpoint " + path);
+      ex.printStackTrace();
+    }
+    return null;
+  }
+}
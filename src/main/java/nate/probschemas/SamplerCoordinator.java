@@ -0,0 +1,325 @@
+package nate.probschemas;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import edu.stanford.nlp.stats.ClassicCounter;
+
+/**
+ * The coordinator of a distributed Gibbs sampler. Each worker (SamplerWorker) samples a shard
+ * of the training documents. It keeps its own copy of the count tables that are summed over
+ * all documents: the topic counts, and the word, verb, dep and feature counts by topic. Every
+ * few iterations each worker sends the changes it made to its copy since the last sync. The
+ * coordinator adds up all of the changes and sends the merged tables back to every worker.
+ * Between syncs a worker doesn't see the others' changes, so this is an approximation of the
+ * single process sampler. The staleness (iterations between syncs) bounds how far it drifts.
+ *
+ * Workers talk to the coordinator over plain sockets, so several worker JVMs on one machine
+ * run the same way as workers on separate machines:
+ *   Learner -coordinator 5000 -workers 2 -topics 20 -n 500 -staleness 5 -outmodel dist.model
+ *   Learner -worker localhost:5000 -topics 20 -train <data-dir>      (once per worker)
+ *
+ * Protocol, in DataOutputStream types:
+ *   worker:      MAGIC, numTopics, numTemplates, includeVerbs
+ *   coordinator: worker ID, number of workers, iterations, staleness
+ *   worker:      its shard's words, deps and verbs, number of docs, entities and mentions
+ *   coordinator: the merged words, deps and verbs (which fix the IDs), total entities and mentions
+ *   each round:  the worker sends its changes to the tables, the coordinator sends the merged tables
+ *   worker:      each of its documents: name, and each entity's z, word, features and mentions
+ * Round 0 syncs the random initialization. Each later round follows up to -staleness iterations.
+ * The last round follows the last iteration, so the merged tables are the counts of the final
+ * zs, and the trained model's corpus is rebuilt from the documents that the workers send.
+ */
+public class SamplerCoordinator {
+  static final int MAGIC = 0x47534432; // "GSD2"
+
+  private int _port;
+  private int _numWorkers;
+  private int _numIterations;
+  private int _staleness;
+
+  public SamplerCoordinator(int port, int numWorkers, int numIterations, int staleness) {
+    _port = port;
+    _numWorkers = numWorkers;
+    _numIterations = numIterations;
+    _staleness = Math.max(1, staleness);
+  }
+
+  /**
+   * Wait for all the workers, coordinate their sampling, and build the trained model from
+   * their final state.
+   * @param model A new sampler with the run's settings. It is filled in with the merged
+   *              count tables, and every worker's documents and zs.
+   */
+  public void run(GibbsSamplerEntities model) {
+    Socket[] sockets = new Socket[_numWorkers];
+    DataInputStream[] ins = new DataInputStream[_numWorkers];
+    DataOutputStream[] outs = new DataOutputStream[_numWorkers];
+    try {
+      ServerSocket server = new ServerSocket(_port);
+      System.out.println("Coordinator waiting for " + _numWorkers + " workers on port " + _port);
+      for( int worker = 0; worker < _numWorkers; worker++ ) {
+        sockets[worker] = server.accept();
+        sockets[worker].setTcpNoDelay(true);
+        ins[worker] = new DataInputStream(new BufferedInputStream(sockets[worker].getInputStream()));
+        outs[worker] = new DataOutputStream(new BufferedOutputStream(sockets[worker].getOutputStream()));
+        if( ins[worker].readInt() != MAGIC ) fail("worker " + worker + " is not a SamplerWorker");
+        int numTopics = ins[worker].readInt();
+        int numTemplates = ins[worker].readInt();
+        boolean includeVerbs = ins[worker].readBoolean();
+        if( numTopics != model.numTopics || numTemplates != model.numTemplates )
+          fail("worker " + worker + " has " + numTopics + " topics and " + numTemplates + " templates, the coordinator has " +
+              model.numTopics + " and " + model.numTemplates);
+        if( includeVerbs != model.includeVerbs )
+          fail("worker " + worker + (includeVerbs ? " samples" : " doesn't sample") + " verbs, the coordinator " +
+              (model.includeVerbs ? "does" : "doesn't"));
+        outs[worker].writeInt(worker);
+        outs[worker].writeInt(_numWorkers);
+        outs[worker].writeInt(_numIterations);
+        outs[worker].writeInt(_staleness);
+        outs[worker].flush();
+        System.out.println("Worker " + worker + " connected from " + sockets[worker].getRemoteSocketAddress());
+      }
+      server.close();
+
+      // Merge the vocabularies, in worker order, so every worker uses the same IDs.
+      List<Set<String>> merged = new ArrayList<Set<String>>();
+      for( int ii = 0; ii < 3; ii++ ) merged.add(new LinkedHashSet<String>());
+      int[] workerDocs = new int[_numWorkers];
+      int numDocs = 0, numEntities = 0, numMentions = 0;
+      for( int worker = 0; worker < _numWorkers; worker++ ) {
+        for( int ii = 0; ii < 3; ii++ )
+          merged.get(ii).addAll(readStrings(ins[worker]));
+        workerDocs[worker] = ins[worker].readInt();
+        numDocs += workerDocs[worker];
+        numEntities += ins[worker].readInt();
+        numMentions += ins[worker].readInt();
+      }
+      List<List<String>> vocabulary = new ArrayList<List<String>>();
+      for( Set<String> strings : merged ) vocabulary.add(new ArrayList<String>(strings));
+      for( int worker = 0; worker < _numWorkers; worker++ ) {
+        for( List<String> strings : vocabulary ) writeStrings(outs[worker], strings);
+        outs[worker].writeInt(numEntities);
+        outs[worker].writeInt(numMentions);
+        outs[worker].flush();
+      }
+      System.out.println("Merged vocabulary: " + vocabulary.get(0).size() + " words, " + vocabulary.get(1).size() + " deps, " +
+          vocabulary.get(2).size() + " verbs. " + numDocs + " docs, " + numEntities + " entities and " + numMentions + " mentions.");
+
+      // Merge the workers' changes, round by round.
+      CountTables global = new CountTables(model.numTopics);
+      int numRounds = numRounds(_numIterations, _staleness);
+      for( int round = 0; round < numRounds; round++ ) {
+        long start = System.currentTimeMillis();
+        for( int worker = 0; worker < _numWorkers; worker++ )
+          global.add(CountTables.read(ins[worker], model.numTopics));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        global.write(out);
+        out.flush();
+        for( int worker = 0; worker < _numWorkers; worker++ ) {
+          bytes.writeTo(outs[worker]);
+          outs[worker].flush();
+        }
+        System.out.println("Round " + round + " of " + numRounds + ": merged " + _numWorkers + " workers' changes (" +
+            bytes.size() + " bytes of tables) in " + (System.currentTimeMillis()-start) + " ms");
+      }
+
+      // Collect the documents and their final zs, in worker order.
+      EntityCorpus corpus = model.newCorpus(numDocs, numEntities, numMentions);
+      List<String> docNames = new ArrayList<String>(numDocs);
+      int[][] zs = new int[numDocs][];
+      for( int worker = 0; worker < _numWorkers; worker++ ) {
+        for( int doc = 0; doc < workerDocs[worker]; doc++ )
+          zs[docNames.size()] = readDocument(ins[worker], docNames, corpus);
+        sockets[worker].close();
+      }
+
+      model.initializeFromShards(vocabulary, global.topicCounts, global.counts, docNames, zs, corpus);
+    } catch( IOException ex ) {
+      System.out.println("ERROR: lost the connection to a worker.");
+      ex.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  private static void fail(String message) {
+    System.out.println("ERROR: " + message);
+    System.exit(1);
+  }
+
+  /**
+   * @return The number of syncs in a run: one after initialization, then one after every
+   *         staleness iterations (and after the last).
+   */
+  static int numRounds(int numIterations, int staleness) {
+    return 1 + (numIterations + staleness - 1) / staleness;
+  }
+
+  static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+    out.writeInt(strings.size());
+    for( String str : strings ) out.writeUTF(str);
+  }
+
+  static List<String> readStrings(DataInputStream in) throws IOException {
+    int size = in.readInt();
+    List<String> strings = new ArrayList<String>(size);
+    for( int ii = 0; ii < size; ii++ ) strings.add(in.readUTF());
+    return strings;
+  }
+
+  /**
+   * Write one document of a worker's corpus: its name, then each entity's z, word, features
+   * and mentions (dep, inverse dep and verb, or -1 without verbs).
+   */
+  static void writeDocument(DataOutputStream out, String name, int[] zs, EntityCorpus corpus, int doc) throws IOException {
+    out.writeUTF(name);
+    out.writeInt(zs.length);
+    for( int entity = corpus.firstEntity(doc); entity < corpus.endEntity(doc); entity++ ) {
+      out.writeInt(zs[entity - corpus.firstEntity(doc)]);
+      out.writeInt(corpus.word(entity));
+      out.writeByte(corpus.featMask(entity));
+      out.writeInt(corpus.numMentions(entity));
+      for( int mention = corpus.firstMention(entity); mention < corpus.endMention(entity); mention++ ) {
+        out.writeInt(corpus.dep(mention));
+        out.writeInt(corpus.inverseDep(mention));
+        out.writeInt(corpus.hasVerbs() ? corpus.verb(mention) : -1);
+      }
+    }
+  }
+
+  /**
+   * Read a document written by writeDocument(), add its name to the names, and append it to
+   * the corpus.
+   * @return The document's zs.
+   */
+  static int[] readDocument(DataInputStream in, List<String> names, EntityCorpus corpus) throws IOException {
+    names.add(in.readUTF());
+    int[] zs = new int[in.readInt()];
+    corpus.startDocument();
+    for( int entityi = 0; entityi < zs.length; entityi++ ) {
+      zs[entityi] = in.readInt();
+      int word = in.readInt();
+      corpus.addEntity(word, in.readUnsignedByte());
+      int numMentions = in.readInt();
+      for( int mention = 0; mention < numMentions; mention++ ) {
+        int dep = in.readInt();
+        int inverseDep = in.readInt();
+        corpus.addMention(dep, inverseDep, in.readInt());
+      }
+    }
+    return zs;
+  }
+
+  /**
+   * The count tables that the workers share, in the order of GibbsSamplerEntities.sharedCounts().
+   * The same form holds either counts or the changes to them.
+   */
+  static class CountTables {
+    double[] topicCounts;
+    ClassicCounter<Integer>[][] counts; // [table][topic]
+
+    CountTables(int numTopics) {
+      topicCounts = new double[numTopics];
+      counts = GibbsSamplerEntities.newCountTables(4, numTopics);
+      for( int table = 0; table < counts.length; table++ )
+        for( int topic = 0; topic < numTopics; topic++ )
+          counts[table][topic] = new ClassicCounter<Integer>();
+    }
+
+    /**
+     * @return A deep copy of the given tables.
+     */
+    static CountTables copy(double[] topicCounts, ClassicCounter<Integer>[][] counts) {
+      CountTables copy = new CountTables(topicCounts.length);
+      copy.topicCounts = topicCounts.clone();
+      for( int table = 0; table < counts.length; table++ )
+        for( int topic = 0; topic < topicCounts.length; topic++ )
+          copy.counts[table][topic] = new ClassicCounter<Integer>(counts[table][topic]);
+      return copy;
+    }
+
+    /**
+     * @return The changes from these tables to the given ones.
+     */
+    CountTables changesTo(double[] newTopicCounts, ClassicCounter<Integer>[][] newCounts) {
+      CountTables changes = new CountTables(topicCounts.length);
+      for( int topic = 0; topic < topicCounts.length; topic++ )
+        changes.topicCounts[topic] = newTopicCounts[topic] - topicCounts[topic];
+      for( int table = 0; table < counts.length; table++ ) {
+        for( int topic = 0; topic < topicCounts.length; topic++ ) {
+          ClassicCounter<Integer> oldCounter = counts[table][topic];
+          ClassicCounter<Integer> newCounter = newCounts[table][topic];
+          ClassicCounter<Integer> change = changes.counts[table][topic];
+          for( Integer key : newCounter.keySet() ) {
+            double diff = newCounter.getCount(key) - oldCounter.getCount(key);
+            if( diff != 0.0 ) change.setCount(key, diff);
+          }
+          for( Integer key : oldCounter.keySet() ) {
+            if( !newCounter.containsKey(key) && oldCounter.getCount(key) != 0.0 )
+              change.setCount(key, -oldCounter.getCount(key));
+          }
+        }
+      }
+      return changes;
+    }
+
+    /**
+     * Add the given changes to these tables. Counts that reach zero are removed.
+     */
+    void add(CountTables changes) {
+      for( int topic = 0; topic < topicCounts.length; topic++ )
+        topicCounts[topic] += changes.topicCounts[topic];
+      for( int table = 0; table < counts.length; table++ ) {
+        for( int topic = 0; topic < topicCounts.length; topic++ ) {
+          ClassicCounter<Integer> counter = counts[table][topic];
+          ClassicCounter<Integer> change = changes.counts[table][topic];
+          for( Integer key : change.keySet() ) {
+            double count = counter.getCount(key) + change.getCount(key);
+            if( count == 0.0 ) counter.remove(key);
+            else counter.setCount(key, count);
+          }
+        }
+      }
+    }
+
+    void write(DataOutputStream out) throws IOException {
+      for( double count : topicCounts ) out.writeInt((int)count);
+      for( ClassicCounter<Integer>[] table : counts ) {
+        for( ClassicCounter<Integer> counter : table ) {
+          out.writeInt(counter.size());
+          for( Integer key : counter.keySet() ) {
+            out.writeInt(key);
+            out.writeInt((int)counter.getCount(key));
+          }
+        }
+      }
+    }
+
+    static CountTables read(DataInputStream in, int numTopics) throws IOException {
+      CountTables tables = new CountTables(numTopics);
+      for( int topic = 0; topic < numTopics; topic++ )
+        tables.topicCounts[topic] = in.readInt();
+      for( ClassicCounter<Integer>[] table : tables.counts ) {
+        for( ClassicCounter<Integer> counter : table ) {
+          int size = in.readInt();
+          for( int ii = 0; ii < size; ii++ ) {
+            int key = in.readInt();
+            counter.setCount(key, in.readInt());
+          }
+        }
+      }
+      return tables;
+    }
+  }
+}
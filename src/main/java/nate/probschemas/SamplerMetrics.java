@@ -0,0 +1,209 @@
+package nate.probschemas;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Per-iteration performance numbers for the Gibbs samplers and for Inference.
+ * Each instance is registered with JMX as nate.probschemas:type=SamplerMetrics,name=<name>.
+ * If setJsonLinesPath() was called, every finished iteration (and every labeled document)
+ * is also appended to that file as one JSON object per line.
+ *
+ * The sampler calls startIteration(), then for each entity addTopicDistributionNanos(),
+ * addRelabelNanos() and entitySampled(), and finally endIteration().
+ */
+public class SamplerMetrics implements SamplerMetricsMBean {
+  private static final Set<String> _registeredNames = new HashSet<String>();
+  private static PrintWriter _jsonOut = null;
+
+  private final String _name;
+  private final String _jsonName; // _name escaped for a JSON string
+
+  // The iteration in progress.
+  private long _iterStart;
+  private long _topicDistNanos, _relabelNanos, _likelihoodNanos, _snapshotNanos;
+  private long _entities, _mentions, _changed;
+
+  // The last finished iteration.
+  private volatile int _iteration = -1;
+  private volatile double _entitiesPerSec, _mentionsPerSec, _iterMillis;
+  private volatile double _topicDistMillis, _relabelMillis, _likelihoodMillis, _snapshotMillis;
+  private volatile double _changeRate;
+  private volatile long _heapAfterGC;
+
+  // Inference totals.
+  private long _inferDocs, _inferEntities, _inferNanos;
+
+  private SamplerMetrics(String name) {
+    _name = name;
+    _jsonName = escapeJson(name);
+  }
+
+  /**
+   * @return The string with quotes, backslashes and control characters escaped, to go
+   *         between the quotes of a JSON string. Names can come from model names.
+   */
+  static String escapeJson(String str) {
+    StringBuilder sb = new StringBuilder(str.length());
+    for( int ii = 0; ii < str.length(); ii++ ) {
+      char ch = str.charAt(ii);
+      switch( ch ) {
+        case '"':  sb.append("\\\""); break;
+        case '\\': sb.append("\\\\"); break;
+        case '\n': sb.append("\\n"); break;
+        case '\r': sb.append("\\r"); break;
+        case '\t': sb.append("\\t"); break;
+        default:
+          if( ch < 0x20 ) sb.append(String.format("\\u%04x", (int)ch));
+          else sb.append(ch);
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Create a metrics object and register it with JMX. If the name is taken, a number is
+   * appended to it.
+   */
+  public static SamplerMetrics create(String name) {
+    String unique = name;
+    synchronized( _registeredNames ) {
+      int ii = 2;
+      while( _registeredNames.contains(unique) )
+        unique = name + "-" + ii++;
+      _registeredNames.add(unique);
+    }
+
+    SamplerMetrics metrics = new SamplerMetrics(unique);
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      server.registerMBean(metrics, new ObjectName("nate.probschemas:type=SamplerMetrics,name=" + ObjectName.quote(unique)));
+    } catch( Exception ex ) {
+      System.err.println("Could not register metrics " + unique + " with JMX: " + ex);
+    }
+    return metrics;
+  }
+
+  /**
+   * Append all metrics to this file as JSON lines.
+   */
+  public static synchronized void setJsonLinesPath(String path) {
+    try {
+      if( _jsonOut != null ) _jsonOut.close();
+      _jsonOut = new PrintWriter(new BufferedWriter(new FileWriter(path, true)));
+    } catch( Exception ex ) {
+      System.err.println("Could not open metrics file " + path);
+      ex.printStackTrace();
+    }
+  }
+
+  private static synchronized void writeJson(String line) {
+    if( _jsonOut != null ) {
+      _jsonOut.println(line);
+      _jsonOut.flush();
+    }
+  }
+
+  public String name() { return _name; }
+
+  public void startIteration(int iteration) {
+    _iteration = iteration;
+    _iterStart = System.nanoTime();
+    _topicDistNanos = _relabelNanos = _likelihoodNanos = _snapshotNanos = 0;
+    _entities = _mentions = _changed = 0;
+  }
+
+  public void addTopicDistributionNanos(long nanos) { _topicDistNanos += nanos; }
+  public void addRelabelNanos(long nanos) { _relabelNanos += nanos; }
+  public void addLikelihoodCheckNanos(long nanos) { _likelihoodNanos += nanos; }
+  public void addSnapshotNanos(long nanos) { _snapshotNanos += nanos; }
+
+  /**
+   * Count one sampled entity.
+   * @param numMentions The number of mentions of the entity.
+   * @param changed True if the entity's new label is different from its old one.
+   */
+  public void entitySampled(int numMentions, boolean changed) {
+    _entities++;
+    _mentions += numMentions;
+    if( changed ) _changed++;
+  }
+
+  /**
+   * Finish the current iteration: compute its rates and write its JSON line.
+   */
+  public void endIteration() {
+    long nanos = Math.max(1, System.nanoTime() - _iterStart);
+    double seconds = nanos / 1e9;
+    _iterMillis = nanos / 1e6;
+    _entitiesPerSec = _entities / seconds;
+    _mentionsPerSec = _mentions / seconds;
+    _topicDistMillis = _topicDistNanos / 1e6;
+    _relabelMillis = _relabelNanos / 1e6;
+    _likelihoodMillis = _likelihoodNanos / 1e6;
+    _snapshotMillis = _snapshotNanos / 1e6;
+    _changeRate = (_entities == 0 ? 0.0 : (double)_changed / (double)_entities);
+    _heapAfterGC = heapAfterGC();
+
+    writeJson(String.format(Locale.US, "{\"name\":\"%s\",\"type\":\"iteration\",\"time\":%d,\"iteration\":%d,\"entities\":%d,\"mentions\":%d," +
+        "\"iterationMillis\":%.3f,\"entitiesPerSec\":%.1f,\"mentionsPerSec\":%.1f,\"topicDistributionMillis\":%.3f,\"relabelMillis\":%.3f," +
+        "\"likelihoodCheckMillis\":%.3f,\"snapshotMillis\":%.3f,\"labelChangeRate\":%.5f,\"heapAfterGCBytes\":%d}",
+        _jsonName, System.currentTimeMillis(), _iteration, _entities, _mentions, _iterMillis, _entitiesPerSec, _mentionsPerSec,
+        _topicDistMillis, _relabelMillis, _likelihoodMillis, _snapshotMillis, _changeRate, _heapAfterGC));
+  }
+
+  /**
+   * Count one document labeled by Inference.
+   */
+  public void inferenceDocument(int numEntities, long nanos) {
+    synchronized( this ) {
+      _inferDocs++;
+      _inferEntities += numEntities;
+      _inferNanos += nanos;
+    }
+    writeJson(String.format(Locale.US, "{\"name\":\"%s\",\"type\":\"inference\",\"time\":%d,\"entities\":%d,\"millis\":%.3f}",
+        _jsonName, System.currentTimeMillis(), numEntities, nanos / 1e6));
+  }
+
+  /**
+   * @return Heap bytes in use just after the last garbage collection, summed over the heap pools.
+   */
+  private static long heapAfterGC() {
+    long used = 0;
+    for( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) {
+      if( pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported() ) {
+        MemoryUsage usage = pool.getCollectionUsage();
+        if( usage != null ) used += usage.getUsed();
+      }
+    }
+    return used;
+  }
+
+  public int getIteration() { return _iteration; }
+  public double getEntitiesPerSecond() { return _entitiesPerSec; }
+  public double getMentionsPerSecond() { return _mentionsPerSec; }
+  public double getIterationMillis() { return _iterMillis; }
+  public double getTopicDistributionMillis() { return _topicDistMillis; }
+  public double getRelabelMillis() { return _relabelMillis; }
+  public double getLikelihoodCheckMillis() { return _likelihoodMillis; }
+  public double getSnapshotMillis() { return _snapshotMillis; }
+  public double getLabelChangeRate() { return _changeRate; }
+  public long getHeapAfterGCBytes() { return _heapAfterGC; }
+
+  public synchronized long getInferenceDocuments() { return _inferDocs; }
+  public synchronized long getInferenceEntities() { return _inferEntities; }
+  public synchronized double getInferenceMillisPerDocument() {
+    return (_inferDocs == 0 ? 0.0 : _inferNanos / 1e6 / _inferDocs);
+  }
+}
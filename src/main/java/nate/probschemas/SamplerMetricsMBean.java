@@ -0,0 +1,22 @@
+package nate.probschemas;
+
+/**
+ * The JMX view of SamplerMetrics. Values are from the last finished sampling iteration,
+ * except the inference values which are running totals.
+ */
+public interface SamplerMetricsMBean {
+  public int getIteration();
+  public double getEntitiesPerSecond();
+  public double getMentionsPerSecond();
+  public double getIterationMillis();
+  public double getTopicDistributionMillis();
+  public double getRelabelMillis();
+  public double getLikelihoodCheckMillis();
+  public double getSnapshotMillis();
+  public double getLabelChangeRate();
+  public long getHeapAfterGCBytes();
+
+  public long getInferenceDocuments();
+  public long getInferenceEntities();
+  public double getInferenceMillisPerDocument();
+}
@@ -0,0 +1,126 @@
+package nate.probschemas;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One worker of a distributed Gibbs sampler. It samples its shard of the training documents
+ * and syncs the shared count tables with a SamplerCoordinator, which describes the protocol.
+ *
+ * The coordinator assigns worker IDs in the order workers connect. Worker i of n keeps the
+ * documents at positions i, i+n, i+2n... of the training list, so the shards together cover
+ * the training set once. Only the shard's documents are read, once the worker has its ID.
+ */
+public class SamplerWorker {
+  private String _host;
+  private int _port;
+
+  /**
+   * Reads training documents when the worker knows which ones are its shard.
+   */
+  public interface Documents {
+    /**
+     * @param docs Positions in the training list.
+     * @return The entities of those documents, in order. This may be read more than once.
+     */
+    Iterable<List<TextEntity>> get(List<Integer> docs);
+  }
+
+  /**
+   * @param address The coordinator as host:port.
+   */
+  public SamplerWorker(String address) {
+    int colon = address.lastIndexOf(':');
+    if( colon < 0 ) {
+      System.out.println("ERROR: the coordinator address should be host:port, not " + address);
+      System.exit(1);
+    }
+    _host = address.substring(0, colon);
+    _port = Integer.parseInt(address.substring(colon+1));
+  }
+
+  /**
+   * Sample this worker's shard of the documents until the coordinator's iterations are done.
+   * @param sampler A new sampler with the run's settings. It is initialized with the shard.
+   * @param docnames The names of all training documents.
+   * @param documents Reads the shard's documents, e.g. from the entity cache.
+   */
+  public void run(GibbsSamplerEntities sampler, List<String> docnames, Documents documents) {
+    try {
+      Socket socket = new Socket(_host, _port);
+      socket.setTcpNoDelay(true);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      out.writeInt(SamplerCoordinator.MAGIC);
+      out.writeInt(sampler.numTopics);
+      out.writeInt(sampler.numTemplates);
+      out.writeBoolean(sampler.includeVerbs);
+      out.flush();
+      int workerID = in.readInt();
+      int numWorkers = in.readInt();
+      int numIterations = in.readInt();
+      int staleness = in.readInt();
+
+      List<Integer> shardDocs = new ArrayList<Integer>();
+      List<String> shardNames = new ArrayList<String>();
+      for( int doc = workerID; doc < docnames.size(); doc += numWorkers ) {
+        shardDocs.add(doc);
+        shardNames.add(docnames.get(doc));
+      }
+      System.out.println("Worker " + workerID + " of " + numWorkers + ": " + shardNames.size() + " of " + docnames.size() + " docs.");
+      Iterable<List<TextEntity>> shard = documents.get(shardDocs);
+      int numEntities = 0, numMentions = 0;
+      for( List<TextEntity> doc : shard ) {
+        numEntities += doc.size();
+        for( TextEntity entity : doc ) numMentions += entity.numMentions();
+      }
+
+      // Agree on the vocabulary, then index the shard with it.
+      for( List<String> strings : GibbsSamplerEntities.vocabulary(shard) )
+        SamplerCoordinator.writeStrings(out, strings);
+      out.writeInt(shardNames.size());
+      out.writeInt(numEntities);
+      out.writeInt(numMentions);
+      out.flush();
+      List<List<String>> vocabulary = new ArrayList<List<String>>();
+      for( int ii = 0; ii < 3; ii++ ) vocabulary.add(SamplerCoordinator.readStrings(in));
+      int totalEntities = in.readInt();
+      int totalMentions = in.readInt();
+      sampler.initializeModelFromData(shardNames, shard, vocabulary);
+
+      // Sync the random initialization, then sync after every staleness iterations.
+      SamplerCoordinator.CountTables synced = new SamplerCoordinator.CountTables(sampler.numTopics);
+      int iter = 0;
+      for( int round = 0; round < SamplerCoordinator.numRounds(numIterations, staleness); round++ ) {
+        if( round > 0 ) {
+          int steps = Math.min(staleness, numIterations - iter);
+          sampler.sampleShard(iter, steps);
+          iter += steps;
+        }
+        synced.changesTo(sampler.sharedTopicCounts(), sampler.sharedCounts()).write(out);
+        out.flush();
+        SamplerCoordinator.CountTables merged = SamplerCoordinator.CountTables.read(in, sampler.numTopics);
+        sampler.setSharedCounts(merged.topicCounts, merged.counts, totalEntities, totalMentions);
+        synced = SamplerCoordinator.CountTables.copy(merged.topicCounts, merged.counts);
+      }
+
+      // Send the final zs and the indexed documents, for the model's corpus.
+      int[][] zs = sampler.getZs();
+      for( int doc = 0; doc < shardNames.size(); doc++ )
+        SamplerCoordinator.writeDocument(out, shardNames.get(doc), zs[doc], sampler.corpus(), doc);
+      out.flush();
+      socket.close();
+      System.out.println("Worker " + workerID + " finished " + numIterations + " iterations.");
+    } catch( IOException ex ) {
+      System.out.println("ERROR: lost the connection to the coordinator at " + _host + ":" + _port);
+      ex.printStackTrace();
+      System.exit(1);
+    }
+  }
+}
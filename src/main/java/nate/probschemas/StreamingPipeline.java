@@ -0,0 +1,355 @@
+package nate.probschemas;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import nate.AllParser;
+import nate.DocumentHandler;
+import nate.GigaDoc;
+import nate.ProcessedDocument;
+import nate.util.Directory;
+import nate.util.HandleParameters;
+import nate.util.SymbolTable;
+import nate.util.TreeOperator;
+
+/**
+ * Labels raw text with a learned model in one process: stories are read, parsed with
+ * AllParser, turned into entities by DataSimplifier, and labeled by Inference, without
+ * writing the .parse/.deps/.ner/.events files or the entity cache in between.
+ *
+ * Each step runs in its own thread, connected by bounded queues. When a later step falls
+ * behind, the queue before it fills up and the earlier steps block, so memory stays bounded
+ * on an endless feed. The parser is by far the slowest step, so it sets the throughput.
+ *
+ * Unlike Learner's loading, the corpus-level filters in DataSimplifier.getEntityList()
+ * (low-count mentions, low IDF change) are not applied, since they need the whole corpus.
+ *
+ * A document that fails a step is dropped with a warning. Anything else that goes wrong (a
+ * step's thread dies, e.g. out of memory, or the output can't be written) stops every thread
+ * and exits with an error, rather than leaving the other steps blocked on their queues.
+ *
+ * StreamingPipeline -model <path> -input <file-or-dir> [-type giga|muc|text|env] [-output <file>] [-keep <dir>]
+ *                   [-p <double>] [-m <int>] [-foldin <int>] [-queue <int>]
+ *
+ * -model  : The sampler model from Learner.
+ * -input  : A text file, or a directory of them, in the -type format (default text).
+ * -output : The labeled entities, in the entity cache format (default labeled-entities.txt).
+ * -keep   : Also write AllParser's .parse/.deps/.ner/.events files to this directory.
+ * -p, -m  : Inference's minimum probability and max entities per role, as in Learner.
+ * -foldin : Label with this many fold-in Gibbs iterations per document, as in Learner.
+ * -queue  : Number of documents that can wait between two steps (default 16).
+ */
+public class StreamingPipeline {
+  private String _modelPath;
+  private String _inputPath;
+  private int _docType = AllParser.TEXT;
+  private String _outputPath = "labeled-entities.txt";
+  private String _keepDir = null;
+  private double _minProb = 0.95;
+  private int _maxEntities = 3;
+  private int _foldInSteps = 0;
+  private int _queueSize = 16;
+
+  /**
+   * One story as it moves down the pipeline. Each step fills in its part.
+   */
+  private static class Doc {
+    String sourceFile;
+    String name;
+    int storyNum;
+    Vector<String> paragraphs;
+    ProcessedDocument processed;
+    List<TextEntity> entities;
+  }
+  // Sent down the queues after the last story.
+  private static final Doc END = new Doc();
+
+  // The pipeline's threads, and the first failure that stopped them.
+  private final List<Thread> _threads = new ArrayList<Thread>();
+  private volatile Throwable _failure = null;
+
+  public StreamingPipeline(String[] args) {
+    HandleParameters params = new HandleParameters(args);
+    if( !params.hasFlag("-model") || !params.hasFlag("-input") ) {
+      System.out.println("StreamingPipeline -model <path> -input <file-or-dir> [-type giga|muc|text|env] [-output <file>] [-keep <dir>] [-p <double>] [-m <int>] [-foldin <int>] [-queue <int>]");
+      System.exit(1);
+    }
+    _modelPath = params.get("-model");
+    _inputPath = params.get("-input");
+    if( params.hasFlag("-type") )   _docType     = AllParser.docTypeToInt(params.get("-type"));
+    if( params.hasFlag("-output") ) _outputPath  = params.get("-output");
+    if( params.hasFlag("-keep") )   _keepDir     = params.get("-keep");
+    if( params.hasFlag("-p") )      _minProb     = Double.parseDouble(params.get("-p"));
+    if( params.hasFlag("-m") )      _maxEntities = Integer.parseInt(params.get("-m"));
+    if( params.hasFlag("-foldin") ) _foldInSteps = Integer.parseInt(params.get("-foldin"));
+    if( params.hasFlag("-queue") )  _queueSize   = Integer.parseInt(params.get("-queue"));
+  }
+
+  /**
+   * Record a failure that the pipeline can't continue from, and interrupt the other threads
+   * so none of them stays blocked on a queue that will never move again.
+   */
+  private synchronized void fail(String where, Throwable ex) {
+    if( _failure != null ) return;
+    _failure = ex;
+    System.err.println("ERROR: " + where + " failed, stopping the pipeline.");
+    ex.printStackTrace();
+    for( Thread thread : _threads )
+      if( thread != Thread.currentThread() ) thread.interrupt();
+  }
+
+  /**
+   * A pipeline step: take documents from one queue, process them, and pass them to the next.
+   * Documents that fail a step are dropped with a warning. A stack overflow counts as failing
+   * the document (e.g. a very long sentence), but other errors stop the pipeline.
+   */
+  private abstract class Step extends Thread {
+    final BlockingQueue<Doc> in, out;
+
+    Step(String name, BlockingQueue<Doc> in, BlockingQueue<Doc> out) {
+      super(name);
+      this.in = in;
+      this.out = out;
+    }
+
+    /**
+     * @return False if the document should be dropped.
+     */
+    abstract boolean process(Doc doc);
+
+    public void run() {
+      try {
+        Doc doc;
+        while( (doc = in.take()) != END ) {
+          boolean keep = false;
+          try {
+            keep = process(doc);
+          } catch( Exception ex ) {
+            System.err.println("WARNING: " + getName() + " failed on " + doc.name);
+            ex.printStackTrace();
+          } catch( StackOverflowError ex ) {
+            System.err.println("WARNING: " + getName() + " overflowed the stack on " + doc.name);
+          }
+          if( keep ) out.put(doc);
+        }
+        finish();
+        out.put(END);
+      } catch( InterruptedException ex ) {
+        // Another thread failed, unless nothing was recorded.
+        if( _failure == null ) fail("the " + getName() + " step", ex);
+      } catch( Throwable ex ) {
+        fail("the " + getName() + " step", ex);
+      }
+    }
+
+    void finish() { }
+  }
+
+  /**
+   * Parses stories with CoreNLP, and writes AllParser's files if -keep was given.
+   */
+  private class ParseStep extends Step {
+    final AllParser parser = new AllParser();
+    String openFile = null;
+    GigaDoc pdoc, depdoc, nerdoc, corefdoc;
+
+    ParseStep(BlockingQueue<Doc> in, BlockingQueue<Doc> out) { super("parse", in, out); }
+
+    boolean process(Doc doc) {
+      if( _keepDir == null ) {
+        doc.processed = parser.analyze(doc.name, doc.storyNum, doc.paragraphs);
+      }
+      else {
+        if( !doc.sourceFile.equals(openFile) ) openFiles(doc.sourceFile);
+        pdoc.openStory(doc.name, doc.storyNum);
+        depdoc.openStory(doc.name, doc.storyNum);
+        nerdoc.openStory(doc.name, doc.storyNum);
+        corefdoc.openStory(doc.name, doc.storyNum);
+        doc.processed = parser.analyzeSentences(doc.name, doc.storyNum, doc.paragraphs, pdoc, depdoc, corefdoc, nerdoc);
+        pdoc.closeStory();
+        depdoc.closeStory();
+        nerdoc.closeStory();
+        corefdoc.closeStory();
+      }
+      doc.paragraphs = null;
+      return doc.processed != null;
+    }
+
+    private void openFiles(String file) {
+      finish();
+      Directory.createDirectory(_keepDir);
+      String base = _keepDir + File.separator + new File(file).getName();
+      try {
+        pdoc = new GigaDoc(base + ".parse");
+        depdoc = new GigaDoc(base + ".deps");
+        nerdoc = new GigaDoc(base + ".ner");
+        corefdoc = new GigaDoc(base + ".events");
+      } catch( Exception ex ) {
+        System.out.println("ERROR: could not create the parse files for " + base);
+        ex.printStackTrace();
+        System.exit(1);
+      }
+      openFile = file;
+    }
+
+    void finish() {
+      if( openFile != null ) {
+        pdoc.closeDoc();
+        depdoc.closeDoc();
+        nerdoc.closeDoc();
+        corefdoc.closeDoc();
+        openFile = null;
+      }
+    }
+  }
+
+  private class EntityStep extends Step {
+    final DataSimplifier simplifier = new DataSimplifier();
+
+    EntityStep(BlockingQueue<Doc> in, BlockingQueue<Doc> out) { super("entities", in, out); }
+
+    boolean process(Doc doc) {
+      // Each document gets its own symbol table, so the global one doesn't grow for as long
+      // as the pipeline runs.
+      doc.entities = simplifier.getEntityListCurrentDoc(doc.processed, TreeOperator.stringsToTrees(doc.processed.parses), new SymbolTable());
+      doc.processed = null;
+      return true;
+    }
+  }
+
+  private class LabelStep extends Step {
+    final Inference inference;
+
+    LabelStep(Inference inference, BlockingQueue<Doc> in, BlockingQueue<Doc> out) {
+      super("label", in, out);
+      this.inference = inference;
+    }
+
+    boolean process(Doc doc) {
+      inference.labelEntities(doc.entities, false);
+      return true;
+    }
+  }
+
+  /**
+   * Run the pipeline over all input stories, and return when the last one is written.
+   * Exits with an error if the pipeline had to stop.
+   */
+  public void run() {
+    // Load the slow resources first, so no step stalls the queues while it starts up.
+    Inference inference = new Inference(_modelPath, _maxEntities, _minProb, false);
+    inference.metrics = SamplerMetrics.create("pipeline");
+    inference._foldInSteps = _foldInSteps;
+
+    final BlockingQueue<Doc> toParse = new ArrayBlockingQueue<Doc>(_queueSize);
+    BlockingQueue<Doc> toEntities = new ArrayBlockingQueue<Doc>(_queueSize);
+    BlockingQueue<Doc> toLabel = new ArrayBlockingQueue<Doc>(_queueSize);
+    BlockingQueue<Doc> toWrite = new ArrayBlockingQueue<Doc>(_queueSize);
+
+    Step[] steps = { new ParseStep(toParse, toEntities), new EntityStep(toEntities, toLabel), new LabelStep(inference, toLabel, toWrite) };
+    Thread reader = new Thread("read") {
+      public void run() { readStories(toParse); }
+    };
+    synchronized( this ) {
+      _threads.add(Thread.currentThread()); // the writer
+      for( Step step : steps ) _threads.add(step);
+      _threads.add(reader);
+    }
+    for( Step step : steps ) step.start();
+    reader.start();
+
+    writeLabeled(toWrite);
+    if( _failure != null ) {
+      System.out.println("ERROR: the pipeline stopped early, " + _outputPath + " is incomplete.");
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Read every story from the input files into the queue, then END. A file that can't be
+   * read is skipped with a warning.
+   */
+  private void readStories(BlockingQueue<Doc> out) {
+    String[] files;
+    String dir;
+    if( new File(_inputPath).isDirectory() ) {
+      files = Directory.getFilesSorted(_inputPath);
+      dir = _inputPath;
+    } else {
+      files = new String[] { Directory.filename(_inputPath) };
+      dir = Directory.dirname(_inputPath);
+    }
+
+    try {
+      for( String file : files ) {
+        if( !AllParser.validFilename(file, _docType) ) continue;
+        String path = dir + File.separator + file;
+        try {
+          DocumentHandler handler = AllParser.createHandler(_docType, path);
+          int storyNum = 0;
+          Vector<String> sentences = handler.nextStory();
+          while( sentences != null && sentences.size() > 0 ) {
+            Doc doc = new Doc();
+            doc.sourceFile = path;
+            doc.name = handler.currentStory();
+            doc.storyNum = storyNum++;
+            doc.paragraphs = sentences;
+            out.put(doc);
+            sentences = handler.nextStory();
+          }
+        } catch( RuntimeException ex ) {
+          System.err.println("WARNING: could not read " + path + ", skipping the rest of it.");
+          ex.printStackTrace();
+        }
+      }
+      out.put(END);
+    } catch( InterruptedException ex ) {
+      if( _failure == null ) fail("reading the input", ex);
+    } catch( Throwable ex ) {
+      fail("reading the input", ex);
+    }
+  }
+
+  /**
+   * Write labeled documents as they arrive, in the entity cache format.
+   */
+  private void writeLabeled(BlockingQueue<Doc> in) {
+    PrintWriter writer = null;
+    try {
+      writer = new PrintWriter(new BufferedWriter(new FileWriter(_outputPath)));
+
+      int numDocs = 0;
+      long start = System.currentTimeMillis();
+      Doc doc;
+      while( (doc = in.take()) != END ) {
+        writer.print("DOC " + doc.name + "\n");
+        for( TextEntity entity : doc.entities )
+          writer.print(entity.toFullString() + "\n");
+        writer.flush();
+        // PrintWriter doesn't throw, so check it.
+        if( writer.checkError() ) throw new IOException("could not write to " + _outputPath);
+        numDocs++;
+      }
+      System.out.println("Labeled " + numDocs + " documents in " + (System.currentTimeMillis()-start) + " ms, written to " + _outputPath);
+    } catch( InterruptedException ex ) {
+      if( _failure == null ) fail("writing the labeled documents", ex);
+    } catch( Throwable ex ) {
+      fail("writing the labeled documents", ex);
+    } finally {
+      if( writer != null ) writer.close();
+    }
+  }
+
+  public static void main(String[] args) {
+    StreamingPipeline pipeline = new StreamingPipeline(args);
+    pipeline.run();
+  }
+}
@@ -2,6 +2,7 @@ package nate.probschemas;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -13,6 +14,7 @@ import edu.stanford.nlp.util.StringUtils;
 import nate.ProcessedData;
 import nate.args.VerbArgCounts;
 import nate.muc.MUCEntity;
+import nate.muc.MUCGoldIndex;
 import nate.muc.MUCKeyReader;
 import nate.muc.Template;
 import nate.util.HandleParameters;
@@ -147,7 +149,7 @@ public class TemplateTester {
     return false;
   }
   
-  private static int duplicatesThatWereWrong(Collection<String> guesses, int[] guessesMatched, boolean debug) {
+  static int duplicatesThatWereWrong(Collection<String> guesses, int[] guessesMatched, boolean debug) {
     int duplicates = 0;
     String[] guessStrings = new String[guesses.size()];
     guessStrings = guesses.toArray(guessStrings);
@@ -227,17 +229,13 @@ public class TemplateTester {
     if( guesses != null ) {
       int guessi = 0;
       for( String guess : guesses ) {
-        int i = 0;
         boolean foundmatch = false;
         if( golds != null ) {
-          for( MUCEntity gold : golds ) {
-            if( debug ) System.out.println("Checking " + gold + " vs " + guess);
-            if( stringMatchToMUCEntity(gold, guess) ) {
-              matched[i]++;
-              foundmatch = true;
-              if( debug ) System.out.println("  Matched! " + gold + " -- " + guess);
-            }
-            i++;
+          BitSet matches = matchesToMUCEntities(golds, guess);
+          for( int i = matches.nextSetBit(0); i > -1; i = matches.nextSetBit(i+1) ) {
+            matched[i]++;
+            foundmatch = true;
+            if( debug ) System.out.println("  Matched! " + golds.get(i) + " -- " + guess);
           }
         }
         if( !foundmatch ) notmatched++;
@@ -292,13 +290,49 @@ public class TemplateTester {
 
   public static MUCEntity stringMatchToMUCEntities(List<MUCEntity> golds, String guess) {
     if( golds != null ) {
-      for( MUCEntity gold : golds ) {
-        if( stringMatchToMUCEntity(gold, guess) ) return gold;
-      }
+      int first = matchesToMUCEntities(golds, guess).nextSetBit(0);
+      if( first > -1 ) return golds.get(first);
     }
     return null;
   }
 
+  /**
+   * Matches a guess against a list of golds, as stringMatchToMUCEntity() does with each.
+   * If the golds are from one story of a MUCKeyReader, the story's MUCGoldIndex picks the
+   * few golds that could match, and only those are compared.
+   * @return The indices of the golds that the guess matches.
+   */
+  public static BitSet matchesToMUCEntities(List<MUCEntity> golds, String guess) {
+    BitSet matches = new BitSet();
+    guess = normalizeGuess(guess);
+    String guessRightmost = rightmostWord(guess);
+
+    // The index can be used if all the golds are in it.
+    MUCGoldIndex index = (golds.size() > 0 ? golds.get(0).goldIndex() : null);
+    for( MUCEntity gold : golds )
+      if( gold.goldIndex() != index ) index = null;
+    Set<MUCEntity> candidates = (index == null ? null : index.candidates(guess, guessRightmost));
+
+    int i = 0;
+    for( MUCEntity gold : golds ) {
+      if( (candidates == null || candidates.contains(gold)) && normalizedMatchToMUCEntity(gold, guess, guessRightmost, true) )
+        matches.set(i);
+      i++;
+    }
+    return matches;
+  }
+
+  /**
+   * Converts a guess to the form that is compared with gold mentions.
+   */
+  public static String normalizeGuess(String guess) {
+    return replaceParentheses(guess).toLowerCase();
+  }
+
+  private static String rightmostWord(String str) {
+    return (str.indexOf(' ') > -1 ? str.substring(str.lastIndexOf(' ')+1) : str);
+  }
+
   /**
    * @return True if the guess string matches one of the given entity's
    *         string descriptions.  It doesn't have to be an exact match,
@@ -308,12 +342,16 @@ public class TemplateTester {
     return stringMatchToMUCEntity(gold, guess, true);
   }
   public static boolean stringMatchToMUCEntity(MUCEntity gold, String guess, boolean warnings) {
-    guess = replaceParentheses(guess);
-    guess = guess.toLowerCase();
-    String guessRightmost = (guess.indexOf(' ') > -1 ? guess.substring(guess.lastIndexOf(' ')+1) : guess); 
-    
-    for( String mention : gold.getMentions() ) {
-      mention = mention.toLowerCase();
+    guess = normalizeGuess(guess);
+    return normalizedMatchToMUCEntity(gold, guess, rightmostWord(guess), warnings);
+  }
+
+  /**
+   * stringMatchToMUCEntity() with the guess already normalized.
+   */
+  private static boolean normalizedMatchToMUCEntity(MUCEntity gold, String guess, String guessRightmost, boolean warnings) {
+    for( int mi = 0; mi < gold.numMentions(); mi++ ) {
+      String mention = gold.lowerMention(mi);
       boolean ofmatch = false;
 //      System.out.println("  -> " + mention + " vs " + guess);
 
@@ -360,8 +398,7 @@ public class TemplateTester {
       // Finally, if the rightmost word matches, we win. This is probably too broad, but it is what everyone does
       // in this field. It does seem to give credit to a lot of things that should be given credit, but it also
       // makes mistakes.
-      String mentionRightmost = (mention.indexOf(' ') > -1 ? mention.substring(mention.lastIndexOf(' ')+1) : mention);
-      if( !ofmatch && mentionRightmost.equals(guessRightmost) ) {
+      if( !ofmatch && gold.rightmostWord(mi).equals(guessRightmost) ) {
         System.out.println("RIGHTMOST MATCH: " + guess + " with gold " + mention);
         return true;
       }
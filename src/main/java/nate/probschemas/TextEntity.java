@@ -2,66 +2,170 @@ package nate.probschemas;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
 
 import nate.NERSpan;
+import nate.util.SymbolTable;
 
 /**
  * This is a data structure to represent an entity in text, made up of
  * entity mentions. This class stores the mentions.
  *
+ * Large corpora hold millions of mentions with the same few thousand tokens and
+ * dependencies, so every string is interned in one global symbol table and a mention
+ * is stored as ids in parallel int arrays. Types are a bitmask and labels a sorted int
+ * array. The accessors return the same strings and sets as before.
+ *
+ * The global table never shrinks, so processes that run indefinitely (InferenceServer,
+ * StreamingPipeline) give each request or document its own table instead, and it is
+ * dropped along with the request's entities.
  */
 public class TextEntity {
   public static enum TYPE { PERSON, ORG, LOCATION, EVENT, PHYSOBJECT, TIME, OTHER };
 
-  // These two lists should always line up, the token at index i should be
-  // with the dependency relation at index i.
-  public List<String> rawTokens;
-  public List<String> tokens; // usually lemmatized
-  public List<String> deps;
-  public List<NERSpan.TYPE> ners; // NE label from the NER system per mention.
-  public Set<TYPE> types; // Top-level entity types for this entity (person, physobj, location, etc).
-
-  private String coreToken;    // represents the entity, lemmatized, not a pronoun, but the core word
-  private String coreTokenRaw; // represents the entity, not a pronoun, but the core word
-  private Set<Integer> labels = null; // The assigned role/slot/topic if inference ran on this entity
+  // Shared by entities that aren't given a table: tokens, lemmas, dependencies and core tokens.
+  private static final SymbolTable _globalSymbols = new SymbolTable();
+  private static final NERSpan.TYPE[] _nerTypes = NERSpan.TYPE.values();
+  // One unmodifiable set per type bitmask, so entities share their type sets.
+  private static final List<Set<TYPE>> _typeSets = new ArrayList<Set<TYPE>>();
+  static {
+    TYPE[] types = TYPE.values();
+    for( int mask = 0; mask < (1 << types.length); mask++ ) {
+      Set<TYPE> set = EnumSet.noneOf(TYPE.class);
+      for( TYPE type : types )
+        if( (mask & (1 << type.ordinal())) != 0 ) set.add(type);
+      _typeSets.add(Collections.unmodifiableSet(set));
+    }
+  }
+
+  /**
+   * The mentions of an entity. The arrays line up: the token at index i
+   * is with the dependency relation at index i.
+   */
+  private static class Mentions {
+    int[] rawTokens = new int[2];
+    int[] tokens = new int[2]; // usually lemmatized
+    int[] deps = new int[2];
+    byte[] ners = new byte[2]; // NE label from the NER system per mention, -1 if null.
+    int size = 0;
+  }
+
+  private Mentions _mentions;
+  private final SymbolTable _symbols; // the table that this entity's ids are from
+  private int _types = 0; // Bitmask of top-level entity types for this entity (person, physobj, location, etc).
+
+  private int coreToken = -1;    // represents the entity, lemmatized, not a pronoun, but the core word
+  private int coreTokenRaw = -1; // represents the entity, not a pronoun, but the core word
+  private int[] labels = null; // The assigned roles/slots/topics, sorted, if inference ran on this entity
   
   public TextEntity() {
-    rawTokens = new ArrayList<String>();
-    tokens    = new ArrayList<String>();
-    deps      = new ArrayList<String>();
-    ners      = new ArrayList<NERSpan.TYPE>();
+    this(_globalSymbols);
+  }
+
+  /**
+   * @param symbols The table to intern this entity's strings in, instead of the global one.
+   */
+  public TextEntity(SymbolTable symbols) {
+    _symbols = symbols;
+    _mentions = new Mentions();
+  }
+
+  /**
+   * @return A new entity that shares this entity's mentions and types, but has its own (empty) labels.
+   */
+  public TextEntity copyWithoutLabels() {
+    TextEntity copy = new TextEntity(_symbols);
+    copy._mentions = _mentions;
+    copy._types = _types;
+    copy.coreToken = coreToken;
+    copy.coreTokenRaw = coreTokenRaw;
+    return copy;
+  }
+
+  /**
+   * Copy a list of documents with copyWithoutLabels(), so inference can label the copies
+   * without touching the original entities.
+   */
+  public static List<List<TextEntity>> copyWithoutLabels(List<List<TextEntity>> docsEntities) {
+    List<List<TextEntity>> copies = new ArrayList<List<TextEntity>>(docsEntities.size());
+    for( List<TextEntity> doc : docsEntities ) {
+      List<TextEntity> copy = new ArrayList<TextEntity>(doc.size());
+      for( TextEntity entity : doc )
+        copy.add(entity.copyWithoutLabels());
+      copies.add(copy);
+    }
+    return copies;
   }
 
+  /**
+   * @return The number of distinct strings in the global table.
+   */
+  public static int numSymbols() { return _globalSymbols.size(); }
+
   public void setEntityTypes(Set<TYPE> types) {
-    this.types = types; 
+    _types = 0;
+    if( types != null )
+      for( TYPE type : types ) _types |= (1 << type.ordinal());
   }
+
+  /**
+   * @return The entity's types. The set is shared and cannot be changed.
+   */
+  public Set<TYPE> getTypes() { return _typeSets.get(_types); }
+  public boolean hasType(TYPE type) { return (_types & (1 << type.ordinal())) != 0; }
+  public int typeMask() { return _types; }
   
   public void setCoreToken(String coreLemma, String coreRaw) {
-    coreToken = coreLemma;
-    coreTokenRaw = coreRaw;
+    coreToken = _symbols.intern(coreLemma);
+    coreTokenRaw = _symbols.intern(coreRaw);
   }
 
-  public String getCoreToken() { return coreToken; }
-  public String getCoreTokenRaw() { return coreTokenRaw; }
+  public String getCoreToken() { return _symbols.get(coreToken); }
+  public String getCoreTokenRaw() { return _symbols.get(coreTokenRaw); }
 
   // Label functions.
-  public void clearLabels() { if( labels != null ) labels.clear(); }
-  public boolean hasLabel(int label) { return (labels != null && labels.contains(label)); }
-  public boolean hasALabel() { return (labels != null && labels.size() > 0); }
-  public Set<Integer> getLabels() { return labels; }
+  public void clearLabels() { if( labels != null ) labels = new int[0]; }
+  public boolean hasLabel(int label) { return (labels != null && Arrays.binarySearch(labels, label) > -1); }
+  public boolean hasALabel() { return (labels != null && labels.length > 0); }
+  /**
+   * @return A new set of the labels in ascending order, or null if no label was ever added.
+   */
+  public Set<Integer> getLabels() {
+    if( labels == null ) return null;
+    Set<Integer> set = new TreeSet<Integer>();
+    for( int label : labels ) set.add(label);
+    return set;
+  }
   public void addLabel(int label) {
-  	if( labels == null ) labels = new HashSet<Integer>();
-  	labels.add(label); 
+    if( labels == null ) labels = new int[0];
+    int index = Arrays.binarySearch(labels, label);
+    if( index > -1 ) return;
+    index = -index - 1;
+    int[] added = new int[labels.length+1];
+    System.arraycopy(labels, 0, added, 0, index);
+    added[index] = label;
+    System.arraycopy(labels, index, added, index+1, labels.length - index);
+    labels = added;
   }
   
   public void addMention(String rawtoken, String lemmatoken, String dep, NERSpan.TYPE ner) {
-    rawTokens.add(rawtoken);
-    tokens.add(lemmatoken);
-    deps.add(dep);
-    ners.add(ner);
+    Mentions m = _mentions;
+    if( m.size == m.tokens.length ) {
+      int capacity = m.size * 2;
+      m.rawTokens = Arrays.copyOf(m.rawTokens, capacity);
+      m.tokens = Arrays.copyOf(m.tokens, capacity);
+      m.deps = Arrays.copyOf(m.deps, capacity);
+      m.ners = Arrays.copyOf(m.ners, capacity);
+    }
+    m.rawTokens[m.size] = _symbols.intern(rawtoken);
+    m.tokens[m.size] = _symbols.intern(lemmatoken);
+    m.deps[m.size] = _symbols.intern(dep);
+    m.ners[m.size] = (byte)(ner == null ? -1 : ner.ordinal());
+    m.size++;
   }
   
   /**
@@ -73,25 +177,75 @@ public class TextEntity {
       System.out.println("ERROR: attempt to remove mention " + index + " with only " + numMentions() + " mentions.");
       System.exit(-1);
     }
-    rawTokens.remove(index);
-    tokens.remove(index);
-    deps.remove(index);
-    ners.remove(index);
+    Mentions m = _mentions;
+    int moved = m.size - index - 1;
+    System.arraycopy(m.rawTokens, index+1, m.rawTokens, index, moved);
+    System.arraycopy(m.tokens, index+1, m.tokens, index, moved);
+    System.arraycopy(m.deps, index+1, m.deps, index, moved);
+    System.arraycopy(m.ners, index+1, m.ners, index, moved);
+    m.size--;
   }
   
+  /**
+   * Remove every mention i with remove[i] true, in one pass over the mention arrays.
+   * @param remove One flag per mention.
+   * @return The number of mentions removed.
+   */
+  public int removeMentions(boolean[] remove) {
+    Mentions m = _mentions;
+    int n = m.size;
+    int kept = 0;
+    for( int ii = 0; ii < n; ii++ ) {
+      if( !remove[ii] ) {
+        if( kept < ii ) {
+          m.rawTokens[kept] = m.rawTokens[ii];
+          m.tokens[kept] = m.tokens[ii];
+          m.deps[kept] = m.deps[ii];
+          m.ners[kept] = m.ners[ii];
+        }
+        kept++;
+      }
+    }
+    m.size = kept;
+    return n - kept;
+  }
+
+  public String getMentionRawToken(int index) {
+    return _symbols.get(_mentions.rawTokens[checkMention(index)]);
+  }
+
   public String getMentionToken(int index) {
-    return tokens.get(index);
+    return _symbols.get(_mentions.tokens[checkMention(index)]);
   }
   
   public String getMentionDependency(int index) {
-    return deps.get(index);
+    return _symbols.get(_mentions.deps[checkMention(index)]);
+  }
+
+  public NERSpan.TYPE getMentionNER(int index) {
+    byte ner = _mentions.ners[checkMention(index)];
+    return (ner < 0 ? null : _nerTypes[ner]);
+  }
+
+  /**
+   * @return A new list of the NE labels of the mentions, in mention order.
+   */
+  public List<NERSpan.TYPE> getMentionNERs() {
+    List<NERSpan.TYPE> ners = new ArrayList<NERSpan.TYPE>(numMentions());
+    for( int ii = 0; ii < numMentions(); ii++ )
+      ners.add(getMentionNER(ii));
+    return ners;
+  }
+
+  // The arrays are longer than the mentions, so check the index like a list would.
+  private int checkMention(int index) {
+    if( index < 0 || index >= _mentions.size )
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + _mentions.size);
+    return index;
   }
   
   public int numMentions() {
-    if( tokens == null )
-      return 0;
-    else
-      return tokens.size();    
+    return _mentions.size;
   }
   
   /**
@@ -99,14 +253,12 @@ public class TextEntity {
    */
   public String toString() {
     StringBuffer buf = new StringBuffer("{ ");
-    if( tokens != null ) {
-      buf.append(coreToken + " (");
-      for( TextEntity.TYPE type : types )
-        buf.append(" " + type);
-      buf.append(" ): ");
-      for( int ii = 0; ii < tokens.size(); ii++ ) {
-        buf.append(tokens.get(ii) + "/" + deps.get(ii) + " ");
-      }
+    buf.append(getCoreToken() + " (");
+    for( TextEntity.TYPE type : getTypes() )
+      buf.append(" " + type);
+    buf.append(" ): ");
+    for( int ii = 0; ii < numMentions(); ii++ ) {
+      buf.append(getMentionToken(ii) + "/" + getMentionDependency(ii) + " ");
     }
     buf.append("}");
     return buf.toString();
@@ -117,31 +269,32 @@ public class TextEntity {
    */
   public String toFullString() {
     StringBuffer buf = new StringBuffer("");
-    if( tokens != null ) {
-      buf.append(coreToken + "\t\t");
-      buf.append(coreTokenRaw + "\t\t");
-      if( labels == null || labels.size() == 0 )
-      	buf.append("null\t\t");
-      else {
-      	for( Integer ii : labels )  /// NOT ACTUALLY TESTED YET!
-      		buf.append(ii + "\t");
-      	buf.append("\t\t");
+    buf.append(getCoreToken() + "\t\t");
+    buf.append(getCoreTokenRaw() + "\t\t");
+    if( labels == null || labels.length == 0 )
+      buf.append("null\t\t");
+    else {
+      // Single tabs between labels, so the double tab still ends the field.
+      for( int xx = 0; xx < labels.length; xx++ ) {
+        if( xx > 0 ) buf.append("\t");
+        buf.append(labels[xx]);
       }
-      for( String str : rawTokens )
-        buf.append(str + "\t");
-      buf.append("\t"); // double tabs, given previous for loop's ending tab
-      for( String str : tokens )
-        buf.append(str + "\t");
-      buf.append("\t");
-      for( String str : deps )
-        buf.append(str + "\t");
-      buf.append("\t");
-      for( NERSpan.TYPE type : ners )
-        buf.append(type.toString() + "\t");
-      buf.append("\t");
-      for( TYPE type : types )
-        buf.append(type.toString() + "\t");
+      buf.append("\t\t");
     }
+    for( int ii = 0; ii < numMentions(); ii++ )
+      buf.append(getMentionRawToken(ii) + "\t");
+    buf.append("\t"); // double tabs, given previous for loop's ending tab
+    for( int ii = 0; ii < numMentions(); ii++ )
+      buf.append(getMentionToken(ii) + "\t");
+    buf.append("\t");
+    for( int ii = 0; ii < numMentions(); ii++ )
+      buf.append(getMentionDependency(ii) + "\t");
+    buf.append("\t");
+    for( int ii = 0; ii < numMentions(); ii++ )
+      buf.append(getMentionNER(ii) + "\t");
+    buf.append("\t");
+    for( TYPE type : getTypes() )
+      buf.append(type.toString() + "\t");
     return buf.toString();
   }
   
@@ -151,11 +304,18 @@ public class TextEntity {
    * @return The new TextEntity object.
    */
   public static TextEntity fromFullString(String str) {
+    return fromFullString(str, _globalSymbols);
+  }
+
+  /**
+   * Same as fromFullString(String), with the entity's strings interned in the given table.
+   */
+  public static TextEntity fromFullString(String str, SymbolTable symbols) {
 //    System.out.println("TextEntity.fromFullString\t" + str);
     String parts[] = str.split("\t\t");
     
     // Core tokens.
-    TextEntity entity = new TextEntity();
+    TextEntity entity = new TextEntity(symbols);
     entity.setCoreToken(parts[0], parts[1]);
     
     if( !parts[2].equalsIgnoreCase("null") ) {
@@ -163,31 +323,18 @@ public class TextEntity {
     	for( String label : labels ) entity.addLabel(Integer.parseInt(label));
     }
     
-    List<String> raw = new ArrayList<String>();
-    List<String> tokens = new ArrayList<String>();
-    List<String> deps = new ArrayList<String>();
-    List<NERSpan.TYPE> ners = new ArrayList<NERSpan.TYPE>();
-    Set<TYPE> types = new HashSet<TYPE>();
-        
-    String[] bits = parts[3].split("\t");
-    for( String bit : bits ) raw.add(bit);
-
-    bits = parts[4].split("\t");
-    for( String bit : bits ) tokens.add(bit);
+    String[] raw = parts[3].split("\t");
+    String[] tokens = parts[4].split("\t");
+    String[] deps = parts[5].split("\t");
+    String[] ners = parts[6].split("\t");
+    for( int ii = 0; ii < raw.length; ii++ )
+      entity.addMention(raw[ii], tokens[ii], deps[ii], NERSpan.TYPE.valueOf(ners[ii]));
 
-    bits = parts[5].split("\t");
-    for( String bit : bits ) deps.add(bit);
-
-    bits = parts[6].split("\t");
-    for( String bit : bits ) ners.add(NERSpan.TYPE.valueOf(bit));
-
-    bits = parts[7].split("\t");
+    Set<TYPE> types = EnumSet.noneOf(TYPE.class);
+    String[] bits = parts[7].split("\t");
     for( String bit : bits ) types.add(TYPE.valueOf(bit));
     entity.setEntityTypes(types);
 
-    for( int ii = 0; ii < raw.size(); ii++ )
-      entity.addMention(raw.get(ii), tokens.get(ii), deps.get(ii), ners.get(ii));
-
 //    System.out.println("Read entity:\t\t" + entity.toFullString());
 //    System.out.println("Read entity:\t\t" + entity.toString());
     return entity;
@@ -0,0 +1,177 @@
+package nate.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Solves the assignment problem on a weight matrix: give each row its own column so that
+ * the summed weights are as large as possible. There can be more columns than rows, and
+ * Double.NEGATIVE_INFINITY marks a row/column pair that may not be used.
+ *
+ * best() is the Hungarian algorithm, O(rows^2 * cols). kBest() is Murty's algorithm on
+ * top of it: it returns the k best assignments in order, with k * rows calls to best().
+ */
+public class Assignment {
+
+  /**
+   * @param weights weights[row][col], with at least as many columns as rows.
+   * @return The column of each row in the best assignment, or null if every assignment
+   *         uses a forbidden pair.
+   */
+  public static int[] best(double[][] weights) {
+    int n = weights.length;
+    if( n == 0 ) return new int[0];
+    int m = weights[0].length;
+    if( m < n ) {
+      System.out.println("ERROR: Assignment needs at least as many columns as rows: " + n + " > " + m);
+      return null;
+    }
+
+    // Minimize the negated weights. Forbidden pairs cost more than any full assignment
+    // of allowed pairs, so they are only used when there is no other choice.
+    double maxAbs = 0.0;
+    for( double[] row : weights )
+      for( double w : row )
+        if( w != Double.NEGATIVE_INFINITY ) maxAbs = Math.max(maxAbs, Math.abs(w));
+    double forbidden = 2.0 * (n+1) * (maxAbs+1.0);
+
+    // Potentials and matches are 1-indexed, column 0 is the row being added.
+    double[] u = new double[n+1];
+    double[] v = new double[m+1];
+    int[] p = new int[m+1];
+    int[] way = new int[m+1];
+    double[] minv = new double[m+1];
+    boolean[] used = new boolean[m+1];
+    for( int i = 1; i <= n; i++ ) {
+      p[0] = i;
+      int j0 = 0;
+      Arrays.fill(minv, Double.POSITIVE_INFINITY);
+      Arrays.fill(used, false);
+      do {
+        used[j0] = true;
+        int i0 = p[j0], j1 = 0;
+        double delta = Double.POSITIVE_INFINITY;
+        for( int j = 1; j <= m; j++ ) {
+          if( !used[j] ) {
+            double w = weights[i0-1][j-1];
+            double cur = (w == Double.NEGATIVE_INFINITY ? forbidden : -w) - u[i0] - v[j];
+            if( cur < minv[j] ) { minv[j] = cur; way[j] = j0; }
+            if( minv[j] < delta ) { delta = minv[j]; j1 = j; }
+          }
+        }
+        for( int j = 0; j <= m; j++ ) {
+          if( used[j] ) { u[p[j]] += delta; v[j] -= delta; }
+          else minv[j] -= delta;
+        }
+        j0 = j1;
+      } while( p[j0] != 0 );
+      do {
+        int j1 = way[j0];
+        p[j0] = p[j1];
+        j0 = j1;
+      } while( j0 != 0 );
+    }
+
+    int[] assignment = new int[n];
+    for( int j = 1; j <= m; j++ )
+      if( p[j] != 0 ) assignment[p[j]-1] = j-1;
+    for( int i = 0; i < n; i++ )
+      if( weights[i][assignment[i]] == Double.NEGATIVE_INFINITY )
+        return null;
+    return assignment;
+  }
+
+  /**
+   * @return The summed weights of the given assignment.
+   */
+  public static double weight(double[][] weights, int[] assignment) {
+    double sum = 0.0;
+    for( int i = 0; i < assignment.length; i++ )
+      sum += weights[i][assignment[i]];
+    return sum;
+  }
+
+  /**
+   * A subproblem in Murty's algorithm: some pairs are fixed, some are forbidden,
+   * and this is the best assignment that respects them.
+   */
+  private static class Node {
+    int[] fixed;            // [row] the row's column, or -1 if free
+    boolean[][] excluded;   // [row][col]
+    int[] assignment;
+    double weight;
+  }
+
+  private static Node solve(double[][] weights, int[] fixed, boolean[][] excluded) {
+    int n = weights.length, m = weights[0].length;
+    double[][] constrained = new double[n][];
+    for( int i = 0; i < n; i++ ) {
+      constrained[i] = weights[i].clone();
+      for( int j = 0; j < m; j++ )
+        if( excluded[i][j] ) constrained[i][j] = Double.NEGATIVE_INFINITY;
+    }
+    for( int i = 0; i < n; i++ ) {
+      if( fixed[i] > -1 ) {
+        for( int j = 0; j < m; j++ )
+          if( j != fixed[i] ) constrained[i][j] = Double.NEGATIVE_INFINITY;
+        for( int k = 0; k < n; k++ )
+          if( k != i ) constrained[k][fixed[i]] = Double.NEGATIVE_INFINITY;
+      }
+    }
+
+    int[] assignment = best(constrained);
+    if( assignment == null ) return null;
+    Node node = new Node();
+    node.fixed = fixed;
+    node.excluded = excluded;
+    node.assignment = assignment;
+    node.weight = weight(weights, assignment);
+    return node;
+  }
+
+  /**
+   * Murty's algorithm. After an assignment is taken, the rest of its subproblem is split
+   * into one subproblem per free row: the earlier rows keep their columns and this row
+   * may not use its column. The best of all open subproblems is the next assignment.
+   * @param weights weights[row][col], with at least as many columns as rows.
+   * @param k The number of assignments to return.
+   * @return Up to k assignments, best first. Fewer if there are not k allowed assignments.
+   */
+  public static List<int[]> kBest(double[][] weights, int k) {
+    List<int[]> results = new ArrayList<int[]>();
+    int n = weights.length;
+    if( n == 0 ) {
+      if( k > 0 ) results.add(new int[0]);
+      return results;
+    }
+    int m = weights[0].length;
+
+    PriorityQueue<Node> open = new PriorityQueue<Node>(11, new Comparator<Node>() {
+      public int compare(Node a, Node b) { return Double.compare(b.weight, a.weight); }
+    });
+    int[] nofixed = new int[n];
+    Arrays.fill(nofixed, -1);
+    Node root = solve(weights, nofixed, new boolean[n][m]);
+    if( root != null ) open.add(root);
+
+    while( results.size() < k && !open.isEmpty() ) {
+      Node node = open.poll();
+      results.add(node.assignment);
+
+      int[] fixed = node.fixed.clone();
+      for( int i = 0; i < n; i++ ) {
+        if( node.fixed[i] > -1 ) continue;
+        boolean[][] excluded = new boolean[n][];
+        for( int r = 0; r < n; r++ ) excluded[r] = node.excluded[r].clone();
+        excluded[i][node.assignment[i]] = true;
+        Node child = solve(weights, fixed.clone(), excluded);
+        if( child != null ) open.add(child);
+        fixed[i] = node.assignment[i];
+      }
+    }
+    return results;
+  }
+}
@@ -13,11 +13,14 @@ public class SortableScore implements Comparable<SortableScore> {
   }
   public SortableScore() { }
 
+  /**
+   * Highest scores first. Double.compare() keeps the order total when a score is NaN.
+   * Callers sort with this order, e.g. VerbArgCounts.writeToFile() writes each slot's
+   * arguments highest count first with it.
+   */
   public int compareTo(SortableScore b) {
     if( b == null ) return -1;
-    if( score < ((SortableScore)b).score() ) return 1;
-    else if( ((SortableScore)b).score() > score ) return -1;
-    else return 0;
+    return Double.compare(b.score(), score);
   }
 
   public void setScore(double s) { score = s; }
@@ -0,0 +1,54 @@
+package nate.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps strings to dense int ids and back, so that a string repeated across millions
+ * of objects (e.g. "nsubj--kidnap") is stored once and referenced by its id.
+ *
+ * Interning is synchronized. Lookups by id are not: an id is only handed out after its
+ * string is stored, so any thread that was given the id can read it.
+ */
+public class SymbolTable {
+  private Map<String,Integer> _ids = new HashMap<String,Integer>();
+  private volatile String[] _strings = new String[1024];
+  private volatile int _size = 0;
+
+  /**
+   * @return The id of the given string, adding it if it is new. Null is -1.
+   */
+  public synchronized int intern(String str) {
+    if( str == null ) return -1;
+    Integer id = _ids.get(str);
+    if( id != null ) return id;
+
+    String[] strings = _strings;
+    if( _size == strings.length ) {
+      strings = Arrays.copyOf(strings, strings.length * 2);
+      _strings = strings;
+    }
+    strings[_size] = str;
+    _ids.put(str, _size);
+    return _size++;
+  }
+
+  /**
+   * @return The id of the given string, or -1 if it was never interned.
+   */
+  public synchronized int id(String str) {
+    Integer id = (str == null ? null : _ids.get(str));
+    return (id == null ? -1 : id);
+  }
+
+  /**
+   * @return The string with the given id, or null for -1.
+   */
+  public String get(int id) {
+    if( id < 0 ) return null;
+    return _strings[id];
+  }
+
+  public int size() { return _size; }
+}
@@ -2,13 +2,14 @@ package nate.util;
 
 import java.io.FileInputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.didion.jwnl.JWNL;
+import net.didion.jwnl.JWNLException;
 import net.didion.jwnl.data.IndexWord;
 import net.didion.jwnl.data.POS;
 import net.didion.jwnl.data.Pointer;
@@ -21,21 +22,31 @@ import net.didion.jwnl.dictionary.Dictionary;
 /**
  * Helper class to lookup lemma forms in WordNet.
  * Caches lookups in memory to speedup the lookup, but can increase memory size.
+ * One instance can be shared by threads. The caches are concurrent maps, and only the
+ * lookups that miss them wait for the WordNet dictionary.
  */
 public class WordNet {
-  private Map<String,String> _verbToLemma;
-  private Map<String,String> _nounToLemma;
-  private Map<String,String> _adjToLemma;
-  private Map<String,Boolean> _isNounEvent;
-  private Map<String,Boolean> _isPhysicalObject;
-  private Map<String,Boolean> _isNonPersonLocationPhysicalObject;
-  private Map<String,Boolean> _isMaterial;
-  private Map<String,Boolean> _isPersonOrGroup;
-  private Map<String,Boolean> _isNamedEntity;
-  private Map<String,Boolean> _isLocation;
-  private Map<String,Boolean> _isStructure;
-  private Map<String,Boolean> _isMeasure;
-  private Map<String,Boolean> _isTime;
+  // JWNL has one Dictionary per JVM, and its file-backed lookups aren't thread safe. Index
+  // word lookups, loading a word's synsets and following a pointer all read it, so they hold
+  // this lock. Synset words and pointers are plain fields once loaded, and cache hits don't
+  // touch JWNL at all.
+  private static final Object JWNL_LOCK = new Object();
+  // Cached for words that have no lemma, since the maps can't hold null.
+  private static final String NO_LEMMA = new String("");
+
+  private final Map<String,String> _verbToLemma = new ConcurrentHashMap<String,String>();
+  private final Map<String,String> _nounToLemma = new ConcurrentHashMap<String,String>();
+  private final Map<String,String> _adjToLemma = new ConcurrentHashMap<String,String>();
+  private final Map<String,Boolean> _isNounEvent = new ConcurrentHashMap<String,Boolean>();
+  private final Map<String,Boolean> _isPhysicalObject = new ConcurrentHashMap<String,Boolean>();
+  private final Map<String,Boolean> _isNonPersonLocationPhysicalObject = new ConcurrentHashMap<String,Boolean>();
+  private final Map<String,Boolean> _isMaterial = new ConcurrentHashMap<String,Boolean>();
+  private final Map<String,Boolean> _isPersonOrGroup = new ConcurrentHashMap<String,Boolean>();
+  private final Map<String,Boolean> _isNamedEntity = new ConcurrentHashMap<String,Boolean>();
+  private final Map<String,Boolean> _isLocation = new ConcurrentHashMap<String,Boolean>();
+  private final Map<String,Boolean> _isStructure = new ConcurrentHashMap<String,Boolean>();
+  private final Map<String,Boolean> _isMeasure = new ConcurrentHashMap<String,Boolean>();
+  private final Map<String,Boolean> _isTime = new ConcurrentHashMap<String,Boolean>();
 
   // HYPERNYM is the main link in WordNet.  However, they also have an "instance hypernym"
   // which does not have a PointerType type in their API, yet appears in their database.
@@ -67,21 +78,39 @@ public class WordNet {
     return path;
   }
   
+  /**
+   * Look up a word in the dictionary, holding the JWNL lock.
+   */
+  private static IndexWord lookupIndexWord(POS pos, String word) throws JWNLException {
+    synchronized( JWNL_LOCK ) {
+      return Dictionary.getInstance().lookupIndexWord(pos, word);
+    }
+  }
+
+  /**
+   * @return The synset that the pointer points to, holding the JWNL lock to load it.
+   */
+  private static Synset targetSynset(Pointer link) throws JWNLException {
+    synchronized( JWNL_LOCK ) {
+      return link.getTargetSynset();
+    }
+  }
+
   public String hashSizes() {
     String str = "WordNet sizes: ";
-    str += " " + (_verbToLemma != null ? _verbToLemma.size() : 0);
-    str += " " + (_nounToLemma != null ? _nounToLemma.size() : 0);
-    str += " " + (_adjToLemma != null ? _adjToLemma.size() : 0);
-    str += " " + (_isNounEvent != null ? _isNounEvent.size() : 0);
-    str += " " + (_isPhysicalObject != null ? _isPhysicalObject.size() : 0);
-    str += " " + (_isNonPersonLocationPhysicalObject != null ? _isNonPersonLocationPhysicalObject.size() : 0);
-    str += " " + (_isMaterial != null ? _isMaterial.size() : 0);
-    str += " " + (_isPersonOrGroup != null ? _isPersonOrGroup.size() : 0);
-    str += " " + (_isNamedEntity != null ? _isNamedEntity.size() : 0);
-    str += " " + (_isLocation != null ? _isLocation.size() : 0);
-    str += " " + (_isStructure != null ? _isStructure.size() : 0);
-    str += " " + (_isMeasure != null ? _isMeasure.size() : 0);
-    str += " " + (_isTime != null ? _isTime.size() : 0);
+    str += " " + _verbToLemma.size();
+    str += " " + _nounToLemma.size();
+    str += " " + _adjToLemma.size();
+    str += " " + _isNounEvent.size();
+    str += " " + _isPhysicalObject.size();
+    str += " " + _isNonPersonLocationPhysicalObject.size();
+    str += " " + _isMaterial.size();
+    str += " " + _isPersonOrGroup.size();
+    str += " " + _isNamedEntity.size();
+    str += " " + _isLocation.size();
+    str += " " + _isStructure.size();
+    str += " " + _isMeasure.size();
+    str += " " + _isTime.size();
     return str;
   }
   
@@ -90,22 +119,21 @@ public class WordNet {
    * @return The lemma of the word if it is a verb, null otherwise
    */
   public String verbToLemma(String word) {
-    if( _verbToLemma == null ) _verbToLemma = new HashMap<String, String>();
-
     // save time with a table lookup
-    if( _verbToLemma.containsKey(word) ) return _verbToLemma.get(word);
+    String cached = _verbToLemma.get(word);
+    if( cached != null ) return (cached == NO_LEMMA ? null : cached);
 
     try {
       // don't return lemmas for hyphenated words
       if( word.indexOf('-') > -1 || word.indexOf('/') > -1 ) {
-        _verbToLemma.put(word, null);
+        _verbToLemma.put(word, NO_LEMMA);
         return null;	
       }
 
       // get the lemma
-      IndexWord iword = Dictionary.getInstance().lookupIndexWord(POS.VERB, word);
+      IndexWord iword = lookupIndexWord(POS.VERB, word);
       if( iword == null ) {
-        _verbToLemma.put(word, null);
+        _verbToLemma.put(word, NO_LEMMA);
         return null;
       }
       else {
@@ -127,22 +155,21 @@ public class WordNet {
    * @return The lemma of the word if it is a noun, null otherwise
    */
   public String nounToLemma(String word) {
-    if( _nounToLemma == null ) _nounToLemma = new HashMap<String, String>();
-
     // save time with a table lookup
-    if( _nounToLemma.containsKey(word) ) return _nounToLemma.get(word);
+    String cached = _nounToLemma.get(word);
+    if( cached != null ) return (cached == NO_LEMMA ? null : cached);
 
     try {
       // don't return lemmas for hyphenated words
       if( word.indexOf('-') > -1 || word.indexOf('/') > -1 ) {
-        _nounToLemma.put(word, null);
+        _nounToLemma.put(word, NO_LEMMA);
         return null;	
       }
 
       // get the lemma
-      IndexWord iword = Dictionary.getInstance().lookupIndexWord(POS.NOUN, word);
+      IndexWord iword = lookupIndexWord(POS.NOUN, word);
       if( iword == null ) {
-        _nounToLemma.put(word, null);
+        _nounToLemma.put(word, NO_LEMMA);
         return null;
       }
       else {
@@ -154,7 +181,7 @@ public class WordNet {
           // Here we guess the single form, and return it if the guess exists (e.g. device).
           if( word.endsWith("es") ) {
             String guess = word.substring(0, word.length()-1);
-            IndexWord iGuess = Dictionary.getInstance().lookupIndexWord(POS.NOUN, guess);
+            IndexWord iGuess = lookupIndexWord(POS.NOUN, guess);
             if( iGuess != null && guess.equals(iGuess.getLemma()) ) {
               lemma = guess;
 //              System.out.println("WORDNET guessed singular: " + lemma + " from " + word);
@@ -164,7 +191,7 @@ public class WordNet {
           // "men" and "businessmen" are in WordNet as lemmas ... we need to get the singular man
           else if( word.endsWith("men") ) {
             String guess = word.substring(0, word.length()-2) + "an";
-            IndexWord iGuess = Dictionary.getInstance().lookupIndexWord(POS.NOUN, guess);
+            IndexWord iGuess = lookupIndexWord(POS.NOUN, guess);
             if( iGuess != null && guess.equals(iGuess.getLemma()) ) {
               lemma = guess;
 //              System.out.println("WORDNET guessed singular: " + lemma + " from " + word);
@@ -192,22 +219,21 @@ public class WordNet {
    * @return The lemma of the word if it is an adjective, null otherwise
    */
   public String adjectiveToLemma(String word) {
-    if( _adjToLemma == null ) _adjToLemma = new HashMap<String, String>();
-
     // save time with a table lookup
-    if( _adjToLemma.containsKey(word) ) return _adjToLemma.get(word);
+    String cached = _adjToLemma.get(word);
+    if( cached != null ) return (cached == NO_LEMMA ? null : cached);
 
     try {
       // don't return lemmas for hyphenated words
       if( word.indexOf('-') > -1 || word.indexOf('/') > -1 ) {
-        _adjToLemma.put(word, null);
+        _adjToLemma.put(word, NO_LEMMA);
         return null;	
       }
 
       // get the lemma
-      IndexWord iword = Dictionary.getInstance().lookupIndexWord(POS.ADJECTIVE, word);
+      IndexWord iword = lookupIndexWord(POS.ADJECTIVE, word);
       if( iword == null ) {
-        _adjToLemma.put(word, null);
+        _adjToLemma.put(word, NO_LEMMA);
         return null;
       }
       else {
@@ -250,14 +276,16 @@ public class WordNet {
    * @return All synsets for the given word and POS category.
    */
   public Synset[] synsetsOf(String token, POS postag) {
-    try {
-      IndexWord iword = Dictionary.getInstance().lookupIndexWord(postag, token);
-      if( iword != null ) {
-        Synset[] synsets = iword.getSenses();
-        return synsets;
-      }
-    } catch( Exception ex ) { ex.printStackTrace(); }
-    return null;
+    synchronized( JWNL_LOCK ) {
+      try {
+        IndexWord iword = Dictionary.getInstance().lookupIndexWord(postag, token);
+        if( iword != null ) {
+          Synset[] synsets = iword.getSenses();
+          return synsets;
+        }
+      } catch( Exception ex ) { ex.printStackTrace(); }
+      return null;
+    }
   }
 
   /**
@@ -337,7 +365,7 @@ public class WordNet {
 //        if( link.getType() == PointerType.HYPERNYM ) {
         if( link.getType() != null && link.getType().getKey().charAt(0) == hypernymChar ) {
           try {
-            Synset target = link.getTargetSynset();
+            Synset target = targetSynset(link);
             if( !history.contains(target) ) {
               history.add(target);
               chain.add(target);
@@ -405,7 +433,7 @@ public class WordNet {
             if( link.getType() == PointerType.NOMINALIZATION ) {
               // Check that the nominalized word is a verb (e.g. not an adjective).
               try {
-                Synset target = link.getTargetSynset();
+                Synset target = targetSynset(link);
                 if( target.getPOS() == POS.VERB ) {
                   //		  System.out.println("WordNet isNom() link found: " + link);
                   //		  System.out.println(" --> " + link.getTargetSynset());
@@ -437,9 +465,9 @@ public class WordNet {
             if( link.getType() == PointerType.NOMINALIZATION ) {
               // Check that the nominalized word is a verb (e.g. not an adjective).
               try {
-                Synset target = link.getTargetSynset();
+                Synset target = targetSynset(link);
                 if( target.getPOS() == POS.VERB ) {
-                  Synset verbSynset = link.getTargetSynset();
+                  Synset verbSynset = targetSynset(link);
                   Word[] verbs = verbSynset.getWords();
                   List<String> theverbs = new ArrayList<String>();
                   for( Word verb : verbs )
@@ -480,8 +508,8 @@ public class WordNet {
     return isNounPersonOrGroup(token, false, false);
   }
   public boolean isNounPersonOrGroup(String token, boolean mainSynsetOnly, boolean justPerson) {
-    if( _isPersonOrGroup == null ) _isPersonOrGroup = new HashMap<String, Boolean>();
-    if( _isPersonOrGroup.containsKey(token) ) return _isPersonOrGroup.get(token);
+    Boolean cached = _isPersonOrGroup.get(token);
+    if( cached != null ) return cached;
 
     Synset[] synsets = synsetsOf(token, POS.NOUN);
     if( synsets == null ) {
@@ -554,8 +582,8 @@ public class WordNet {
   }
   
   public boolean isTime(String token) {
-    if( _isTime == null ) _isTime = new HashMap<String, Boolean>();
-    if( _isTime.containsKey(token) ) return _isTime.get(token);
+    Boolean cached = _isTime.get(token);
+    if( cached != null ) return cached;
 
     Synset[] synsets = synsetsOf(token, POS.NOUN);
 //    System.out.println("isTime top " + token);
@@ -580,8 +608,8 @@ public class WordNet {
   }
   
   public boolean isLocation(String token) {
-    if( _isLocation == null ) _isLocation = new HashMap<String, Boolean>();
-    if( _isLocation.containsKey(token) ) return _isLocation.get(token);
+    Boolean cached = _isLocation.get(token);
+    if( cached != null ) return cached;
 
     Synset[] synsets = synsetsOf(token, POS.NOUN);
     //    System.out.println("isNounEntity top " + token);
@@ -609,8 +637,8 @@ public class WordNet {
    * A more precise lookup of physical structures (more precise than all physical objects)
    */
   public boolean isStructure(String token) {
-    if( _isStructure == null ) _isStructure = new HashMap<String, Boolean>();
-    if( _isStructure.containsKey(token) ) return _isStructure.get(token);
+    Boolean cached = _isStructure.get(token);
+    if( cached != null ) return cached;
 
     Synset[] synsets = synsetsOf(token, POS.NOUN);
     //    System.out.println("isNounEntity top " + token);
@@ -669,8 +697,8 @@ public class WordNet {
    *         synset.
    */
   public boolean isNonPersonLocationPhysicalObject(String token) {
-    if( _isNonPersonLocationPhysicalObject == null ) _isNonPersonLocationPhysicalObject = new HashMap<String, Boolean>();
-    if( _isNonPersonLocationPhysicalObject.containsKey(token) ) return _isNonPersonLocationPhysicalObject.get(token);
+    Boolean cached = _isNonPersonLocationPhysicalObject.get(token);
+    if( cached != null ) return cached;
 
     Synset[] synsets = synsetsOf(token, POS.NOUN);
     if( synsets == null ) {
@@ -702,8 +730,8 @@ public class WordNet {
    *         synset.
    */
   public boolean isPhysicalObject(String token) {
-    if( _isPhysicalObject == null ) _isPhysicalObject = new HashMap<String, Boolean>();
-    if( _isPhysicalObject.containsKey(token) ) return _isPhysicalObject.get(token);
+    Boolean cached = _isPhysicalObject.get(token);
+    if( cached != null ) return cached;
 
     Synset[] synsets = synsetsOf(token, POS.NOUN);
     if( synsets == null ) {
@@ -732,8 +760,8 @@ public class WordNet {
    *       
    */
   public boolean isMaterial(String token) {
-    if( _isMaterial == null ) _isMaterial = new HashMap<String, Boolean>();
-    if( _isMaterial.containsKey(token) ) return _isMaterial.get(token);
+    Boolean cached = _isMaterial.get(token);
+    if( cached != null ) return cached;
 
     Synset[] synsets = synsetsOf(token, POS.NOUN);
 //    System.out.println("isMatter top " + token);
@@ -764,8 +792,8 @@ public class WordNet {
    */
   public boolean isMeasure(String token) {
     // save time with a table lookup
-    if( _isMeasure == null ) _isMeasure = new HashMap<String, Boolean>();
-    if( _isMeasure.containsKey(token) ) return _isMeasure.get(token);
+    Boolean cached = _isMeasure.get(token);
+    if( cached != null ) return cached;
 
     Synset[] synsets = synsetsOf(token, POS.NOUN);
     //    System.out.println("isPhysicalObject top " + token);
@@ -800,8 +828,8 @@ public class WordNet {
    */
   public boolean isNounEvent(String token) {
     // save time with a table lookup
-    if( _isNounEvent == null ) _isNounEvent = new HashMap<String, Boolean>();
-    if( _isNounEvent.containsKey(token) ) return _isNounEvent.get(token);
+    Boolean cached = _isNounEvent.get(token);
+    if( cached != null ) return cached;
 
     Synset[] synsets = synsetsOf(token, POS.NOUN);
     //    System.out.println("isNounEvent top " + token);
@@ -833,8 +861,8 @@ public class WordNet {
    */
   public boolean isNamedEntity(String token) {
     // save time with a table lookup
-    if( _isNamedEntity == null ) _isNamedEntity = new HashMap<String, Boolean>();
-    if( _isNamedEntity.containsKey(token) ) return _isNamedEntity.get(token);
+    Boolean cached = _isNamedEntity.get(token);
+    if( cached != null ) return cached;
 
     Synset[] synsets = synsetsOf(token, POS.NOUN);
     //    System.out.println("isNounEvent top " + token);
@@ -860,26 +888,28 @@ public class WordNet {
    * @returns Array of three strings: word, lemma, synset
    */
   public static String[] stringTypes(String str) {
-    try {
-      String[] types = new String[3];
-      String[] parts = str.split("\\s+");
-      IndexWord iword = Dictionary.getInstance().lookupIndexWord(POS.VERB, parts[parts.length-1]);
-      if( iword == null ) 
-        iword = Dictionary.getInstance().lookupIndexWord(POS.NOUN, parts[parts.length-1]);
-      if( iword == null ) {
-        types[1] = parts[parts.length-1];
-        types[2] = "-1";
-      }
-      else {
-        String lemma = iword.getLemma();
-        if( lemma.indexOf(' ') != -1 ) // Sometimes it returns a two word phrase
-          lemma = lemma.trim().replace(' ','-');
-        types[1] = lemma;
-        types[2] = Long.toString(iword.getSense(1).getOffset());
-      }
-      types[0] = parts[parts.length-1];
-      return types;
-    } catch( Exception ex ) { ex.printStackTrace(); return null; }
+    synchronized( JWNL_LOCK ) {
+      try {
+        String[] types = new String[3];
+        String[] parts = str.split("\\s+");
+        IndexWord iword = Dictionary.getInstance().lookupIndexWord(POS.VERB, parts[parts.length-1]);
+        if( iword == null ) 
+          iword = Dictionary.getInstance().lookupIndexWord(POS.NOUN, parts[parts.length-1]);
+        if( iword == null ) {
+          types[1] = parts[parts.length-1];
+          types[2] = "-1";
+        }
+        else {
+          String lemma = iword.getLemma();
+          if( lemma.indexOf(' ') != -1 ) // Sometimes it returns a two word phrase
+            lemma = lemma.trim().replace(' ','-');
+          types[1] = lemma;
+          types[2] = Long.toString(iword.getSense(1).getOffset());
+        }
+        types[0] = parts[parts.length-1];
+        return types;
+      } catch( Exception ex ) { ex.printStackTrace(); return null; }
+    }
   }
   
   public Synset getRootSynset() {